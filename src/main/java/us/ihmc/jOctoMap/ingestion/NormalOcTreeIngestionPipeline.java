@@ -0,0 +1,83 @@
+package us.ihmc.jOctoMap.ingestion;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import us.ihmc.jOctoMap.key.OcTreeKey;
+import us.ihmc.jOctoMap.node.NormalOcTreeNode;
+import us.ihmc.jOctoMap.ocTree.NormalOcTree;
+import us.ihmc.jOctoMap.ocTree.NormalOcTree.CellsToUpdate;
+import us.ihmc.jOctoMap.pointCloud.ScanCollection;
+
+/**
+ * Pipeline inserting the scans in a {@link NormalOcTree} and updating the normals of the leaves they
+ * updated: the hits and the cells traversed by the rays are computed on the ray tracing thread, see
+ * {@link NormalOcTree#computeCellsToUpdate(ScanCollection, boolean, CellsToUpdate)}, only their
+ * update and the normal update are left to the tree update thread.
+ */
+public class NormalOcTreeIngestionPipeline extends ScanIngestionPipeline<NormalOcTreeIngestionPipeline.ScansToInsert>
+{
+   static class ScansToInsert
+   {
+      private final CellsToUpdate cellsToUpdate = new CellsToUpdate();
+      private final Set<NormalOcTreeNode> updatedLeaves = new HashSet<>();
+      private final Set<OcTreeKey> deletedLeaves = new HashSet<>();
+   }
+
+   private final NormalOcTree ocTree;
+   private final boolean insertMiss;
+
+   public NormalOcTreeIngestionPipeline(NormalOcTree ocTree, int queueCapacity, OverflowPolicy overflowPolicy)
+   {
+      this(ocTree, true, queueCapacity, overflowPolicy);
+   }
+
+   public NormalOcTreeIngestionPipeline(NormalOcTree ocTree, boolean insertMiss, int queueCapacity, OverflowPolicy overflowPolicy)
+   {
+      super(ocTree, queueCapacity, overflowPolicy);
+      this.ocTree = ocTree;
+      this.insertMiss = insertMiss;
+   }
+
+   @Override
+   protected ScansToInsert createUpdate()
+   {
+      return new ScansToInsert();
+   }
+
+   @Override
+   protected void computeUpdate(ScanCollection scanCollection, ScansToInsert updateToPack)
+   {
+      ocTree.computeCellsToUpdate(scanCollection, insertMiss, updateToPack.cellsToUpdate);
+      updateToPack.updatedLeaves.clear();
+      updateToPack.deletedLeaves.clear();
+   }
+
+   @Override
+   protected void applyUpdate(ScansToInsert update)
+   {
+      ocTree.insertCells(update.cellsToUpdate, update.updatedLeaves, update.deletedLeaves);
+   }
+
+   @Override
+   protected void completeUpdate(ScansToInsert update)
+   {
+      ocTree.updateNodesNormals(update.updatedLeaves);
+   }
+
+   @Override
+   protected void packChangeSet(ScansToInsert update, OcTreeChangeSet changeSetToPack)
+   {
+      for (OcTreeKey deletedLeaf : update.deletedLeaves)
+         changeSetToPack.addDeletedKey(deletedLeaf);
+
+      OcTreeKey key = new OcTreeKey();
+
+      for (NormalOcTreeNode updatedLeaf : update.updatedLeaves)
+      { // A leaf updated by a scan can be deleted by a later one of the same batch.
+         updatedLeaf.getKey(key);
+         if (ocTree.search(key, updatedLeaf.getDepth()) == updatedLeaf)
+            changeSetToPack.addUpdatedKey(key);
+      }
+   }
+}
@@ -0,0 +1,82 @@
+package us.ihmc.jOctoMap.ingestion;
+
+import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeySet;
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
+
+/**
+ * Keys of the nodes changed by one or more consecutive updates of a tree. A key is either updated or
+ * deleted, according to the last update that changed it.
+ */
+public class OcTreeChangeSet
+{
+   private final PackedOcTreeKeySet updatedKeys = new PackedOcTreeKeySet();
+   private final PackedOcTreeKeySet deletedKeys = new PackedOcTreeKeySet();
+   private int numberOfUpdates = 1;
+
+   public void addUpdatedKey(OcTreeKeyReadOnly key)
+   {
+      addUpdatedKey(OcTreeKeyTools.packKey(key));
+   }
+
+   public void addUpdatedKey(long packedKey)
+   {
+      deletedKeys.remove(packedKey);
+      updatedKeys.add(packedKey);
+   }
+
+   public void addUpdatedKeys(PackedOcTreeKeySet packedKeys)
+   {
+      for (int i = 0; i < packedKeys.size(); i++)
+         addUpdatedKey(packedKeys.get(i));
+   }
+
+   public void addDeletedKey(OcTreeKeyReadOnly key)
+   {
+      addDeletedKey(OcTreeKeyTools.packKey(key));
+   }
+
+   public void addDeletedKey(long packedKey)
+   {
+      updatedKeys.remove(packedKey);
+      deletedKeys.add(packedKey);
+   }
+
+   /** Appends the changes of a later update to this change set. */
+   public void merge(OcTreeChangeSet laterChangeSet)
+   {
+      addUpdatedKeys(laterChangeSet.updatedKeys);
+      for (int i = 0; i < laterChangeSet.deletedKeys.size(); i++)
+         addDeletedKey(laterChangeSet.deletedKeys.get(i));
+      numberOfUpdates += laterChangeSet.numberOfUpdates;
+   }
+
+   /** @return the keys of the nodes updated, which must not be modified. */
+   public PackedOcTreeKeySet getUpdatedKeys()
+   {
+      return updatedKeys;
+   }
+
+   /** @return the keys of the nodes deleted, which must not be modified. */
+   public PackedOcTreeKeySet getDeletedKeys()
+   {
+      return deletedKeys;
+   }
+
+   /** @return the number of updates merged in this change set. */
+   public int getNumberOfUpdates()
+   {
+      return numberOfUpdates;
+   }
+
+   public boolean isEmpty()
+   {
+      return updatedKeys.isEmpty() && deletedKeys.isEmpty();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "updates: " + numberOfUpdates + ", updated keys: " + updatedKeys.size() + ", deleted keys: " + deletedKeys.size();
+   }
+}
@@ -0,0 +1,36 @@
+package us.ihmc.jOctoMap.ingestion;
+
+/**
+ * Interfaces of the reactive streams, with the same contract as {@code java.util.concurrent.Flow}
+ * which is not available before Java 9. A {@code Flow.Publisher} can be connected to a
+ * {@link Subscriber} by forwarding the calls, e.g. {@code subscriber::onNext}, and vice versa.
+ */
+public abstract class OcTreeFlow
+{
+   public interface Publisher<T>
+   {
+      void subscribe(Subscriber<? super T> subscriber);
+   }
+
+   public interface Subscriber<T>
+   {
+      void onSubscribe(Subscription subscription);
+
+      void onNext(T item);
+
+      void onError(Throwable throwable);
+
+      void onComplete();
+   }
+
+   public interface Subscription
+   {
+      void request(long n);
+
+      void cancel();
+   }
+
+   public interface Processor<T, R> extends Subscriber<T>, Publisher<R>
+   {
+   }
+}
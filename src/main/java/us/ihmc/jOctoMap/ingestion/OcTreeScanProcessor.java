@@ -0,0 +1,301 @@
+package us.ihmc.jOctoMap.ingestion;
+
+import us.ihmc.jOctoMap.pointCloud.Scan;
+
+/**
+ * Streams the scans of a publisher into a tree through a {@link ScanIngestionPipeline}, and publishes
+ * the keys changed by each update.
+ * <p>
+ * The scans are requested from the publisher as room is made in the queue of the pipeline, such
+ * that nothing is buffered beyond its capacity. The batches that queue up while the tree falls behind
+ * are coalesced, and so are the change sets while the subscriber has no outstanding demand. Once the
+ * publisher completes, the change sets of the scans still queued are published before completing the
+ * subscriber, and the pipeline is stopped. The pipeline is also stopped when the subscriber cancels
+ * its subscription.
+ * </p>
+ * <p>
+ * A single subscriber is supported, the change sets published before it subscribes are delivered to
+ * it.
+ * </p>
+ */
+public class OcTreeScanProcessor implements OcTreeFlow.Processor<Scan, OcTreeChangeSet>
+{
+   private final ScanIngestionPipeline<?> pipeline;
+
+   private OcTreeFlow.Subscription upstream;
+   private final Object upstreamLock = new Object();
+
+   private OcTreeFlow.Subscriber<? super OcTreeChangeSet> downstream;
+   private long downstreamDemand = 0;
+   private OcTreeChangeSet pendingChangeSet = null;
+   private boolean emitting = false;
+
+   private boolean upstreamTerminated = false;
+   private boolean finished = false;
+   private Throwable terminationError = null;
+   private boolean terminationSignaled = false;
+
+   public OcTreeScanProcessor(ScanIngestionPipeline<?> pipeline)
+   {
+      this.pipeline = pipeline;
+      pipeline.setCoalesceQueuedBatches(true);
+      pipeline.setListener(new ScanIngestionPipeline.Listener()
+      {
+         @Override
+         public void batchesDequeued(int numberOfBatches)
+         {
+            requestUpstream(numberOfBatches);
+         }
+
+         @Override
+         public void updateCompleted(OcTreeChangeSet changeSet)
+         {
+            synchronized (OcTreeScanProcessor.this)
+            {
+               if (pendingChangeSet == null)
+                  pendingChangeSet = changeSet;
+               else
+                  pendingChangeSet.merge(changeSet);
+            }
+
+            drain();
+         }
+
+         @Override
+         public void idle()
+         {
+            finishIfIdle();
+         }
+      });
+   }
+
+   public ScanIngestionPipeline<?> getPipeline()
+   {
+      return pipeline;
+   }
+
+   @Override
+   public void onSubscribe(OcTreeFlow.Subscription subscription)
+   {
+      synchronized (upstreamLock)
+      {
+         if (upstream != null)
+         {
+            subscription.cancel();
+            return;
+         }
+         upstream = subscription;
+      }
+
+      pipeline.start();
+      requestUpstream(pipeline.getQueueCapacity());
+   }
+
+   @Override
+   public void onNext(Scan scan)
+   {
+      synchronized (this)
+      {
+         if (finished)
+            return;
+      }
+
+      // A scan dropped by the pipeline never frees a slot of its queue, it is replaced with a new one.
+      if (!pipeline.submit(scan))
+         requestUpstream(1);
+   }
+
+   @Override
+   public void onError(Throwable throwable)
+   {
+      terminate(throwable);
+   }
+
+   @Override
+   public void onComplete()
+   {
+      terminate(null);
+   }
+
+   private void terminate(Throwable error)
+   {
+      synchronized (this)
+      {
+         if (upstreamTerminated)
+            return;
+         upstreamTerminated = true;
+         terminationError = error;
+      }
+
+      finishIfIdle();
+   }
+
+   private void requestUpstream(long n)
+   {
+      synchronized (upstreamLock)
+      {
+         if (upstream != null)
+            upstream.request(n);
+      }
+   }
+
+   private void cancelUpstream()
+   {
+      synchronized (upstreamLock)
+      {
+         if (upstream != null)
+            upstream.cancel();
+         upstream = null;
+      }
+   }
+
+   private void finishIfIdle()
+   {
+      synchronized (this)
+      {
+         if (!upstreamTerminated || finished || !pipeline.isIdle())
+            return;
+         finished = true;
+      }
+
+      synchronized (upstreamLock)
+      {
+         upstream = null;
+      }
+
+      stopPipeline();
+      drain();
+   }
+
+   private void stopPipeline()
+   {
+      try
+      {
+         pipeline.stop();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   @Override
+   public void subscribe(OcTreeFlow.Subscriber<? super OcTreeChangeSet> subscriber)
+   {
+      boolean accepted;
+
+      synchronized (this)
+      {
+         accepted = downstream == null;
+         if (accepted)
+            downstream = subscriber;
+      }
+
+      subscriber.onSubscribe(new OcTreeFlow.Subscription()
+      {
+         @Override
+         public void request(long n)
+         {
+            if (!accepted)
+               return;
+
+            if (n <= 0)
+            {
+               cancel();
+               subscriber.onError(new IllegalArgumentException("The number of requested change sets must be positive, was: " + n));
+               return;
+            }
+
+            synchronized (OcTreeScanProcessor.this)
+            {
+               if (downstream != subscriber)
+                  return;
+               downstreamDemand = downstreamDemand + n < 0 ? Long.MAX_VALUE : downstreamDemand + n;
+            }
+
+            drain();
+         }
+
+         @Override
+         public void cancel()
+         {
+            if (!accepted)
+               return;
+
+            boolean stopPipeline;
+
+            synchronized (OcTreeScanProcessor.this)
+            {
+               if (downstream != subscriber)
+                  return;
+               downstream = null;
+               downstreamDemand = 0;
+               pendingChangeSet = null;
+               // Only the thread finishing the processor stops the pipeline.
+               stopPipeline = !finished;
+               finished = true;
+               terminationSignaled = true;
+            }
+
+            cancelUpstream();
+            if (stopPipeline)
+               stopPipeline();
+         }
+      });
+
+      if (!accepted)
+         subscriber.onError(new RuntimeException("This processor already has a subscriber."));
+      else
+         drain();
+   }
+
+   /** Delivers the pending change set and the termination signal, from one thread at a time. */
+   private void drain()
+   {
+      synchronized (this)
+      {
+         if (emitting)
+            return;
+         emitting = true;
+      }
+
+      while (true)
+      {
+         OcTreeFlow.Subscriber<? super OcTreeChangeSet> subscriber;
+         OcTreeChangeSet changeSet = null;
+         boolean signalTermination = false;
+         Throwable error;
+
+         synchronized (this)
+         {
+            subscriber = downstream;
+            error = terminationError;
+
+            if (subscriber != null && downstreamDemand > 0 && pendingChangeSet != null)
+            {
+               changeSet = pendingChangeSet;
+               pendingChangeSet = null;
+               downstreamDemand--;
+            }
+            else if (subscriber != null && pendingChangeSet == null && finished && !terminationSignaled)
+            {
+               signalTermination = true;
+               terminationSignaled = true;
+               downstream = null;
+            }
+            else
+            {
+               emitting = false;
+               return;
+            }
+         }
+
+         if (changeSet != null)
+            subscriber.onNext(changeSet);
+         else if (signalTermination && error != null)
+            subscriber.onError(error);
+         else if (signalTermination)
+            subscriber.onComplete();
+      }
+   }
+}
@@ -0,0 +1,88 @@
+package us.ihmc.jOctoMap.ingestion;
+
+import us.ihmc.jOctoMap.key.OcTreeKey;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeyBooleanMap;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeySet;
+import us.ihmc.jOctoMap.ocTree.baseImplementation.AbstractOccupancyOcTree;
+import us.ihmc.jOctoMap.pointCloud.ScanCollection;
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
+
+/**
+ * Pipeline inserting the scans in an occupancy octree: the cells traversed by the rays are computed
+ * on the ray tracing thread, only their update is left to the tree update thread.
+ * <p>
+ * When the change detection of the tree is enabled, see
+ * {@link AbstractOccupancyOcTree#enableChangeDetection(boolean)}, it is reset before each batch and
+ * the change sets hold the keys changed by the batch: the leaves created or which occupancy changed
+ * are updated, including those which have been pruned into a coarser node, the occupancy of such a
+ * key being the one of the node returned by {@link AbstractOccupancyOcTree#search}. The keys which
+ * are no longer in the tree are deleted. Otherwise, the change sets hold all the cells touched by the
+ * batch as updated keys.
+ * </p>
+ */
+public class OccupancyOcTreeIngestionPipeline extends ScanIngestionPipeline<OccupancyOcTreeIngestionPipeline.CellsToUpdate>
+{
+   static class CellsToUpdate
+   {
+      private final PackedOcTreeKeySet freeCells = new PackedOcTreeKeySet();
+      private final PackedOcTreeKeySet occupiedCells = new PackedOcTreeKeySet();
+   }
+
+   private final AbstractOccupancyOcTree<?> ocTree;
+   private final OcTreeKey changedKey = new OcTreeKey();
+
+   public OccupancyOcTreeIngestionPipeline(AbstractOccupancyOcTree<?> ocTree, int queueCapacity, OverflowPolicy overflowPolicy)
+   {
+      super(ocTree, queueCapacity, overflowPolicy);
+      this.ocTree = ocTree;
+   }
+
+   @Override
+   protected CellsToUpdate createUpdate()
+   {
+      return new CellsToUpdate();
+   }
+
+   @Override
+   protected void computeUpdate(ScanCollection scanCollection, CellsToUpdate updateToPack)
+   {
+      ocTree.computeCellsToUpdate(scanCollection, updateToPack.freeCells, updateToPack.occupiedCells);
+   }
+
+   @Override
+   protected void applyUpdate(CellsToUpdate update)
+   {
+      if (ocTree.isChangeDetectionEnabled())
+         ocTree.resetChangeDetection();
+      ocTree.insertCells(update.freeCells, update.occupiedCells);
+   }
+
+   @Override
+   protected void completeUpdate(CellsToUpdate update)
+   {
+   }
+
+   @Override
+   protected void packChangeSet(CellsToUpdate update, OcTreeChangeSet changeSetToPack)
+   {
+      if (!ocTree.isChangeDetectionEnabled())
+      {
+         changeSetToPack.addUpdatedKeys(update.freeCells);
+         changeSetToPack.addUpdatedKeys(update.occupiedCells);
+         return;
+      }
+
+      PackedOcTreeKeyBooleanMap changedKeys = ocTree.getPackedChangedKeys();
+
+      for (int i = 0; i < changedKeys.size(); i++)
+      {
+         long packedKey = changedKeys.get(i);
+         OcTreeKeyTools.unpackKey(packedKey, changedKey);
+
+         if (ocTree.search(changedKey) != null)
+            changeSetToPack.addUpdatedKey(packedKey);
+         else
+            changeSetToPack.addDeletedKey(packedKey);
+      }
+   }
+}
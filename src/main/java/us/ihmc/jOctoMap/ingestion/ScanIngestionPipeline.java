@@ -0,0 +1,520 @@
+package us.ihmc.jOctoMap.ingestion;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import us.ihmc.jOctoMap.ocTree.baseImplementation.AbstractOcTreeBase;
+import us.ihmc.jOctoMap.pointCloud.Scan;
+import us.ihmc.jOctoMap.pointCloud.ScanCollection;
+import us.ihmc.jOctoMap.tools.JOctoMapTools;
+
+/**
+ * Inserts the scans submitted by the sensors into an octree from two background threads, such that
+ * the sensor threads never wait on the tree.
+ * <p>
+ * The submitted scans are queued in a bounded queue which is drained by the ray tracing thread. It
+ * computes the update of each batch of scans without touching the tree, and hands it to the tree
+ * update thread, which applies it to the tree and then completes it, e.g. by updating the normals.
+ * The ray tracing of a batch thus overlaps with the update of the previous one. When the queue is
+ * full, the submitted scans are dropped or merged according to the {@link OverflowPolicy}.
+ * </p>
+ * <p>
+ * The tree must not be modified by other threads while the pipeline is running. When the snapshots
+ * of the tree are enabled, a snapshot is published after each update, from which the tree can be
+ * read concurrently.
+ * </p>
+ *
+ * @param <U> the type of the update computed by the ray tracing thread. The updates are recycled.
+ */
+public abstract class ScanIngestionPipeline<U>
+{
+   public enum OverflowPolicy
+   {
+      /** The scans submitted while the queue is full are dropped. */
+      DROP_NEWEST,
+      /** The oldest queued scans are dropped to make room for the submitted scans. */
+      DROP_OLDEST,
+      /** The scans submitted while the queue is full are merged into the last queued batch and inserted along with it. */
+      MERGE
+   }
+
+   public enum Stage
+   {
+      RAY_TRACING, TREE_UPDATE, UPDATE_COMPLETION
+   }
+
+   /** Callbacks invoked from the threads of the pipeline. */
+   public interface Listener
+   {
+      /** Called when batches are taken from the queue, i.e. when room is made for as many batches. */
+      void batchesDequeued(int numberOfBatches);
+
+      /** Called once an update has been applied and completed, with the keys it changed. */
+      void updateCompleted(OcTreeChangeSet changeSet);
+
+      /** Called when all the batches submitted so far have been processed. */
+      void idle();
+   }
+
+   private static final int NUMBER_OF_UPDATES_IN_FLIGHT = 2;
+
+   private final AbstractOcTreeBase<?> ocTree;
+   private final int queueCapacity;
+   private final OverflowPolicy overflowPolicy;
+
+   private final ArrayDeque<ScanCollection> queue = new ArrayDeque<>();
+   private final BlockingQueue<U> computedUpdates = new ArrayBlockingQueue<>(NUMBER_OF_UPDATES_IN_FLIGHT);
+   private final ConcurrentLinkedQueue<U> unusedUpdates = new ConcurrentLinkedQueue<>();
+
+   // The following are guarded by the queue.
+   private int numberOfPendingBatches = 0;
+   private int maximumQueueDepth = 0;
+   private long numberOfSubmittedBatches = 0;
+   private long numberOfDroppedBatches = 0;
+   private long numberOfMergedBatches = 0;
+   private long numberOfCoalescedBatches = 0;
+   private long numberOfFailedBatches = 0;
+   private RuntimeException lastFailure = null;
+
+   private final EnumMap<Stage, StageStatistics> stageStatistics = new EnumMap<>(Stage.class);
+
+   private boolean coalesceQueuedBatches = false;
+   private Listener listener = null;
+
+   private volatile boolean running = false;
+   private Thread rayTracingThread;
+   private Thread treeUpdateThread;
+
+   public ScanIngestionPipeline(AbstractOcTreeBase<?> ocTree, int queueCapacity, OverflowPolicy overflowPolicy)
+   {
+      if (queueCapacity < 1)
+         throw new RuntimeException("The queue capacity must be at least 1, was: " + queueCapacity);
+
+      this.ocTree = ocTree;
+      this.queueCapacity = queueCapacity;
+      this.overflowPolicy = overflowPolicy;
+
+      for (Stage stage : Stage.values())
+         stageStatistics.put(stage, new StageStatistics());
+   }
+
+   /** @return a new update to be packed by {@link #computeUpdate(ScanCollection, Object)}. */
+   protected abstract U createUpdate();
+
+   /** Computes the update of a batch of scans. Called from the ray tracing thread, the tree must not be modified. */
+   protected abstract void computeUpdate(ScanCollection scanCollection, U updateToPack);
+
+   /** Applies an update to the tree. Called from the tree update thread. */
+   protected abstract void applyUpdate(U update);
+
+   /** Completes an update once applied to the tree. Called from the tree update thread. */
+   protected abstract void completeUpdate(U update);
+
+   /** Packs the keys changed by a completed update. Called from the tree update thread when a listener is set. */
+   protected abstract void packChangeSet(U update, OcTreeChangeSet changeSetToPack);
+
+   /**
+    * When enabled, all the batches waiting in the queue are merged and inserted at once, such that the
+    * pipeline catches up when the tree falls behind the sensors. Must be set before starting the
+    * pipeline.
+    */
+   public void setCoalesceQueuedBatches(boolean coalesceQueuedBatches)
+   {
+      checkNotRunning();
+      this.coalesceQueuedBatches = coalesceQueuedBatches;
+   }
+
+   /** Sets the listener to be notified by the pipeline, can be null. Must be set before starting the pipeline. */
+   public void setListener(Listener listener)
+   {
+      checkNotRunning();
+      this.listener = listener;
+   }
+
+   private void checkNotRunning()
+   {
+      if (running)
+         throw new RuntimeException("The pipeline is running.");
+   }
+
+   public void start()
+   {
+      checkNotRunning();
+
+      running = true;
+      rayTracingThread = new Thread(this::runRayTracing, "ScanIngestionRayTracing");
+      treeUpdateThread = new Thread(this::runTreeUpdate, "ScanIngestionTreeUpdate");
+      rayTracingThread.setDaemon(true);
+      treeUpdateThread.setDaemon(true);
+      rayTracingThread.start();
+      treeUpdateThread.start();
+   }
+
+   /**
+    * Stops the threads once they are done with their current batch. The batches still queued are
+    * discarded. When called from the listener, the calling thread is not waited for.
+    */
+   public void stop() throws InterruptedException
+   {
+      if (!running)
+         return;
+
+      running = false;
+
+      for (Thread thread : new Thread[] {rayTracingThread, treeUpdateThread})
+      {
+         if (thread != Thread.currentThread())
+         {
+            thread.interrupt();
+            thread.join();
+         }
+      }
+
+      rayTracingThread = null;
+      treeUpdateThread = null;
+
+      U update;
+      while ((update = computedUpdates.poll()) != null)
+         unusedUpdates.offer(update);
+
+      synchronized (queue)
+      {
+         queue.clear();
+         numberOfPendingBatches = 0;
+         queue.notifyAll();
+      }
+   }
+
+   public boolean isRunning()
+   {
+      return running;
+   }
+
+   /** @return whether all the batches submitted so far have been inserted in the tree. */
+   public boolean isIdle()
+   {
+      synchronized (queue)
+      {
+         return numberOfPendingBatches == 0;
+      }
+   }
+
+   /** Blocks until all the batches submitted so far have been inserted in the tree. */
+   public void waitUntilIdle() throws InterruptedException
+   {
+      synchronized (queue)
+      {
+         while (numberOfPendingBatches > 0)
+            queue.wait();
+      }
+   }
+
+   public boolean submit(Scan scan)
+   {
+      ScanCollection scanCollection = new ScanCollection();
+      scanCollection.addScan(scan);
+      return submitBatch(scanCollection);
+   }
+
+   /**
+    * Queues a batch of scans to be inserted in the tree, without blocking. The scans must not be
+    * modified afterwards.
+    *
+    * @return whether the scans will be inserted, false if they were dropped.
+    */
+   public boolean submit(ScanCollection scanCollection)
+   {
+      ScanCollection batch = new ScanCollection();
+      batch.addSweepCollection(scanCollection);
+      return submitBatch(batch);
+   }
+
+   private boolean submitBatch(ScanCollection batch)
+   {
+      synchronized (queue)
+      {
+         numberOfSubmittedBatches++;
+
+         if (queue.size() >= queueCapacity)
+         {
+            switch (overflowPolicy)
+            {
+            case DROP_NEWEST:
+               numberOfDroppedBatches++;
+               return false;
+            case DROP_OLDEST:
+               queue.poll();
+               numberOfPendingBatches--;
+               numberOfDroppedBatches++;
+               break;
+            case MERGE:
+               queue.peekLast().addSweepCollection(batch);
+               numberOfMergedBatches++;
+               return true;
+            default:
+               throw new RuntimeException("Unexpected overflow policy: " + overflowPolicy);
+            }
+         }
+
+         queue.add(batch);
+         numberOfPendingBatches++;
+         maximumQueueDepth = Math.max(maximumQueueDepth, queue.size());
+         queue.notifyAll();
+         return true;
+      }
+   }
+
+   private void runRayTracing()
+   {
+      try
+      {
+         while (running)
+         {
+            ScanCollection batch;
+            int numberOfDequeuedBatches = 1;
+
+            synchronized (queue)
+            {
+               while (queue.isEmpty())
+                  queue.wait();
+               batch = queue.poll();
+
+               while (coalesceQueuedBatches && !queue.isEmpty())
+               {
+                  batch.addSweepCollection(queue.poll());
+                  numberOfDequeuedBatches++;
+                  numberOfPendingBatches--;
+                  numberOfCoalescedBatches++;
+               }
+            }
+
+            if (listener != null)
+               listener.batchesDequeued(numberOfDequeuedBatches);
+
+            U update = unusedUpdates.poll();
+            if (update == null)
+               update = createUpdate();
+
+            long startTime = System.nanoTime();
+
+            try
+            {
+               computeUpdate(batch, update);
+            }
+            catch (RuntimeException e)
+            {
+               unusedUpdates.offer(update);
+               batchFailed(e);
+               continue;
+            }
+
+            stageStatistics.get(Stage.RAY_TRACING).record(System.nanoTime() - startTime);
+            computedUpdates.put(update);
+         }
+      }
+      catch (InterruptedException e)
+      {
+         // The pipeline is being stopped.
+      }
+   }
+
+   private void runTreeUpdate()
+   {
+      try
+      {
+         while (running)
+         {
+            U update = computedUpdates.take();
+
+            try
+            {
+               long startTime = System.nanoTime();
+               applyUpdate(update);
+               long applyEndTime = System.nanoTime();
+               completeUpdate(update);
+               long completeEndTime = System.nanoTime();
+
+               stageStatistics.get(Stage.TREE_UPDATE).record(applyEndTime - startTime);
+               stageStatistics.get(Stage.UPDATE_COMPLETION).record(completeEndTime - applyEndTime);
+
+               if (ocTree.isSnapshotsEnabled())
+                  ocTree.publishSnapshot();
+
+               if (listener != null)
+               {
+                  OcTreeChangeSet changeSet = new OcTreeChangeSet();
+                  packChangeSet(update, changeSet);
+                  listener.updateCompleted(changeSet);
+               }
+            }
+            catch (RuntimeException e)
+            {
+               unusedUpdates.offer(update);
+               batchFailed(e);
+               continue;
+            }
+
+            unusedUpdates.offer(update);
+            batchDone();
+         }
+      }
+      catch (InterruptedException e)
+      {
+         // The pipeline is being stopped.
+      }
+   }
+
+   private void batchDone()
+   {
+      boolean idle;
+
+      synchronized (queue)
+      {
+         numberOfPendingBatches--;
+         idle = numberOfPendingBatches == 0;
+         queue.notifyAll();
+      }
+
+      if (idle && listener != null)
+         listener.idle();
+   }
+
+   private void batchFailed(RuntimeException e)
+   {
+      synchronized (queue)
+      {
+         numberOfFailedBatches++;
+         lastFailure = e;
+      }
+      batchDone();
+   }
+
+   public AbstractOcTreeBase<?> getOcTree()
+   {
+      return ocTree;
+   }
+
+   public int getQueueCapacity()
+   {
+      return queueCapacity;
+   }
+
+   public OverflowPolicy getOverflowPolicy()
+   {
+      return overflowPolicy;
+   }
+
+   /** @return the number of batches waiting for the ray tracing thread. */
+   public int getQueueDepth()
+   {
+      synchronized (queue)
+      {
+         return queue.size();
+      }
+   }
+
+   public int getMaximumQueueDepth()
+   {
+      synchronized (queue)
+      {
+         return maximumQueueDepth;
+      }
+   }
+
+   public long getNumberOfSubmittedBatches()
+   {
+      synchronized (queue)
+      {
+         return numberOfSubmittedBatches;
+      }
+   }
+
+   public long getNumberOfDroppedBatches()
+   {
+      synchronized (queue)
+      {
+         return numberOfDroppedBatches;
+      }
+   }
+
+   public long getNumberOfMergedBatches()
+   {
+      synchronized (queue)
+      {
+         return numberOfMergedBatches;
+      }
+   }
+
+   /** @return the number of queued batches merged into the batch before them by the ray tracing thread. */
+   public long getNumberOfCoalescedBatches()
+   {
+      synchronized (queue)
+      {
+         return numberOfCoalescedBatches;
+      }
+   }
+
+   public long getNumberOfFailedBatches()
+   {
+      synchronized (queue)
+      {
+         return numberOfFailedBatches;
+      }
+   }
+
+   /** @return the exception thrown by the last batch that failed, null if none did. */
+   public RuntimeException getLastFailure()
+   {
+      synchronized (queue)
+      {
+         return lastFailure;
+      }
+   }
+
+   public StageStatistics getStageStatistics(Stage stage)
+   {
+      return stageStatistics.get(stage);
+   }
+
+   public static class StageStatistics
+   {
+      private long numberOfRuns = 0;
+      private long lastLatency = 0;
+      private long totalLatency = 0;
+      private long maximumLatency = 0;
+
+      private synchronized void record(long latencyInNanoSeconds)
+      {
+         numberOfRuns++;
+         lastLatency = latencyInNanoSeconds;
+         totalLatency += latencyInNanoSeconds;
+         maximumLatency = Math.max(maximumLatency, latencyInNanoSeconds);
+      }
+
+      public synchronized long getNumberOfRuns()
+      {
+         return numberOfRuns;
+      }
+
+      /** @return the latency of the last run, in seconds. */
+      public synchronized double getLastLatency()
+      {
+         return JOctoMapTools.nanoSecondsToSeconds(lastLatency);
+      }
+
+      /** @return the average latency of the runs, in seconds. */
+      public synchronized double getAverageLatency()
+      {
+         return numberOfRuns == 0 ? 0.0 : JOctoMapTools.nanoSecondsToSeconds(totalLatency) / numberOfRuns;
+      }
+
+      /** @return the maximum latency of the runs, in seconds. */
+      public synchronized double getMaximumLatency()
+      {
+         return JOctoMapTools.nanoSecondsToSeconds(maximumLatency);
+      }
+   }
+}
@@ -0,0 +1,176 @@
+package us.ihmc.jOctoMap.key;
+
+import java.util.Arrays;
+
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
+
+/**
+ * Map from the Morton codes of keys, see {@link OcTreeKeyTools#computeMortonCode(int, int, int)}, to
+ * the composition of the log-odds updates integrated for each key. The entries are stored in
+ * primitive arrays sorted by Morton code, such that they can be applied to a tree in a single pass.
+ * <p>
+ * An update adds a value to the log-odds and clamps the result. As the clamping makes the updates
+ * order dependent, the composition of a sequence of updates is stored as a single update of the form
+ * {@code min(upperBound, max(lowerBound, logOdds + shift))}, which gives the same result as applying
+ * the updates in sequence.
+ * </p>
+ */
+public class MortonCodeLogOddsUpdateMap
+{
+   private int size = 0;
+   private long[] mortonCodes;
+   private float[] shifts;
+   private float[] lowerBounds;
+   private float[] upperBounds;
+
+   // The merge is done into these arrays which are then swapped with the ones above.
+   private long[] mergedMortonCodes;
+   private float[] mergedShifts;
+   private float[] mergedLowerBounds;
+   private float[] mergedUpperBounds;
+
+   public MortonCodeLogOddsUpdateMap()
+   {
+      this(64);
+   }
+
+   public MortonCodeLogOddsUpdateMap(int initialCapacity)
+   {
+      allocate(Math.max(initialCapacity, 1));
+   }
+
+   private void allocate(int capacity)
+   {
+      mortonCodes = Arrays.copyOf(mortonCodes == null ? new long[0] : mortonCodes, capacity);
+      shifts = Arrays.copyOf(shifts == null ? new float[0] : shifts, capacity);
+      lowerBounds = Arrays.copyOf(lowerBounds == null ? new float[0] : lowerBounds, capacity);
+      upperBounds = Arrays.copyOf(upperBounds == null ? new float[0] : upperBounds, capacity);
+      mergedMortonCodes = new long[capacity];
+      mergedShifts = new float[capacity];
+      mergedLowerBounds = new float[capacity];
+      mergedUpperBounds = new float[capacity];
+   }
+
+   /**
+    * Appends the same update to the updates of each of the given keys, which are merged into this map.
+    *
+    * @param sortedMortonCodes the Morton codes of the keys to update, sorted in increasing order
+    *                          without duplicates.
+    * @param numberOfKeys      the number of Morton codes to read from {@code sortedMortonCodes}.
+    * @param updateLogOdds     the value added to the log-odds.
+    * @param minLogOdds        the lower clamping threshold of the log-odds.
+    * @param maxLogOdds        the upper clamping threshold of the log-odds.
+    */
+   public void integrate(long[] sortedMortonCodes, int numberOfKeys, float updateLogOdds, float minLogOdds, float maxLogOdds)
+   {
+      if (size + numberOfKeys > mortonCodes.length)
+         allocate(Math.max(size + numberOfKeys, 2 * mortonCodes.length));
+
+      int index = 0;
+      int newIndex = 0;
+      int mergedSize = 0;
+
+      while (index < size || newIndex < numberOfKeys)
+      {
+         if (newIndex == numberOfKeys || (index < size && mortonCodes[index] < sortedMortonCodes[newIndex]))
+         { // Not updated
+            mergedMortonCodes[mergedSize] = mortonCodes[index];
+            mergedShifts[mergedSize] = shifts[index];
+            mergedLowerBounds[mergedSize] = lowerBounds[index];
+            mergedUpperBounds[mergedSize] = upperBounds[index];
+            index++;
+         }
+         else if (index == size || sortedMortonCodes[newIndex] < mortonCodes[index])
+         { // First update of the key
+            mergedMortonCodes[mergedSize] = sortedMortonCodes[newIndex];
+            mergedShifts[mergedSize] = updateLogOdds;
+            mergedLowerBounds[mergedSize] = minLogOdds;
+            mergedUpperBounds[mergedSize] = maxLogOdds;
+            newIndex++;
+         }
+         else
+         { // Composition with the previous updates of the key
+            mergedMortonCodes[mergedSize] = mortonCodes[index];
+            mergedShifts[mergedSize] = shifts[index] + updateLogOdds;
+            mergedLowerBounds[mergedSize] = clamp(lowerBounds[index] + updateLogOdds, minLogOdds, maxLogOdds);
+            mergedUpperBounds[mergedSize] = clamp(upperBounds[index] + updateLogOdds, minLogOdds, maxLogOdds);
+            index++;
+            newIndex++;
+         }
+
+         mergedSize++;
+      }
+
+      long[] swapCodes = mortonCodes;
+      mortonCodes = mergedMortonCodes;
+      mergedMortonCodes = swapCodes;
+      float[] swap = shifts;
+      shifts = mergedShifts;
+      mergedShifts = swap;
+      swap = lowerBounds;
+      lowerBounds = mergedLowerBounds;
+      mergedLowerBounds = swap;
+      swap = upperBounds;
+      upperBounds = mergedUpperBounds;
+      mergedUpperBounds = swap;
+      size = mergedSize;
+   }
+
+   public long getMortonCode(int index)
+   {
+      checkIndex(index);
+      return mortonCodes[index];
+   }
+
+   /** @return the sum of the updates of the key at the given index. */
+   public float getShift(int index)
+   {
+      checkIndex(index);
+      return shifts[index];
+   }
+
+   public float getLowerBound(int index)
+   {
+      checkIndex(index);
+      return lowerBounds[index];
+   }
+
+   public float getUpperBound(int index)
+   {
+      checkIndex(index);
+      return upperBounds[index];
+   }
+
+   /** @return the log-odds resulting from applying the updates of the key at the given index. */
+   public float apply(int index, float logOdds)
+   {
+      checkIndex(index);
+      return clamp(logOdds + shifts[index], lowerBounds[index], upperBounds[index]);
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   public boolean isEmpty()
+   {
+      return size == 0;
+   }
+
+   public void clear()
+   {
+      size = 0;
+   }
+
+   private void checkIndex(int index)
+   {
+      if (index >= size)
+         throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+   }
+
+   private static float clamp(float value, float min, float max)
+   {
+      return Math.min(max, Math.max(min, value));
+   }
+}
@@ -0,0 +1,73 @@
+package us.ihmc.jOctoMap.key;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
+
+/**
+ * Map from keys packed as {@code long} to {@code boolean} values which does not create objects
+ * when adding entries, see {@link PackedOcTreeKeySet}.
+ */
+public class PackedOcTreeKeyBooleanMap extends PackedOcTreeKeySet
+{
+   private boolean[] values;
+
+   public PackedOcTreeKeyBooleanMap()
+   {
+      this(64);
+   }
+
+   public PackedOcTreeKeyBooleanMap(int initialCapacity)
+   {
+      super(initialCapacity);
+      values = new boolean[Math.max(initialCapacity, 1)];
+   }
+
+   /**
+    * Associates the given value to the given key, replacing the previous value if any.
+    */
+   public void put(long packedKey, boolean value)
+   {
+      int index = insert(packedKey);
+      if (index < 0)
+         index = -index - 1;
+      values[index] = value;
+   }
+
+   public void putAll(PackedOcTreeKeyBooleanMap other)
+   {
+      for (int index = 0; index < other.size(); index++)
+         put(other.get(index), other.values[index]);
+   }
+
+   /** @return the value associated with the key at the given index. */
+   public boolean getValue(int index)
+   {
+      if (index >= size())
+         throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+      return values[index];
+   }
+
+   /** Copies the entries of this map into a new map of {@link OcTreeKey}. */
+   public Map<OcTreeKeyReadOnly, Boolean> toMap()
+   {
+      Map<OcTreeKeyReadOnly, Boolean> map = new HashMap<>(2 * size());
+      for (int index = 0; index < size(); index++)
+         map.put(OcTreeKeyTools.unpackKey(get(index)), values[index]);
+      return map;
+   }
+
+   @Override
+   protected void onEntryMoved(int fromIndex, int toIndex)
+   {
+      values[toIndex] = values[fromIndex];
+   }
+
+   @Override
+   protected void onCapacityChanged(int newCapacity)
+   {
+      values = Arrays.copyOf(values, newCapacity);
+   }
+}
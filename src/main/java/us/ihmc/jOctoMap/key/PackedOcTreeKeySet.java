@@ -0,0 +1,263 @@
+package us.ihmc.jOctoMap.key;
+
+import java.util.Arrays;
+
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
+
+/**
+ * Set of keys packed as {@code long}, see {@link OcTreeKeyTools#packKey(int, int, int)}.
+ * <p>
+ * Unlike {@link OcTreeKeySet}, adding a key does not create any object. The keys are stored densely
+ * in insertion order, such that they can be iterated with {@link #get(int)}, and an open-addressing
+ * table with linear probing gives access to them. Removing a key moves the last key in its place.
+ * </p>
+ */
+public class PackedOcTreeKeySet
+{
+   private static final int DEFAULT_INITIAL_CAPACITY = 64;
+   private static final double MAX_LOAD_FACTOR = 0.5;
+
+   private long[] keys;
+   private int size = 0;
+   /** Open-addressing table holding for each slot the index of the key plus 1, 0 for a free slot. */
+   private int[] table;
+   private int tableMask;
+
+   public PackedOcTreeKeySet()
+   {
+      this(DEFAULT_INITIAL_CAPACITY);
+   }
+
+   public PackedOcTreeKeySet(int initialCapacity)
+   {
+      keys = new long[Math.max(initialCapacity, 1)];
+      int tableSize = Integer.highestOneBit(Math.max((int) (keys.length / MAX_LOAD_FACTOR), 2) - 1) << 1;
+      table = new int[tableSize];
+      tableMask = tableSize - 1;
+   }
+
+   /**
+    * Adds the given key to this set.
+    *
+    * @return {@code true} if the key was not already in this set.
+    */
+   public boolean add(long packedKey)
+   {
+      return insert(packedKey) >= 0;
+   }
+
+   public boolean add(OcTreeKeyReadOnly key)
+   {
+      return add(OcTreeKeyTools.packKey(key));
+   }
+
+   public void addAll(PackedOcTreeKeySet other)
+   {
+      for (int index = 0; index < other.size; index++)
+         add(other.keys[index]);
+   }
+
+   /**
+    * Inserts the key if necessary.
+    *
+    * @return the index of the key if it was inserted, {@code -index - 1} if it was already present.
+    */
+   protected int insert(long packedKey)
+   {
+      int slot = hash(packedKey) & tableMask;
+
+      while (table[slot] != 0)
+      {
+         int index = table[slot] - 1;
+         if (keys[index] == packedKey)
+            return -index - 1;
+         slot = slot + 1 & tableMask;
+      }
+
+      if (size == keys.length)
+      {
+         keys = Arrays.copyOf(keys, 2 * keys.length);
+         onCapacityChanged(keys.length);
+      }
+
+      int index = size++;
+      keys[index] = packedKey;
+      table[slot] = index + 1;
+
+      if (size > MAX_LOAD_FACTOR * table.length)
+         rehash(2 * table.length);
+
+      return index;
+   }
+
+   /** @return the index of the given key, -1 if it is not in this set. */
+   public int indexOf(long packedKey)
+   {
+      int slot = findSlot(packedKey);
+      return slot == -1 ? -1 : table[slot] - 1;
+   }
+
+   public boolean contains(long packedKey)
+   {
+      return findSlot(packedKey) != -1;
+   }
+
+   public boolean contains(OcTreeKeyReadOnly key)
+   {
+      return contains(OcTreeKeyTools.packKey(key));
+   }
+
+   /**
+    * Removes the given key, the last key of this set is moved to the index of the removed key.
+    *
+    * @return {@code true} if the key was in this set.
+    */
+   public boolean remove(long packedKey)
+   {
+      int slot = findSlot(packedKey);
+      if (slot == -1)
+         return false;
+
+      int index = table[slot] - 1;
+      deleteSlot(slot);
+
+      int lastIndex = size - 1;
+
+      if (index != lastIndex)
+      {
+         long lastKey = keys[lastIndex];
+         table[findSlot(lastKey)] = index + 1;
+         keys[index] = lastKey;
+         onEntryMoved(lastIndex, index);
+      }
+
+      size--;
+      return true;
+   }
+
+   /** @return the key at the given index, the keys are in insertion order unless some were removed. */
+   public long get(int index)
+   {
+      if (index >= size)
+         throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+      return keys[index];
+   }
+
+   public void get(int index, OcTreeKey keyToPack)
+   {
+      OcTreeKeyTools.unpackKey(get(index), keyToPack);
+   }
+
+   public int size()
+   {
+      return size;
+   }
+
+   public boolean isEmpty()
+   {
+      return size == 0;
+   }
+
+   public void clear()
+   {
+      if (size < table.length / 8)
+      { // Cheaper than clearing the entire table
+         for (int index = 0; index < size; index++)
+         {
+            int slot = hash(keys[index]) & tableMask;
+            while (table[slot] != index + 1)
+               slot = slot + 1 & tableMask;
+            table[slot] = 0;
+         }
+      }
+      else
+      {
+         Arrays.fill(table, 0);
+      }
+
+      size = 0;
+   }
+
+   /** Called when the entry at {@code fromIndex} has been moved to {@code toIndex}. */
+   protected void onEntryMoved(int fromIndex, int toIndex)
+   {
+   }
+
+   /** Called when the capacity of the dense array of keys changed. */
+   protected void onCapacityChanged(int newCapacity)
+   {
+   }
+
+   private int findSlot(long packedKey)
+   {
+      int slot = hash(packedKey) & tableMask;
+
+      while (table[slot] != 0)
+      {
+         if (keys[table[slot] - 1] == packedKey)
+            return slot;
+         slot = slot + 1 & tableMask;
+      }
+
+      return -1;
+   }
+
+   /** Backward shift deletion, keeps the probe sequences valid without tombstones. */
+   private void deleteSlot(int slot)
+   {
+      int hole = slot;
+      int next = hole + 1 & tableMask;
+
+      while (table[next] != 0)
+      {
+         int idealSlot = hash(keys[table[next] - 1]) & tableMask;
+
+         if ((next - idealSlot & tableMask) >= (next - hole & tableMask))
+         {
+            table[hole] = table[next];
+            hole = next;
+         }
+         next = next + 1 & tableMask;
+      }
+
+      table[hole] = 0;
+   }
+
+   private void rehash(int newTableSize)
+   {
+      table = new int[newTableSize];
+      tableMask = newTableSize - 1;
+
+      for (int index = 0; index < size; index++)
+      {
+         int slot = hash(keys[index]) & tableMask;
+         while (table[slot] != 0)
+            slot = slot + 1 & tableMask;
+         table[slot] = index + 1;
+      }
+   }
+
+   private static int hash(long packedKey)
+   {
+      long h = packedKey;
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return (int) h;
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append(": [");
+      for (int index = 0; index < size; index++)
+      {
+         if (index > 0)
+            sb.append(", ");
+         sb.append(OcTreeKeyTools.unpackKey(keys[index]));
+      }
+      return sb.append("]").toString();
+   }
+}
@@ -0,0 +1,199 @@
+package us.ihmc.jOctoMap.node;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import us.ihmc.jOctoMap.node.baseImplementation.AbstractOcTreeNode;
+
+/**
+ * Allocator for the nodes and arrays of children of an octree which keeps the released instances in
+ * bounded pools for reuse.
+ * <p>
+ * Recycling is disabled by default: both pools have a maximum size of zero. It should only be
+ * enabled when no reference to the nodes of the tree is held on to outside of the tree, as a node
+ * removed from the tree by pruning or deletion can be reused anytime.
+ * </p>
+ */
+public class NodeRecycler<NODE extends AbstractOcTreeNode<NODE>>
+{
+   private final NodeBuilder<NODE> nodeBuilder;
+   private final ArrayDeque<NODE> unusedNodes = new ArrayDeque<>();
+   private final ArrayDeque<NODE[]> unusedNodeArrays = new ArrayDeque<>();
+
+   private int maximumNumberOfNodes = 0;
+   private int maximumNumberOfNodeArrays = 0;
+
+   private long nodeHits = 0;
+   private long nodeMisses = 0;
+   private long nodeArrayHits = 0;
+   private long nodeArrayMisses = 0;
+
+   public NodeRecycler(NodeBuilder<NODE> nodeBuilder)
+   {
+      this.nodeBuilder = nodeBuilder;
+   }
+
+   /**
+    * Sets the maximum number of nodes and arrays of children the pools can hold, 0 disabling the
+    * recycling. The pools are trimmed if necessary.
+    */
+   public void setMaximumPoolSizes(int maximumNumberOfNodes, int maximumNumberOfNodeArrays)
+   {
+      if (maximumNumberOfNodes < 0 || maximumNumberOfNodeArrays < 0)
+         throw new RuntimeException("The maximum pool sizes cannot be negative: " + maximumNumberOfNodes + ", " + maximumNumberOfNodeArrays);
+
+      this.maximumNumberOfNodes = maximumNumberOfNodes;
+      this.maximumNumberOfNodeArrays = maximumNumberOfNodeArrays;
+
+      while (unusedNodes.size() > maximumNumberOfNodes)
+         unusedNodes.pop();
+      while (unusedNodeArrays.size() > maximumNumberOfNodeArrays)
+         unusedNodeArrays.pop();
+   }
+
+   public boolean isRecyclingEnabled()
+   {
+      return maximumNumberOfNodes > 0 || maximumNumberOfNodeArrays > 0;
+   }
+
+   /**
+    * Fills the pools ahead of time such that the first updates do not allocate. The pools are filled
+    * up to the given sizes, within the maximum pool sizes.
+    */
+   public void prewarm(int numberOfNodes, int numberOfNodeArrays)
+   {
+      numberOfNodes = Math.min(numberOfNodes, maximumNumberOfNodes);
+      numberOfNodeArrays = Math.min(numberOfNodeArrays, maximumNumberOfNodeArrays);
+
+      while (unusedNodes.size() < numberOfNodes)
+         unusedNodes.push(nodeBuilder.createNode());
+
+      if (unusedNodeArrays.size() < numberOfNodeArrays)
+      {
+         NODE node = nodeBuilder.createNode();
+
+         while (unusedNodeArrays.size() < numberOfNodeArrays)
+         {
+            node.allocateChildren();
+            unusedNodeArrays.push(node.removeChildren());
+         }
+      }
+   }
+
+   /** @return a node from the pool if available, a new node otherwise. */
+   public NODE createNode()
+   {
+      NODE node = unusedNodes.poll();
+
+      if (node != null)
+      {
+         nodeHits++;
+         return node;
+      }
+      else
+      {
+         nodeMisses++;
+         return nodeBuilder.createNode();
+      }
+   }
+
+   /**
+    * Gives an array of children to the given node, from the pool if available.
+    */
+   public void allocateChildren(NODE node)
+   {
+      NODE[] children = unusedNodeArrays.poll();
+
+      if (children != null)
+      {
+         nodeArrayHits++;
+         node.assignChildren(children);
+      }
+      else
+      {
+         nodeArrayMisses++;
+         node.allocateChildren();
+      }
+   }
+
+   /**
+    * Returns a node which has been removed from the tree to the pool, the node is dropped if the pool
+    * is full. The node is expected to be cleared and to have no children.
+    */
+   public void recycleNode(NODE node)
+   {
+      if (node != null && unusedNodes.size() < maximumNumberOfNodes)
+         unusedNodes.push(node);
+   }
+
+   /**
+    * Removes the array of children of the given node and returns it to the pool, the array is dropped
+    * if the pool is full.
+    */
+   public void recycleChildren(NODE node)
+   {
+      NODE[] children = node.removeChildren();
+
+      if (children != null && unusedNodeArrays.size() < maximumNumberOfNodeArrays)
+      {
+         Arrays.fill(children, null);
+         unusedNodeArrays.push(children);
+      }
+   }
+
+   /** Empties the pools, the statistics are kept. */
+   public void clearPools()
+   {
+      unusedNodes.clear();
+      unusedNodeArrays.clear();
+   }
+
+   public void resetStatistics()
+   {
+      nodeHits = 0;
+      nodeMisses = 0;
+      nodeArrayHits = 0;
+      nodeArrayMisses = 0;
+   }
+
+   public int getNumberOfPooledNodes()
+   {
+      return unusedNodes.size();
+   }
+
+   public int getNumberOfPooledNodeArrays()
+   {
+      return unusedNodeArrays.size();
+   }
+
+   /** @return the number of nodes that were taken from the pool. */
+   public long getNodeHits()
+   {
+      return nodeHits;
+   }
+
+   /** @return the number of nodes that had to be created because the pool was empty. */
+   public long getNodeMisses()
+   {
+      return nodeMisses;
+   }
+
+   /** @return the number of arrays of children that were taken from the pool. */
+   public long getNodeArrayHits()
+   {
+      return nodeArrayHits;
+   }
+
+   /** @return the number of arrays of children that had to be created because the pool was empty. */
+   public long getNodeArrayMisses()
+   {
+      return nodeArrayMisses;
+   }
+
+   @Override
+   public String toString()
+   {
+      return getClass().getSimpleName() + ": nodes (pooled: " + unusedNodes.size() + ", hits: " + nodeHits + ", misses: " + nodeMisses + "), arrays (pooled: "
+            + unusedNodeArrays.size() + ", hits: " + nodeArrayHits + ", misses: " + nodeArrayMisses + ")";
+   }
+}
@@ -13,7 +13,6 @@ import us.ihmc.euclid.tuple3D.interfaces.Point3DBasics;
 import us.ihmc.jOctoMap.key.OcTreeKey;
 import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
 import us.ihmc.jOctoMap.node.NodeBuilder;
-import us.ihmc.jOctoMap.tools.OcTreeKeyConversionTools;
 import us.ihmc.jOctoMap.tools.OcTreeNodeTools;
 
 public abstract class AbstractOcTreeNode<N extends AbstractOcTreeNode<N>>
@@ -22,9 +21,14 @@ public abstract class AbstractOcTreeNode<N extends AbstractOcTreeNode<N>>
 
    protected N[] children;
    private int k0 = -1, k1 = -1, k2 = -1;
-   private float x = Float.NaN, y = Float.NaN, z = Float.NaN;
-   private float size = Float.NaN;
-   private int depth;
+   /**
+    * The coordinates and size of this node are derived from its key and depth instead of being
+    * stored, using the resolution and depth of the tree shared by all its nodes.
+    */
+   private OcTreeNodeGeometry geometry;
+   private byte depth;
+   /** Whether this node belongs to a snapshot published by its tree, see {@link #isPublished()}. */
+   private boolean published;
 
    public AbstractOcTreeNode()
    {
@@ -39,11 +43,9 @@ public abstract class AbstractOcTreeNode<N extends AbstractOcTreeNode<N>>
       k0 = -1;
       k1 = -1;
       k2 = -1;
-      x = Float.NaN;
-      y = Float.NaN;
-      z = Float.NaN;
-      size = Float.NaN;
+      geometry = null;
       depth = -1;
+      published = false;
    }
 
    public final void setProperties(OcTreeKeyReadOnly key, int depth, double resolution, int treeDepth)
@@ -51,16 +53,31 @@ public abstract class AbstractOcTreeNode<N extends AbstractOcTreeNode<N>>
       setProperties(key.getKey(0), key.getKey(1), key.getKey(2), depth, resolution, treeDepth);
    }
 
+   /**
+    * Prefer {@link #setProperties(int, int, int, int, OcTreeNodeGeometry)} with the geometry of the
+    * tree, a new geometry is created here unless this node already has one with the same resolution
+    * and tree depth.
+    */
    public final void setProperties(int k0, int k1, int k2, int depth, double resolution, int treeDepth)
+   {
+      OcTreeNodeGeometry geometry = this.geometry;
+      if (geometry == null || !geometry.equals(resolution, treeDepth))
+         geometry = new OcTreeNodeGeometry(resolution, treeDepth);
+      setProperties(k0, k1, k2, depth, geometry);
+   }
+
+   public final void setProperties(OcTreeKeyReadOnly key, int depth, OcTreeNodeGeometry geometry)
+   {
+      setProperties(key.getKey(0), key.getKey(1), key.getKey(2), depth, geometry);
+   }
+
+   public final void setProperties(int k0, int k1, int k2, int depth, OcTreeNodeGeometry geometry)
    {
       this.k0 = k0;
       this.k1 = k1;
       this.k2 = k2;
-      this.x = (float) OcTreeKeyConversionTools.keyToCoordinate(k0, depth, resolution, treeDepth);
-      this.y = (float) OcTreeKeyConversionTools.keyToCoordinate(k1, depth, resolution, treeDepth);
-      this.z = (float) OcTreeKeyConversionTools.keyToCoordinate(k2, depth, resolution, treeDepth);
-      this.size = (float) OcTreeKeyConversionTools.computeNodeSize(depth, resolution, treeDepth);
-      this.depth = depth;
+      this.depth = (byte) depth;
+      this.geometry = geometry;
    }
 
    public final void getKey(OcTreeKey keyToPack)
@@ -75,12 +92,12 @@ public abstract class AbstractOcTreeNode<N extends AbstractOcTreeNode<N>>
 
    public final void getCoordinate(Point3DBasics coordinateToPack)
    {
-      coordinateToPack.set(x, y, z);
+      coordinateToPack.set(getX(), getY(), getZ());
    }
 
    public final Point3D getCoordinateCopy()
    {
-      return new Point3D(x, y, z);
+      return new Point3D(getX(), getY(), getZ());
    }
 
    @SuppressWarnings("unchecked")
@@ -94,27 +111,13 @@ public abstract class AbstractOcTreeNode<N extends AbstractOcTreeNode<N>>
       children = newChildren;
    }
 
-   @SuppressWarnings("unchecked")
    public final N cloneRecursive(NodeBuilder<N> nodeBuilder, MutableInt treeSize)
    {
-      N ret = nodeBuilder.createNode();
+      N ret = cloneWithoutChildren(nodeBuilder);
       treeSize.increment();
-      ret.copyData((N) this);
-
-      AbstractOcTreeNode<?> retCasted = ret;
-      retCasted.k0 = k0;
-      retCasted.k1 = k1;
-      retCasted.k2 = k2;
-      retCasted.x = x;
-      retCasted.y = y;
-      retCasted.z = z;
-      retCasted.size = size;
 
       if (hasArrayForChildren())
       {
-         if (!ret.hasArrayForChildren())
-            ret.allocateChildren();
-
          for (int i = 0; i < 8; i++)
          {
             if (children[i] != null)
@@ -125,6 +128,29 @@ public abstract class AbstractOcTreeNode<N extends AbstractOcTreeNode<N>>
       return ret;
    }
 
+   /**
+    * Creates a copy of the data and properties of this node, without its children. The copy has an
+    * empty array for children if this node has an array for children.
+    */
+   @SuppressWarnings("unchecked")
+   public final N cloneWithoutChildren(NodeBuilder<N> nodeBuilder)
+   {
+      N ret = nodeBuilder.createNode();
+      ret.copyData((N) this);
+
+      AbstractOcTreeNode<?> retCasted = ret;
+      retCasted.k0 = k0;
+      retCasted.k1 = k1;
+      retCasted.k2 = k2;
+      retCasted.geometry = geometry;
+      retCasted.depth = depth;
+
+      if (hasArrayForChildren() && !ret.hasArrayForChildren())
+         ret.allocateChildren();
+
+      return ret;
+   }
+
    public final boolean hasArrayForChildren()
    {
       return children != null;
@@ -184,6 +210,19 @@ public abstract class AbstractOcTreeNode<N extends AbstractOcTreeNode<N>>
       return removedChild;
    }
 
+   /**
+    * Removes the child without clearing it, for a child which is still referred to elsewhere, e.g. by
+    * a snapshot of the tree.
+    */
+   public final N detachChild(int childIndex)
+   {
+      OcTreeNodeTools.checkChildIndex(childIndex);
+
+      N detachedChild = children[childIndex];
+      children[childIndex] = null;
+      return detachedChild;
+   }
+
    public final N[] removeChildren()
    {
       N[] removedChildren = children;
@@ -191,6 +230,20 @@ public abstract class AbstractOcTreeNode<N extends AbstractOcTreeNode<N>>
       return removedChildren;
    }
 
+   /**
+    * Whether this node belongs to a snapshot published by its tree. Such a node is never modified
+    * anymore, the tree modifies a copy of it instead.
+    */
+   public final boolean isPublished()
+   {
+      return published;
+   }
+
+   public final void markPublished()
+   {
+      published = true;
+   }
+
    public final int getKey0()
    {
       if (DEBUG_PROPERTIES)
@@ -218,33 +271,33 @@ public abstract class AbstractOcTreeNode<N extends AbstractOcTreeNode<N>>
    public final double getX()
    {
       if (DEBUG_PROPERTIES)
-         if (Float.isNaN(x))
+         if (geometry == null)
             throw new RuntimeException("Coordinate has not been set");
-      return x;
+      return geometry.keyToCoordinate(k0, depth);
    }
 
    public final double getY()
    {
       if (DEBUG_PROPERTIES)
-         if (Float.isNaN(y))
+         if (geometry == null)
             throw new RuntimeException("Coordinate has not been set");
-      return y;
+      return geometry.keyToCoordinate(k1, depth);
    }
 
    public final double getZ()
    {
       if (DEBUG_PROPERTIES)
-         if (Float.isNaN(z))
+         if (geometry == null)
             throw new RuntimeException("Coordinate has not been set");
-      return z;
+      return geometry.keyToCoordinate(k2, depth);
    }
 
    public final double getSize()
    {
       if (DEBUG_PROPERTIES)
-         if (Float.isNaN(size))
+         if (geometry == null)
             throw new RuntimeException("Size has not been set");
-      return size;
+      return geometry.getNodeSize(depth);
    }
 
    public final int getDepth()
@@ -261,13 +314,13 @@ public abstract class AbstractOcTreeNode<N extends AbstractOcTreeNode<N>>
          return false;
       if (k2 != otherCasted.k2)
          return false;
-      if (!Precision.equals(x, otherCasted.x, 1.0e-7))
+      if (!Precision.equals(getX(), otherCasted.getX(), 1.0e-7))
          return false;
-      if (!Precision.equals(y, otherCasted.y, 1.0e-7))
+      if (!Precision.equals(getY(), otherCasted.getY(), 1.0e-7))
          return false;
-      if (!Precision.equals(z, otherCasted.z, 1.0e-7))
+      if (!Precision.equals(getZ(), otherCasted.getZ(), 1.0e-7))
          return false;
-      if (!Precision.equals(size, otherCasted.size, 1.0e-7))
+      if (!Precision.equals(getSize(), otherCasted.getSize(), 1.0e-7))
          return false;
       return epsilonEqualsInternal(other, epsilon);
    }
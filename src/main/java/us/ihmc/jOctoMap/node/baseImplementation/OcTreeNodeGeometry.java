@@ -0,0 +1,62 @@
+package us.ihmc.jOctoMap.node.baseImplementation;
+
+import us.ihmc.jOctoMap.tools.OcTreeKeyConversionTools;
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
+
+/**
+ * Resolution and depth of a tree, shared by all its nodes such that they derive their coordinates
+ * and size from their key and depth, see {@link AbstractOcTreeNode#getX()}.
+ */
+public final class OcTreeNodeGeometry
+{
+   private final double resolution;
+   private final int treeDepth;
+   private final int centerOffsetKey;
+   /** The size of the nodes at each depth. */
+   private final double[] nodeSizes;
+
+   public OcTreeNodeGeometry(double resolution, int treeDepth)
+   {
+      this.resolution = resolution;
+      this.treeDepth = treeDepth;
+      centerOffsetKey = OcTreeKeyTools.computeCenterOffsetKey(treeDepth);
+      nodeSizes = new double[treeDepth + 1];
+      for (int depth = 0; depth <= treeDepth; depth++)
+         nodeSizes[depth] = OcTreeKeyConversionTools.computeNodeSize(depth, resolution, treeDepth);
+   }
+
+   public double getResolution()
+   {
+      return resolution;
+   }
+
+   public int getTreeDepth()
+   {
+      return treeDepth;
+   }
+
+   public double getNodeSize(int depth)
+   {
+      return nodeSizes[depth];
+   }
+
+   /**
+    * Same as {@link OcTreeKeyConversionTools#keyToCoordinate(int, int, double, int)} without the
+    * sanity checks.
+    */
+   public double keyToCoordinate(int key, int depth)
+   {
+      if (depth == 0)
+         return 0.0;
+      else if (depth == treeDepth)
+         return (key - centerOffsetKey + 0.5) * resolution;
+
+      int keyDivider = 1 << treeDepth - depth;
+      return (Math.floor((double) (key - centerOffsetKey) / (double) keyDivider) + 0.5) * nodeSizes[depth];
+   }
+
+   public boolean equals(double resolution, int treeDepth)
+   {
+      return this.resolution == resolution && this.treeDepth == treeDepth;
+   }
+}
@@ -0,0 +1,218 @@
+package us.ihmc.jOctoMap.node.pool;
+
+import static us.ihmc.jOctoMap.node.pool.OcTreeNodeStorage.NULL_HANDLE;
+
+import java.util.Arrays;
+
+/**
+ * Storage for dense bricks of 8x8x8 voxels replacing the bottom three levels of a pooled octree.
+ * <p>
+ * A brick is attached to a node, its owner, located 3 levels above the leaves. The log-odds of its
+ * 512 voxels are stored contiguously in a single primitive array, {@code Float.NaN} meaning that the
+ * voxel is in unknown space. The voxels are indexed with the 3 least significant bits of their key
+ * along each axis: {@code x + 8 * y + 64 * z}.
+ * </p>
+ */
+public class DenseBrickStorage
+{
+   public static final int BRICK_SIZE = 8;
+   public static final int NUMBER_OF_VOXELS = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+
+   private static final double GROWTH_FACTOR = 1.5;
+
+   /** The voxels of all the bricks, 512 consecutive log-odds per brick. */
+   private float[] logOdds = new float[0];
+   private int[] numberOfKnownVoxels = new int[0];
+   /** Index of the brick for each node handle, {@link OcTreeNodeStorage#NULL_HANDLE} if none. */
+   private int[] nodeBricks = new int[0];
+
+   private int brickCapacity = 0;
+   private int numberOfBrickSlotsUsed = 0;
+   private int numberOfBricks = 0;
+   private int[] freeBricks = new int[16];
+   private int numberOfFreeBricks = 0;
+
+   public DenseBrickStorage()
+   {
+   }
+
+   /**
+    * Creates a new brick, which voxels are all unknown, and attaches it to the given node.
+    *
+    * @return the index of the new brick.
+    */
+   public int createBrick(int node)
+   {
+      if (getBrick(node) != NULL_HANDLE)
+         throw new RuntimeException("The node already owns a brick: " + node);
+
+      int brick;
+
+      if (numberOfFreeBricks > 0)
+      {
+         brick = freeBricks[--numberOfFreeBricks];
+      }
+      else
+      {
+         if (numberOfBrickSlotsUsed == brickCapacity)
+            growBrickCapacity();
+         brick = numberOfBrickSlotsUsed++;
+      }
+
+      int start = brick * NUMBER_OF_VOXELS;
+      Arrays.fill(logOdds, start, start + NUMBER_OF_VOXELS, Float.NaN);
+      numberOfKnownVoxels[brick] = 0;
+
+      if (node >= nodeBricks.length)
+      {
+         int previousLength = nodeBricks.length;
+         nodeBricks = Arrays.copyOf(nodeBricks, Math.max(node + 1, (int) (GROWTH_FACTOR * previousLength)));
+         Arrays.fill(nodeBricks, previousLength, nodeBricks.length, NULL_HANDLE);
+      }
+      nodeBricks[node] = brick;
+      numberOfBricks++;
+      return brick;
+   }
+
+   /**
+    * Detaches and releases the brick owned by the given node, does nothing if the node does not own a
+    * brick.
+    */
+   public void deleteBrick(int node)
+   {
+      int brick = getBrick(node);
+      if (brick == NULL_HANDLE)
+         return;
+
+      nodeBricks[node] = NULL_HANDLE;
+      if (numberOfFreeBricks == freeBricks.length)
+         freeBricks = Arrays.copyOf(freeBricks, (int) (GROWTH_FACTOR * freeBricks.length) + 1);
+      freeBricks[numberOfFreeBricks++] = brick;
+      numberOfBricks--;
+   }
+
+   /** @return the index of the brick owned by the given node, {@link OcTreeNodeStorage#NULL_HANDLE} if none. */
+   public int getBrick(int node)
+   {
+      return node < nodeBricks.length ? nodeBricks[node] : NULL_HANDLE;
+   }
+
+   public boolean isBrickOwner(int node)
+   {
+      return getBrick(node) != NULL_HANDLE;
+   }
+
+   public float getLogOdds(int brick, int voxel)
+   {
+      return logOdds[brick * NUMBER_OF_VOXELS + voxel];
+   }
+
+   /**
+    * Sets the log-odds of a voxel, {@code Float.NaN} makes the voxel unknown.
+    */
+   public void setLogOdds(int brick, int voxel, float value)
+   {
+      int index = brick * NUMBER_OF_VOXELS + voxel;
+      if (Float.isNaN(logOdds[index]) != Float.isNaN(value))
+         numberOfKnownVoxels[brick] += Float.isNaN(value) ? -1 : 1;
+      logOdds[index] = value;
+   }
+
+   /**
+    * Sets the log-odds of all the voxels of the cube starting at the given voxel coordinates.
+    */
+   public void fillCube(int brick, int x, int y, int z, int cubeSize, float value)
+   {
+      for (int zIndex = z; zIndex < z + cubeSize; zIndex++)
+      {
+         for (int yIndex = y; yIndex < y + cubeSize; yIndex++)
+         {
+            int start = brick * NUMBER_OF_VOXELS + computeVoxelIndex(x, yIndex, zIndex);
+
+            for (int index = start; index < start + cubeSize; index++)
+            {
+               if (Float.isNaN(logOdds[index]) != Float.isNaN(value))
+                  numberOfKnownVoxels[brick] += Float.isNaN(value) ? -1 : 1;
+               logOdds[index] = value;
+            }
+         }
+      }
+   }
+
+   public int getNumberOfKnownVoxels(int brick)
+   {
+      return numberOfKnownVoxels[brick];
+   }
+
+   /** @return the maximum log-odds of the known voxels, {@code Float.NEGATIVE_INFINITY} if there is none. */
+   public float computeMaxLogOdds(int brick)
+   {
+      float maxLogOdds = Float.NEGATIVE_INFINITY;
+      int start = brick * NUMBER_OF_VOXELS;
+
+      for (int index = start; index < start + NUMBER_OF_VOXELS; index++)
+      {
+         if (logOdds[index] > maxLogOdds)
+            maxLogOdds = logOdds[index];
+      }
+
+      return maxLogOdds;
+   }
+
+   /**
+    * @return whether all the voxels are known and share the same log-odds, i.e. the brick can be
+    *         collapsed into a single node.
+    */
+   public boolean isUniform(int brick, double epsilon)
+   {
+      if (numberOfKnownVoxels[brick] != NUMBER_OF_VOXELS)
+         return false;
+
+      int start = brick * NUMBER_OF_VOXELS;
+      float firstLogOdds = logOdds[start];
+
+      for (int index = start + 1; index < start + NUMBER_OF_VOXELS; index++)
+      {
+         if (Math.abs(logOdds[index] - firstLogOdds) > epsilon)
+            return false;
+      }
+
+      return true;
+   }
+
+   public int getNumberOfBricks()
+   {
+      return numberOfBricks;
+   }
+
+   /** @return the number of bytes allocated for the bricks. */
+   public long getMemoryFootprint()
+   {
+      return (long) Float.BYTES * logOdds.length + (long) Integer.BYTES * (numberOfKnownVoxels.length + nodeBricks.length + freeBricks.length);
+   }
+
+   /** Releases all the bricks, the allocated memory is kept for reuse. */
+   public void clear()
+   {
+      Arrays.fill(nodeBricks, NULL_HANDLE);
+      numberOfBrickSlotsUsed = 0;
+      numberOfBricks = 0;
+      numberOfFreeBricks = 0;
+   }
+
+   /**
+    * @return the index in a brick of the voxel with the given key, only the 3 least significant bits
+    *         of each key are used.
+    */
+   public static int computeVoxelIndex(int k0, int k1, int k2)
+   {
+      return (k0 & 7) | (k1 & 7) << 3 | (k2 & 7) << 6;
+   }
+
+   private void growBrickCapacity()
+   {
+      brickCapacity = (int) (GROWTH_FACTOR * brickCapacity) + 1;
+      logOdds = Arrays.copyOf(logOdds, brickCapacity * NUMBER_OF_VOXELS);
+      numberOfKnownVoxels = Arrays.copyOf(numberOfKnownVoxels, brickCapacity);
+   }
+}
@@ -0,0 +1,242 @@
+package us.ihmc.jOctoMap.node.pool;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Implementation of {@link OcTreeNodeStorage} which memory lives outside of the Java heap.
+ * <p>
+ * Nodes and blocks of children are allocated from arenas made of direct {@link ByteBuffer}s of
+ * fixed size. The garbage collector only sees the few buffer objects, not the nodes, such that its
+ * pauses do not grow with the size of the map. The node records are laid out as: index of the
+ * children block (int) then log-odds (float). A block of children is 8 consecutive handles (int).
+ * </p>
+ * <p>
+ * Released nodes and blocks are chained in free lists stored in the arenas themselves. Calling
+ * {@link #clear()} drops all the arenas at once.
+ * </p>
+ */
+public class DirectOcTreeNodeStorage implements OcTreeNodeStorage
+{
+   private static final int DEFAULT_LOG2_CHUNK_SIZE = 16;
+   private static final int NODE_SIZE_IN_BYTES = Integer.BYTES + Float.BYTES;
+   private static final int BLOCK_SIZE_IN_BYTES = 8 * Integer.BYTES;
+
+   private final int log2ChunkSize;
+   private final int chunkMask;
+
+   private final List<ByteBuffer> nodeArena = new ArrayList<>();
+   private final List<ByteBuffer> blockArena = new ArrayList<>();
+
+   private int numberOfNodeSlotsUsed = 0;
+   private int numberOfBlockSlotsUsed = 0;
+   private int numberOfNodes = 0;
+   /** Head of the chain of released nodes, the chain is stored in the children block index slot. */
+   private int firstFreeNode = NULL_HANDLE;
+   /** Head of the chain of released blocks, the chain is stored in the first child slot. */
+   private int firstFreeBlock = NULL_HANDLE;
+
+   public DirectOcTreeNodeStorage()
+   {
+      this(DEFAULT_LOG2_CHUNK_SIZE);
+   }
+
+   /**
+    * @param log2ChunkSize the base 2 logarithm of the number of nodes, or children blocks, allocated at
+    *                      once.
+    */
+   public DirectOcTreeNodeStorage(int log2ChunkSize)
+   {
+      if (log2ChunkSize < 1 || log2ChunkSize > 20)
+         throw new RuntimeException("The chunk size should be in [1, 20], was: " + log2ChunkSize);
+
+      this.log2ChunkSize = log2ChunkSize;
+      chunkMask = (1 << log2ChunkSize) - 1;
+   }
+
+   @Override
+   public int createNode()
+   {
+      int node;
+
+      if (firstFreeNode != NULL_HANDLE)
+      {
+         node = firstFreeNode;
+         firstFreeNode = nodeChunk(node).getInt(nodeOffset(node));
+      }
+      else
+      {
+         if (numberOfNodeSlotsUsed == nodeArena.size() << log2ChunkSize)
+            nodeArena.add(allocateChunk(NODE_SIZE_IN_BYTES));
+         node = numberOfNodeSlotsUsed++;
+      }
+
+      ByteBuffer chunk = nodeChunk(node);
+      int offset = nodeOffset(node);
+      chunk.putInt(offset, NULL_HANDLE);
+      chunk.putFloat(offset + Integer.BYTES, 0.0f);
+      numberOfNodes++;
+      return node;
+   }
+
+   @Override
+   public void deleteNode(int node)
+   {
+      removeChildren(node);
+      nodeChunk(node).putInt(nodeOffset(node), firstFreeNode);
+      firstFreeNode = node;
+      numberOfNodes--;
+   }
+
+   @Override
+   public boolean hasArrayForChildren(int node)
+   {
+      return getChildrenBlockIndex(node) != NULL_HANDLE;
+   }
+
+   @Override
+   public boolean hasAtLeastOneChild(int node)
+   {
+      int blockIndex = getChildrenBlockIndex(node);
+      if (blockIndex == NULL_HANDLE)
+         return false;
+
+      ByteBuffer chunk = blockChunk(blockIndex);
+      int offset = blockOffset(blockIndex);
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         if (chunk.getInt(offset + childIndex * Integer.BYTES) != NULL_HANDLE)
+            return true;
+      }
+      return false;
+   }
+
+   @Override
+   public void allocateChildren(int node)
+   {
+      if (hasArrayForChildren(node))
+         throw new RuntimeException("The node already has an array for its children.");
+
+      int blockIndex;
+
+      if (firstFreeBlock != NULL_HANDLE)
+      {
+         blockIndex = firstFreeBlock;
+         firstFreeBlock = blockChunk(blockIndex).getInt(blockOffset(blockIndex));
+      }
+      else
+      {
+         if (numberOfBlockSlotsUsed == blockArena.size() << log2ChunkSize)
+            blockArena.add(allocateChunk(BLOCK_SIZE_IN_BYTES));
+         blockIndex = numberOfBlockSlotsUsed++;
+      }
+
+      ByteBuffer chunk = blockChunk(blockIndex);
+      int offset = blockOffset(blockIndex);
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+         chunk.putInt(offset + childIndex * Integer.BYTES, NULL_HANDLE);
+      nodeChunk(node).putInt(nodeOffset(node), blockIndex);
+   }
+
+   @Override
+   public void removeChildren(int node)
+   {
+      int blockIndex = getChildrenBlockIndex(node);
+      if (blockIndex == NULL_HANDLE)
+         return;
+
+      blockChunk(blockIndex).putInt(blockOffset(blockIndex), firstFreeBlock);
+      firstFreeBlock = blockIndex;
+      nodeChunk(node).putInt(nodeOffset(node), NULL_HANDLE);
+   }
+
+   @Override
+   public int getChild(int node, int childIndex)
+   {
+      int blockIndex = getChildrenBlockIndex(node);
+      if (blockIndex == NULL_HANDLE)
+         return NULL_HANDLE;
+      else
+         return blockChunk(blockIndex).getInt(blockOffset(blockIndex) + childIndex * Integer.BYTES);
+   }
+
+   @Override
+   public void setChild(int node, int childIndex, int child)
+   {
+      int blockIndex = getChildrenBlockIndex(node);
+      blockChunk(blockIndex).putInt(blockOffset(blockIndex) + childIndex * Integer.BYTES, child);
+   }
+
+   @Override
+   public float getLogOdds(int node)
+   {
+      return nodeChunk(node).getFloat(nodeOffset(node) + Integer.BYTES);
+   }
+
+   @Override
+   public void setLogOdds(int node, float logOdds)
+   {
+      nodeChunk(node).putFloat(nodeOffset(node) + Integer.BYTES, logOdds);
+   }
+
+   @Override
+   public int getNumberOfNodes()
+   {
+      return numberOfNodes;
+   }
+
+   @Override
+   public long getMemoryFootprint()
+   {
+      long chunkSize = 1L << log2ChunkSize;
+      return nodeArena.size() * chunkSize * NODE_SIZE_IN_BYTES + blockArena.size() * chunkSize * BLOCK_SIZE_IN_BYTES;
+   }
+
+   /**
+    * Releases all the nodes. The arenas are dropped and their memory is returned to the system once
+    * the buffers are collected.
+    */
+   @Override
+   public void clear()
+   {
+      nodeArena.clear();
+      blockArena.clear();
+      numberOfNodeSlotsUsed = 0;
+      numberOfBlockSlotsUsed = 0;
+      numberOfNodes = 0;
+      firstFreeNode = NULL_HANDLE;
+      firstFreeBlock = NULL_HANDLE;
+   }
+
+   private int getChildrenBlockIndex(int node)
+   {
+      return nodeChunk(node).getInt(nodeOffset(node));
+   }
+
+   private ByteBuffer allocateChunk(int recordSizeInBytes)
+   {
+      return ByteBuffer.allocateDirect(recordSizeInBytes << log2ChunkSize).order(ByteOrder.nativeOrder());
+   }
+
+   private ByteBuffer nodeChunk(int node)
+   {
+      return nodeArena.get(node >>> log2ChunkSize);
+   }
+
+   private int nodeOffset(int node)
+   {
+      return (node & chunkMask) * NODE_SIZE_IN_BYTES;
+   }
+
+   private ByteBuffer blockChunk(int blockIndex)
+   {
+      return blockArena.get(blockIndex >>> log2ChunkSize);
+   }
+
+   private int blockOffset(int blockIndex)
+   {
+      return (blockIndex & chunkMask) * BLOCK_SIZE_IN_BYTES;
+   }
+}
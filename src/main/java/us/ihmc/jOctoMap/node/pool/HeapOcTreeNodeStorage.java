@@ -0,0 +1,211 @@
+package us.ihmc.jOctoMap.node.pool;
+
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays implementation of {@link OcTreeNodeStorage} backed by primitive arrays.
+ * <p>
+ * A node costs 8 bytes (children block index and log-odds). An inner node additionally owns a block
+ * of 8 child handles (32 bytes). There is no object header nor reference
+ * per node, and released handles and blocks are recycled through free lists.
+ * </p>
+ */
+public class HeapOcTreeNodeStorage implements OcTreeNodeStorage
+{
+   private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+   private static final double GROWTH_FACTOR = 1.5;
+
+   /** Index of the block of children for each node, {@link #NULL_HANDLE} if none. */
+   private int[] childrenBlockIndices;
+   private float[] logOdds;
+   /** The blocks of children, 8 consecutive handles per block. */
+   private int[] childrenBlocks;
+
+   private int nodeCapacity;
+   private int blockCapacity;
+   private int numberOfNodeSlotsUsed = 0;
+   private int numberOfBlockSlotsUsed = 0;
+   private int numberOfNodes = 0;
+
+   private int[] freeNodes = new int[16];
+   private int numberOfFreeNodes = 0;
+   private int[] freeBlocks = new int[16];
+   private int numberOfFreeBlocks = 0;
+
+   public HeapOcTreeNodeStorage()
+   {
+      this(DEFAULT_INITIAL_CAPACITY);
+   }
+
+   public HeapOcTreeNodeStorage(int initialNodeCapacity)
+   {
+      nodeCapacity = Math.max(initialNodeCapacity, 1);
+      blockCapacity = Math.max(nodeCapacity / 8, 1);
+      childrenBlockIndices = new int[nodeCapacity];
+      logOdds = new float[nodeCapacity];
+      childrenBlocks = new int[8 * blockCapacity];
+   }
+
+   @Override
+   public int createNode()
+   {
+      int node;
+
+      if (numberOfFreeNodes > 0)
+      {
+         node = freeNodes[--numberOfFreeNodes];
+      }
+      else
+      {
+         if (numberOfNodeSlotsUsed == nodeCapacity)
+            growNodeCapacity();
+         node = numberOfNodeSlotsUsed++;
+      }
+
+      childrenBlockIndices[node] = NULL_HANDLE;
+      logOdds[node] = 0.0f;
+      numberOfNodes++;
+      return node;
+   }
+
+   @Override
+   public void deleteNode(int node)
+   {
+      if (childrenBlockIndices[node] != NULL_HANDLE)
+         removeChildren(node);
+
+      if (numberOfFreeNodes == freeNodes.length)
+         freeNodes = Arrays.copyOf(freeNodes, (int) (GROWTH_FACTOR * freeNodes.length) + 1);
+      freeNodes[numberOfFreeNodes++] = node;
+      numberOfNodes--;
+   }
+
+   @Override
+   public boolean hasArrayForChildren(int node)
+   {
+      return childrenBlockIndices[node] != NULL_HANDLE;
+   }
+
+   @Override
+   public boolean hasAtLeastOneChild(int node)
+   {
+      int blockIndex = childrenBlockIndices[node];
+      if (blockIndex == NULL_HANDLE)
+         return false;
+
+      int blockStart = 8 * blockIndex;
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         if (childrenBlocks[blockStart + childIndex] != NULL_HANDLE)
+            return true;
+      }
+      return false;
+   }
+
+   @Override
+   public void allocateChildren(int node)
+   {
+      if (childrenBlockIndices[node] != NULL_HANDLE)
+         throw new RuntimeException("The node already has an array for its children.");
+
+      int blockIndex;
+
+      if (numberOfFreeBlocks > 0)
+      {
+         blockIndex = freeBlocks[--numberOfFreeBlocks];
+      }
+      else
+      {
+         if (numberOfBlockSlotsUsed == blockCapacity)
+            growBlockCapacity();
+         blockIndex = numberOfBlockSlotsUsed++;
+      }
+
+      Arrays.fill(childrenBlocks, 8 * blockIndex, 8 * blockIndex + 8, NULL_HANDLE);
+      childrenBlockIndices[node] = blockIndex;
+   }
+
+   @Override
+   public void removeChildren(int node)
+   {
+      int blockIndex = childrenBlockIndices[node];
+      if (blockIndex == NULL_HANDLE)
+         return;
+
+      if (numberOfFreeBlocks == freeBlocks.length)
+         freeBlocks = Arrays.copyOf(freeBlocks, (int) (GROWTH_FACTOR * freeBlocks.length) + 1);
+      freeBlocks[numberOfFreeBlocks++] = blockIndex;
+      childrenBlockIndices[node] = NULL_HANDLE;
+   }
+
+   @Override
+   public int getChild(int node, int childIndex)
+   {
+      int blockIndex = childrenBlockIndices[node];
+      if (blockIndex == NULL_HANDLE)
+         return NULL_HANDLE;
+      else
+         return childrenBlocks[8 * blockIndex + childIndex];
+   }
+
+   @Override
+   public void setChild(int node, int childIndex, int child)
+   {
+      childrenBlocks[8 * childrenBlockIndices[node] + childIndex] = child;
+   }
+
+   @Override
+   public float getLogOdds(int node)
+   {
+      return logOdds[node];
+   }
+
+   @Override
+   public void setLogOdds(int node, float logOdds)
+   {
+      this.logOdds[node] = logOdds;
+   }
+
+   @Override
+   public void copyData(int source, int destination)
+   {
+      logOdds[destination] = logOdds[source];
+   }
+
+   @Override
+   public int getNumberOfNodes()
+   {
+      return numberOfNodes;
+   }
+
+   @Override
+   public long getMemoryFootprint()
+   {
+      long bytes = 4L * childrenBlockIndices.length + 4L * logOdds.length + 4L * childrenBlocks.length;
+      bytes += 4L * freeNodes.length + 4L * freeBlocks.length;
+      return bytes;
+   }
+
+   @Override
+   public void clear()
+   {
+      numberOfNodeSlotsUsed = 0;
+      numberOfBlockSlotsUsed = 0;
+      numberOfNodes = 0;
+      numberOfFreeNodes = 0;
+      numberOfFreeBlocks = 0;
+   }
+
+   private void growNodeCapacity()
+   {
+      nodeCapacity = (int) (GROWTH_FACTOR * nodeCapacity) + 1;
+      childrenBlockIndices = Arrays.copyOf(childrenBlockIndices, nodeCapacity);
+      logOdds = Arrays.copyOf(logOdds, nodeCapacity);
+   }
+
+   private void growBlockCapacity()
+   {
+      blockCapacity = (int) (GROWTH_FACTOR * blockCapacity) + 1;
+      childrenBlocks = Arrays.copyOf(childrenBlocks, 8 * blockCapacity);
+   }
+}
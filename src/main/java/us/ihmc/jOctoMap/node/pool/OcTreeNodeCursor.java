@@ -0,0 +1,175 @@
+package us.ihmc.jOctoMap.node.pool;
+
+import us.ihmc.euclid.tuple3D.interfaces.Point3DBasics;
+import us.ihmc.jOctoMap.key.OcTreeKey;
+import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
+import us.ihmc.jOctoMap.tools.OcTreeKeyConversionTools;
+
+/**
+ * Flyweight giving access to a node stored in an {@link OcTreeNodeStorage}.
+ * <p>
+ * The cursor holds the handle of the node along with its key and depth which are not stored in the
+ * pool. It is meant to be reused: queries and iterations on a pooled octree repoint the given
+ * cursor instead of creating objects.
+ * </p>
+ * <p>
+ * The cursor can also point to a voxel of a {@link DenseBrickStorage}, in which case the handle is
+ * the one of the node owning the brick.
+ * </p>
+ */
+public class OcTreeNodeCursor
+{
+   private OcTreeNodeStorage storage;
+   private int handle = OcTreeNodeStorage.NULL_HANDLE;
+   private DenseBrickStorage bricks;
+   private int brick = OcTreeNodeStorage.NULL_HANDLE;
+   private int voxel;
+   private final OcTreeKey key = new OcTreeKey();
+   private int depth;
+   private double resolution;
+   private int treeDepth;
+
+   public OcTreeNodeCursor()
+   {
+   }
+
+   public void set(OcTreeNodeStorage storage, int handle, int k0, int k1, int k2, int depth, double resolution, int treeDepth)
+   {
+      this.storage = storage;
+      this.handle = handle;
+      bricks = null;
+      brick = OcTreeNodeStorage.NULL_HANDLE;
+      key.set(k0, k1, k2);
+      this.depth = depth;
+      this.resolution = resolution;
+      this.treeDepth = treeDepth;
+   }
+
+   /**
+    * Points this cursor to a voxel of a dense brick, the voxel is a leaf at the lowest level of the
+    * tree.
+    *
+    * @param owner the handle of the node owning the brick.
+    */
+   public void setToBrickVoxel(DenseBrickStorage bricks, int owner, int k0, int k1, int k2, double resolution, int treeDepth)
+   {
+      storage = null;
+      handle = owner;
+      this.bricks = bricks;
+      brick = bricks.getBrick(owner);
+      voxel = DenseBrickStorage.computeVoxelIndex(k0, k1, k2);
+      key.set(k0, k1, k2);
+      depth = treeDepth;
+      this.resolution = resolution;
+      this.treeDepth = treeDepth;
+   }
+
+   public void set(OcTreeNodeCursor other)
+   {
+      if (other.isBrickVoxel())
+         setToBrickVoxel(other.bricks, other.handle, other.key.getKey(0), other.key.getKey(1), other.key.getKey(2), other.resolution, other.treeDepth);
+      else
+         set(other.storage, other.handle, other.key.getKey(0), other.key.getKey(1), other.key.getKey(2), other.depth, other.resolution, other.treeDepth);
+   }
+
+   public void setToNull()
+   {
+      storage = null;
+      handle = OcTreeNodeStorage.NULL_HANDLE;
+      bricks = null;
+      brick = OcTreeNodeStorage.NULL_HANDLE;
+   }
+
+   /** @return whether this cursor points to a voxel of a dense brick instead of a node. */
+   public boolean isBrickVoxel()
+   {
+      return brick != OcTreeNodeStorage.NULL_HANDLE;
+   }
+
+   public boolean isNull()
+   {
+      return handle == OcTreeNodeStorage.NULL_HANDLE;
+   }
+
+   public int getHandle()
+   {
+      return handle;
+   }
+
+   public OcTreeKeyReadOnly getKey()
+   {
+      return key;
+   }
+
+   public int getKey0()
+   {
+      return key.getKey(0);
+   }
+
+   public int getKey1()
+   {
+      return key.getKey(1);
+   }
+
+   public int getKey2()
+   {
+      return key.getKey(2);
+   }
+
+   public int getDepth()
+   {
+      return depth;
+   }
+
+   public boolean hasAtLeastOneChild()
+   {
+      return !isBrickVoxel() && storage.hasAtLeastOneChild(handle);
+   }
+
+   public float getLogOdds()
+   {
+      if (isBrickVoxel())
+         return bricks.getLogOdds(brick, voxel);
+      else
+         return storage.getLogOdds(handle);
+   }
+
+   public void setLogOdds(float logOdds)
+   {
+      if (isBrickVoxel())
+         bricks.setLogOdds(brick, voxel, logOdds);
+      else
+         storage.setLogOdds(handle, logOdds);
+   }
+
+   public double getX()
+   {
+      return OcTreeKeyConversionTools.keyToCoordinate(key.getKey(0), depth, resolution, treeDepth);
+   }
+
+   public double getY()
+   {
+      return OcTreeKeyConversionTools.keyToCoordinate(key.getKey(1), depth, resolution, treeDepth);
+   }
+
+   public double getZ()
+   {
+      return OcTreeKeyConversionTools.keyToCoordinate(key.getKey(2), depth, resolution, treeDepth);
+   }
+
+   public void getCoordinate(Point3DBasics coordinateToPack)
+   {
+      coordinateToPack.set(getX(), getY(), getZ());
+   }
+
+   public double getSize()
+   {
+      return OcTreeKeyConversionTools.computeNodeSize(depth, resolution, treeDepth);
+   }
+
+   @Override
+   public String toString()
+   {
+      return getClass().getSimpleName() + ": handle = " + handle + (isBrickVoxel() ? ", brick voxel = " + voxel : "") + ", depth = " + depth + ", key = " + key;
+   }
+}
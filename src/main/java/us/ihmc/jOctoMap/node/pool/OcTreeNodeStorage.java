@@ -0,0 +1,84 @@
+package us.ihmc.jOctoMap.node.pool;
+
+/**
+ * Storage engine for the nodes of an occupancy octree where a node is addressed by an {@code int}
+ * handle instead of an object reference.
+ * <p>
+ * Each node has a log-odds value and optionally a block of 8 child handles. A child handle is
+ * {@link #NULL_HANDLE} when the child does not exist.
+ * </p>
+ * <p>
+ * Implementations are expected to recycle the handles and blocks of the deleted nodes such that
+ * steady-state updates do not allocate.
+ * </p>
+ */
+public interface OcTreeNodeStorage
+{
+   /** Handle used to denote the absence of node. */
+   static final int NULL_HANDLE = -1;
+
+   /**
+    * Creates a new node with no children and a log-odds value of zero.
+    *
+    * @return the handle of the new node.
+    */
+   int createNode();
+
+   /**
+    * Releases the given node. Its children block, if any, is released as well. The children of the
+    * node are not released.
+    *
+    * @param node the handle of the node to release.
+    */
+   void deleteNode(int node);
+
+   /** @return whether a block of children has been assigned to the given node. */
+   boolean hasArrayForChildren(int node);
+
+   /** @return whether the given node has at least one non-null child. */
+   default boolean hasAtLeastOneChild(int node)
+   {
+      if (!hasArrayForChildren(node))
+         return false;
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         if (getChild(node, childIndex) != NULL_HANDLE)
+            return true;
+      }
+      return false;
+   }
+
+   /** Assigns a block of children to the given node, all the children are initialized to {@link #NULL_HANDLE}. */
+   void allocateChildren(int node);
+
+   /** Releases the block of children of the given node, the children themselves are not released. */
+   void removeChildren(int node);
+
+   /** @return the handle of the child or {@link #NULL_HANDLE} if it does not exist. */
+   int getChild(int node, int childIndex);
+
+   void setChild(int node, int childIndex, int child);
+
+   float getLogOdds(int node);
+
+   void setLogOdds(int node, float logOdds);
+
+   /** Copies the log-odds of {@code source} into {@code destination}. */
+   default void copyData(int source, int destination)
+   {
+      setLogOdds(destination, getLogOdds(source));
+   }
+
+   /** @return the number of nodes currently in use. */
+   int getNumberOfNodes();
+
+   /**
+    * @return an estimate in bytes of the memory currently reserved by this storage, including free
+    *         slots kept for recycling.
+    */
+   long getMemoryFootprint();
+
+   /** Releases all the nodes. */
+   void clear();
+}
@@ -0,0 +1,590 @@
+package us.ihmc.jOctoMap.ocTree;
+
+import static us.ihmc.jOctoMap.node.pool.OcTreeNodeStorage.NULL_HANDLE;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+import us.ihmc.euclid.tuple3D.interfaces.Point3DBasics;
+import us.ihmc.euclid.tuple3D.interfaces.Point3DReadOnly;
+import us.ihmc.euclid.tuple3D.interfaces.Vector3DReadOnly;
+import us.ihmc.jOctoMap.key.OcTreeKey;
+import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
+import us.ihmc.jOctoMap.node.baseImplementation.AbstractOccupancyOcTreeNode;
+import us.ihmc.jOctoMap.node.pool.OcTreeNodeCursor;
+import us.ihmc.jOctoMap.node.pool.OcTreeNodeStorage;
+import us.ihmc.jOctoMap.occupancy.OccupancyParameters;
+import us.ihmc.jOctoMap.occupancy.OccupancyParametersReadOnly;
+import us.ihmc.jOctoMap.ocTree.baseImplementation.AbstractOccupancyOcTree;
+import us.ihmc.jOctoMap.tools.JOctoMapTools;
+import us.ihmc.jOctoMap.tools.OcTreeKeyConversionTools;
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
+import us.ihmc.jOctoMap.tools.OcTreeNearestNeighborTools;
+import us.ihmc.jOctoMap.tools.OccupancyTools;
+
+/**
+ * Immutable occupancy octree using a pointerless layout, similar to OctoMap's binary stream.
+ * <p>
+ * The nodes are stored in breadth-first order. Each node is only described by its log-odds and an
+ * 8-bit mask telling which of its children exist. The children of a node are stored contiguously and
+ * their position is found by counting the number of bits set in the masks of the preceding nodes
+ * (rank). The rank is sampled every 64 nodes such that it is computed in constant time.
+ * </p>
+ * <p>
+ * A node is referred to by its index in the breadth-first order. The key and depth of a node are not
+ * stored, they are recomputed when traversing the tree. Use {@link AbstractOccupancyOcTree#freeze()}
+ * to create an instance.
+ * </p>
+ */
+public class FrozenOccupancyOcTree
+{
+   private static final int RANK_SAMPLE_PERIOD_LOG2 = 6;
+   private static final int MASKS_PER_WORD_LOG2 = 3;
+
+   private final double resolution;
+   private final int treeDepth;
+   private final OccupancyParameters occupancyParameters = new OccupancyParameters();
+
+   private final int numberOfNodes;
+   /** The children masks, 8 per word, the mask of the node {@code i} is at the byte {@code i % 8} of the word {@code i / 8}. */
+   private final long[] childrenMasks;
+   /** Number of children of all the nodes preceding the node {@code 64 * i}. */
+   private final int[] rankSamples;
+   private final float[] logOdds;
+
+   private final ReadOnlyStorage storageView = new ReadOnlyStorage();
+
+   public <NODE extends AbstractOccupancyOcTreeNode<NODE>> FrozenOccupancyOcTree(AbstractOccupancyOcTree<NODE> ocTree)
+   {
+      resolution = ocTree.getResolution();
+      treeDepth = ocTree.getTreeDepth();
+      occupancyParameters.set(ocTree.getOccupancyParameters());
+
+      NODE root = ocTree.getRoot();
+      numberOfNodes = root == null ? 0 : ocTree.getNumberOfNodes();
+      childrenMasks = new long[(numberOfNodes >> MASKS_PER_WORD_LOG2) + 1];
+      rankSamples = new int[(numberOfNodes >> RANK_SAMPLE_PERIOD_LOG2) + 1];
+      logOdds = new float[numberOfNodes];
+
+      if (root == null)
+         return;
+
+      ArrayDeque<NODE> queue = new ArrayDeque<>();
+      queue.add(root);
+      int nodeIndex = 0;
+      int rank = 0;
+
+      while (!queue.isEmpty())
+      {
+         NODE node = queue.poll();
+
+         if ((nodeIndex & ((1 << RANK_SAMPLE_PERIOD_LOG2) - 1)) == 0)
+            rankSamples[nodeIndex >> RANK_SAMPLE_PERIOD_LOG2] = rank;
+
+         logOdds[nodeIndex] = node.getLogOdds();
+         long mask = 0;
+
+         if (node.hasAtLeastOneChild())
+         {
+            for (int childIndex = 0; childIndex < 8; childIndex++)
+            {
+               NODE child = node.getChild(childIndex);
+
+               if (child != null)
+               {
+                  mask |= 1 << childIndex;
+                  queue.add(child);
+                  rank++;
+               }
+            }
+         }
+
+         childrenMasks[nodeIndex >> MASKS_PER_WORD_LOG2] |= mask << ((nodeIndex & 7) << 3);
+         nodeIndex++;
+      }
+
+      if (nodeIndex != numberOfNodes)
+         throw new RuntimeException("Unexpected number of nodes, expected: " + numberOfNodes + ", was: " + nodeIndex);
+   }
+
+   public double getResolution()
+   {
+      return resolution;
+   }
+
+   public int getTreeDepth()
+   {
+      return treeDepth;
+   }
+
+   public OccupancyParametersReadOnly getOccupancyParameters()
+   {
+      return occupancyParameters;
+   }
+
+   /** @return the index of the root node, {@link OcTreeNodeStorage#NULL_HANDLE} for an empty tree. */
+   public int getRoot()
+   {
+      return numberOfNodes == 0 ? NULL_HANDLE : 0;
+   }
+
+   public int getNumberOfNodes()
+   {
+      return numberOfNodes;
+   }
+
+   public int getNumberOfLeafNodes()
+   {
+      int numberOfLeafNodes = 0;
+      for (int nodeIndex = 0; nodeIndex < numberOfNodes; nodeIndex++)
+      {
+         if (getChildrenMask(nodeIndex) == 0)
+            numberOfLeafNodes++;
+      }
+      return numberOfLeafNodes;
+   }
+
+   /** @return the number of bytes used to store the nodes. */
+   public long getMemoryFootprint()
+   {
+      return 8L * childrenMasks.length + 4L * rankSamples.length + 4L * logOdds.length;
+   }
+
+   public float getLogOdds(int node)
+   {
+      return logOdds[node];
+   }
+
+   public boolean isNodeOccupied(int node)
+   {
+      return OccupancyTools.isLogOddsOccupied(occupancyParameters, logOdds[node]);
+   }
+
+   public boolean isNodeOccupied(OcTreeNodeCursor cursor)
+   {
+      return isNodeOccupied(cursor.getHandle());
+   }
+
+   public boolean hasAtLeastOneChild(int node)
+   {
+      return getChildrenMask(node) != 0;
+   }
+
+   /** @return the index of the child or {@link OcTreeNodeStorage#NULL_HANDLE} if it does not exist. */
+   public int getChild(int node, int childIndex)
+   {
+      int mask = getChildrenMask(node);
+
+      if ((mask & (1 << childIndex)) == 0)
+         return NULL_HANDLE;
+
+      return 1 + rank(node) + Integer.bitCount(mask & ((1 << childIndex) - 1));
+   }
+
+   /**
+    * Search node at the lowest level given an addressing key.
+    *
+    * @return index of the node if found, {@link OcTreeNodeStorage#NULL_HANDLE} otherwise.
+    */
+   public int search(OcTreeKeyReadOnly key)
+   {
+      return search(key.getKey(0), key.getKey(1), key.getKey(2), treeDepth);
+   }
+
+   /**
+    * Search node at specified depth given an addressing key (depth=0: search full tree depth).
+    *
+    * @return index of the node if found, {@link OcTreeNodeStorage#NULL_HANDLE} otherwise.
+    */
+   public int search(OcTreeKeyReadOnly key, int depth)
+   {
+      JOctoMapTools.checkIfDepthValid(depth, treeDepth);
+
+      if (depth == 0)
+         depth = treeDepth;
+
+      int k0 = OcTreeKeyTools.adjustKeyAtDepth(key.getKey(0), depth, treeDepth);
+      int k1 = OcTreeKeyTools.adjustKeyAtDepth(key.getKey(1), depth, treeDepth);
+      int k2 = OcTreeKeyTools.adjustKeyAtDepth(key.getKey(2), depth, treeDepth);
+      return search(k0, k1, k2, depth);
+   }
+
+   public int search(Point3DReadOnly coordinate)
+   {
+      OcTreeKey key = OcTreeKeyConversionTools.coordinateToKey(coordinate, resolution, treeDepth);
+      return key == null ? NULL_HANDLE : search(key);
+   }
+
+   /**
+    * Search node at specified depth given an addressing key (depth=0: search full tree depth).
+    *
+    * @return whether the node was found.
+    */
+   public boolean search(OcTreeKeyReadOnly key, int depth, OcTreeNodeCursor cursorToPack)
+   {
+      JOctoMapTools.checkIfDepthValid(depth, treeDepth);
+
+      if (depth == 0)
+         depth = treeDepth;
+
+      int node = getRoot();
+      int nodeDepth = 0;
+
+      if (node != NULL_HANDLE)
+      {
+         for (; nodeDepth < depth; nodeDepth++)
+         {
+            int mask = getChildrenMask(node);
+            if (mask == 0)
+               break;
+
+            int childIndex = OcTreeKeyTools.computeChildIndex(key.getKey(0), key.getKey(1), key.getKey(2), nodeDepth, treeDepth);
+            node = (mask & (1 << childIndex)) == 0 ? NULL_HANDLE : 1 + rank(node) + Integer.bitCount(mask & ((1 << childIndex) - 1));
+            if (node == NULL_HANDLE)
+               break;
+         }
+      }
+
+      if (node == NULL_HANDLE)
+      {
+         cursorToPack.setToNull();
+         return false;
+      }
+
+      int k0 = OcTreeKeyTools.adjustKeyAtDepth(key.getKey(0), nodeDepth, treeDepth);
+      int k1 = OcTreeKeyTools.adjustKeyAtDepth(key.getKey(1), nodeDepth, treeDepth);
+      int k2 = OcTreeKeyTools.adjustKeyAtDepth(key.getKey(2), nodeDepth, treeDepth);
+      cursorToPack.set(storageView, node, k0, k1, k2, nodeDepth, resolution, treeDepth);
+      return true;
+   }
+
+   private int search(int k0, int k1, int k2, int depth)
+   {
+      if (numberOfNodes == 0)
+         return NULL_HANDLE;
+
+      int node = 0;
+
+      for (int currentDepth = 0; currentDepth < depth; currentDepth++)
+      {
+         int mask = getChildrenMask(node);
+
+         // the node is a leaf already
+         if (mask == 0)
+            return node;
+
+         int childIndex = OcTreeKeyTools.computeChildIndex(k0, k1, k2, currentDepth, treeDepth);
+
+         // we expected a child but did not get it, search failed
+         if ((mask & (1 << childIndex)) == 0)
+            return NULL_HANDLE;
+
+         node = 1 + rank(node) + Integer.bitCount(mask & ((1 << childIndex) - 1));
+      }
+      return node;
+   }
+
+   /**
+    * Performs raycasting in 3d, see
+    * {@link AbstractOccupancyOcTree#castRay(Point3DReadOnly, Vector3DReadOnly, Point3DBasics, boolean, double)}.
+    *
+    * @return true if an occupied cell was hit, false if the maximum range or octree bounds are
+    *         reached, or if an unknown node was hit.
+    */
+   public boolean castRay(Point3DReadOnly origin, Vector3DReadOnly direction, Point3DBasics endToPack, boolean ignoreUnknownCells, double maxRange)
+   {
+      OcTreeKey currentKey = OcTreeKeyConversionTools.coordinateToKey(origin, resolution, treeDepth);
+      if (currentKey == null)
+         return false;
+
+      int startingNode = search(currentKey);
+      if (startingNode != NULL_HANDLE)
+      {
+         if (isNodeOccupied(startingNode))
+         {
+            OcTreeKeyConversionTools.keyToCoordinate(currentKey, endToPack, resolution, treeDepth);
+            return true;
+         }
+      }
+      else if (!ignoreUnknownCells)
+      {
+         OcTreeKeyConversionTools.keyToCoordinate(currentKey, endToPack, resolution, treeDepth);
+         return false;
+      }
+
+      double directionNorm = direction.length();
+      int[] step = new int[3];
+      double[] tMax = new double[3];
+      double[] tDelta = new double[3];
+
+      for (int i = 0; i < 3; i++)
+      {
+         double directionComponent = direction.getElement(i) / directionNorm;
+
+         if (directionComponent > 0.0)
+            step[i] = 1;
+         else if (directionComponent < 0.0)
+            step[i] = -1;
+         else
+            step[i] = 0;
+
+         if (step[i] != 0)
+         {
+            // corner point of voxel (in direction of ray)
+            double voxelBorder = OcTreeKeyConversionTools.keyToCoordinate(currentKey.getKey(i), resolution, treeDepth);
+            voxelBorder += step[i] * resolution * 0.5;
+
+            tMax[i] = (voxelBorder - origin.getElement(i)) / directionComponent;
+            tDelta[i] = resolution / Math.abs(directionComponent);
+         }
+         else
+         {
+            tMax[i] = Double.POSITIVE_INFINITY;
+            tDelta[i] = Double.POSITIVE_INFINITY;
+         }
+      }
+
+      if (step[0] == 0 && step[1] == 0 && step[2] == 0)
+         return false;
+
+      int keyMaxValue = OcTreeKeyTools.computeMaximumKey(treeDepth);
+      boolean maxRangeSet = maxRange > 0.0;
+      double maxRangeSquared = maxRange * maxRange;
+
+      while (true)
+      {
+         int dim;
+
+         // find minimum tMax:
+         if (tMax[0] < tMax[1])
+            dim = tMax[0] < tMax[2] ? 0 : 2;
+         else
+            dim = tMax[1] < tMax[2] ? 1 : 2;
+
+         // check for overflow:
+         if (step[dim] < 0 && currentKey.getKey(dim) == 0 || step[dim] > 0 && currentKey.getKey(dim) == keyMaxValue)
+         {
+            OcTreeKeyConversionTools.keyToCoordinate(currentKey, endToPack, resolution, treeDepth);
+            return false;
+         }
+
+         // advance in direction "dim"
+         currentKey.addKey(dim, step[dim]);
+         tMax[dim] += tDelta[dim];
+
+         OcTreeKeyConversionTools.keyToCoordinate(currentKey, endToPack, resolution, treeDepth);
+
+         if (maxRangeSet && endToPack.distanceSquared(origin) > maxRangeSquared)
+            return false;
+
+         int currentNode = search(currentKey);
+         if (currentNode != NULL_HANDLE)
+         {
+            if (isNodeOccupied(currentNode))
+               return true;
+         }
+         else if (!ignoreUnknownCells)
+         { // no node found, this usually means we are in "unknown" areas
+            return false;
+         }
+      }
+   }
+
+   /**
+    * Search the nodes contained in the search sphere S(q, r), see
+    * {@link OcTreeNearestNeighborTools#findRadiusNeighbors(us.ihmc.jOctoMap.node.baseImplementation.AbstractOcTreeNode, double, double, double, double, OcTreeNearestNeighborTools.NeighborActionRule)}.
+    * The same cursor instance is given for all the neighbors and it should not be held on to.
+    */
+   public void findRadiusNeighbors(double x, double y, double z, double radius, Consumer<OcTreeNodeCursor> action)
+   {
+      if (numberOfNodes == 0)
+         return;
+
+      OcTreeKey rootKey = OcTreeKeyTools.getRootKey(treeDepth);
+      findRadiusNeighbors(0, rootKey, 0, x, y, z, radius, radius * radius, new OcTreeNodeCursor(), action);
+   }
+
+   public void findRadiusNeighbors(Point3DReadOnly query, double radius, Consumer<OcTreeNodeCursor> action)
+   {
+      findRadiusNeighbors(query.getX(), query.getY(), query.getZ(), radius, action);
+   }
+
+   private void findRadiusNeighbors(int node, OcTreeKeyReadOnly key, int depth, double x, double y, double z, double radius, double radiusSquared,
+                                    OcTreeNodeCursor cursor, Consumer<OcTreeNodeCursor> action)
+   {
+      // if search ball S(q,r) contains octant, simply add point indexes.
+      if (OcTreeNearestNeighborTools.contains(x, y, z, radiusSquared, key, depth, resolution, treeDepth))
+      {
+         forEachLeaf(node, key, depth, cursor, action);
+         return; // early pruning.
+      }
+
+      int mask = getChildrenMask(node);
+
+      if (mask == 0)
+      {
+         cursor.set(storageView, node, key.getKey(0), key.getKey(1), key.getKey(2), depth, resolution, treeDepth);
+         double dx = x - cursor.getX();
+         double dy = y - cursor.getY();
+         double dz = z - cursor.getZ();
+
+         if (dx * dx + dy * dy + dz * dz < radiusSquared)
+            action.accept(cursor);
+         return;
+      }
+
+      int child = 1 + rank(node);
+      OcTreeKey childKey = new OcTreeKey();
+
+      // check whether child nodes are in range.
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         if ((mask & (1 << childIndex)) == 0)
+            continue;
+
+         OcTreeKeyTools.computeChildKey(childIndex, key, childKey, depth + 1, treeDepth);
+         if (OcTreeNearestNeighborTools.overlaps(x, y, z, radius, radiusSquared, childKey, depth + 1, resolution, treeDepth))
+            findRadiusNeighbors(child, childKey, depth + 1, x, y, z, radius, radiusSquared, cursor, action);
+         child++;
+      }
+   }
+
+   /**
+    * Calls the given action on every leaf of the tree. The same cursor instance is given for all the
+    * leaves and it should not be held on to.
+    */
+   public void forEachLeaf(Consumer<OcTreeNodeCursor> action)
+   {
+      if (numberOfNodes == 0)
+         return;
+
+      forEachLeaf(0, OcTreeKeyTools.getRootKey(treeDepth), 0, new OcTreeNodeCursor(), action);
+   }
+
+   private void forEachLeaf(int node, OcTreeKeyReadOnly key, int depth, OcTreeNodeCursor cursor, Consumer<OcTreeNodeCursor> action)
+   {
+      int mask = getChildrenMask(node);
+
+      if (mask == 0)
+      {
+         cursor.set(storageView, node, key.getKey(0), key.getKey(1), key.getKey(2), depth, resolution, treeDepth);
+         action.accept(cursor);
+         return;
+      }
+
+      int child = 1 + rank(node);
+      OcTreeKey childKey = new OcTreeKey();
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         if ((mask & (1 << childIndex)) == 0)
+            continue;
+
+         OcTreeKeyTools.computeChildKey(childIndex, key, childKey, depth + 1, treeDepth);
+         forEachLeaf(child, childKey, depth + 1, cursor, action);
+         child++;
+      }
+   }
+
+   private int getChildrenMask(int node)
+   {
+      return (int) (childrenMasks[node >> MASKS_PER_WORD_LOG2] >>> ((node & 7) << 3)) & 0xFF;
+   }
+
+   /** @return the number of children of the nodes preceding the given node. */
+   private int rank(int node)
+   {
+      int rank = rankSamples[node >> RANK_SAMPLE_PERIOD_LOG2];
+      int word = node >> MASKS_PER_WORD_LOG2;
+
+      for (int wordIndex = (node >> RANK_SAMPLE_PERIOD_LOG2) << (RANK_SAMPLE_PERIOD_LOG2 - MASKS_PER_WORD_LOG2); wordIndex < word; wordIndex++)
+         rank += Long.bitCount(childrenMasks[wordIndex]);
+
+      int numberOfBitsBefore = (node & 7) << 3;
+      if (numberOfBitsBefore != 0)
+         rank += Long.bitCount(childrenMasks[word] & ((1L << numberOfBitsBefore) - 1));
+      return rank;
+   }
+
+   /** View used to give access to the nodes via {@link OcTreeNodeCursor}. */
+   private class ReadOnlyStorage implements OcTreeNodeStorage
+   {
+      @Override
+      public int createNode()
+      {
+         throw new RuntimeException("A frozen octree cannot be modified.");
+      }
+
+      @Override
+      public void deleteNode(int node)
+      {
+         throw new RuntimeException("A frozen octree cannot be modified.");
+      }
+
+      @Override
+      public boolean hasArrayForChildren(int node)
+      {
+         return FrozenOccupancyOcTree.this.hasAtLeastOneChild(node);
+      }
+
+      @Override
+      public boolean hasAtLeastOneChild(int node)
+      {
+         return FrozenOccupancyOcTree.this.hasAtLeastOneChild(node);
+      }
+
+      @Override
+      public void allocateChildren(int node)
+      {
+         throw new RuntimeException("A frozen octree cannot be modified.");
+      }
+
+      @Override
+      public void removeChildren(int node)
+      {
+         throw new RuntimeException("A frozen octree cannot be modified.");
+      }
+
+      @Override
+      public int getChild(int node, int childIndex)
+      {
+         return FrozenOccupancyOcTree.this.getChild(node, childIndex);
+      }
+
+      @Override
+      public void setChild(int node, int childIndex, int child)
+      {
+         throw new RuntimeException("A frozen octree cannot be modified.");
+      }
+
+      @Override
+      public float getLogOdds(int node)
+      {
+         return logOdds[node];
+      }
+
+      @Override
+      public void setLogOdds(int node, float logOdds)
+      {
+         throw new RuntimeException("A frozen octree cannot be modified.");
+      }
+
+      @Override
+      public int getNumberOfNodes()
+      {
+         return numberOfNodes;
+      }
+
+      @Override
+      public long getMemoryFootprint()
+      {
+         return FrozenOccupancyOcTree.this.getMemoryFootprint();
+      }
+
+      @Override
+      public void clear()
+      {
+         throw new RuntimeException("A frozen octree cannot be modified.");
+      }
+   }
+}
@@ -1,14 +1,14 @@
 package us.ihmc.jOctoMap.ocTree;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import org.apache.commons.lang3.time.StopWatch;
@@ -21,12 +21,16 @@ import us.ihmc.euclid.tuple3D.interfaces.Vector3DReadOnly;
 import us.ihmc.jOctoMap.boundingBox.OcTreeBoundingBoxInterface;
 import us.ihmc.jOctoMap.iterators.OcTreeIteratorFactory;
 import us.ihmc.jOctoMap.key.OcTreeKey;
+import us.ihmc.jOctoMap.key.OcTreeKeyList;
 import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
+import us.ihmc.jOctoMap.key.OcTreeKeySet;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeySet;
 import us.ihmc.jOctoMap.node.NormalOcTreeNode;
 import us.ihmc.jOctoMap.normalEstimation.NormalEstimationParameters;
 import us.ihmc.jOctoMap.ocTree.baseImplementation.AbstractOcTreeBase;
 import us.ihmc.jOctoMap.occupancy.OccupancyParameters;
 import us.ihmc.jOctoMap.occupancy.OccupancyParametersReadOnly;
+import us.ihmc.jOctoMap.pointCloud.DepthImage;
 import us.ihmc.jOctoMap.pointCloud.PointCloud;
 import us.ihmc.jOctoMap.pointCloud.Scan;
 import us.ihmc.jOctoMap.pointCloud.ScanCollection;
@@ -35,6 +39,8 @@ import us.ihmc.jOctoMap.rules.NormalOcTreeMissUpdateRule;
 import us.ihmc.jOctoMap.rules.interfaces.RayActionRule;
 import us.ihmc.jOctoMap.tools.JOctoMapTools;
 import us.ihmc.jOctoMap.tools.NormalEstimationTools;
+import us.ihmc.jOctoMap.tools.OcTreeDepthImageTools;
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
 import us.ihmc.jOctoMap.tools.OcTreeRayTools;
 import us.ihmc.jOctoMap.tools.OccupancyTools;
 
@@ -70,6 +76,20 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
 
    private boolean reportTime = false;
 
+   /** Number of levels above the leaves of the subtrees which inner nodes are updated at the end of a lazy batch. */
+   private static final int LAZY_BATCH_SUBTREE_LEVEL = 3;
+   private boolean useLazyBatchUpdates = false;
+   private boolean isLazyBatchInProgress = false;
+   private final PackedOcTreeKeySet lazilyUpdatedSubtrees = new PackedOcTreeKeySet();
+   private long lastLazilyUpdatedSubtree = OcTreeKeyTools.INVALID_PACKED_KEY;
+   private long[] lazilyUpdatedMortonCodes = new long[0];
+
+   // Workspace of the hit integration of a scan, see integrateHits(...).
+   private final OcTreeKey hitKey = new OcTreeKey();
+   private final PackedOcTreeKeySet occupiedCells = new PackedOcTreeKeySet(1024);
+   private OcTreeKeySet unpackedOccupiedCells;
+   private int[] missRayIndices = new int[0];
+
    private final NormalOcTreeHitUpdateRule hitUpdateRule = new NormalOcTreeHitUpdateRule(occupancyParameters);
    private final NormalOcTreeMissUpdateRule missUpdateRule = new NormalOcTreeMissUpdateRule(occupancyParameters);
    private RayMissProbabilityUpdater rayMissProbabilityUpdater = null;
@@ -89,6 +109,15 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
       super(other);
    }
 
+   /**
+    * Copies the other tree in parallel, see
+    * {@link AbstractOcTreeBase#AbstractOcTreeBase(AbstractOcTreeBase, ForkJoinPool)}.
+    */
+   public NormalOcTree(NormalOcTree other, ForkJoinPool pool)
+   {
+      super(other, pool);
+   }
+
    public void update(ScanCollection scanCollection)
    {
       insertScanCollection(scanCollection, true);
@@ -119,7 +148,10 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
          stopWatch.start();
       }
 
+      boolean startedLazyBatch = startLazyBatch();
       scanCollection.forEach(scan -> insertScan(scan, insertMiss, updatedLeavesToPack, deletedLeavesToPack));
+      if (startedLazyBatch)
+         finishLazyBatch();
 
       if (reportTime)
       {
@@ -144,12 +176,54 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
    }
 
    public void insertScan(Scan scan, boolean insertMiss, Set<NormalOcTreeNode> updatedLeavesToPack, Set<OcTreeKey> deletedLeavesToPack)
+   {
+      boolean startedLazyBatch = startLazyBatch();
+      insertScanInternal(scan, insertMiss, updatedLeavesToPack, deletedLeavesToPack);
+      if (startedLazyBatch)
+         finishLazyBatch();
+   }
+
+   private void insertScanInternal(Scan scan, boolean insertMiss, Set<NormalOcTreeNode> updatedLeavesToPack, Set<OcTreeKey> deletedLeavesToPack)
    {
       missUpdateRule.setUpdateLogOdds(occupancyParameters.getMissProbabilityLogOdds());
       hitUpdateRule.setUpdateLogOdds(occupancyParameters.getHitProbabilityLogOdds());
       hitUpdateRule.setMaximumNumberOfHits(nodeMaximumNumberOfHits);
 
-      HashSet<OcTreeKey> occupiedCells = new HashSet<>();
+      int numberOfMissRays = integrateHits(scan, insertMiss, updatedLeavesToPack);
+
+      if (insertMiss)
+      {
+         insertMissRays(scan.getSensorOrigin(), scan.getPointCloud(), numberOfMissRays, deletedLeavesToPack);
+      }
+   }
+
+   /**
+    * Integrates the hits of a scan, the scan is not modified.
+    * <p>
+    * When the misses are to be inserted, the occupied cells are gathered for the misses to skip them,
+    * and a single ray is cast per occupied cell: the indices of the points to cast a ray to are packed
+    * in {@link #missRayIndices}, in the order of the point cloud.
+    * </p>
+    *
+    * @return the number of miss rays to cast.
+    */
+   private int integrateHits(Scan scan, boolean insertMiss, Set<NormalOcTreeNode> updatedLeavesToPack)
+   {
+      boolean packKeys = OcTreeKeyTools.canPackKeys(treeDepth);
+
+      if (insertMiss)
+      {
+         if (packKeys)
+         {
+            occupiedCells.clear();
+         }
+         else
+         {
+            if (unpackedOccupiedCells == null)
+               unpackedOccupiedCells = new OcTreeKeySet();
+            unpackedOccupiedCells.clear();
+         }
+      }
 
       Vector3D direction = new Vector3D();
       Point3D point = new Point3D();
@@ -157,45 +231,362 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
       PointCloud pointCloud = scan.getPointCloud();
       hitUpdateRule.setCurrentTimestamp(pointCloud.getTimestamp());
 
-      for (int i = pointCloud.getNumberOfPoints() - 1; i >= 0; i--)
+      int numberOfPoints = pointCloud.getNumberOfPoints();
+      if (insertMiss && missRayIndices.length < numberOfPoints)
+         missRayIndices = new int[Math.max(numberOfPoints, 2 * missRayIndices.length)];
+      int numberOfMissRays = 0;
+
+      for (int i = numberOfPoints - 1; i >= 0; i--)
       {
          point.set(pointCloud.getPoint(i));
-         direction.sub(point, sensorOrigin);
-         double length = direction.length();
 
-         if ((maxInsertRange < 0.0 || length <= maxInsertRange) && (minInsertRange < 0.0 || length >= minInsertRange) && isInBoundingBox(point))
+         if (computeHitKey(sensorOrigin, point, direction, hitKey))
          {
-            OcTreeKey occupiedKey = coordinateToKey(point);
-            if (occupiedKey == null)
-               continue;
             hitUpdateRule.setHitLocation(sensorOrigin, point);
-            NormalOcTreeNode updatedLeaf = updateNodeInternal(occupiedKey, hitUpdateRule, null);
+            NormalOcTreeNode updatedLeaf = updateNodeInternal(hitKey, hitUpdateRule, null);
+            if (updatedLeavesToPack != null)
+               updatedLeavesToPack.add(updatedLeaf);
+            if (isLazyBatchInProgress)
+               addLazilyUpdatedCell(hitKey);
+
+            if (!insertMiss)
+               continue;
+
+            // Only the first point found in a cell casts a miss ray, the others would not update any other cell.
+            boolean isNewOccupiedCell;
+            if (packKeys)
+               isNewOccupiedCell = occupiedCells.add(hitKey);
+            else
+               isNewOccupiedCell = !unpackedOccupiedCells.contains(hitKey) && unpackedOccupiedCells.add(new OcTreeKey(hitKey));
+            if (!isNewOccupiedCell)
+               continue;
+         }
+
+         if (insertMiss)
+            missRayIndices[numberOfMissRays++] = i;
+      }
+
+      // The points were visited backward, restores the order of the point cloud.
+      for (int i = 0, j = numberOfMissRays - 1; i < j; i++, j--)
+      {
+         int index = missRayIndices[i];
+         missRayIndices[i] = missRayIndices[j];
+         missRayIndices[j] = index;
+      }
+
+      return numberOfMissRays;
+   }
+
+   /**
+    * @return whether the point is within the insert ranges and the bounding box, in which case its
+    *         key is packed in {@code hitKeyToPack}.
+    */
+   private boolean computeHitKey(Point3DReadOnly sensorOrigin, Point3DReadOnly point, Vector3D direction, OcTreeKey hitKeyToPack)
+   {
+      direction.sub(point, sensorOrigin);
+      double length = direction.length();
+      return (maxInsertRange < 0.0 || length <= maxInsertRange) && (minInsertRange < 0.0 || length >= minInsertRange) && isInBoundingBox(point)
+            && coordinateToKey(point, hitKeyToPack);
+   }
+
+   private boolean isOccupiedCell(OcTreeKeyReadOnly key)
+   {
+      if (OcTreeKeyTools.canPackKeys(treeDepth))
+         return occupiedCells.contains(key);
+      else
+         return unpackedOccupiedCells.contains(key);
+   }
+
+   /**
+    * Computes the cells that {@link #insertScanCollection(ScanCollection, boolean, Set, Set)} would
+    * update, without modifying the tree. The cells are then inserted with
+    * {@link #insertCells(CellsToUpdate, Set, Set)}.
+    * <p>
+    * This can be called from a thread other than the one updating the tree, as long as the insertion
+    * settings, e.g. the bounding box or the insert ranges, are not changed meanwhile. When a
+    * {@link RayMissProbabilityUpdater} is set, the misses depend on the tree and the scans are only
+    * inserted by {@link #insertCells(CellsToUpdate, Set, Set)}.
+    * </p>
+    *
+    * @param scanCollection      the scans to compute the cells of.
+    * @param insertMiss          whether the cells traversed by the rays are to be updated.
+    * @param cellsToUpdateToPack the cells to update, cleared first.
+    */
+   public void computeCellsToUpdate(ScanCollection scanCollection, boolean insertMiss, CellsToUpdate cellsToUpdateToPack)
+   {
+      cellsToUpdateToPack.clear();
+      cellsToUpdateToPack.scanCollection = scanCollection;
+      cellsToUpdateToPack.insertMiss = insertMiss;
+      cellsToUpdateToPack.insertScans = rayMissProbabilityUpdater != null;
+
+      if (cellsToUpdateToPack.insertScans)
+         return;
+
+      for (int i = 0; i < scanCollection.getNumberOfScans(); i++)
+         computeScanCellsToUpdate(scanCollection.getScan(i), cellsToUpdateToPack);
+   }
+
+   /**
+    * Same as {@link #insertScanInternal(Scan, boolean, Set, Set)} packing the cells to update instead
+    * of updating the tree.
+    */
+   private void computeScanCellsToUpdate(Scan scan, CellsToUpdate cellsToUpdateToPack)
+   {
+      boolean packKeys = OcTreeKeyTools.canPackKeys(treeDepth);
+      boolean insertMiss = cellsToUpdateToPack.insertMiss;
+
+      if (packKeys)
+      {
+         cellsToUpdateToPack.scanOccupiedCells.clear();
+      }
+      else
+      {
+         if (cellsToUpdateToPack.unpackedScanOccupiedCells == null)
+            cellsToUpdateToPack.unpackedScanOccupiedCells = new OcTreeKeySet();
+         cellsToUpdateToPack.unpackedScanOccupiedCells.clear();
+      }
+
+      Point3DReadOnly sensorOrigin = scan.getSensorOrigin();
+      PointCloud pointCloud = scan.getPointCloud();
+      int numberOfPoints = pointCloud.getNumberOfPoints();
+      OcTreeKeyList hitKeys = cellsToUpdateToPack.hitKeys;
+      OcTreeKey key = cellsToUpdateToPack.key;
+
+      if (cellsToUpdateToPack.hitPointIndices.length < hitKeys.size() + numberOfPoints)
+         cellsToUpdateToPack.hitPointIndices = Arrays.copyOf(cellsToUpdateToPack.hitPointIndices,
+                                                             Math.max(hitKeys.size() + numberOfPoints, 2 * cellsToUpdateToPack.hitPointIndices.length));
+      if (insertMiss && cellsToUpdateToPack.scanMissRayIndices.length < numberOfPoints)
+         cellsToUpdateToPack.scanMissRayIndices = new int[Math.max(numberOfPoints, 2 * cellsToUpdateToPack.scanMissRayIndices.length)];
+      int[] missRayIndices = cellsToUpdateToPack.scanMissRayIndices;
+      int numberOfMissRays = 0;
+
+      // The points are visited backward as in integrateHits.
+      for (int i = numberOfPoints - 1; i >= 0; i--)
+      {
+         if (computeHitKey(sensorOrigin, pointCloud.getPoint(i), cellsToUpdateToPack.direction, key))
+         {
+            cellsToUpdateToPack.hitPointIndices[hitKeys.size()] = i;
+            hitKeys.add(key);
+
+            if (!insertMiss)
+               continue;
+
+            boolean isNewOccupiedCell;
+            if (packKeys)
+               isNewOccupiedCell = cellsToUpdateToPack.scanOccupiedCells.add(key);
+            else
+               isNewOccupiedCell = !cellsToUpdateToPack.unpackedScanOccupiedCells.contains(key)
+                     && cellsToUpdateToPack.unpackedScanOccupiedCells.add(new OcTreeKey(key));
+            if (!isNewOccupiedCell)
+               continue;
+         }
+
+         if (insertMiss)
+            missRayIndices[numberOfMissRays++] = i;
+      }
+
+      RayActionRule addMissRule = (rayOrigin, rayEnd, rayDirection, freeKey) ->
+      {
+         if (!cellsToUpdateToPack.isScanOccupiedCell(freeKey, packKeys))
+            cellsToUpdateToPack.missKeys.add(freeKey);
+      };
+
+      // The rays are cast in the order of the point cloud.
+      for (int i = numberOfMissRays - 1; i >= 0; i--)
+      {
+         Point3D rayEnd = computeMissRayEnd(sensorOrigin, pointCloud.getPoint(missRayIndices[i]));
+         if (rayEnd != null)
+            OcTreeRayTools.doActionOnRayKeys(sensorOrigin, rayEnd, boundingBox, addMissRule, resolution, treeDepth);
+      }
+
+      cellsToUpdateToPack.finishScan();
+   }
+
+   /**
+    * Inserts the cells computed with {@link #computeCellsToUpdate(ScanCollection, boolean, CellsToUpdate)},
+    * the tree then being the same as if the scans had been inserted with
+    * {@link #insertScanCollection(ScanCollection, boolean, Set, Set)}.
+    */
+   public void insertCells(CellsToUpdate cellsToUpdate, Set<NormalOcTreeNode> updatedLeavesToPack, Set<OcTreeKey> deletedLeavesToPack)
+   {
+      if (cellsToUpdate.insertScans || rayMissProbabilityUpdater != null)
+      {
+         insertScanCollection(cellsToUpdate.scanCollection, cellsToUpdate.insertMiss, updatedLeavesToPack, deletedLeavesToPack);
+         return;
+      }
+
+      boolean startedLazyBatch = startLazyBatch();
+      hitUpdateRule.setUpdateLogOdds(occupancyParameters.getHitProbabilityLogOdds());
+      hitUpdateRule.setMaximumNumberOfHits(nodeMaximumNumberOfHits);
+      missUpdateRule.setUpdateLogOdds(occupancyParameters.getMissProbabilityLogOdds());
+      missUpdateRule.setDeletedLeavesToUpdate(deletedLeavesToPack);
+      int hitIndex = 0;
+      int missIndex = 0;
+
+      for (int scanIndex = 0; scanIndex < cellsToUpdate.scanCollection.getNumberOfScans(); scanIndex++)
+      {
+         Scan scan = cellsToUpdate.scanCollection.getScan(scanIndex);
+         Point3DReadOnly sensorOrigin = scan.getSensorOrigin();
+         PointCloud pointCloud = scan.getPointCloud();
+         hitUpdateRule.setCurrentTimestamp(pointCloud.getTimestamp());
+
+         for (; hitIndex < cellsToUpdate.scanHitEnds[scanIndex]; hitIndex++)
+         {
+            OcTreeKey key = cellsToUpdate.hitKeys.get(hitIndex);
+            hitUpdateRule.setHitLocation(sensorOrigin, pointCloud.getPoint(cellsToUpdate.hitPointIndices[hitIndex]));
+            NormalOcTreeNode updatedLeaf = updateNodeInternal(key, hitUpdateRule, null);
             if (updatedLeavesToPack != null)
                updatedLeavesToPack.add(updatedLeaf);
-            // Add the key to the occupied set.
-            // if it was already present, remove the point from the scan to speed up integration of miss.
-            if (!occupiedCells.add(occupiedKey) && insertMiss)
-               pointCloud.removePoint(i);
+            if (isLazyBatchInProgress)
+               addLazilyUpdatedCell(key);
+         }
+
+         for (; missIndex < cellsToUpdate.scanMissEnds[scanIndex]; missIndex++)
+         {
+            OcTreeKey key = cellsToUpdate.missKeys.get(missIndex);
+            updateNodeInternal(key, missUpdateRule, missUpdateRule);
+            if (isLazyBatchInProgress)
+               addLazilyUpdatedCell(key);
+         }
+      }
+
+      if (startedLazyBatch)
+         finishLazyBatch();
+   }
+
+   public void insertDepthImage(DepthImage depthImage)
+   {
+      insertDepthImage(depthImage, true, null, null);
+   }
+
+   /**
+    * Integrates a depth image, see {@link DepthImage}. The hits are integrated pixel per pixel as for
+    * {@link #insertScan(Scan, boolean, Set, Set)} while the misses are carved by projecting the voxels
+    * of the camera frustum into the image, see
+    * {@link OcTreeDepthImageTools#computeUpdate(DepthImage, PackedOcTreeKeySet, PackedOcTreeKeySet, OcTreeBoundingBoxInterface, double, double, double, int)}.
+    * <p>
+    * When a {@link RayMissProbabilityUpdater} is set, which requires the ray of each miss, or when the
+    * tree is deeper than {@link OcTreeKeyTools#MAX_PACKED_KEY_TREE_DEPTH}, the image is inserted as a
+    * scan.
+    * </p>
+    */
+   public void insertDepthImage(DepthImage depthImage, boolean insertMiss, Set<NormalOcTreeNode> updatedLeavesToPack, Set<OcTreeKey> deletedLeavesToPack)
+   {
+      if (rayMissProbabilityUpdater != null || !OcTreeKeyTools.canPackKeys(treeDepth))
+      {
+         insertScan(depthImage.toScan(), insertMiss, updatedLeavesToPack, deletedLeavesToPack);
+         return;
+      }
+
+      missUpdateRule.setUpdateLogOdds(occupancyParameters.getMissProbabilityLogOdds());
+      hitUpdateRule.setUpdateLogOdds(occupancyParameters.getHitProbabilityLogOdds());
+      hitUpdateRule.setMaximumNumberOfHits(nodeMaximumNumberOfHits);
+      hitUpdateRule.setCurrentTimestamp(depthImage.getTimestamp());
+
+      Point3D point = new Point3D();
+      Point3DReadOnly sensorOrigin = depthImage.getSensorOrigin();
+
+      for (int v = 0; v < depthImage.getHeight(); v++)
+      {
+         for (int u = 0; u < depthImage.getWidth(); u++)
+         {
+            if (!depthImage.getPoint(u, v, point))
+               continue;
+
+            double length = point.distance(sensorOrigin);
+
+            if ((maxInsertRange < 0.0 || length <= maxInsertRange) && (minInsertRange < 0.0 || length >= minInsertRange) && isInBoundingBox(point))
+            {
+               OcTreeKey occupiedKey = coordinateToKey(point);
+               if (occupiedKey == null)
+                  continue;
+               hitUpdateRule.setHitLocation(sensorOrigin, point);
+               NormalOcTreeNode updatedLeaf = updateNodeInternal(occupiedKey, hitUpdateRule, null);
+               if (updatedLeavesToPack != null)
+                  updatedLeavesToPack.add(updatedLeaf);
+            }
          }
       }
 
       if (insertMiss)
       {
-         insertMissRays(sensorOrigin, pointCloud, occupiedCells, deletedLeavesToPack);
+         PackedOcTreeKeySet freeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet occupiedCells = new PackedOcTreeKeySet();
+         OcTreeDepthImageTools.computeUpdate(depthImage, freeCells, occupiedCells, boundingBox, minInsertRange, maxInsertRange, resolution, treeDepth);
+
+         missUpdateRule.setDeletedLeavesToUpdate(deletedLeavesToPack);
+         OcTreeKey freeKey = new OcTreeKey();
+
+         for (int i = 0; i < freeCells.size(); i++)
+         {
+            freeCells.get(i, freeKey);
+            updateNodeInternal(freeKey, missUpdateRule, missUpdateRule);
+         }
+      }
+   }
+
+   /**
+    * Starts a batch of lazy updates if enabled and none is in progress.
+    *
+    * @return whether a batch has been started, in which case {@link #finishLazyBatch()} has to be
+    *         called once the updates are done.
+    */
+   private boolean startLazyBatch()
+   {
+      if (!useLazyBatchUpdates || isLazyBatchInProgress || !OcTreeKeyTools.canPackKeys(treeDepth))
+         return false;
+
+      isLazyBatchInProgress = true;
+      lazilyUpdatedSubtrees.clear();
+      lastLazilyUpdatedSubtree = OcTreeKeyTools.INVALID_PACKED_KEY;
+      hitUpdateRule.setPerformLazyUpdate(true);
+      missUpdateRule.setPerformLazyUpdate(true);
+      return true;
+   }
+
+   /** Records the subtree containing the given cell, the consecutive cells of a ray mostly share the same subtree. */
+   private void addLazilyUpdatedCell(OcTreeKeyReadOnly key)
+   {
+      long subtree = OcTreeKeyTools.packKey(key.getKey(0) >> LAZY_BATCH_SUBTREE_LEVEL, key.getKey(1) >> LAZY_BATCH_SUBTREE_LEVEL,
+                                            key.getKey(2) >> LAZY_BATCH_SUBTREE_LEVEL);
+
+      if (subtree != lastLazilyUpdatedSubtree)
+      {
+         lazilyUpdatedSubtrees.add(subtree);
+         lastLazilyUpdatedSubtree = subtree;
       }
    }
 
-   private void insertMissRays(Point3DReadOnly sensorOrigin, PointCloud pointCloud, Set<OcTreeKey> occupiedCells, Set<OcTreeKey> deletedLeavesToPack)
+   /** Updates and prunes the inner nodes of the subtrees updated during the batch and above them. */
+   private void finishLazyBatch()
+   {
+      isLazyBatchInProgress = false;
+      hitUpdateRule.setPerformLazyUpdate(false);
+      missUpdateRule.setPerformLazyUpdate(false);
+
+      int numberOfSubtrees = lazilyUpdatedSubtrees.size();
+      if (lazilyUpdatedMortonCodes.length < numberOfSubtrees)
+         lazilyUpdatedMortonCodes = new long[Math.max(numberOfSubtrees, 2 * lazilyUpdatedMortonCodes.length)];
+      for (int i = 0; i < numberOfSubtrees; i++)
+         lazilyUpdatedMortonCodes[i] = OcTreeKeyTools.packedKeyToMortonCode(lazilyUpdatedSubtrees.get(i));
+      Arrays.sort(lazilyUpdatedMortonCodes, 0, numberOfSubtrees);
+
+      updateInnerNodes(lazilyUpdatedMortonCodes, numberOfSubtrees, treeDepth - LAZY_BATCH_SUBTREE_LEVEL, missUpdateRule);
+      lazilyUpdatedSubtrees.clear();
+   }
+
+   private void insertMissRays(Point3DReadOnly sensorOrigin, PointCloud pointCloud, int numberOfMissRays, Set<OcTreeKey> deletedLeavesToPack)
    {
       missUpdateRule.setDeletedLeavesToUpdate(deletedLeavesToPack);
 
-      Map<OcTreeKey, NormalOcTreeNode> keyToNodeMap = new HashMap<>();
-      forEach(node -> keyToNodeMap.put(node.getKeyCopy(), node));
-      Stream<? extends Point3DReadOnly> pointCloudStream = insertMissesInParallel ? pointCloud.parallelStream() : pointCloud.stream();
+      int[] rayIndices = missRayIndices;
+      IntStream rayIndexStream = IntStream.range(0, numberOfMissRays);
+      if (insertMissesInParallel)
+         rayIndexStream = rayIndexStream.parallel();
 
       List<List<Pair<OcTreeKey, Float>>> keysAndMissUpdates;
-      keysAndMissUpdates = pointCloudStream.map(scanPoint -> insertMissRay(sensorOrigin, scanPoint, occupiedCells, keyToNodeMap)).filter(list -> list != null)
-                                           .collect(Collectors.toList());
+      keysAndMissUpdates = rayIndexStream.mapToObj(i -> insertMissRay(sensorOrigin, pointCloud.getPoint(rayIndices[i]))).filter(list -> list != null)
+                                         .collect(Collectors.toList());
 
       for (List<Pair<OcTreeKey, Float>> list : keysAndMissUpdates)
       {
@@ -204,26 +595,18 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
          {
             missUpdateRule.setUpdateLogOdds(keyAndMissUpdate.getValue());
             updateNodeInternal(keyAndMissUpdate.getKey(), missUpdateRule, missUpdateRule);
+            if (isLazyBatchInProgress)
+               addLazilyUpdatedCell(keyAndMissUpdate.getKey());
          });
       }
    }
 
-   private List<Pair<OcTreeKey, Float>> insertMissRay(Point3DReadOnly sensorOrigin, Point3DReadOnly scanPoint, Set<OcTreeKey> occupiedCells,
-                                                      Map<OcTreeKey, NormalOcTreeNode> keyToNodeMap)
+   private List<Pair<OcTreeKey, Float>> insertMissRay(Point3DReadOnly sensorOrigin, Point3DReadOnly scanPoint)
    {
-      Vector3D direction = new Vector3D(scanPoint);
-      direction.sub(sensorOrigin);
-      double length = direction.length();
-
-      if (minInsertRange >= 0.0 && length < minInsertRange)
+      Point3D rayEnd = computeMissRayEnd(sensorOrigin, scanPoint);
+      if (rayEnd == null)
          return null;
 
-      Point3D rayEnd = new Point3D(scanPoint);
-      if (maxInsertRange > 0.0 && length > maxInsertRange)
-      { // user set a maxrange and length is above
-         rayEnd.scaleAdd(maxInsertRange / length, direction, sensorOrigin);
-      } // end if maxrange
-
       List<Pair<OcTreeKey, Float>> keysAndMissUpdates = new ArrayList<>();
 
       RayActionRule integrateMissActionRule = new RayActionRule()
@@ -231,7 +614,7 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
          @Override
          public void doAction(Point3DReadOnly rayOrigin, Point3DReadOnly rayEnd, Vector3DReadOnly rayDirection, OcTreeKeyReadOnly key)
          {
-            Pair<OcTreeKey, Float> keyAndMissUpdate = doRayActionOnFreeCell(rayOrigin, rayEnd, rayDirection, key, occupiedCells, keyToNodeMap);
+            Pair<OcTreeKey, Float> keyAndMissUpdate = doRayActionOnFreeCell(rayOrigin, rayEnd, rayDirection, key);
             if (keyAndMissUpdate != null)
                keysAndMissUpdates.add(keyAndMissUpdate);
          }
@@ -241,17 +624,39 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
       return keysAndMissUpdates;
    }
 
-   private Pair<OcTreeKey, Float> doRayActionOnFreeCell(Point3DReadOnly rayOrigin, Point3DReadOnly rayEnd, Vector3DReadOnly rayDirection, OcTreeKeyReadOnly key,
-                                                        Set<OcTreeKey> occupiedCells, Map<OcTreeKey, NormalOcTreeNode> keyToNodeMap)
+   /**
+    * @return the end of the miss ray cast towards the point, clipped to the maximum insert range, or
+    *         {@code null} if the point is closer than the minimum insert range.
+    */
+   private Point3D computeMissRayEnd(Point3DReadOnly sensorOrigin, Point3DReadOnly scanPoint)
    {
-      if (occupiedCells.contains(key))
+      Vector3D direction = new Vector3D(scanPoint);
+      direction.sub(sensorOrigin);
+      double length = direction.length();
+
+      if (minInsertRange >= 0.0 && length < minInsertRange)
+         return null;
+
+      Point3D rayEnd = new Point3D(scanPoint);
+      if (maxInsertRange > 0.0 && length > maxInsertRange)
+      { // user set a maxrange and length is above
+         rayEnd.scaleAdd(maxInsertRange / length, direction, sensorOrigin);
+      } // end if maxrange
+
+      return rayEnd;
+   }
+
+   private Pair<OcTreeKey, Float> doRayActionOnFreeCell(Point3DReadOnly rayOrigin, Point3DReadOnly rayEnd, Vector3DReadOnly rayDirection, OcTreeKeyReadOnly key)
+   {
+      if (isOccupiedCell(key))
          return null;
 
       float updateLogOdds = occupancyParameters.getMissProbabilityLogOdds();
 
       if (rayMissProbabilityUpdater != null)
       {
-         NormalOcTreeNode node = keyToNodeMap.get(key);
+         // The tree is only modified once all the rays have been traced, the lookup is safe from parallel streams.
+         NormalOcTreeNode node = search(key);
 
          if (node == null)
             return null;
@@ -280,6 +685,14 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
       updateNodesNormals(nodesToUpdate, normalEstimationParameters);
    }
 
+   /**
+    * Updates the normals of the given nodes and of the inner nodes.
+    * <p>
+    * When snapshots are enabled, the normals are written into the nodes of this tree at the keys and
+    * depths of the given nodes, which may belong to a published snapshot: only the paths from the root
+    * to these nodes are copied, see {@link #enableSnapshots(boolean)}.
+    * </p>
+    */
    public void updateNodesNormals(Collection<NormalOcTreeNode> nodesToUpdate, NormalEstimationParameters normalEstimationParameters)
    {
       if (reportTime)
@@ -288,6 +701,9 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
          stopWatch.start();
       }
 
+      if (isSnapshotsEnabled())
+         nodesToUpdate = getMutableNodes(nodesToUpdate);
+
       Stream<NormalOcTreeNode> nodeStream = computeNormalsInParallel ? nodesToUpdate.parallelStream() : nodesToUpdate.stream();
       nodeStream.forEach(node -> NormalEstimationTools.computeNodeNormalRansac(root, node, normalEstimationParameters));
 
@@ -302,13 +718,53 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
 
    public void clearNormals()
    {
+      detachFromSnapshots();
       List<NormalOcTreeNode> leafNodes = new ArrayList<>();
       forEach(leafNodes::add);
       leafNodes.stream().forEach(NormalOcTreeNode::resetNormal);
    }
 
+   /**
+    * Same as {@link #clearNormals()} with the subtrees below the parallel split depth cleared in
+    * parallel, see {@link #setParallelSplitDepth(int)}.
+    *
+    * @param pool the pool used to clear the normals, {@code null} to clear them sequentially.
+    */
+   public void clearNormals(ForkJoinPool pool)
+   {
+      detachFromSnapshots();
+      applyInParallel(pool, null, (node, depth) ->
+      {
+         if (!node.hasAtLeastOneChild())
+            node.resetNormal();
+         return 0;
+      });
+   }
+
+   /** The nodes are copied sequentially before their normals are possibly computed in parallel. */
+   private List<NormalOcTreeNode> getMutableNodes(Collection<NormalOcTreeNode> nodes)
+   {
+      List<NormalOcTreeNode> mutableNodes = new ArrayList<>(nodes.size());
+      OcTreeKey key = new OcTreeKey();
+
+      for (NormalOcTreeNode node : nodes)
+      {
+         node.getKey(key);
+         NormalOcTreeNode mutableNode = getMutableNode(key, node.getDepth());
+         // The node may have been pruned or deleted since it has been collected.
+         if (mutableNode != null)
+            mutableNodes.add(mutableNode);
+      }
+
+      return mutableNodes;
+   }
+
    private void updateInnerNormalsRecursive(NormalOcTreeNode node, int depth)
    {
+      // The subtrees of a published snapshot have not changed since their publication.
+      if (isSnapshotsEnabled() && node.isPublished())
+         return;
+
       // only recurse and update for inner nodes:
       if (node.hasAtLeastOneChild())
       {
@@ -381,6 +837,21 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
       insertMissesInParallel = enable;
    }
 
+   /**
+    * When enabled, the scans inserted with {@link #insertScan(Scan, boolean, Set, Set)} and
+    * {@link #insertScanCollection(ScanCollection, boolean, Set, Set)} update the leaves without
+    * updating their ancestors after each update. The inner nodes above the updated leaves are updated
+    * and pruned in a single pass at the end of the insertion, each once instead of once per update
+    * below them. The leaves cleared by the misses are still deleted right away. Not available for a
+    * tree deeper than {@link OcTreeKeyTools#MAX_PACKED_KEY_TREE_DEPTH}.
+    *
+    * @param enable whether to update the inner nodes once per insertion or after each update.
+    */
+   public void enableLazyBatchUpdates(boolean enable)
+   {
+      useLazyBatchUpdates = enable;
+   }
+
    /**
     * Set a custom updater to compute the probability of a miss when a node is traversed by a ray.
     *
@@ -535,4 +1006,57 @@ public class NormalOcTree extends AbstractOcTreeBase<NormalOcTreeNode>
          return parameters.getMissProbability();
       }
    }
+
+   /**
+    * The cells to update for a scan collection, see
+    * {@link NormalOcTree#computeCellsToUpdate(ScanCollection, boolean, CellsToUpdate)}. The hits and
+    * misses are kept in the order in which the insertion of the scans updates them.
+    */
+   public static class CellsToUpdate
+   {
+      private ScanCollection scanCollection;
+      private boolean insertMiss;
+      /** Whether the misses could not be computed ahead, the scans are then inserted as they are. */
+      private boolean insertScans;
+
+      private final OcTreeKeyList hitKeys = new OcTreeKeyList();
+      private int[] hitPointIndices = new int[0];
+      private final OcTreeKeyList missKeys = new OcTreeKeyList();
+      /** For each scan, the index after its last hit and after its last miss. */
+      private int[] scanHitEnds = new int[0];
+      private int[] scanMissEnds = new int[0];
+      private int numberOfScans = 0;
+
+      private final PackedOcTreeKeySet scanOccupiedCells = new PackedOcTreeKeySet();
+      private OcTreeKeySet unpackedScanOccupiedCells;
+      private int[] scanMissRayIndices = new int[0];
+      private final OcTreeKey key = new OcTreeKey();
+      private final Vector3D direction = new Vector3D();
+
+      private void clear()
+      {
+         scanCollection = null;
+         hitKeys.clear();
+         missKeys.clear();
+         numberOfScans = 0;
+      }
+
+      private boolean isScanOccupiedCell(OcTreeKeyReadOnly key, boolean packKeys)
+      {
+         return packKeys ? scanOccupiedCells.contains(key) : unpackedScanOccupiedCells.contains(key);
+      }
+
+      private void finishScan()
+      {
+         if (scanHitEnds.length == numberOfScans)
+         {
+            scanHitEnds = Arrays.copyOf(scanHitEnds, Math.max(1, 2 * numberOfScans));
+            scanMissEnds = Arrays.copyOf(scanMissEnds, scanHitEnds.length);
+         }
+
+         scanHitEnds[numberOfScans] = hitKeys.size();
+         scanMissEnds[numberOfScans] = missKeys.size();
+         numberOfScans++;
+      }
+   }
 }
@@ -0,0 +1,98 @@
+package us.ihmc.jOctoMap.ocTree;
+
+import java.util.Iterator;
+
+import us.ihmc.euclid.tuple3D.interfaces.Point3DReadOnly;
+import us.ihmc.jOctoMap.iterators.OcTreeIterable;
+import us.ihmc.jOctoMap.iterators.OcTreeIteratorFactory;
+import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
+import us.ihmc.jOctoMap.node.baseImplementation.AbstractOcTreeNode;
+import us.ihmc.jOctoMap.ocTree.baseImplementation.AbstractOcTreeBase;
+import us.ihmc.jOctoMap.tools.OcTreeSearchTools;
+
+/**
+ * Immutable state of an octree, as published by {@link AbstractOcTreeBase#publishSnapshot()}.
+ * <p>
+ * The nodes of a snapshot are never modified by the tree afterwards: the tree copies the nodes it
+ * updates, and the unchanged subtrees are shared between the successive snapshots and the tree. A
+ * snapshot can thus be read from any thread without locking while the tree is being updated. The
+ * nodes must not be modified by the readers.
+ * </p>
+ */
+public class OcTreeSnapshot<NODE extends AbstractOcTreeNode<NODE>> implements Iterable<NODE>
+{
+   private final NODE root;
+   private final int numberOfNodes;
+   private final double resolution;
+   private final int treeDepth;
+   private final long version;
+
+   public OcTreeSnapshot(NODE root, int numberOfNodes, double resolution, int treeDepth, long version)
+   {
+      this.root = root;
+      this.numberOfNodes = numberOfNodes;
+      this.resolution = resolution;
+      this.treeDepth = treeDepth;
+      this.version = version;
+   }
+
+   /** @return the root of the snapshot, null if the tree was empty. */
+   public NODE getRoot()
+   {
+      return root;
+   }
+
+   /** @return the number of nodes of the snapshot. */
+   public int size()
+   {
+      return numberOfNodes;
+   }
+
+   public double getResolution()
+   {
+      return resolution;
+   }
+
+   public int getTreeDepth()
+   {
+      return treeDepth;
+   }
+
+   /** @return the number of snapshots the tree had published up to this one, starting at 1. */
+   public long getVersion()
+   {
+      return version;
+   }
+
+   public NODE search(Point3DReadOnly coord)
+   {
+      return OcTreeSearchTools.search(root, coord, resolution, treeDepth);
+   }
+
+   public NODE search(Point3DReadOnly coord, int depth)
+   {
+      return OcTreeSearchTools.search(root, coord, depth, resolution, treeDepth);
+   }
+
+   public NODE search(OcTreeKeyReadOnly key)
+   {
+      return OcTreeSearchTools.search(root, key, treeDepth);
+   }
+
+   public NODE search(OcTreeKeyReadOnly key, int depth)
+   {
+      return OcTreeSearchTools.search(root, key, depth, treeDepth);
+   }
+
+   /** @return an iterable over all the nodes of the snapshot, inner nodes included. */
+   public OcTreeIterable<NODE> createIterable()
+   {
+      return OcTreeIteratorFactory.createIterable(root);
+   }
+
+   @Override
+   public Iterator<NODE> iterator()
+   {
+      return OcTreeIteratorFactory.createLeafIterable(root).iterator();
+   }
+}
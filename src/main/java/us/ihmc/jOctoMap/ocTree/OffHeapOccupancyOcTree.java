@@ -0,0 +1,936 @@
+package us.ihmc.jOctoMap.ocTree;
+
+import static us.ihmc.jOctoMap.node.pool.OcTreeNodeStorage.NULL_HANDLE;
+
+import java.util.function.Consumer;
+
+import us.ihmc.euclid.tuple3D.interfaces.Point3DReadOnly;
+import us.ihmc.jOctoMap.boundingBox.OcTreeBoundingBoxInterface;
+import us.ihmc.jOctoMap.key.OcTreeKey;
+import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeySet;
+import us.ihmc.jOctoMap.node.pool.DenseBrickStorage;
+import us.ihmc.jOctoMap.node.pool.DirectOcTreeNodeStorage;
+import us.ihmc.jOctoMap.node.pool.HeapOcTreeNodeStorage;
+import us.ihmc.jOctoMap.node.pool.OcTreeNodeCursor;
+import us.ihmc.jOctoMap.node.pool.OcTreeNodeStorage;
+import us.ihmc.jOctoMap.occupancy.OccupancyParameters;
+import us.ihmc.jOctoMap.occupancy.OccupancyParametersReadOnly;
+import us.ihmc.jOctoMap.pointCloud.PointCloud;
+import us.ihmc.jOctoMap.tools.JOctoMapTools;
+import us.ihmc.jOctoMap.tools.OcTreeKeyConversionTools;
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
+import us.ihmc.jOctoMap.tools.OcTreeRayTools;
+import us.ihmc.jOctoMap.tools.OccupancyTools;
+
+/**
+ * Occupancy octree which nodes are stored in an {@link OcTreeNodeStorage} instead of being
+ * individual objects, by default a {@link DirectOcTreeNodeStorage} which memory lives outside of the
+ * Java heap. The garbage collector does not see the nodes such that its pauses do not grow with the
+ * size of the map, and {@link #clear()} releases the whole map at once.
+ * <p>
+ * This is an occupancy-only tree and not a subclass of
+ * {@link us.ihmc.jOctoMap.ocTree.baseImplementation.AbstractOccupancyOcTree}, which API hands out
+ * node objects. It covers the point cloud insertion, node updates, search, iteration over the
+ * leaves, and pruning of {@link OccupancyOcTree}.
+ * </p>
+ * <p>
+ * This tree follows the same update semantics as {@link OccupancyOcTree}: the log-odds of updated
+ * leaves are clamped, inner nodes hold the maximum log-odds of their children, and 8 leaves sharing
+ * the same value are pruned into their parent. Nodes are accessed through a reusable
+ * {@link OcTreeNodeCursor} such that updates, queries, and iterations do not create garbage.
+ * </p>
+ * <p>
+ * When dense bricks are enabled, see {@link #enableDenseBricks(boolean)}, the bottom 3 levels of
+ * well-filled regions are replaced with bricks of 8x8x8 voxels stored contiguously in a
+ * {@link DenseBrickStorage}. A node 3 levels above the leaves is promoted to a brick once the
+ * fraction of its known voxels reaches {@link #setDenseBrickPromotionFillRatio(double)}, and a brick
+ * is demoted back to a single pruned node when all its voxels share the same log-odds. The bricks
+ * are kept on the heap.
+ * </p>
+ */
+public class OffHeapOccupancyOcTree
+{
+   private static final int MAX_TREE_DEPTH = OcTreeKeyTools.MAX_PACKED_KEY_TREE_DEPTH;
+
+   private final OcTreeNodeStorage storage;
+   private final int treeDepth;
+   private final double resolution;
+
+   private int root = NULL_HANDLE;
+   private int treeSize = 0;
+
+   private final DenseBrickStorage bricks = new DenseBrickStorage();
+   private boolean useDenseBricks = false;
+   private double brickPromotionFillRatio = 0.5;
+   /** Depth of the nodes that can own a brick. */
+   private final int brickDepth;
+
+   private final OccupancyParameters occupancyParameters = new OccupancyParameters();
+   /** Used to filter out points reducing the region of the OcTree to update. */
+   private OcTreeBoundingBoxInterface boundingBox;
+   private double minInsertRange = -1.0;
+   private double maxInsertRange = -1.0;
+   private boolean discretizePointCloud = false;
+
+   private final PackedOcTreeKeySet freeCells = new PackedOcTreeKeySet(1024);
+   private final PackedOcTreeKeySet occupiedCells = new PackedOcTreeKeySet(1024);
+
+   // Buffers used to walk the tree without recursion.
+   private final int[] pathNodes;
+   private final int[] pathChildIndices;
+   private final OcTreeKey keyBuffer = new OcTreeKey();
+
+   public OffHeapOccupancyOcTree(double resolution)
+   {
+      this(resolution, 16);
+   }
+
+   public OffHeapOccupancyOcTree(double resolution, int treeDepth)
+   {
+      this(resolution, treeDepth, new DirectOcTreeNodeStorage());
+   }
+
+   /**
+    * @param storage the storage of the nodes, for instance a {@link HeapOcTreeNodeStorage} to keep
+    *                the nodes on the heap.
+    */
+   public OffHeapOccupancyOcTree(double resolution, int treeDepth, OcTreeNodeStorage storage)
+   {
+      if (treeDepth > MAX_TREE_DEPTH)
+         throw new RuntimeException("Cannot create a tree with a depth greater than: " + MAX_TREE_DEPTH);
+      if (storage.getNumberOfNodes() != 0)
+         throw new RuntimeException("The given storage is already in use.");
+
+      this.resolution = resolution;
+      this.treeDepth = treeDepth;
+      this.storage = storage;
+
+      pathNodes = new int[treeDepth + 1];
+      pathChildIndices = new int[treeDepth + 1];
+      brickDepth = treeDepth - 3;
+   }
+
+   public OcTreeNodeStorage getStorage()
+   {
+      return storage;
+   }
+
+   public double getResolution()
+   {
+      return resolution;
+   }
+
+   public int getTreeDepth()
+   {
+      return treeDepth;
+   }
+
+   /** @return the handle of the root node, {@link OcTreeNodeStorage#NULL_HANDLE} for an empty tree. */
+   public int getRoot()
+   {
+      return root;
+   }
+
+   /**
+    * Enables the dense storage of the bottom 3 levels of the tree for well-filled regions. When
+    * disabling, the existing bricks are converted back to nodes.
+    * <p>
+    * Dense bricks are only available for trees with a depth of at least 4.
+    * </p>
+    */
+   public void enableDenseBricks(boolean enable)
+   {
+      if (enable == useDenseBricks)
+         return;
+
+      if (enable)
+      {
+         if (brickDepth < 1)
+            throw new RuntimeException("Dense bricks require a tree depth of at least 4, was: " + treeDepth);
+      }
+      else if (root != NULL_HANDLE)
+      {
+         demoteAllBricksRecursively(root, 0);
+      }
+
+      useDenseBricks = enable;
+   }
+
+   public boolean isUsingDenseBricks()
+   {
+      return useDenseBricks;
+   }
+
+   /**
+    * Sets the fraction, in [0, 1], of known voxels from which the bottom 3 levels of a region are
+    * converted into a dense brick (default: 0.5).
+    */
+   public void setDenseBrickPromotionFillRatio(double fillRatio)
+   {
+      if (fillRatio < 0.0 || fillRatio > 1.0)
+         throw new RuntimeException("The fill ratio should be in [0, 1], was: " + fillRatio);
+      brickPromotionFillRatio = fillRatio;
+   }
+
+   public DenseBrickStorage getDenseBrickStorage()
+   {
+      return bricks;
+   }
+
+   public void setOccupancyParameters(OccupancyParameters occupancyParameters)
+   {
+      this.occupancyParameters.set(occupancyParameters);
+   }
+
+   public OccupancyParametersReadOnly getOccupancyParameters()
+   {
+      return occupancyParameters;
+   }
+
+   public void setBoundingBox(OcTreeBoundingBoxInterface boundingBox)
+   {
+      this.boundingBox = boundingBox;
+   }
+
+   public OcTreeBoundingBoxInterface getBoundingBox()
+   {
+      return boundingBox;
+   }
+
+   public void disableBoundingBox()
+   {
+      boundingBox = null;
+   }
+
+   /**
+    * Minimum and maximum range for how long individual beams are inserted (default -1: complete beam)
+    * when inserting a point cloud
+    */
+   public void setBoundsInsertRange(double minRange, double maxRange)
+   {
+      minInsertRange = minRange;
+      maxInsertRange = maxRange;
+   }
+
+   /**
+    * Discretize whether a scan to insert is discretized first into octree key cells (default: false).
+    */
+   public void enableDiscretizePointCloud(boolean enable)
+   {
+      discretizePointCloud = enable;
+   }
+
+   public boolean isNodeOccupied(OcTreeNodeCursor cursor)
+   {
+      return OccupancyTools.isLogOddsOccupied(occupancyParameters, cursor.getLogOdds());
+   }
+
+   public boolean isNodeOccupied(int node)
+   {
+      return OccupancyTools.isLogOddsOccupied(occupancyParameters, storage.getLogOdds(node));
+   }
+
+   /**
+    * Integrate a Pointcloud (in global reference frame). Each voxel in the map is updated only once,
+    * and occupied nodes have a preference over free ones.
+    *
+    * @param scan         Pointcloud (measurement endpoints), in global reference frame
+    * @param sensorOrigin measurement origin in global reference frame
+    */
+   public void insertPointCloud(PointCloud scan, Point3DReadOnly sensorOrigin)
+   {
+      freeCells.clear();
+      occupiedCells.clear();
+
+      if (discretizePointCloud)
+         OcTreeRayTools.computeDiscreteUpdate(sensorOrigin, scan, freeCells, occupiedCells, boundingBox, minInsertRange, maxInsertRange, resolution, treeDepth);
+      else
+         OcTreeRayTools.computeUpdate(sensorOrigin, scan, freeCells, occupiedCells, boundingBox, minInsertRange, maxInsertRange, resolution, treeDepth);
+
+      float hitLogOdds = occupancyParameters.getUpdateLogOdds(true);
+      float missLogOdds = occupancyParameters.getUpdateLogOdds(false);
+
+      for (int i = 0; i < occupiedCells.size(); i++)
+      {
+         long key = occupiedCells.get(i);
+         updateNode(OcTreeKeyTools.unpackKey0(key), OcTreeKeyTools.unpackKey1(key), OcTreeKeyTools.unpackKey2(key), hitLogOdds, false);
+      }
+
+      for (int i = 0; i < freeCells.size(); i++)
+      {
+         long key = freeCells.get(i);
+         updateNode(OcTreeKeyTools.unpackKey0(key), OcTreeKeyTools.unpackKey1(key), OcTreeKeyTools.unpackKey2(key), missLogOdds, false);
+      }
+   }
+
+   /**
+    * Integrate occupancy measurement.
+    *
+    * @return the log-odds of the updated voxel, or {@code Float.NaN} if the coordinate is outside the
+    *         tree.
+    */
+   public float updateNode(double x, double y, double z, boolean occupied)
+   {
+      if (!OcTreeKeyConversionTools.coordinateToKey(x, y, z, treeDepth, resolution, treeDepth, keyBuffer))
+         return Float.NaN;
+      return updateNode(keyBuffer, occupied);
+   }
+
+   public float updateNode(Point3DReadOnly coordinate, boolean occupied)
+   {
+      return updateNode(coordinate.getX(), coordinate.getY(), coordinate.getZ(), occupied);
+   }
+
+   public float updateNode(OcTreeKeyReadOnly key, boolean occupied)
+   {
+      return updateNode(key, occupancyParameters.getUpdateLogOdds(occupied));
+   }
+
+   /**
+    * Manipulate log_odds value of a voxel by changing it by logOddsUpdate (relative). This only works
+    * if key is at the lowest octree level
+    *
+    * @param key           OcTreeKey of the voxel that is to be updated
+    * @param logOddsUpdate value to be added (+) to log_odds value of node
+    * @return the log-odds of the updated voxel.
+    */
+   public float updateNode(OcTreeKeyReadOnly key, float logOddsUpdate)
+   {
+      return updateNode(key.getKey(0), key.getKey(1), key.getKey(2), logOddsUpdate, false);
+   }
+
+   /**
+    * Set log_odds value of voxel to logOddsValue. This only works if key is at the lowest octree level
+    *
+    * @return the log-odds of the updated voxel.
+    */
+   public float setNodeValue(OcTreeKeyReadOnly key, float logOddsValue)
+   {
+      return updateNode(key.getKey(0), key.getKey(1), key.getKey(2), logOddsValue, true);
+   }
+
+   private float updateNode(int k0, int k1, int k2, float value, boolean setValue)
+   {
+      boolean nodeJustCreated = false;
+
+      if (root == NULL_HANDLE)
+      {
+         root = storage.createNode();
+         treeSize++;
+         nodeJustCreated = true;
+      }
+      else if (!setValue)
+      {
+         // early abort (no change will happen): node already at threshold
+         int leaf = search(k0, k1, k2, treeDepth);
+
+         if (leaf != NULL_HANDLE && !bricks.isBrickOwner(leaf))
+         {
+            float leafLogOdds = storage.getLogOdds(leaf);
+            if (value >= 0.0f && leafLogOdds >= occupancyParameters.getMaxLogOdds())
+               return leafLogOdds;
+            if (value <= 0.0f && leafLogOdds <= occupancyParameters.getMinLogOdds())
+               return leafLogOdds;
+         }
+      }
+
+      int node = root;
+
+      // follow down to last level
+      for (int depth = 0; depth < treeDepth; depth++)
+      {
+         if (useDenseBricks && depth == brickDepth)
+         {
+            // A pruned node at this depth is completely known, it is worth a brick.
+            if (!nodeJustCreated && !bricks.isBrickOwner(node) && !storage.hasAtLeastOneChild(node))
+               promoteToBrick(node);
+            if (bricks.isBrickOwner(node))
+               return updateBrickVoxel(node, k0, k1, k2, value, setValue);
+         }
+
+         int childIndex = OcTreeKeyTools.computeChildIndex(k0, k1, k2, depth, treeDepth);
+         int child = storage.getChild(node, childIndex);
+         boolean createdNode = false;
+
+         if (child == NULL_HANDLE)
+         {
+            // child does not exist, but maybe it's a pruned node?
+            if (!nodeJustCreated && !storage.hasAtLeastOneChild(node))
+            {
+               expandNode(node);
+               child = storage.getChild(node, childIndex);
+            }
+            else
+            {
+               child = createNodeChild(node, childIndex);
+               createdNode = true;
+            }
+         }
+
+         pathNodes[depth] = node;
+         pathChildIndices[depth] = childIndex;
+         node = child;
+         nodeJustCreated = createdNode;
+      }
+
+      float newLogOdds = setValue ? value : storage.getLogOdds(node) + value;
+      newLogOdds = OccupancyTools.clipLogOddsToMinMax(occupancyParameters, newLogOdds);
+      storage.setLogOdds(node, newLogOdds);
+
+      // fix the inner nodes on the way back up
+      for (int depth = treeDepth - 1; depth >= 0; depth--)
+      {
+         int parent = pathNodes[depth];
+         storage.setLogOdds(parent, computeMaxChildLogOdds(parent));
+         if (pruneNode(parent))
+            continue;
+
+         // A new voxel is known, the region may now be dense enough.
+         if (useDenseBricks && depth == brickDepth && nodeJustCreated)
+         {
+            int numberOfKnownVoxels = computeNumberOfKnownVoxels(parent, depth);
+            if (numberOfKnownVoxels >= brickPromotionFillRatio * DenseBrickStorage.NUMBER_OF_VOXELS)
+               promoteToBrick(parent);
+         }
+      }
+
+      return newLogOdds;
+   }
+
+   private float updateBrickVoxel(int node, int k0, int k1, int k2, float value, boolean setValue)
+   {
+      int brick = bricks.getBrick(node);
+      int voxel = DenseBrickStorage.computeVoxelIndex(k0, k1, k2);
+      float oldLogOdds = bricks.getLogOdds(brick, voxel);
+
+      float newLogOdds;
+      if (setValue)
+         newLogOdds = value;
+      else
+         newLogOdds = Float.isNaN(oldLogOdds) ? value : oldLogOdds + value;
+      newLogOdds = OccupancyTools.clipLogOddsToMinMax(occupancyParameters, newLogOdds);
+
+      // early abort (no change will happen)
+      if (newLogOdds == oldLogOdds)
+         return newLogOdds;
+
+      bricks.setLogOdds(brick, voxel, newLogOdds);
+
+      float nodeLogOdds = storage.getLogOdds(node);
+      if (newLogOdds >= nodeLogOdds)
+         storage.setLogOdds(node, newLogOdds);
+      else if (oldLogOdds == nodeLogOdds)
+         storage.setLogOdds(node, bricks.computeMaxLogOdds(brick));
+
+      if (bricks.isUniform(brick, 1.0e-7))
+         bricks.deleteBrick(node); // The node is now a pruned leaf holding the value of all the voxels.
+
+      // fix the inner nodes on the way back up
+      for (int depth = brickDepth - 1; depth >= 0; depth--)
+      {
+         int parent = pathNodes[depth];
+         storage.setLogOdds(parent, computeMaxChildLogOdds(parent));
+         pruneNode(parent);
+      }
+
+      return newLogOdds;
+   }
+
+   /**
+    * Search a node at the lowest level given an addressing key. The cursor is set to null if the node
+    * is in unknown space.
+    *
+    * @return whether the node was found.
+    */
+   public boolean search(OcTreeKeyReadOnly key, OcTreeNodeCursor cursorToPack)
+   {
+      return search(key, 0, cursorToPack);
+   }
+
+   public boolean search(Point3DReadOnly coordinate, OcTreeNodeCursor cursorToPack)
+   {
+      if (!OcTreeKeyConversionTools.coordinateToKey(coordinate, resolution, treeDepth, keyBuffer))
+      {
+         cursorToPack.setToNull();
+         return false;
+      }
+      return search(keyBuffer, 0, cursorToPack);
+   }
+
+   /**
+    * Search a node at specified depth given an addressing key (depth=0: search full tree depth). The
+    * cursor is set to null if the node is in unknown space.
+    * <p>
+    * A search in a dense brick at a depth between the brick and the leaves gives the node owning the
+    * brick.
+    * </p>
+    *
+    * @return whether the node was found.
+    */
+   public boolean search(OcTreeKeyReadOnly key, int depth, OcTreeNodeCursor cursorToPack)
+   {
+      JOctoMapTools.checkIfDepthValid(depth, treeDepth);
+
+      if (depth == 0)
+         depth = treeDepth;
+
+      int k0 = OcTreeKeyTools.adjustKeyAtDepth(key.getKey(0), depth, treeDepth);
+      int k1 = OcTreeKeyTools.adjustKeyAtDepth(key.getKey(1), depth, treeDepth);
+      int k2 = OcTreeKeyTools.adjustKeyAtDepth(key.getKey(2), depth, treeDepth);
+
+      int node = root;
+      int nodeDepth = 0;
+
+      if (node != NULL_HANDLE)
+      {
+         for (; nodeDepth < depth; nodeDepth++)
+         {
+            int child = storage.getChild(node, OcTreeKeyTools.computeChildIndex(k0, k1, k2, nodeDepth, treeDepth));
+
+            if (child != NULL_HANDLE)
+               node = child;
+            else if (!storage.hasAtLeastOneChild(node))
+               break;
+            else
+            {
+               node = NULL_HANDLE;
+               break;
+            }
+         }
+      }
+
+      if (node == NULL_HANDLE)
+      {
+         cursorToPack.setToNull();
+         return false;
+      }
+
+      if (depth == treeDepth && bricks.isBrickOwner(node))
+      {
+         if (Float.isNaN(bricks.getLogOdds(bricks.getBrick(node), DenseBrickStorage.computeVoxelIndex(k0, k1, k2))))
+         {
+            cursorToPack.setToNull();
+            return false;
+         }
+
+         cursorToPack.setToBrickVoxel(bricks, node, k0, k1, k2, resolution, treeDepth);
+         return true;
+      }
+
+      k0 = OcTreeKeyTools.adjustKeyAtDepth(k0, nodeDepth, treeDepth);
+      k1 = OcTreeKeyTools.adjustKeyAtDepth(k1, nodeDepth, treeDepth);
+      k2 = OcTreeKeyTools.adjustKeyAtDepth(k2, nodeDepth, treeDepth);
+      cursorToPack.set(storage, node, k0, k1, k2, nodeDepth, resolution, treeDepth);
+      return true;
+   }
+
+   private int search(int k0, int k1, int k2, int depth)
+   {
+      int node = root;
+
+      for (int currentDepth = 0; currentDepth < depth; currentDepth++)
+      {
+         int child = storage.getChild(node, OcTreeKeyTools.computeChildIndex(k0, k1, k2, currentDepth, treeDepth));
+
+         if (child != NULL_HANDLE)
+            node = child;
+         else if (!storage.hasAtLeastOneChild(node))
+            return node;
+         else
+            return NULL_HANDLE;
+      }
+      return node;
+   }
+
+   /**
+    * Calls the given action on every leaf of the tree. The same cursor instance is given for all the
+    * leaves and it should not be held on to.
+    */
+   public void forEachLeaf(Consumer<OcTreeNodeCursor> action)
+   {
+      forEachLeaf(new OcTreeNodeCursor(), action);
+   }
+
+   public void forEachLeaf(OcTreeNodeCursor cursor, Consumer<OcTreeNodeCursor> action)
+   {
+      if (root == NULL_HANDLE)
+         return;
+
+      // Not using the fields so the action can safely update the tree.
+      int[] stackNodes = new int[treeDepth + 1];
+      int[] stackChildIndices = new int[treeDepth + 1];
+      OcTreeKey[] stackKeys = new OcTreeKey[treeDepth + 1];
+      for (int depth = 0; depth <= treeDepth; depth++)
+         stackKeys[depth] = new OcTreeKey();
+
+      OcTreeKeyTools.getRootKey(treeDepth, stackKeys[0]);
+      stackNodes[0] = root;
+      stackChildIndices[0] = -1;
+      int depth = 0;
+
+      while (depth >= 0)
+      {
+         int node = stackNodes[depth];
+
+         if (stackChildIndices[depth] == -1 && !storage.hasAtLeastOneChild(node))
+         {
+            OcTreeKeyReadOnly key = stackKeys[depth];
+            if (bricks.isBrickOwner(node))
+               forEachBrickVoxel(node, key, cursor, action);
+            else
+            {
+               cursor.set(storage, node, key.getKey(0), key.getKey(1), key.getKey(2), depth, resolution, treeDepth);
+               action.accept(cursor);
+            }
+            depth--;
+            continue;
+         }
+
+         int childIndex = stackChildIndices[depth] + 1;
+         int child = NULL_HANDLE;
+         for (; childIndex < 8; childIndex++)
+         {
+            child = storage.getChild(node, childIndex);
+            if (child != NULL_HANDLE)
+               break;
+         }
+
+         if (childIndex == 8)
+         {
+            depth--;
+            continue;
+         }
+
+         stackChildIndices[depth] = childIndex;
+         OcTreeKeyTools.computeChildKey(childIndex, stackKeys[depth], stackKeys[depth + 1], depth + 1, treeDepth);
+         depth++;
+         stackNodes[depth] = child;
+         stackChildIndices[depth] = -1;
+      }
+   }
+
+   private void forEachBrickVoxel(int node, OcTreeKeyReadOnly nodeKey, OcTreeNodeCursor cursor, Consumer<OcTreeNodeCursor> action)
+   {
+      int brick = bricks.getBrick(node);
+      int k0 = nodeKey.getKey(0) & ~7;
+      int k1 = nodeKey.getKey(1) & ~7;
+      int k2 = nodeKey.getKey(2) & ~7;
+
+      for (int voxel = 0; voxel < DenseBrickStorage.NUMBER_OF_VOXELS; voxel++)
+      {
+         if (Float.isNaN(bricks.getLogOdds(brick, voxel)))
+            continue;
+
+         cursor.setToBrickVoxel(bricks, node, k0 | voxel & 7, k1 | voxel >> 3 & 7, k2 | voxel >> 6, resolution, treeDepth);
+         action.accept(cursor);
+      }
+   }
+
+   /**
+    * Updates the occupancy of all inner nodes to reflect their children's occupancy.
+    */
+   public void updateInnerOccupancy()
+   {
+      if (root != NULL_HANDLE)
+         updateInnerOccupancyRecursively(root, 0);
+   }
+
+   /**
+    * Lossless compression of the octree: A node will replace all of its eight children if they have
+    * identical values. You usually don't have to call prune() after a regular occupancy update,
+    * updateNode() incrementally prunes all affected nodes.
+    */
+   public void prune()
+   {
+      if (root == NULL_HANDLE || !storage.hasAtLeastOneChild(root))
+         return;
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         int child = storage.getChild(root, childIndex);
+         if (child != NULL_HANDLE)
+            pruneRecursively(child, 1);
+      }
+   }
+
+   /// Deletes the complete tree structure
+   public void clear()
+   {
+      storage.clear();
+      bricks.clear();
+      root = NULL_HANDLE;
+      treeSize = 0;
+   }
+
+   /// \return The number of nodes in the tree, the voxels of dense bricks are not included
+   public int size()
+   {
+      return treeSize;
+   }
+
+   /// Traverses the tree to calculate the total number of leaf nodes
+   public int getNumberOfLeafNodes()
+   {
+      if (root == NULL_HANDLE)
+         return 0;
+      else
+         return computeNumberOfLeafDescendants(root);
+   }
+
+   private int createNodeChild(int node, int childIndex)
+   {
+      if (!storage.hasArrayForChildren(node))
+         storage.allocateChildren(node);
+
+      int child = storage.createNode();
+      storage.setChild(node, childIndex, child);
+      treeSize++;
+      return child;
+   }
+
+   private void expandNode(int node)
+   {
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         int child = createNodeChild(node, childIndex);
+         storage.copyData(node, child);
+      }
+   }
+
+   private boolean pruneNode(int node)
+   {
+      if (!isNodeCollapsible(node))
+         return false;
+
+      storage.copyData(storage.getChild(node, 0), node);
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+         storage.deleteNode(storage.getChild(node, childIndex));
+      storage.removeChildren(node);
+      treeSize -= 8;
+      return true;
+   }
+
+   private boolean isNodeCollapsible(int node)
+   {
+      if (!storage.hasArrayForChildren(node))
+         return false;
+
+      int firstChild = storage.getChild(node, 0);
+      if (firstChild == NULL_HANDLE || storage.hasAtLeastOneChild(firstChild) || bricks.isBrickOwner(firstChild))
+         return false;
+
+      float firstLogOdds = storage.getLogOdds(firstChild);
+
+      for (int childIndex = 1; childIndex < 8; childIndex++)
+      {
+         int child = storage.getChild(node, childIndex);
+
+         if (child == NULL_HANDLE || storage.hasAtLeastOneChild(child) || bricks.isBrickOwner(child))
+            return false;
+         if (Math.abs(storage.getLogOdds(child) - firstLogOdds) > 1.0e-7)
+            return false;
+      }
+
+      return true;
+   }
+
+   private float computeMaxChildLogOdds(int node)
+   {
+      float maxLogOdds = Float.NEGATIVE_INFINITY;
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         int child = storage.getChild(node, childIndex);
+         if (child != NULL_HANDLE)
+            maxLogOdds = Math.max(maxLogOdds, storage.getLogOdds(child));
+      }
+
+      return maxLogOdds;
+   }
+
+   private void updateInnerOccupancyRecursively(int node, int depth)
+   {
+      if (!storage.hasAtLeastOneChild(node))
+         return;
+
+      if (depth < treeDepth)
+      {
+         for (int childIndex = 0; childIndex < 8; childIndex++)
+         {
+            int child = storage.getChild(node, childIndex);
+            if (child != NULL_HANDLE)
+               updateInnerOccupancyRecursively(child, depth + 1);
+         }
+      }
+      storage.setLogOdds(node, computeMaxChildLogOdds(node));
+   }
+
+   private void pruneRecursively(int node, int depth)
+   {
+      if (!storage.hasAtLeastOneChild(node))
+         return;
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         int child = storage.getChild(node, childIndex);
+         if (child != NULL_HANDLE)
+            pruneRecursively(child, depth + 1);
+      }
+
+      pruneNode(node);
+   }
+
+   private int computeNumberOfLeafDescendants(int node)
+   {
+      if (bricks.isBrickOwner(node))
+         return bricks.getNumberOfKnownVoxels(bricks.getBrick(node));
+      if (!storage.hasAtLeastOneChild(node))
+         return 1;
+
+      int numberOfLeaves = 0;
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         int child = storage.getChild(node, childIndex);
+         if (child != NULL_HANDLE)
+            numberOfLeaves += computeNumberOfLeafDescendants(child);
+      }
+
+      return numberOfLeaves;
+   }
+
+   private int computeNumberOfKnownVoxels(int node, int depth)
+   {
+      if (!storage.hasAtLeastOneChild(node))
+         return 1 << 3 * (treeDepth - depth);
+
+      int numberOfKnownVoxels = 0;
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         int child = storage.getChild(node, childIndex);
+         if (child != NULL_HANDLE)
+            numberOfKnownVoxels += computeNumberOfKnownVoxels(child, depth + 1);
+      }
+
+      return numberOfKnownVoxels;
+   }
+
+   /**
+    * Replaces the descendants of the given node with a dense brick, the node has to be at the brick
+    * depth.
+    */
+   private void promoteToBrick(int node)
+   {
+      int brick = bricks.createBrick(node);
+      fillBrickRecursively(brick, node, brickDepth, 0, 0, 0);
+
+      if (storage.hasArrayForChildren(node))
+      {
+         for (int childIndex = 0; childIndex < 8; childIndex++)
+         {
+            int child = storage.getChild(node, childIndex);
+            if (child != NULL_HANDLE)
+               deleteNodeRecursively(child);
+         }
+         storage.removeChildren(node);
+      }
+   }
+
+   private void fillBrickRecursively(int brick, int node, int depth, int x, int y, int z)
+   {
+      int cubeSize = 1 << treeDepth - depth;
+
+      if (!storage.hasAtLeastOneChild(node))
+      {
+         bricks.fillCube(brick, x, y, z, cubeSize, storage.getLogOdds(node));
+         return;
+      }
+
+      int halfCubeSize = cubeSize >> 1;
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         int child = storage.getChild(node, childIndex);
+         if (child == NULL_HANDLE)
+            continue;
+
+         int childX = x + ((childIndex & 1) != 0 ? halfCubeSize : 0);
+         int childY = y + ((childIndex & 2) != 0 ? halfCubeSize : 0);
+         int childZ = z + ((childIndex & 4) != 0 ? halfCubeSize : 0);
+         fillBrickRecursively(brick, child, depth + 1, childX, childY, childZ);
+      }
+   }
+
+   private void deleteNodeRecursively(int node)
+   {
+      if (storage.hasArrayForChildren(node))
+      {
+         for (int childIndex = 0; childIndex < 8; childIndex++)
+         {
+            int child = storage.getChild(node, childIndex);
+            if (child != NULL_HANDLE)
+               deleteNodeRecursively(child);
+         }
+      }
+
+      storage.deleteNode(node);
+      treeSize--;
+   }
+
+   /**
+    * Converts the brick of the given node back to regular nodes, which are then pruned.
+    */
+   private void demoteBrick(int node)
+   {
+      int brick = bricks.getBrick(node);
+
+      for (int voxel = 0; voxel < DenseBrickStorage.NUMBER_OF_VOXELS; voxel++)
+      {
+         float voxelLogOdds = bricks.getLogOdds(brick, voxel);
+         if (Float.isNaN(voxelLogOdds))
+            continue;
+
+         int x = voxel & 7;
+         int y = voxel >> 3 & 7;
+         int z = voxel >> 6;
+         int current = node;
+
+         for (int depth = brickDepth; depth < treeDepth; depth++)
+         {
+            int childIndex = OcTreeKeyTools.computeChildIndex(x, y, z, depth, treeDepth);
+            int child = storage.getChild(current, childIndex);
+            if (child == NULL_HANDLE)
+               child = createNodeChild(current, childIndex);
+            current = child;
+         }
+
+         storage.setLogOdds(current, voxelLogOdds);
+      }
+
+      bricks.deleteBrick(node);
+      updateInnerOccupancyRecursively(node, brickDepth);
+      pruneRecursively(node, brickDepth);
+   }
+
+   private void demoteAllBricksRecursively(int node, int depth)
+   {
+      if (bricks.isBrickOwner(node))
+      {
+         demoteBrick(node);
+         return;
+      }
+
+      if (depth >= brickDepth || !storage.hasAtLeastOneChild(node))
+         return;
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         int child = storage.getChild(node, childIndex);
+         if (child != NULL_HANDLE)
+            demoteAllBricksRecursively(child, depth + 1);
+      }
+   }
+}
@@ -3,9 +3,15 @@ package us.ihmc.jOctoMap.ocTree.baseImplementation;
 import static us.ihmc.jOctoMap.tools.OcTreeNodeTools.checkChildIndex;
 import static us.ihmc.jOctoMap.tools.OcTreeNodeTools.nodeChildExists;
 
-import java.util.ArrayDeque;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Queue;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.lang3.mutable.MutableInt;
 
@@ -16,7 +22,10 @@ import us.ihmc.jOctoMap.iterators.OcTreeIteratorFactory;
 import us.ihmc.jOctoMap.key.OcTreeKey;
 import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
 import us.ihmc.jOctoMap.node.NodeBuilder;
+import us.ihmc.jOctoMap.node.NodeRecycler;
 import us.ihmc.jOctoMap.node.baseImplementation.AbstractOcTreeNode;
+import us.ihmc.jOctoMap.node.baseImplementation.OcTreeNodeGeometry;
+import us.ihmc.jOctoMap.ocTree.OcTreeSnapshot;
 import us.ihmc.jOctoMap.rules.interfaces.EarlyAbortRule;
 import us.ihmc.jOctoMap.rules.interfaces.UpdateRule;
 import us.ihmc.jOctoMap.tools.OcTreeKeyConversionTools;
@@ -45,21 +54,46 @@ import us.ihmc.jOctoMap.tools.OcTreeSearchTools;
 public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>> implements Iterable<NODE>
 {
    private static final int MAX_TREE_DEPTH = 30;
-   private static final boolean RECYCLE_NODES = false;
+   /** Default depth down to which the parallel tree-wide operations split the work. */
+   public static final int DEFAULT_PARALLEL_SPLIT_DEPTH = 3;
+   /** Maximum depth of the stripes of the concurrent updates, giving 8^4 stripes. */
+   public static final int MAX_STRIPE_DEPTH = 4;
 
    protected NODE root; ///< root NODE, null for empty tree
    private final NodeBuilder<NODE> nodeBuilder;
-   private final Queue<NODE> unusedNodes = new ArrayDeque<>(1000);
-   private final Queue<NODE[]> unusedNodeArrays = new ArrayDeque<>(1000 / 8);
+   private final NodeRecycler<NODE> nodeRecycler;
 
    // constants of the tree
    /** Maximum tree depth (fixed to 16 usually) */
    protected final int treeDepth;
    protected final double resolution; ///< in meters
+   /** Shared by the nodes of this tree to compute their coordinates and size. */
+   private final OcTreeNodeGeometry nodeGeometry;
 
    protected int treeSize; ///< number of nodes in tree
    /** flag to denote whether the octree extent changed (for lazy min/max eval) */
    protected boolean sizeChanged;
+   /** Set by {@link #updateNodeRecursively} when the early abort rule stopped the last update. */
+   private boolean updateAborted;
+   private int parallelSplitDepth = DEFAULT_PARALLEL_SPLIT_DEPTH;
+
+   /** One per subtree at the stripe depth when the concurrent updates are enabled, null otherwise. */
+   private Stripe[] stripes = null;
+   private int stripeDepth = 0;
+   /** Guards the nodes above the stripe depth during the concurrent updates. */
+   private final Object trunkLock = new Object();
+   /** Nodes created minus nodes removed by the concurrent updates, added to {@link #treeSize} when they are disabled. */
+   private final LongAdder concurrentTreeSizeChange = new LongAdder();
+   /** The batch of concurrent updates of each thread, null when the concurrent updates are disabled. */
+   private ThreadLocal<ConcurrentUpdateBatch> concurrentUpdateBatch = null;
+
+   private boolean snapshotsEnabled = false;
+   /** Whether nodes of the tree may still belong to a published snapshot, see {@link #detachFromSnapshots()}. */
+   private boolean hasPublishedNodes = false;
+   private long snapshotVersion = 0;
+   /** The path copied by the last call to {@link #copyPublishedPath(OcTreeKeyReadOnly, int)}. */
+   private NODE[] mutablePathNodes;
+   private volatile OcTreeSnapshot<NODE> latestSnapshot = null;
 
    /// data structure for ray casting, array for multithreading
 
@@ -77,19 +111,46 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
       if (treeDepth > MAX_TREE_DEPTH)
          throw new RuntimeException("Cannot create a tree with a depth greater than: " + MAX_TREE_DEPTH);
       this.treeDepth = treeDepth;
-      treeSize = 0;
+      nodeGeometry = new OcTreeNodeGeometry(resolution, treeDepth);
       nodeBuilder = new NodeBuilder<>(getNodeClass());
+      nodeRecycler = new NodeRecycler<>(nodeBuilder);
    }
 
    public AbstractOcTreeBase(AbstractOcTreeBase<NODE> other)
+   {
+      this(other, null);
+   }
+
+   /**
+    * Copies the other tree, the subtrees below the parallel split depth of the other tree being
+    * copied in parallel, see {@link #setParallelSplitDepth(int)}.
+    *
+    * @param pool the pool used to copy the tree, {@code null} to copy it sequentially.
+    */
+   public AbstractOcTreeBase(AbstractOcTreeBase<NODE> other, ForkJoinPool pool)
    {
       resolution = other.resolution;
       treeDepth = other.treeDepth;
+      nodeGeometry = other.nodeGeometry;
+      parallelSplitDepth = other.parallelSplitDepth;
       nodeBuilder = new NodeBuilder<>(getNodeClass());
-      MutableInt mutableTreeSize = new MutableInt(0);
-      if (other.root != null)
+      nodeRecycler = new NodeRecycler<>(nodeBuilder);
+
+      if (other.root == null)
+         return;
+
+      if (pool == null)
+      {
+         MutableInt mutableTreeSize = new MutableInt(0);
          root = other.root.cloneRecursive(nodeBuilder, mutableTreeSize);
-      treeSize = mutableTreeSize.intValue();
+         treeSize = mutableTreeSize.intValue();
+      }
+      else
+      {
+         CloneTask cloneTask = new CloneTask(other.root, 0);
+         root = pool.invoke(cloneTask);
+         treeSize = cloneTask.numberOfClonedNodes;
+      }
    }
 
    /**
@@ -98,20 +159,25 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
     */
    public void swapContent(AbstractOcTreeBase<NODE> other)
    {
+      if (snapshotsEnabled || other.snapshotsEnabled)
+         throw new RuntimeException("Cannot swap the content of a tree publishing snapshots.");
+
       NODE thisRoot = root;
       root = other.root;
       other.root = thisRoot;
 
-      int thisSize = treeSize;
-      treeSize = other.treeSize;
+      int thisSize = size();
+      treeSize = other.size();
       other.treeSize = thisSize;
+      concurrentTreeSizeChange.reset();
+      other.concurrentTreeSizeChange.reset();
    }
 
    /// Comparison between two octrees, all meta data, all
    /// nodes, and the structure must be identical
    public boolean epsilonEquals(AbstractOcTreeBase<NODE> other, double epsilon)
    {
-      if (treeDepth != other.treeDepth || resolution != other.resolution || treeSize != other.treeSize)
+      if (treeDepth != other.treeDepth || resolution != other.resolution || size() != other.size())
          return false;
 
       // traverse all nodes, check if structure the same
@@ -132,6 +198,33 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
       return true;
    }
 
+   /**
+    * Gets the allocator of this tree's nodes, which can be configured to recycle the nodes and arrays
+    * of children released by pruning and deletion.
+    */
+   public NodeRecycler<NODE> getNodeRecycler()
+   {
+      return nodeRecycler;
+   }
+
+   /**
+    * Sets the depth down to which the parallel variants of the tree-wide operations, e.g.
+    * {@link #prune(ForkJoinPool)}, split the work: each subtree below this depth is processed
+    * sequentially by a single task. A deeper split gives more and smaller tasks, 0 processing the
+    * whole tree in a single task.
+    */
+   public void setParallelSplitDepth(int parallelSplitDepth)
+   {
+      if (parallelSplitDepth < 0)
+         throw new RuntimeException("The parallel split depth cannot be negative: " + parallelSplitDepth);
+      this.parallelSplitDepth = parallelSplitDepth;
+   }
+
+   public int getParallelSplitDepth()
+   {
+      return parallelSplitDepth;
+   }
+
    public double getResolution()
    {
       return resolution;
@@ -158,7 +251,7 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
 
       node.setChild(childIndex, newChildNode);
 
-      treeSize++;
+      changeTreeSize(1);
       sizeChanged = true;
 
       return newChildNode;
@@ -167,29 +260,13 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
    private void assignChildrenArrayIfNecessary(NODE node)
    {
       if (!node.hasArrayForChildren())
-      {
-         if (RECYCLE_NODES)
-         {
-            if (unusedNodeArrays.isEmpty())
-               node.allocateChildren();
-            else
-               node.assignChildren(unusedNodeArrays.poll());
-         }
-         else
-         {
-            node.allocateChildren();
-         }
-      }
+         allocateChildren(node);
    }
 
    private NODE getOrCreateNode(OcTreeKeyReadOnly nodeKey, int nodeDepth)
    {
-      NODE newNode;
-      if (RECYCLE_NODES)
-         newNode = unusedNodes.isEmpty() ? nodeBuilder.createNode() : unusedNodes.poll();
-      else
-         newNode = nodeBuilder.createNode();
-      newNode.setProperties(nodeKey, nodeDepth, resolution, treeDepth);
+      NODE newNode = createNode();
+      newNode.setProperties(nodeKey, nodeDepth, nodeGeometry);
       return newNode;
    }
 
@@ -199,15 +276,35 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
       if (!nodeChildExists(node, childIndex))
          return;
 
-      if (RECYCLE_NODES)
-         unusedNodes.add(node.removeChild(childIndex));
-      else
-         node.removeChild(childIndex);
+      if (snapshotsEnabled && node.getChild(childIndex).isPublished())
+      { // The child belongs to a snapshot, it is left untouched.
+         NODE detachedChild = node.detachChild(childIndex);
+         changeTreeSize(-1 - countDescendants(detachedChild));
+         sizeChanged = true;
+         return;
+      }
+
+      NODE removedChild = node.removeChild(childIndex);
+      if (removedChild.hasArrayForChildren())
+      { // Release the descendants as well
+         changeTreeSize(-countDescendants(removedChild));
+         deleteNodeRecursively(removedChild);
+      }
+      recycleNode(removedChild);
 
-      treeSize--;
+      changeTreeSize(-1);
       sizeChanged = true;
    }
 
+   /** The tree size is only updated atomically during the concurrent updates. */
+   private void changeTreeSize(int change)
+   {
+      if (stripes == null)
+         treeSize += change;
+      else
+         concurrentTreeSizeChange.add(change);
+   }
+
    /**
     * Generic method to search down a node to update using the
     * {@link UpdateRule#updateLeaf(AbstractOcTreeNode)}.
@@ -271,25 +368,292 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
     */
    protected NODE updateNodeInternal(OcTreeKeyReadOnly key, UpdateRule<NODE> updateRule, EarlyAbortRule<NODE> earlyAbortRule)
    {
-      boolean createdRoot = false;
+      if (stripes != null)
+      {
+         ConcurrentUpdateBatch batch = concurrentUpdateBatch.get();
+         return updateNodeConcurrently(key, updateRule, earlyAbortRule, batch.isInProgress ? batch : null);
+      }
 
-      if (root == null)
+      boolean createdRoot;
+
+      if (root != null && earlyAbortRule != null)
+         createdRoot = false; // The root is only copied once the early abort rule let the update through.
+      else
+         createdRoot = createRootIfNecessary();
+
+      NODE updatedNode = updateNodeRecursively(root, createdRoot, key, updateRule, earlyAbortRule, 0);
+      updateAborted = false;
+      return updatedNode;
+   }
+
+   /**
+    * Enables the concurrent updates: {@link #updateNodeInternal(OcTreeKeyReadOnly, UpdateRule, EarlyAbortRule)}
+    * can then be called from several threads, given that each thread uses its own rules.
+    * <p>
+    * The key space is partitioned into the subtrees at {@code stripeDepth}, 1 giving the 8 octants of
+    * the root. The updates of a stripe are serialized by a lock per stripe, the updates of different
+    * stripes run in parallel. The nodes above the stripe depth, the trunk, are shared and are only
+    * modified under a single lock. They are never pruned nor deleted during the concurrent updates,
+    * call {@link #prune()} once done to compact the tree.
+    * </p>
+    * <p>
+    * A single update takes the trunk lock while descending to its stripe and while updating the inner
+    * nodes on the way back up. Within a batch, see {@link #startConcurrentUpdateBatch()}, the path to
+    * each stripe is only looked up once and the trunk is updated once at the end of the batch, such
+    * that the updates only take the lock of their stripe.
+    * </p>
+    * <p>
+    * The other operations on the tree, queries included, must not be called while concurrent updates
+    * are running.
+    * </p>
+    *
+    * @param stripeDepth the depth of the subtrees which can be updated in parallel, in [0,
+    *                    {@link #MAX_STRIPE_DEPTH}].
+    */
+   @SuppressWarnings("unchecked")
+   protected void enableConcurrentUpdates(int stripeDepth)
+   {
+      if (snapshotsEnabled)
+         throw new RuntimeException("The concurrent updates cannot be combined with the snapshots.");
+      if (stripeDepth < 0 || stripeDepth > Math.min(MAX_STRIPE_DEPTH, treeDepth))
+         throw new RuntimeException("The stripe depth should be in [0, " + Math.min(MAX_STRIPE_DEPTH, treeDepth) + "], was: " + stripeDepth);
+
+      this.stripeDepth = stripeDepth;
+      stripes = (Stripe[]) Array.newInstance(Stripe.class, 1 << 3 * stripeDepth);
+      for (int i = 0; i < stripes.length; i++)
+         stripes[i] = new Stripe();
+      concurrentUpdateBatch = ThreadLocal.withInitial(ConcurrentUpdateBatch::new);
+   }
+
+   /**
+    * Starts a batch of concurrent updates performed by the calling thread, see
+    * {@link #enableConcurrentUpdates(int)}. The inner nodes of the trunk are not updated until
+    * {@link #finishConcurrentUpdateBatch()} is called by the same thread.
+    */
+   protected void startConcurrentUpdateBatch()
+   {
+      ConcurrentUpdateBatch batch = concurrentUpdateBatch.get();
+      if (batch.isInProgress)
+         throw new RuntimeException("A batch of concurrent updates is already in progress.");
+      batch.isInProgress = true;
+   }
+
+   /**
+    * Finishes the batch of concurrent updates of the calling thread: the inner nodes of the trunk
+    * above the stripes updated during the batch are updated once.
+    * <p>
+    * The trunk may read the stripe roots while other threads update them. Each of these threads
+    * updates the trunk again once done, the last one leaves the trunk consistent with all the stripes.
+    * </p>
+    */
+   protected void finishConcurrentUpdateBatch()
+   {
+      ConcurrentUpdateBatch batch = concurrentUpdateBatch.get();
+      if (!batch.isInProgress)
+         throw new RuntimeException("No batch of concurrent updates is in progress.");
+
+      if (batch.innerNodeUpdateRule != null)
       {
-         root = getOrCreateNode(OcTreeKeyTools.getRootKey(treeDepth), 0);
-         treeSize++;
-         sizeChanged = true;
-         createdRoot = true;
+         synchronized (trunkLock)
+         {
+            if (root != null)
+               updateTrunkInnerNodes(root, 0, 0, batch.updatedStripes, batch.innerNodeUpdateRule);
+         }
+      }
+
+      batch.clear();
+   }
+
+   protected void disableConcurrentUpdates()
+   {
+      concurrentUpdateBatch = null;
+      treeSize += concurrentTreeSizeChange.intValue();
+      concurrentTreeSizeChange.reset();
+      stripes = null;
+      stripeDepth = 0;
+   }
+
+   public boolean isConcurrentUpdatesEnabled()
+   {
+      return stripes != null;
+   }
+
+   public int getStripeDepth()
+   {
+      return stripeDepth;
+   }
+
+   /**
+    * Enables the copy-on-write snapshots: {@link #publishSnapshot()} can then be called after a batch
+    * of updates, e.g. after each scan, to give the readers an immutable view of the tree.
+    * <p>
+    * The nodes belonging to a published snapshot are never modified. The updates copy the path from
+    * the root down to the updated node instead, the unchanged subtrees being shared between the tree
+    * and its snapshots. The cost of an update is thus proportional to the number of nodes it changes,
+    * the aborted updates do not copy anything. The operations visiting the whole tree, e.g.
+    * {@link #prune()} or {@link #expand()}, first copy all the nodes still belonging to a snapshot,
+    * see {@link #detachFromSnapshots()}.
+    * </p>
+    * <p>
+    * The tree must only be modified through its own methods: a node obtained before a publication
+    * belongs to the snapshot and must not be modified. Snapshots cannot be combined with the
+    * concurrent updates.
+    * </p>
+    *
+    * @param enable whether to enable the snapshots. When disabled, the tree is modified in place again
+    *               and the snapshots that are still in use become invalid.
+    */
+   public void enableSnapshots(boolean enable)
+   {
+      if (enable && stripes != null)
+         throw new RuntimeException("The snapshots cannot be combined with the concurrent updates.");
+
+      snapshotsEnabled = enable;
+      // The nodes may have been published while the snapshots were previously enabled.
+      hasPublishedNodes = enable;
+      if (!enable)
+         latestSnapshot = null;
+   }
+
+   public boolean isSnapshotsEnabled()
+   {
+      return snapshotsEnabled;
+   }
+
+   /**
+    * Publishes the current state of the tree as an immutable snapshot, see
+    * {@link #enableSnapshots(boolean)}. Only the nodes modified since the previous publication are
+    * visited. This is to be called by the thread updating the tree, the other threads can then get
+    * the snapshot from {@link #getLatestSnapshot()}.
+    *
+    * @return the new snapshot.
+    */
+   public OcTreeSnapshot<NODE> publishSnapshot()
+   {
+      if (!snapshotsEnabled)
+         throw new RuntimeException("The snapshots are not enabled.");
+
+      if (root != null)
+      {
+         markPublishedRecursively(root);
+         hasPublishedNodes = true;
+      }
+
+      OcTreeSnapshot<NODE> snapshot = new OcTreeSnapshot<>(root, size(), resolution, treeDepth, ++snapshotVersion);
+      latestSnapshot = snapshot;
+      return snapshot;
+   }
+
+   /**
+    * @return the last snapshot published by {@link #publishSnapshot()}, null if none has been
+    *         published since the snapshots were enabled. Can be called from any thread.
+    */
+   public OcTreeSnapshot<NODE> getLatestSnapshot()
+   {
+      return latestSnapshot;
+   }
+
+   /**
+    * Copies the nodes of the tree which still belong to a published snapshot, such that the whole
+    * tree can be modified in place. Right after a publication, this copies the whole tree.
+    */
+   protected void detachFromSnapshots()
+   {
+      if (!snapshotsEnabled || !hasPublishedNodes)
+         return;
+
+      if (root != null)
+      {
+         copyRootIfPublished();
+         detachFromSnapshotsRecursively(root);
+      }
+
+      hasPublishedNodes = false;
+   }
+
+   /**
+    * Gets the child of the node in order to modify it: when the child belongs to a published
+    * snapshot, it is replaced with a copy which is returned. The given node must not belong to a
+    * snapshot.
+    */
+   protected NODE getMutableChild(NODE node, int childIndex)
+   {
+      NODE child = node.getChild(childIndex);
+
+      if (!snapshotsEnabled || child == null || !child.isPublished())
+         return child;
+
+      NODE childCopy = copyPublishedNode(child);
+      node.setChild(childIndex, childCopy);
+      return childCopy;
+   }
+
+   /**
+    * Gets the node at the given key and depth in order to modify it: only the nodes on the path from
+    * the root to this node which belong to a published snapshot are replaced with copies, see
+    * {@link #getMutableChild(AbstractOcTreeNode, int)}.
+    *
+    * @return the node, or {@code null} if the tree has no node at this key and depth.
+    */
+   protected NODE getMutableNode(OcTreeKeyReadOnly key, int depth)
+   {
+      NODE node = root;
+      for (int currentDepth = 0; node != null && currentDepth < depth; currentDepth++)
+         node = node.getChild(OcTreeKeyTools.computeChildIndex(key, currentDepth, treeDepth));
+
+      // The ancestors of a node which does not belong to a snapshot have already been copied.
+      if (node == null || !snapshotsEnabled || !node.isPublished())
+         return node;
+
+      return copyPublishedPath(key, depth);
+   }
+
+   /**
+    * Replaces the nodes on the path from the root to the node at the given key and depth which belong
+    * to a published snapshot with copies. The nodes of the path are stored in {@link #mutablePathNodes}.
+    *
+    * @return the copy of the node at the given depth.
+    */
+   private NODE copyPublishedPath(OcTreeKeyReadOnly key, int depth)
+   {
+      if (mutablePathNodes == null)
+      {
+         @SuppressWarnings("unchecked")
+         NODE[] newPathNodes = (NODE[]) Array.newInstance(getNodeClass(), treeDepth + 1);
+         mutablePathNodes = newPathNodes;
       }
 
-      if (earlyAbortRule != null)
+      copyRootIfPublished();
+      NODE node = root;
+      mutablePathNodes[0] = node;
+
+      for (int currentDepth = 0; currentDepth < depth; currentDepth++)
       {
-         NODE leaf = search(key);
+         node = getMutableChild(node, OcTreeKeyTools.computeChildIndex(key, currentDepth, treeDepth));
+         mutablePathNodes[currentDepth + 1] = node;
+      }
 
-         if (earlyAbortRule.shouldAbortFullDepthUpdate(leaf))
-            return leaf;
+      return node;
+   }
+
+   /**
+    * Creates the root node if the tree is empty. When the root belongs to a published snapshot, it is
+    * replaced with a copy, see {@link #enableSnapshots(boolean)}.
+    *
+    * @return whether the root has been created.
+    */
+   protected boolean createRootIfNecessary()
+   {
+      if (root != null)
+      {
+         copyRootIfPublished();
+         return false;
       }
 
-      return updateNodeRecursively(root, createdRoot, key, updateRule, 0);
+      root = getOrCreateNode(OcTreeKeyTools.getRootKey(treeDepth), 0);
+      changeTreeSize(1);
+      sizeChanged = true;
+      return true;
    }
 
    /**
@@ -332,10 +696,7 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
       // delete children (known to be leafs at this point!)
       for (int childIndex = 0; childIndex < 8; childIndex++)
          deleteNodeChild(node, childIndex);
-      if (RECYCLE_NODES)
-         unusedNodeArrays.add(node.removeChildren());
-      else
-         node.removeChildren();
+      recycleChildren(node);
 
       return true;
    }
@@ -400,6 +761,8 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
       if (root == null)
          return true;
 
+      copyRootIfPublished();
+
       if (depth == 0)
          depth = treeDepth;
 
@@ -411,9 +774,11 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
    {
       if (root != null)
       {
-         deleteNodeRecursively(root);
+         if (!snapshotsEnabled || !root.isPublished())
+            deleteNodeRecursively(root);
          root = null;
          treeSize = 0;
+         concurrentTreeSizeChange.reset();
          // max extent of tree changed:
          sizeChanged = true;
       }
@@ -426,15 +791,120 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
     */
    public void prune()
    {
-      if (root == null)
+      if (root == null || !root.hasAtLeastOneChild())
+         return;
+
+      detachFromSnapshots();
+
+      // Single post-order pass: the children of a node are pruned before the node itself.
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         NODE child = root.getChild(childIndex);
+         if (child != null)
+            pruneRecursively(child);
+      }
+   }
+
+   /**
+    * Same as {@link #prune()} with the subtrees below the parallel split depth pruned in parallel, see
+    * {@link #setParallelSplitDepth(int)}.
+    * <p>
+    * Not supported with the concurrent updates, see {@link #enableConcurrentUpdates(int)}.
+    * </p>
+    *
+    * @param pool the pool used to prune the tree, {@code null} to prune it sequentially.
+    */
+   public void prune(ForkJoinPool pool)
+   {
+      if (isConcurrentUpdatesEnabled())
+         throw new RuntimeException("The parallel pruning is not supported with the concurrent updates.");
+
+      if (root == null || !root.hasAtLeastOneChild())
+         return;
+
+      detachFromSnapshots();
+
+      // The root is not pruned.
+      int numberOfRemovedNodes = applyInParallel(pool, null, (node, depth) -> depth > 0 ? pruneNodeConcurrently(node) : 0);
+
+      if (numberOfRemovedNodes > 0)
+      {
+         treeSize -= numberOfRemovedNodes;
+         sizeChanged = true;
+      }
+   }
+
+   /**
+    * Completes a batch of updates performed with {@link UpdateRule#performLazyUpdate()}: updates
+    * bottom-up the inner nodes of the given subtrees and above them using
+    * {@link UpdateRule#updateInnerNode(AbstractOcTreeNode)}, and prunes them. Only these subtrees and
+    * their ancestors are visited, each node once.
+    *
+    * @param sortedMortonCodes the Morton codes, sorted in ascending order, of the keys at
+    *                          {@code subtreeDepth} of the subtrees containing the updated cells, see
+    *                          {@link OcTreeKeyTools#computeMortonCode(int, int, int)}. At
+    *                          {@code subtreeDepth}, the key of a node is its key at the last level
+    *                          shifted right by {@code treeDepth - subtreeDepth}.
+    * @param numberOfSubtrees  the number of codes to read from {@code sortedMortonCodes}.
+    * @param subtreeDepth      the depth of the roots of the subtrees, {@code treeDepth} to give the
+    *                          updated cells.
+    * @param updateRule        the rule used to update the inner nodes.
+    */
+   protected void updateInnerNodes(long[] sortedMortonCodes, int numberOfSubtrees, int subtreeDepth, UpdateRule<NODE> updateRule)
+   {
+      if (root != null && numberOfSubtrees > 0)
+      {
+         copyRootIfPublished();
+         updateInnerNodesRecursively(root, 0, sortedMortonCodes, 0, numberOfSubtrees, subtreeDepth, updateRule);
+      }
+   }
+
+   private void updateInnerNodesRecursively(NODE node, int depth, long[] sortedMortonCodes, int start, int end, int subtreeDepth, UpdateRule<NODE> updateRule)
+   {
+      if (!node.hasAtLeastOneChild())
+         return;
+
+      if (depth == subtreeDepth)
+      {
+         updateSubtreeInnerNodesRecursively(node, updateRule);
+         return;
+      }
+
+      int index = start;
+
+      while (index < end)
+      {
+         // The codes of the subtrees below a child are consecutive.
+         int childIndex = OcTreeKeyTools.computeMortonChildIndex(sortedMortonCodes[index], depth, subtreeDepth);
+         int childEnd = index + 1;
+         while (childEnd < end && OcTreeKeyTools.computeMortonChildIndex(sortedMortonCodes[childEnd], depth, subtreeDepth) == childIndex)
+            childEnd++;
+
+         NODE child = getMutableChild(node, childIndex);
+         if (child != null)
+            updateInnerNodesRecursively(child, depth + 1, sortedMortonCodes, index, childEnd, subtreeDepth, updateRule);
+
+         index = childEnd;
+      }
+
+      updateRule.updateInnerNode(node);
+      pruneNode(node);
+   }
+
+   private void updateSubtreeInnerNodesRecursively(NODE node, UpdateRule<NODE> updateRule)
+   {
+      if (!node.hasAtLeastOneChild())
          return;
 
-      for (int depth = treeDepth - 1; depth > 0; depth--)
+      for (int childIndex = 0; childIndex < 8; childIndex++)
       {
-         int numberOfPrunedNodes = pruneRecursively(root, 0, depth, 0);
-         if (numberOfPrunedNodes == 0)
-            break;
+         NODE child = getMutableChild(node, childIndex);
+         if (child != null)
+            updateSubtreeInnerNodesRecursively(child, updateRule);
       }
+
+      updateRule.updateInnerNode(node);
+      pruneNode(node);
    }
 
    /**
@@ -443,16 +913,45 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
     */
    public void expand()
    {
+      detachFromSnapshots();
+
       if (root != null)
          expandRecursively(root, 0, treeDepth);
    }
 
+   /**
+    * Same as {@link #expand()} with the subtrees below the parallel split depth expanded in parallel,
+    * see {@link #setParallelSplitDepth(int)}.
+    * <p>
+    * Not supported with the concurrent updates, see {@link #enableConcurrentUpdates(int)}.
+    * </p>
+    *
+    * @param pool the pool used to expand the tree, {@code null} to expand it sequentially.
+    */
+   public void expand(ForkJoinPool pool)
+   {
+      if (isConcurrentUpdatesEnabled())
+         throw new RuntimeException("The parallel expansion is not supported with the concurrent updates.");
+
+      detachFromSnapshots();
+
+      int numberOfCreatedNodes = applyInParallel(pool,
+                                                 (node, depth) -> depth < treeDepth && !node.hasAtLeastOneChild() ? expandNodeConcurrently(node, depth) : 0,
+                                                 null);
+
+      if (numberOfCreatedNodes > 0)
+      {
+         treeSize += numberOfCreatedNodes;
+         sizeChanged = true;
+      }
+   }
+
    // -- statistics  ----------------------
 
    /// \return The number of nodes in the tree
    public int size()
    {
-      return treeSize;
+      return treeSize + concurrentTreeSizeChange.intValue();
    }
 
    /// Traverses the tree to calculate the total number of nodes
@@ -473,6 +972,56 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
          return OcTreeNodeTools.computeNumberOfLeafDescendants(root);
    }
 
+   /**
+    * Same as {@link #getNumberOfLeafNodes()} with the subtrees below the parallel split depth
+    * traversed in parallel, see {@link #setParallelSplitDepth(int)}.
+    *
+    * @param pool the pool used to traverse the tree, {@code null} to traverse it sequentially.
+    */
+   public int getNumberOfLeafNodes(ForkJoinPool pool)
+   {
+      return applyInParallel(pool, null, (node, depth) -> node.hasAtLeastOneChild() ? 0 : 1);
+   }
+
+   /**
+    * Operation applied to the nodes of the tree by
+    * {@link AbstractOcTreeBase#applyInParallel(ForkJoinPool, NodeOperation, NodeOperation)}.
+    */
+   protected interface NodeOperation<NODE>
+   {
+      /**
+       * Applies the operation, it may be called concurrently on nodes which are not ancestors of one
+       * another.
+       *
+       * @return a value, e.g. a number of nodes, summed over the tree.
+       */
+      int apply(NODE node, int depth);
+   }
+
+   /**
+    * Applies the given operations to all the nodes of the tree, the subtrees below the parallel split
+    * depth being processed in parallel, see {@link #setParallelSplitDepth(int)}. The pre-order
+    * operation is applied to a node before its children are visited, and the post-order operation
+    * once all its children have been processed.
+    *
+    * @param pool                the pool used to traverse the tree, {@code null} to traverse it
+    *                            sequentially.
+    * @param preOrderOperation   the operation to apply before visiting the children of a node, can be
+    *                            {@code null}.
+    * @param postOrderOperation  the operation to apply after visiting the children of a node, can be
+    *                            {@code null}.
+    * @return the sum over the tree of the values returned by the operations.
+    */
+   protected int applyInParallel(ForkJoinPool pool, NodeOperation<NODE> preOrderOperation, NodeOperation<NODE> postOrderOperation)
+   {
+      if (root == null)
+         return 0;
+      else if (pool == null)
+         return applyRecursively(root, 0, preOrderOperation, postOrderOperation);
+      else
+         return pool.invoke(new NodeOperationTask(root, 0, preOrderOperation, postOrderOperation));
+   }
+
    // -- access tree nodes  ------------------
 
    @Override
@@ -574,20 +1123,42 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
       {
          for (int i = 0; i < 8; i++)
          {
-            NODE child = node.removeChild(i);
-            if (child != null)
-            {
-               if (RECYCLE_NODES)
-                  unusedNodes.add(child);
-               deleteNodeRecursively(child);
-            }
-         }
+            NODE child = node.getChild(i);
 
-         if (RECYCLE_NODES)
-            unusedNodeArrays.add(node.removeChildren());
-         else
-            node.removeChildren();
+            if (child == null)
+               continue;
+
+            if (snapshotsEnabled && child.isPublished())
+            { // The child belongs to a snapshot, it is left untouched.
+               node.detachChild(i);
+            }
+            else
+            {
+               node.removeChild(i);
+               deleteNodeRecursively(child);
+               recycleNode(child);
+            }
+         }
       } // else: node has no children
+
+      recycleChildren(node);
+   }
+
+   private static <NODE extends AbstractOcTreeNode<NODE>> int countDescendants(NODE node)
+   {
+      if (!node.hasAtLeastOneChild())
+         return 0;
+
+      int numberOfDescendants = 0;
+
+      for (int i = 0; i < 8; i++)
+      {
+         NODE child = node.getChild(i);
+         if (child != null)
+            numberOfDescendants += 1 + countDescendants(child);
+      }
+
+      return numberOfDescendants;
    }
 
    /// recursive call of deleteNode()
@@ -617,7 +1188,7 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
       }
 
       // follow down further, fix inner nodes on way back up
-      boolean deleteChild = deleteNodeRecursively(node.getChild(childIndex), depth + 1, maxDepth, key);
+      boolean deleteChild = deleteNodeRecursively(getMutableChild(node, childIndex), depth + 1, maxDepth, key);
       if (deleteChild)
       {
          deleteNodeChild(node, childIndex);
@@ -629,7 +1200,26 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
       return false;
    }
 
-   private NODE updateNodeRecursively(NODE node, boolean nodeJustCreated, OcTreeKeyReadOnly key, UpdateRule<NODE> updateRule, int depth)
+   /**
+    * Descends to the node to update, creating or expanding nodes as needed, and updates the inner
+    * nodes on the way back up.
+    * <p>
+    * The early abort rule is evaluated on the way down on the node {@link #search(OcTreeKeyReadOnly)}
+    * would return, that is where the descent first fails to find the requested child or at the last
+    * level. When it aborts, the tree is left untouched, {@link #updateAborted} is set, and that node
+    * is returned.
+    * </p>
+    * <p>
+    * Until the rule is evaluated, the descent does not copy the nodes belonging to a published
+    * snapshot. When the update goes through, the path to the node is copied at once, see
+    * {@link #copyPublishedPath(OcTreeKeyReadOnly, int)}, and the nodes above it switch to their copies
+    * on the way back up.
+    * </p>
+    *
+    * @param earlyAbortRule the rule to evaluate, null once evaluated or when there is none.
+    */
+   private NODE updateNodeRecursively(NODE node, boolean nodeJustCreated, OcTreeKeyReadOnly key, UpdateRule<NODE> updateRule,
+                                      EarlyAbortRule<NODE> earlyAbortRule, int depth)
    {
       boolean createdNode = false;
 
@@ -642,6 +1232,22 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
          int childIndex = OcTreeKeyTools.computeChildIndex(key, depth, treeDepth);
          if (!OcTreeNodeTools.nodeChildExists(node, childIndex))
          {
+            if (earlyAbortRule != null)
+            { // this is where the search for the key ends: either this node is a leaf, or the key is in unknown space.
+               NODE leaf = node.hasAtLeastOneChild() ? null : node;
+
+               if (earlyAbortRule.shouldAbortFullDepthUpdate(leaf))
+               {
+                  updateAborted = true;
+                  return leaf;
+               }
+
+               earlyAbortRule = null;
+
+               if (snapshotsEnabled && node.isPublished())
+                  node = copyPublishedPath(key, depth);
+            }
+
             if (!updateRule.enableNodeCreation())
             {
                updateRule.updateLeaf(node, key, nodeJustCreated);
@@ -659,15 +1265,40 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
             }
          }
 
-         NODE nodeChild = node.getChild(childIndex);
+         // The child is only copied once the early abort rule let the update through.
+         NODE nodeChild = earlyAbortRule != null ? node.getChild(childIndex) : getMutableChild(node, childIndex);
 
          if (updateRule.performLazyUpdate())
          {
-            return updateNodeRecursively(nodeChild, createdNode, key, updateRule, depth + 1);
+            NODE leafToReturn = updateNodeRecursively(nodeChild, createdNode, key, updateRule, earlyAbortRule, depth + 1);
+
+            if (!updateAborted && node.isPublished())
+            { // The path has been copied further down.
+               node = mutablePathNodes[depth];
+               nodeChild = node.getChild(childIndex);
+            }
+
+            // The leaves to delete are still deleted right away, the following updates are aborted as they would be otherwise.
+            if (!updateAborted && leafToReturn == nodeChild && updateRule.deleteUpdatedNode(nodeChild))
+            {
+               deleteNodeChild(node, childIndex);
+               leafToReturn = node;
+
+               if (!node.hasAtLeastOneChild()) // The parent may have to be deleted too.
+                  updateRule.updateInnerNode(node);
+            }
+
+            return leafToReturn;
          }
          else
          {
-            NODE leafToReturn = updateNodeRecursively(nodeChild, createdNode, key, updateRule, depth + 1);
+            NODE leafToReturn = updateNodeRecursively(nodeChild, createdNode, key, updateRule, earlyAbortRule, depth + 1);
+
+            if (updateAborted)
+               return leafToReturn;
+
+            if (node.isPublished()) // The path has been copied further down.
+               node = mutablePathNodes[depth];
 
             // That's an inner node, apply the update rule
             updateRule.updateInnerNode(node);
@@ -693,39 +1324,374 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
       }
       else // at last level, update node, end of recursion
       {
+         if (earlyAbortRule != null)
+         {
+            if (earlyAbortRule.shouldAbortFullDepthUpdate(node))
+            {
+               updateAborted = true;
+               return node;
+            }
+
+            if (snapshotsEnabled && node.isPublished())
+               node = copyPublishedPath(key, depth);
+         }
+
          updateRule.updateLeaf(node, key, nodeJustCreated);
          return node;
       }
    }
 
-   /// recursive call of prune()
-   private int pruneRecursively(NODE node, int depth, int maxDepth, int numberOfPrunedNode)
+   /**
+    * Same as {@link #updateNodeRecursively} for the concurrent updates: the nodes above the stripe of
+    * the key are visited under the trunk lock, and the stripe is updated under its own lock only.
+    * <p>
+    * Within a batch, the stripe root is looked up only once and the trunk is left to be updated at the
+    * end of the batch. Only the deletion of the stripe root, if any, takes the trunk lock.
+    * </p>
+    *
+    * @param batch the batch of the calling thread, or {@code null} when not in a batch.
+    */
+   private NODE updateNodeConcurrently(OcTreeKeyReadOnly key, UpdateRule<NODE> updateRule, EarlyAbortRule<NODE> earlyAbortRule, ConcurrentUpdateBatch batch)
    {
-      if (node == null)
-         throw new RuntimeException("The given node is null");
+      int stripeIndex = computeStripeIndex(key);
+      Stripe stripe = stripes[stripeIndex];
 
-      if (!node.hasAtLeastOneChild())
-         return numberOfPrunedNode;
+      synchronized (stripe)
+      {
+         NODE[] trunkPath = stripe.trunkPath;
+         NODE node = batch == null ? null : batch.getStripeRoot(stripeIndex, stripe);
+         boolean nodeJustCreated = false;
+
+         if (node == null)
+         {
+            int depth = 0;
+
+            synchronized (trunkLock)
+            {
+               nodeJustCreated = createRootIfNecessary();
+               node = root;
+
+               for (; depth < stripeDepth; depth++)
+               {
+                  trunkPath[depth] = node;
+                  int childIndex = OcTreeKeyTools.computeChildIndex(key, depth, treeDepth);
+                  boolean childJustCreated = false;
+
+                  if (!OcTreeNodeTools.nodeChildExists(node, childIndex))
+                  {
+                     if (earlyAbortRule != null)
+                     { // The search for the key ends in the trunk.
+                        NODE leaf = node.hasAtLeastOneChild() ? null : node;
+                        if (earlyAbortRule.shouldAbortFullDepthUpdate(leaf))
+                           return leaf;
+                        earlyAbortRule = null;
+                     }
+
+                     if (!updateRule.enableNodeCreation())
+                     {
+                        updateRule.updateLeaf(node, key, nodeJustCreated);
+                        return updateTrunk(trunkPath, depth - 1, key, updateRule, node);
+                     }
+
+                     if (!node.hasAtLeastOneChild() && !nodeJustCreated)
+                     {
+                        expandNode(node, depth);
+                     }
+                     else
+                     {
+                        createNodeChild(node, childIndex, depth + 1);
+                        childJustCreated = true;
+                     }
+                  }
+
+                  node = node.getChild(childIndex);
+                  nodeJustCreated = childJustCreated;
+               }
+            }
+
+            if (batch != null)
+               batch.setStripeRoot(stripeIndex, stripe, node);
+         }
+
+         if (earlyAbortRule != null)
+         {
+            NODE leaf = searchInStripe(node, key);
+            if (earlyAbortRule.shouldAbortFullDepthUpdate(leaf))
+               return leaf;
+         }
+
+         NODE updatedNode = updateNodeRecursively(node, nodeJustCreated, key, updateRule, null, stripeDepth);
+
+         if (batch == null)
+            return updateTrunk(trunkPath, stripeDepth - 1, key, updateRule, updatedNode);
+
+         batch.updatedStripes[stripeIndex] = true;
+         if (!updateRule.performLazyUpdate())
+            batch.innerNodeUpdateRule = updateRule;
+
+         if (stripeDepth > 0 && updatedNode == node && updateRule.deleteUpdatedNode(node))
+         { // The stripe root is to be deleted, the trunk path is only needed then.
+            synchronized (trunkLock)
+            {
+               NODE trunkNode = root;
+               for (int depth = 0; depth < stripeDepth; depth++)
+               {
+                  trunkPath[depth] = trunkNode;
+                  trunkNode = trunkNode.getChild(OcTreeKeyTools.computeChildIndex(key, depth, treeDepth));
+               }
+            }
+
+            return updateTrunk(trunkPath, stripeDepth - 1, key, updateRule, updatedNode);
+         }
+
+         return updatedNode;
+      }
+   }
+
+   /**
+    * Updates bottom-up the nodes of the trunk path from {@code startDepth} after an update. Only the
+    * stripe root, the child of the node at {@code stripeDepth - 1}, may be deleted.
+    */
+   private NODE updateTrunk(NODE[] trunkPath, int startDepth, OcTreeKeyReadOnly key, UpdateRule<NODE> updateRule, NODE updatedNode)
+   {
+      if (startDepth < 0)
+         return updatedNode;
 
-      if (depth < maxDepth)
+      synchronized (trunkLock)
       {
-         for (int i = 0; i < 8; i++)
+         for (int depth = startDepth; depth >= 0; depth--)
          {
-            NODE childNode = node.getChild(i);
-            if (childNode != null)
-               numberOfPrunedNode = pruneRecursively(childNode, depth + 1, maxDepth, numberOfPrunedNode);
+            NODE node = trunkPath[depth];
+
+            if (depth == stripeDepth - 1)
+            {
+               int childIndex = OcTreeKeyTools.computeChildIndex(key, depth, treeDepth);
+               NODE stripeRoot = node.getChild(childIndex);
+
+               if (updateRule.performLazyUpdate())
+               {
+                  if (updatedNode == stripeRoot && updateRule.deleteUpdatedNode(stripeRoot))
+                  {
+                     deleteNodeChild(node, childIndex);
+                     stripes[computeStripeIndex(key)].numberOfRootDeletions++;
+                     updatedNode = node;
+
+                     if (!node.hasAtLeastOneChild())
+                        updateRule.updateInnerNode(node);
+                  }
+               }
+               else
+               {
+                  updateRule.updateInnerNode(node);
+
+                  if (updateRule.deleteUpdatedNode(updatedNode))
+                  {
+                     deleteNodeChild(node, childIndex);
+                     stripes[computeStripeIndex(key)].numberOfRootDeletions++;
+                     updateRule.updateInnerNode(node);
+                     updatedNode = node;
+                  }
+               }
+            }
+            else if (!updateRule.performLazyUpdate())
+            {
+               updateRule.updateInnerNode(node);
+            }
+
+            trunkPath[depth] = null;
          }
-      } // end if depth
-      else
+      }
+
+      return updatedNode;
+   }
+
+   /**
+    * Updates bottom-up the inner nodes of the trunk above the given stripes.
+    *
+    * @return whether one of the stripes below the node has been updated.
+    */
+   private boolean updateTrunkInnerNodes(NODE node, int depth, int stripeIndexPrefix, boolean[] updatedStripes, UpdateRule<NODE> updateRule)
+   {
+      if (depth == stripeDepth)
+         return updatedStripes[stripeIndexPrefix];
+
+      boolean isUpdated = false;
+
+      if (node.hasAtLeastOneChild())
       {
-         // max level reached
-         if (pruneNode(node))
+         for (int childIndex = 0; childIndex < 8; childIndex++)
          {
-            numberOfPrunedNode++;
+            NODE child = node.getChild(childIndex);
+            if (child != null && updateTrunkInnerNodes(child, depth + 1, stripeIndexPrefix << 3 | childIndex, updatedStripes, updateRule))
+               isUpdated = true;
          }
       }
 
-      return numberOfPrunedNode;
+      if (isUpdated)
+         updateRule.updateInnerNode(node);
+
+      return isUpdated;
+   }
+
+   /**
+    * @return the node {@link #search(OcTreeKeyReadOnly)} would return when starting from the given
+    *         stripe root.
+    */
+   private NODE searchInStripe(NODE stripeRoot, OcTreeKeyReadOnly key)
+   {
+      NODE node = stripeRoot;
+
+      for (int depth = stripeDepth; depth < treeDepth; depth++)
+      {
+         NODE child = node.getChild(OcTreeKeyTools.computeChildIndex(key, depth, treeDepth));
+
+         if (child == null)
+            return node.hasAtLeastOneChild() ? null : node;
+
+         node = child;
+      }
+
+      return node;
+   }
+
+   /** @return the index of the stripe, the key of the stripe root in Morton order. */
+   private int computeStripeIndex(OcTreeKeyReadOnly key)
+   {
+      int stripeIndex = 0;
+      for (int depth = 0; depth < stripeDepth; depth++)
+         stripeIndex = stripeIndex << 3 | OcTreeKeyTools.computeChildIndex(key, depth, treeDepth);
+      return stripeIndex;
+   }
+
+   // The recycler is not thread-safe, it is locked during the concurrent updates.
+
+   private void copyRootIfPublished()
+   {
+      if (snapshotsEnabled && root.isPublished())
+         root = copyPublishedNode(root);
+   }
+
+   /** Creates a copy of the node sharing its children. */
+   private NODE copyPublishedNode(NODE node)
+   {
+      NODE copy = createNode();
+      copy.copyData(node);
+      copy.setProperties(node.getKey0(), node.getKey1(), node.getKey2(), node.getDepth(), nodeGeometry);
+
+      if (node.hasArrayForChildren())
+      {
+         allocateChildren(copy);
+
+         for (int childIndex = 0; childIndex < 8; childIndex++)
+         {
+            NODE child = node.getChild(childIndex);
+            if (child != null)
+               copy.setChild(childIndex, child);
+         }
+      }
+
+      return copy;
+   }
+
+   /** Marks the node and its descendants as published, the subtrees already published are skipped. */
+   private static <NODE extends AbstractOcTreeNode<NODE>> void markPublishedRecursively(NODE node)
+   {
+      if (node.isPublished())
+         return;
+
+      node.markPublished();
+
+      if (node.hasAtLeastOneChild())
+      {
+         for (int childIndex = 0; childIndex < 8; childIndex++)
+         {
+            NODE child = node.getChild(childIndex);
+            if (child != null)
+               markPublishedRecursively(child);
+         }
+      }
+   }
+
+   private void detachFromSnapshotsRecursively(NODE node)
+   {
+      if (!node.hasAtLeastOneChild())
+         return;
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         NODE child = getMutableChild(node, childIndex);
+         if (child != null)
+            detachFromSnapshotsRecursively(child);
+      }
+   }
+
+   private NODE createNode()
+   {
+      if (stripes == null)
+         return nodeRecycler.createNode();
+
+      synchronized (nodeRecycler)
+      {
+         return nodeRecycler.createNode();
+      }
+   }
+
+   private void allocateChildren(NODE node)
+   {
+      if (stripes == null)
+      {
+         nodeRecycler.allocateChildren(node);
+         return;
+      }
+
+      synchronized (nodeRecycler)
+      {
+         nodeRecycler.allocateChildren(node);
+      }
+   }
+
+   private void recycleNode(NODE node)
+   {
+      if (stripes == null)
+      {
+         nodeRecycler.recycleNode(node);
+         return;
+      }
+
+      synchronized (nodeRecycler)
+      {
+         nodeRecycler.recycleNode(node);
+      }
+   }
+
+   private void recycleChildren(NODE node)
+   {
+      if (stripes == null)
+      {
+         nodeRecycler.recycleChildren(node);
+         return;
+      }
+
+      synchronized (nodeRecycler)
+      {
+         nodeRecycler.recycleChildren(node);
+      }
+   }
+
+   /// recursive call of prune()
+   private void pruneRecursively(NODE node)
+   {
+      if (!node.hasAtLeastOneChild())
+         return;
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         NODE child = node.getChild(childIndex);
+         if (child != null)
+            pruneRecursively(child);
+      }
+
+      pruneNode(node);
    }
 
    /** recursive call of expand() */
@@ -751,5 +1717,277 @@ public abstract class AbstractOcTreeBase<NODE extends AbstractOcTreeNode<NODE>>
       }
    }
 
+   private static <NODE extends AbstractOcTreeNode<NODE>> int applyRecursively(NODE node, int depth, NodeOperation<NODE> preOrderOperation,
+                                                                              NodeOperation<NODE> postOrderOperation)
+   {
+      int result = preOrderOperation == null ? 0 : preOrderOperation.apply(node, depth);
+
+      if (node.hasAtLeastOneChild())
+      {
+         for (int childIndex = 0; childIndex < 8; childIndex++)
+         {
+            NODE child = node.getChild(childIndex);
+            if (child != null)
+               result += applyRecursively(child, depth + 1, preOrderOperation, postOrderOperation);
+         }
+      }
+
+      if (postOrderOperation != null)
+         result += postOrderOperation.apply(node, depth);
+
+      return result;
+   }
+
+   /**
+    * Same as {@link #pruneNode(AbstractOcTreeNode)} except that the tree size is not updated, and
+    * that it can be called concurrently on different nodes.
+    *
+    * @return the number of nodes removed.
+    */
+   private int pruneNodeConcurrently(NODE node)
+   {
+      if (!OcTreeNodeTools.isNodeCollapsible(node, 1.0e-7))
+         return 0;
+
+      node.copyData(node.getChild(0));
+
+      // The recycler is not thread-safe, the removed nodes are simply dropped when it is disabled.
+      if (!nodeRecycler.isRecyclingEnabled())
+         return removeLeafChildren(node, null);
+
+      synchronized (nodeRecycler)
+      {
+         return removeLeafChildren(node, nodeRecycler);
+      }
+   }
+
+   private static <NODE extends AbstractOcTreeNode<NODE>> int removeLeafChildren(NODE node, NodeRecycler<NODE> recycler)
+   {
+      int numberOfRemovedNodes = 0;
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         NODE removedChild = node.removeChild(childIndex);
+
+         if (removedChild != null)
+         {
+            numberOfRemovedNodes++;
+
+            if (recycler != null)
+            {
+               recycler.recycleChildren(removedChild);
+               recycler.recycleNode(removedChild);
+            }
+         }
+      }
+
+      if (recycler != null)
+         recycler.recycleChildren(node);
+      else
+         node.removeChildren();
+
+      return numberOfRemovedNodes;
+   }
+
+   /**
+    * Same as {@link #expandNode(AbstractOcTreeNode, int)} except that the tree size is not updated,
+    * and that it can be called concurrently on different nodes.
+    *
+    * @return the number of nodes created.
+    */
+   private int expandNodeConcurrently(NODE node, int depth)
+   {
+      // The recycler is not thread-safe, it is bypassed when disabled.
+      if (!nodeRecycler.isRecyclingEnabled())
+      {
+         if (!node.hasArrayForChildren())
+            node.allocateChildren();
+      }
+      else
+      {
+         synchronized (nodeRecycler)
+         {
+            assignChildrenArrayIfNecessary(node);
+         }
+      }
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         NODE newNode;
+
+         if (!nodeRecycler.isRecyclingEnabled())
+         {
+            newNode = nodeBuilder.createNode();
+         }
+         else
+         {
+            synchronized (nodeRecycler)
+            {
+               newNode = nodeRecycler.createNode();
+            }
+         }
+
+         newNode.setProperties(OcTreeKeyTools.computeChildKey(childIndex, node, depth + 1, treeDepth), depth + 1, nodeGeometry);
+         newNode.copyData(node);
+         node.setChild(childIndex, newNode);
+      }
+
+      return 8;
+   }
+
+   /**
+    * Applies the operations to a subtree, forking a task per child down to the parallel split depth.
+    */
+   private class NodeOperationTask extends RecursiveTask<Integer>
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final NODE node;
+      private final int depth;
+      private final NodeOperation<NODE> preOrderOperation;
+      private final NodeOperation<NODE> postOrderOperation;
+
+      public NodeOperationTask(NODE node, int depth, NodeOperation<NODE> preOrderOperation, NodeOperation<NODE> postOrderOperation)
+      {
+         this.node = node;
+         this.depth = depth;
+         this.preOrderOperation = preOrderOperation;
+         this.postOrderOperation = postOrderOperation;
+      }
+
+      @Override
+      protected Integer compute()
+      {
+         if (depth >= parallelSplitDepth)
+            return applyRecursively(node, depth, preOrderOperation, postOrderOperation);
+
+         int result = preOrderOperation == null ? 0 : preOrderOperation.apply(node, depth);
+
+         if (node.hasAtLeastOneChild())
+         {
+            List<NodeOperationTask> childTasks = new ArrayList<>(8);
+
+            for (int childIndex = 0; childIndex < 8; childIndex++)
+            {
+               NODE child = node.getChild(childIndex);
+               if (child != null)
+                  childTasks.add(new NodeOperationTask(child, depth + 1, preOrderOperation, postOrderOperation));
+            }
+
+            ForkJoinTask.invokeAll(childTasks);
+
+            for (int i = 0; i < childTasks.size(); i++)
+               result += childTasks.get(i).join();
+         }
+
+         if (postOrderOperation != null)
+            result += postOrderOperation.apply(node, depth);
+
+         return result;
+      }
+   }
+
+   /**
+    * Clones a subtree, forking a task per child down to the parallel split depth.
+    */
+   private class CloneTask extends RecursiveTask<NODE>
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final NODE original;
+      private final int depth;
+      private int numberOfClonedNodes = 0;
+
+      public CloneTask(NODE original, int depth)
+      {
+         this.original = original;
+         this.depth = depth;
+      }
+
+      @Override
+      protected NODE compute()
+      {
+         if (depth >= parallelSplitDepth || !original.hasAtLeastOneChild())
+         {
+            MutableInt mutableNumberOfClonedNodes = new MutableInt(0);
+            NODE clone = original.cloneRecursive(nodeBuilder, mutableNumberOfClonedNodes);
+            numberOfClonedNodes = mutableNumberOfClonedNodes.intValue();
+            return clone;
+         }
+
+         NODE clone = original.cloneWithoutChildren(nodeBuilder);
+         List<CloneTask> childTasks = new ArrayList<>(8);
+
+         for (int childIndex = 0; childIndex < 8; childIndex++)
+         {
+            NODE child = original.getChild(childIndex);
+            if (child != null)
+               childTasks.add(new CloneTask(child, depth + 1));
+         }
+
+         ForkJoinTask.invokeAll(childTasks);
+
+         numberOfClonedNodes = 1;
+
+         int taskIndex = 0;
+
+         for (int childIndex = 0; childIndex < 8; childIndex++)
+         {
+            if (original.getChild(childIndex) == null)
+               continue;
+
+            CloneTask childTask = childTasks.get(taskIndex++);
+            clone.setChild(childIndex, childTask.join());
+            numberOfClonedNodes += childTask.numberOfClonedNodes;
+         }
+
+         return clone;
+      }
+   }
+
+   /** Lock of a stripe, with the path to the stripe root for the update holding the lock. */
+   private class Stripe
+   {
+      @SuppressWarnings("unchecked")
+      private final NODE[] trunkPath = (NODE[]) Array.newInstance(getNodeClass(), stripeDepth);
+      /** Incremented when the stripe root is deleted, invalidating the stripe root found by the batches. */
+      private int numberOfRootDeletions = 0;
+   }
+
+   /** The state of the batch of concurrent updates of a thread, see {@link #startConcurrentUpdateBatch()}. */
+   private class ConcurrentUpdateBatch
+   {
+      private boolean isInProgress = false;
+      @SuppressWarnings("unchecked")
+      private final NODE[] stripeRoots = (NODE[]) Array.newInstance(getNodeClass(), stripes.length);
+      private final int[] numberOfStripeRootDeletions = new int[stripes.length];
+      private final boolean[] updatedStripes = new boolean[stripes.length];
+      /** The rule to update the trunk with, null if all the updates of the batch were lazy. */
+      private UpdateRule<NODE> innerNodeUpdateRule = null;
+
+      /** @return the stripe root found earlier in this batch, null if unknown or deleted since. To be called under the stripe lock. */
+      private NODE getStripeRoot(int stripeIndex, Stripe stripe)
+      {
+         NODE stripeRoot = stripeRoots[stripeIndex];
+         if (stripeRoot != null && numberOfStripeRootDeletions[stripeIndex] != stripe.numberOfRootDeletions)
+            return null;
+         return stripeRoot;
+      }
+
+      private void setStripeRoot(int stripeIndex, Stripe stripe, NODE stripeRoot)
+      {
+         stripeRoots[stripeIndex] = stripeRoot;
+         numberOfStripeRootDeletions[stripeIndex] = stripe.numberOfRootDeletions;
+      }
+
+      private void clear()
+      {
+         isInProgress = false;
+         Arrays.fill(stripeRoots, null);
+         Arrays.fill(updatedStripes, false);
+         innerNodeUpdateRule = null;
+      }
+   }
+
    protected abstract Class<NODE> getNodeClass();
 }
@@ -1,7 +1,9 @@
 package us.ihmc.jOctoMap.ocTree.baseImplementation;
 
-import java.util.HashMap;
+import java.lang.reflect.Array;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import us.ihmc.euclid.transform.interfaces.Transform;
 import us.ihmc.euclid.tuple3D.Point3D;
@@ -11,18 +13,26 @@ import us.ihmc.euclid.tuple3D.interfaces.Point3DReadOnly;
 import us.ihmc.euclid.tuple3D.interfaces.Vector3DReadOnly;
 import us.ihmc.jOctoMap.boundingBox.OcTreeBoundingBoxInterface;
 import us.ihmc.jOctoMap.key.KeyRayReadOnly;
+import us.ihmc.jOctoMap.key.MortonCodeLogOddsUpdateMap;
 import us.ihmc.jOctoMap.key.OcTreeKey;
 import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
 import us.ihmc.jOctoMap.key.OcTreeKeySet;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeyBooleanMap;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeySet;
 import us.ihmc.jOctoMap.node.baseImplementation.AbstractOccupancyOcTreeNode;
+import us.ihmc.jOctoMap.ocTree.FrozenOccupancyOcTree;
 import us.ihmc.jOctoMap.occupancy.OccupancyParameters;
 import us.ihmc.jOctoMap.occupancy.OccupancyParametersReadOnly;
+import us.ihmc.jOctoMap.pointCloud.DepthImage;
 import us.ihmc.jOctoMap.pointCloud.PointCloud;
 import us.ihmc.jOctoMap.pointCloud.Scan;
 import us.ihmc.jOctoMap.pointCloud.ScanCollection;
 import us.ihmc.jOctoMap.rules.SetOccupancyRule;
 import us.ihmc.jOctoMap.rules.UpdateOccupancyRule;
 import us.ihmc.jOctoMap.rules.interfaces.CollidableRule;
+import us.ihmc.jOctoMap.tools.OcTreeDepthImageTools;
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
+import us.ihmc.jOctoMap.tools.OcTreeNodeTools;
 import us.ihmc.jOctoMap.tools.OcTreeRayTools;
 import us.ihmc.jOctoMap.tools.OccupancyTools;
 
@@ -60,11 +70,32 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
    };
 
    protected boolean useChangeDetection;
-   /** Set of leaf keys (lowest level) which changed since last resetChangeDetection */
-   protected final Map<OcTreeKeyReadOnly, Boolean> changedKeys = new HashMap<>();
-
-   private final OcTreeKeySet freeCells = new OcTreeKeySet(1000000);
-   private final OcTreeKeySet occupiedCells = new OcTreeKeySet(1000000);
+   /** Set of leaf keys (lowest level), packed into longs, which changed since last resetChangeDetection */
+   protected final PackedOcTreeKeyBooleanMap changedKeys = new PackedOcTreeKeyBooleanMap();
+
+   private final PackedOcTreeKeySet freeCells = new PackedOcTreeKeySet(1024);
+   private final PackedOcTreeKeySet occupiedCells = new PackedOcTreeKeySet(1024);
+   /** Only used when the keys of this tree cannot be packed, see {@link OcTreeKeyTools#canPackKeys(int)}. */
+   private OcTreeKeySet unpackedFreeCells;
+   private OcTreeKeySet unpackedOccupiedCells;
+   private final OcTreeKey cellKey = new OcTreeKey();
+
+   /** When not null, the rays of the scans are traced in parallel using this pool. */
+   private ForkJoinPool rayTracingPool = null;
+   private boolean useMortonOrderedUpdates = false;
+   private boolean useLazyBatchUpdates = false;
+   private final MortonCodeLogOddsUpdateMap coalescedUpdates = new MortonCodeLogOddsUpdateMap(1024);
+   private long[] occupiedMortonCodes = new long[0];
+   private long[] freeMortonCodes = new long[0];
+   // Path from the root to the last updated cell, used when applying the updates in Morton order.
+   private NODE[] pathNodes;
+   private boolean[] isPathNodeDirty;
+   /** Range beyond which the misses are integrated at coarser depths, -1 to disable. */
+   private double coarseMissRange = -1.0;
+   /** The misses integrated at {@code treeDepth - i - 1}, see {@link #enableMultiResolutionMisses(double, int)}. */
+   private PackedOcTreeKeySet[] coarseFreeCells = new PackedOcTreeKeySet[0];
+   /** The rules and cells of each updating thread, null when the concurrent updates are disabled. */
+   private ThreadLocal<ConcurrentUpdateWorkspace> concurrentUpdateWorkspace = null;
 
    public AbstractOccupancyOcTree(double resolution)
    {
@@ -84,7 +115,16 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
 
    public AbstractOccupancyOcTree(AbstractOccupancyOcTree<NODE> other)
    {
-      super(other);
+      this(other, null);
+   }
+
+   /**
+    * Copies the other tree in parallel, see
+    * {@link AbstractOcTreeBase#AbstractOcTreeBase(AbstractOcTreeBase, ForkJoinPool)}.
+    */
+   public AbstractOccupancyOcTree(AbstractOccupancyOcTree<NODE> other, ForkJoinPool pool)
+   {
+      super(other, pool);
       occupancyParameters.set(other.occupancyParameters);
       updateOccupancyRule = new UpdateOccupancyRule<>(occupancyParameters);
       boundingBox = other.boundingBox.getCopy();
@@ -158,6 +198,46 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
       discretizePointCloud = enable;
    }
 
+   /**
+    * Integrates the misses further than {@code coarseMissRange} from the sensor at coarser depths
+    * when inserting a point cloud: the depth decreases by one at {@code coarseMissRange} and then at
+    * each doubling of the range, up to {@code maximumNumberOfLevels} levels above the leaves. The
+    * occupied endpoints are still updated at full depth. This mode takes precedence over the
+    * discretization of the point cloud and the parallel ray tracing.
+    * <p>
+    * A coarse miss updates the node at its depth if it is a leaf, else all the leaves below it except
+    * the occupied ones: a coarse miss is too imprecise to clear an occupied leaf.
+    * </p>
+    *
+    * @param coarseMissRange       range from which the misses are integrated at a coarser depth.
+    * @param maximumNumberOfLevels maximum number of levels above the leaves at which a miss is
+    *                              integrated.
+    */
+   public void enableMultiResolutionMisses(double coarseMissRange, int maximumNumberOfLevels)
+   {
+      if (!(coarseMissRange > 0.0))
+         throw new RuntimeException("The coarse miss range has to be positive, was: " + coarseMissRange);
+      if (maximumNumberOfLevels < 1 || maximumNumberOfLevels >= treeDepth)
+         throw new RuntimeException("The maximum number of levels has to be in [1, " + (treeDepth - 1) + "], was: " + maximumNumberOfLevels);
+
+      this.coarseMissRange = coarseMissRange;
+      coarseFreeCells = new PackedOcTreeKeySet[maximumNumberOfLevels];
+      for (int i = 0; i < maximumNumberOfLevels; i++)
+         coarseFreeCells[i] = new PackedOcTreeKeySet(1024);
+   }
+
+   /** Integrates all the misses at full depth, which is the default. */
+   public void disableMultiResolutionMisses()
+   {
+      coarseMissRange = -1.0;
+      coarseFreeCells = new PackedOcTreeKeySet[0];
+   }
+
+   public boolean isMultiResolutionMissesEnabled()
+   {
+      return coarseMissRange > 0.0;
+   }
+
    /**
     * Queries whether a node is occupied according to the tree's parameter for "occupancyThreshold"
     *
@@ -169,45 +249,158 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
       return OccupancyTools.isNodeOccupied(occupancyParameters, occupancyNode);
    }
 
+   /**
+    * Inserts the scans of the collection as a single update: a cell observed by several scans is
+    * updated at most once as occupied and once as free. See
+    * {@link #insertScansCoalesced(ScanCollection)} to update the cells once per scan.
+    */
    public void insertSweepCollection(ScanCollection scanCollection)
    {
-      freeCells.clear();
-      occupiedCells.clear();
+      if (concurrentUpdateWorkspace != null)
+      {
+         insertSweepCollectionConcurrently(scanCollection);
+         return;
+      }
+
+      clearCellsToUpdate();
 
       for (int i = 0; i < scanCollection.getNumberOfScans(); i++)
       {
          Scan scan = scanCollection.getScan(i);
-         PointCloud pointCloud = scan.getPointCloud();
-         Point3DReadOnly sensorOrigin = scan.getSensorOrigin();
-
-         if (discretizePointCloud)
-            OcTreeRayTools.computeDiscreteUpdate(sensorOrigin,
-                                                 pointCloud,
-                                                 freeCells,
-                                                 occupiedCells,
-                                                 boundingBox,
-                                                 minInsertRange,
-                                                 maxInsertRange,
-                                                 resolution,
-                                                 treeDepth);
-         else
-            OcTreeRayTools.computeUpdate(sensorOrigin,
-                                         pointCloud,
-                                         freeCells,
-                                         occupiedCells,
-                                         boundingBox,
-                                         minInsertRange,
-                                         maxInsertRange,
-                                         resolution,
-                                         treeDepth);
+         computeCellsToUpdate(scan.getPointCloud(), scan.getSensorOrigin());
       }
 
       // insert data into tree  -----------------------
-      for (OcTreeKeyReadOnly key : occupiedCells)
-         updateNode(key, true);
+      updateCells(freeCells, occupiedCells);
+   }
+
+   /**
+    * Inserts the scans as if each of them was inserted with
+    * {@link #insertPointCloud(PointCloud, Point3DReadOnly)}, one after the other: a cell is updated
+    * once per scan observing it, whereas {@link #insertSweepCollection(ScanCollection)} updates it
+    * once per collection.
+    * <p>
+    * The updates of each cell are accumulated over the scans, and each cell is then updated once in a
+    * single pass in Morton order, see
+    * {@link #updateCellsInMortonOrder(PackedOcTreeKeySet, PackedOcTreeKeySet)}. The resulting
+    * log-odds are the ones of the sequential insertion up to the rounding. The scans are inserted one
+    * at a time for the trees which keys cannot be packed, when the multi-resolution misses are
+    * enabled, and during the concurrent updates.
+    * </p>
+    */
+   public void insertScansCoalesced(ScanCollection scanCollection)
+   {
+      if (concurrentUpdateWorkspace != null || !OcTreeKeyTools.canPackKeys(treeDepth) || isMultiResolutionMissesEnabled())
+      {
+         for (int i = 0; i < scanCollection.getNumberOfScans(); i++)
+         {
+            Scan scan = scanCollection.getScan(i);
+            insertPointCloud(scan.getPointCloud(), scan.getSensorOrigin());
+         }
+         return;
+      }
+
+      float hitLogOdds = occupancyParameters.getUpdateLogOdds(true);
+      float missLogOdds = occupancyParameters.getUpdateLogOdds(false);
+      float minLogOdds = occupancyParameters.getMinLogOdds();
+      float maxLogOdds = occupancyParameters.getMaxLogOdds();
+
+      coalescedUpdates.clear();
+
+      for (int i = 0; i < scanCollection.getNumberOfScans(); i++)
+      {
+         Scan scan = scanCollection.getScan(i);
+         clearCellsToUpdate();
+         computePackedCellsToUpdate(scan.getPointCloud(), scan.getSensorOrigin(), freeCells, occupiedCells);
+
+         int numberOfOccupiedCells = occupiedCells.size();
+         int numberOfFreeCells = freeCells.size();
+
+         if (occupiedMortonCodes.length < numberOfOccupiedCells)
+            occupiedMortonCodes = new long[Math.max(numberOfOccupiedCells, 2 * occupiedMortonCodes.length)];
+         if (freeMortonCodes.length < numberOfFreeCells)
+            freeMortonCodes = new long[Math.max(numberOfFreeCells, 2 * freeMortonCodes.length)];
+
+         for (int j = 0; j < numberOfOccupiedCells; j++)
+            occupiedMortonCodes[j] = OcTreeKeyTools.packedKeyToMortonCode(occupiedCells.get(j));
+         for (int j = 0; j < numberOfFreeCells; j++)
+            freeMortonCodes[j] = OcTreeKeyTools.packedKeyToMortonCode(freeCells.get(j));
+         Arrays.sort(occupiedMortonCodes, 0, numberOfOccupiedCells);
+         Arrays.sort(freeMortonCodes, 0, numberOfFreeCells);
+
+         // The occupied and free cells of a scan are disjoint, the order in which they are integrated does not matter.
+         coalescedUpdates.integrate(occupiedMortonCodes, numberOfOccupiedCells, hitLogOdds, minLogOdds, maxLogOdds);
+         coalescedUpdates.integrate(freeMortonCodes, numberOfFreeCells, missLogOdds, minLogOdds, maxLogOdds);
+      }
+
+      if (coalescedUpdates.isEmpty())
+         return;
+
+      allocatePathNodes();
+      boolean createdRoot = createRootIfNecessary();
+      pathNodes[0] = root;
+      int pathDepth = 0;
+
+      for (int i = 0; i < coalescedUpdates.size(); i++)
+      {
+         long mortonCode = coalescedUpdates.getMortonCode(i);
+
+         if (i > 0)
+            pathDepth = updatePathInnerNodes(pathDepth, OcTreeKeyTools.computeMortonCommonDepth(coalescedUpdates.getMortonCode(i - 1), mortonCode, treeDepth));
+
+         OcTreeKeyTools.mortonCodeToKey(mortonCode, cellKey);
+         updateOccupancyRule.setUpdateLogOdds(coalescedUpdates.getShift(i), coalescedUpdates.getLowerBound(i), coalescedUpdates.getUpperBound(i));
+         pathDepth = updateCellFromPath(mortonCode, pathDepth, createdRoot && i == 0);
+      }
+
+      updatePathInnerNodes(pathDepth, -1);
+      updateOccupancyRule.setUpdateLogOdds(Float.NaN);
+   }
+
+   /**
+    * Computes the cells that {@link #insertSweepCollection(ScanCollection)} would update, without
+    * modifying the tree. The cells are then inserted with
+    * {@link #insertCells(PackedOcTreeKeySet, PackedOcTreeKeySet)}.
+    * <p>
+    * This can be called from a thread other than the one updating the tree, as long as the insertion
+    * settings, e.g. the bounding box or the insert ranges, are not changed meanwhile. The
+    * multi-resolution misses do not apply, all the misses are computed at the last level.
+    * </p>
+    *
+    * @param scanCollection      the scans to compute the cells of.
+    * @param freeCellsToPack     the cells traversed by the rays, cleared first.
+    * @param occupiedCellsToPack the cells containing the end points, cleared first.
+    */
+   public void computeCellsToUpdate(ScanCollection scanCollection, PackedOcTreeKeySet freeCellsToPack, PackedOcTreeKeySet occupiedCellsToPack)
+   {
+      if (!OcTreeKeyTools.canPackKeys(treeDepth))
+         throw new RuntimeException("The keys of a tree of depth " + treeDepth + " cannot be packed.");
+
+      freeCellsToPack.clear();
+      occupiedCellsToPack.clear();
+
+      for (int i = 0; i < scanCollection.getNumberOfScans(); i++)
+      {
+         Scan scan = scanCollection.getScan(i);
+         computePackedCellsToUpdate(scan.getPointCloud(), scan.getSensorOrigin(), freeCellsToPack, occupiedCellsToPack);
+      }
+   }
 
-      for (OcTreeKeyReadOnly key : freeCells)
-         updateNode(key, false);
+   /**
+    * Updates the cells computed with
+    * {@link #computeCellsToUpdate(ScanCollection, PackedOcTreeKeySet, PackedOcTreeKeySet)}, occupied
+    * cells first, as the insertion of a scan does.
+    */
+   public void insertCells(PackedOcTreeKeySet freeCells, PackedOcTreeKeySet occupiedCells)
+   {
+      if (concurrentUpdateWorkspace != null)
+      {
+         updateCellsConcurrently(freeCells, occupiedCells, concurrentUpdateWorkspace.get().cellKey);
+         return;
+      }
+
+      clearCellsToUpdate();
+      updateCells(freeCells, occupiedCells);
    }
 
    /**
@@ -221,21 +414,502 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
     * @param sensorOrigin measurement origin in global reference frame
     */
    public void insertPointCloud(PointCloud scan, Point3DReadOnly sensorOrigin)
+   {
+      if (concurrentUpdateWorkspace != null)
+      {
+         insertPointCloudConcurrently(scan, sensorOrigin);
+         return;
+      }
+
+      clearCellsToUpdate();
+      computeCellsToUpdate(scan, sensorOrigin);
+
+      // insert data into tree  -----------------------
+      updateCells(freeCells, occupiedCells);
+   }
+
+   /**
+    * Integrate a depth image, see {@link DepthImage}. As for
+    * {@link #insertPointCloud(PointCloud, Point3DReadOnly)}, each voxel is updated only once and the
+    * occupied nodes have a preference over the free ones. The free space is carved by projecting the
+    * voxels of the camera frustum into the image instead of tracing a ray per pixel, see
+    * {@link OcTreeDepthImageTools#computeUpdate(DepthImage, PackedOcTreeKeySet, PackedOcTreeKeySet, OcTreeBoundingBoxInterface, double, double, double, int)}.
+    * The bounding box and the insert ranges apply as for a point cloud.
+    * <p>
+    * For a tree deeper than {@link OcTreeKeyTools#MAX_PACKED_KEY_TREE_DEPTH}, the image is inserted as
+    * a point cloud.
+    * </p>
+    *
+    * @param depthImage the depth image with the camera intrinsics and pose in world.
+    */
+   public void insertDepthImage(DepthImage depthImage)
+   {
+      if (!OcTreeKeyTools.canPackKeys(treeDepth))
+      {
+         Scan scan = depthImage.toScan();
+         insertPointCloud(scan.getPointCloud(), scan.getSensorOrigin());
+         return;
+      }
+
+      if (concurrentUpdateWorkspace != null)
+      {
+         ConcurrentUpdateWorkspace workspace = concurrentUpdateWorkspace.get();
+         workspace.freeCells.clear();
+         workspace.occupiedCells.clear();
+         OcTreeDepthImageTools.computeUpdate(depthImage, workspace.freeCells, workspace.occupiedCells, boundingBox, minInsertRange, maxInsertRange, resolution,
+                                             treeDepth);
+         updateCellsConcurrently(workspace.freeCells, workspace.occupiedCells, workspace.cellKey);
+         return;
+      }
+
+      clearCellsToUpdate();
+      OcTreeDepthImageTools.computeUpdate(depthImage, freeCells, occupiedCells, boundingBox, minInsertRange, maxInsertRange, resolution, treeDepth);
+
+      // insert data into tree  -----------------------
+      updateCells(freeCells, occupiedCells);
+   }
+
+   /**
+    * Same as {@link #insertPointCloud(PointCloud, Point3DReadOnly)} for the concurrent updates: the
+    * cells to update are computed in the workspace of the calling thread and updated one at a time.
+    */
+   private void insertPointCloudConcurrently(PointCloud scan, Point3DReadOnly sensorOrigin)
+   {
+      ConcurrentUpdateWorkspace workspace = concurrentUpdateWorkspace.get();
+      workspace.freeCells.clear();
+      workspace.occupiedCells.clear();
+      computeCellsToUpdateConcurrently(scan, sensorOrigin, workspace);
+      updateCellsConcurrently(workspace.freeCells, workspace.occupiedCells, workspace.cellKey);
+   }
+
+   /** Same as {@link #insertSweepCollection(ScanCollection)} for the concurrent updates. */
+   private void insertSweepCollectionConcurrently(ScanCollection scanCollection)
+   {
+      ConcurrentUpdateWorkspace workspace = concurrentUpdateWorkspace.get();
+      workspace.freeCells.clear();
+      workspace.occupiedCells.clear();
+
+      for (int i = 0; i < scanCollection.getNumberOfScans(); i++)
+      {
+         Scan scan = scanCollection.getScan(i);
+         computeCellsToUpdateConcurrently(scan.getPointCloud(), scan.getSensorOrigin(), workspace);
+      }
+
+      updateCellsConcurrently(workspace.freeCells, workspace.occupiedCells, workspace.cellKey);
+   }
+
+   private void computeCellsToUpdateConcurrently(PointCloud scan, Point3DReadOnly sensorOrigin, ConcurrentUpdateWorkspace workspace)
+   {
+      if (discretizePointCloud)
+         OcTreeRayTools.computeDiscreteUpdate(sensorOrigin, scan, workspace.freeCells, workspace.occupiedCells, boundingBox, minInsertRange, maxInsertRange,
+                                              resolution, treeDepth);
+      else
+         OcTreeRayTools.computeRayFanUpdate(sensorOrigin, scan, workspace.freeCells, workspace.occupiedCells, boundingBox, minInsertRange, maxInsertRange,
+                                            resolution, treeDepth);
+   }
+
+   /** Updates the cells in a single batch, see {@link AbstractOcTreeBase#startConcurrentUpdateBatch()}. */
+   private void updateCellsConcurrently(PackedOcTreeKeySet freeCellsToUpdate, PackedOcTreeKeySet occupiedCellsToUpdate, OcTreeKey cellKey)
+   {
+      startConcurrentUpdateBatch();
+
+      for (int i = 0; i < occupiedCellsToUpdate.size(); i++)
+      {
+         occupiedCellsToUpdate.get(i, cellKey);
+         updateNode(cellKey, true);
+      }
+
+      for (int i = 0; i < freeCellsToUpdate.size(); i++)
+      {
+         freeCellsToUpdate.get(i, cellKey);
+         updateNode(cellKey, false);
+      }
+
+      finishConcurrentUpdateBatch();
+   }
+
+   private void clearCellsToUpdate()
    {
       freeCells.clear();
       occupiedCells.clear();
+      for (PackedOcTreeKeySet levelFreeCells : coarseFreeCells)
+         levelFreeCells.clear();
 
-      if (discretizePointCloud)
-         OcTreeRayTools.computeDiscreteUpdate(sensorOrigin, scan, freeCells, occupiedCells, boundingBox, minInsertRange, maxInsertRange, resolution, treeDepth);
+      if (unpackedFreeCells != null)
+      {
+         unpackedFreeCells.clear();
+         unpackedOccupiedCells.clear();
+      }
+   }
+
+   private void computeCellsToUpdate(PointCloud scan, Point3DReadOnly sensorOrigin)
+   {
+      if (OcTreeKeyTools.canPackKeys(treeDepth))
+      {
+         if (isMultiResolutionMissesEnabled())
+         {
+            OcTreeRayTools.computeMultiResolutionUpdate(sensorOrigin, scan, freeCells, coarseFreeCells, occupiedCells, boundingBox, minInsertRange,
+                                                        maxInsertRange, coarseMissRange, resolution, treeDepth);
+         }
+         else
+         {
+            computePackedCellsToUpdate(scan, sensorOrigin, freeCells, occupiedCells);
+         }
+      }
       else
-         OcTreeRayTools.computeUpdate(sensorOrigin, scan, freeCells, occupiedCells, boundingBox, minInsertRange, maxInsertRange, resolution, treeDepth);
+      {
+         if (unpackedFreeCells == null)
+         {
+            unpackedFreeCells = new OcTreeKeySet(1000000);
+            unpackedOccupiedCells = new OcTreeKeySet(1000000);
+         }
 
-      // insert data into tree  -----------------------
-      for (OcTreeKeyReadOnly key : occupiedCells)
-         updateNode(key, true);
+         if (discretizePointCloud)
+            OcTreeRayTools.computeDiscreteUpdate(sensorOrigin, scan, unpackedFreeCells, unpackedOccupiedCells, boundingBox, minInsertRange, maxInsertRange,
+                                                 resolution, treeDepth);
+         else
+            OcTreeRayTools.computeUpdate(sensorOrigin, scan, unpackedFreeCells, unpackedOccupiedCells, boundingBox, minInsertRange, maxInsertRange, resolution,
+                                         treeDepth);
+      }
+   }
+
+   private void computePackedCellsToUpdate(PointCloud scan, Point3DReadOnly sensorOrigin, PackedOcTreeKeySet freeCellsToPack,
+                                           PackedOcTreeKeySet occupiedCellsToPack)
+   {
+      if (rayTracingPool != null)
+      {
+         if (discretizePointCloud)
+            OcTreeRayTools.computeDiscreteUpdate(sensorOrigin, scan, freeCellsToPack, occupiedCellsToPack, boundingBox, minInsertRange, maxInsertRange,
+                                                 resolution, treeDepth, rayTracingPool);
+         else
+            OcTreeRayTools.computeUpdate(sensorOrigin, scan, freeCellsToPack, occupiedCellsToPack, boundingBox, minInsertRange, maxInsertRange, resolution,
+                                         treeDepth, rayTracingPool);
+      }
+      else if (discretizePointCloud)
+      {
+         OcTreeRayTools.computeDiscreteUpdate(sensorOrigin, scan, freeCellsToPack, occupiedCellsToPack, boundingBox, minInsertRange, maxInsertRange, resolution,
+                                              treeDepth);
+      }
+      else
+      {
+         OcTreeRayTools.computeRayFanUpdate(sensorOrigin, scan, freeCellsToPack, occupiedCellsToPack, boundingBox, minInsertRange, maxInsertRange, resolution,
+                                            treeDepth);
+      }
+   }
+
+   /** Updates the cells computed with {@link #computeCellsToUpdate(PointCloud, Point3DReadOnly)}, occupied cells first. */
+   private void updateCells(PackedOcTreeKeySet freeCellsToUpdate, PackedOcTreeKeySet occupiedCellsToUpdate)
+   {
+      if (useMortonOrderedUpdates)
+      {
+         updateCellsInMortonOrder(freeCellsToUpdate, occupiedCellsToUpdate);
+      }
+      else if (useLazyBatchUpdates)
+      {
+         updateCellsLazily(freeCellsToUpdate, occupiedCellsToUpdate);
+      }
+      else
+      {
+         for (int i = 0; i < occupiedCellsToUpdate.size(); i++)
+         {
+            occupiedCellsToUpdate.get(i, cellKey);
+            updateNode(cellKey, true);
+         }
+
+         for (int i = 0; i < freeCellsToUpdate.size(); i++)
+         {
+            freeCellsToUpdate.get(i, cellKey);
+            updateNode(cellKey, false);
+         }
+      }
 
-      for (OcTreeKeyReadOnly key : freeCells)
-         updateNode(key, false);
+      if (unpackedFreeCells != null)
+      {
+         updateOccupancyRule.setPerformLazyUpdate(useLazyBatchUpdates);
+
+         for (OcTreeKeyReadOnly key : unpackedOccupiedCells)
+            updateNode(key, true);
+
+         for (OcTreeKeyReadOnly key : unpackedFreeCells)
+            updateNode(key, false);
+
+         if (useLazyBatchUpdates)
+         { // These keys cannot be Morton coded, the whole tree is updated.
+            updateOccupancyRule.setPerformLazyUpdate(false);
+            updateInnerOccupancy();
+            prune();
+         }
+      }
+
+      updateCoarseCells();
+   }
+
+   /**
+    * Updates the cells one at a time from the root without updating their ancestors, which are then
+    * updated and pruned in a single pass over the subtrees containing the cells, see
+    * {@link #updateInnerNodes(long[], int, int, us.ihmc.jOctoMap.rules.interfaces.UpdateRule)}.
+    */
+   private void updateCellsLazily(PackedOcTreeKeySet freeCellsToUpdate, PackedOcTreeKeySet occupiedCellsToUpdate)
+   {
+      int numberOfOccupiedCells = occupiedCellsToUpdate.size();
+      int numberOfCells = numberOfOccupiedCells + freeCellsToUpdate.size();
+
+      if (numberOfCells == 0)
+         return;
+
+      updateOccupancyRule.setPerformLazyUpdate(true);
+
+      for (int i = 0; i < numberOfOccupiedCells; i++)
+      {
+         occupiedCellsToUpdate.get(i, cellKey);
+         updateNode(cellKey, true);
+      }
+
+      for (int i = 0; i < freeCellsToUpdate.size(); i++)
+      {
+         freeCellsToUpdate.get(i, cellKey);
+         updateNode(cellKey, false);
+      }
+
+      updateOccupancyRule.setPerformLazyUpdate(false);
+
+      if (occupiedMortonCodes.length < numberOfCells)
+         occupiedMortonCodes = new long[Math.max(numberOfCells, 2 * occupiedMortonCodes.length)];
+
+      for (int i = 0; i < numberOfOccupiedCells; i++)
+         occupiedMortonCodes[i] = OcTreeKeyTools.packedKeyToMortonCode(occupiedCellsToUpdate.get(i));
+      for (int i = numberOfOccupiedCells; i < numberOfCells; i++)
+         occupiedMortonCodes[i] = OcTreeKeyTools.packedKeyToMortonCode(freeCellsToUpdate.get(i - numberOfOccupiedCells));
+      Arrays.sort(occupiedMortonCodes, 0, numberOfCells);
+
+      updateInnerNodes(occupiedMortonCodes, numberOfCells, treeDepth, updateOccupancyRule);
+   }
+
+   /** Integrates the coarse misses, see {@link #enableMultiResolutionMisses(double, int)}. */
+   private void updateCoarseCells()
+   {
+      updateOccupancyRule.setUpdateLogOdds(occupancyParameters.getUpdateLogOdds(false));
+
+      for (int i = 0; i < coarseFreeCells.length; i++)
+      {
+         int level = i + 1;
+         int halfNodeSize = 1 << (level - 1);
+         PackedOcTreeKeySet levelFreeCells = coarseFreeCells[i];
+
+         for (int j = 0; j < levelFreeCells.size(); j++)
+         {
+            long coarseCell = levelFreeCells.get(j);
+            // Center key of the node, as adjustKeyAtDepth gives it.
+            cellKey.set((OcTreeKeyTools.unpackKey0(coarseCell) << level) + halfNodeSize,
+                        (OcTreeKeyTools.unpackKey1(coarseCell) << level) + halfNodeSize,
+                        (OcTreeKeyTools.unpackKey2(coarseCell) << level) + halfNodeSize);
+            boolean createdRoot = createRootIfNecessary();
+            updateCoarseMissRecursively(root, createdRoot, cellKey, 0, treeDepth - level);
+         }
+      }
+   }
+
+   private void updateCoarseMissRecursively(NODE node, boolean nodeJustCreated, OcTreeKeyReadOnly key, int depth, int missDepth)
+   {
+      if (depth == missDepth)
+      {
+         applyCoarseMiss(node, nodeJustCreated, key, depth);
+         return;
+      }
+
+      int childIndex = OcTreeKeyTools.computeChildIndex(key, depth, treeDepth);
+      boolean createdChild = false;
+
+      if (!OcTreeNodeTools.nodeChildExists(node, childIndex))
+      {
+         if (!node.hasAtLeastOneChild() && !nodeJustCreated)
+         { // expand pruned node
+            expandNode(node, depth);
+         }
+         else
+         { // not a pruned node, create requested child
+            createNodeChild(node, childIndex, depth + 1);
+            createdChild = true;
+         }
+      }
+
+      updateCoarseMissRecursively(getMutableChild(node, childIndex), createdChild, key, depth + 1, missDepth);
+      updateOccupancyRule.updateInnerNode(node);
+      pruneNode(node);
+   }
+
+   private void applyCoarseMiss(NODE node, boolean nodeJustCreated, OcTreeKeyReadOnly key, int depth)
+   {
+      if (!node.hasAtLeastOneChild())
+      {
+         if (nodeJustCreated || !isNodeOccupied(node))
+            updateOccupancyRule.updateLeaf(node, key, nodeJustCreated);
+         return;
+      }
+
+      OcTreeKey childKey = new OcTreeKey();
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         // The miss covers the whole node, the unknown children are created as well.
+         boolean createdChild = !OcTreeNodeTools.nodeChildExists(node, childIndex);
+         if (createdChild)
+            createNodeChild(node, childIndex, depth + 1);
+         OcTreeKeyTools.computeChildKey(childIndex, key, childKey, depth + 1, treeDepth);
+         applyCoarseMiss(getMutableChild(node, childIndex), createdChild, childKey, depth + 1);
+      }
+
+      updateOccupancyRule.updateInnerNode(node);
+      pruneNode(node);
+   }
+
+   /**
+    * Updates the cells in a single pass, the keys being sorted by Morton code, see
+    * {@link OcTreeKeyTools#computeMortonCode(int, int, int)}. Consecutive cells share the path from
+    * the root down to their deepest common ancestor which is only descended once. The inner nodes are
+    * updated and pruned once the pass leaves their subtree instead of after each cell.
+    */
+   private void updateCellsInMortonOrder(PackedOcTreeKeySet freeCellsToUpdate, PackedOcTreeKeySet occupiedCellsToUpdate)
+   {
+      int numberOfOccupiedCells = occupiedCellsToUpdate.size();
+      int numberOfFreeCells = freeCellsToUpdate.size();
+
+      if (numberOfOccupiedCells + numberOfFreeCells == 0)
+         return;
+
+      if (occupiedMortonCodes.length < numberOfOccupiedCells)
+         occupiedMortonCodes = new long[Math.max(numberOfOccupiedCells, 2 * occupiedMortonCodes.length)];
+      if (freeMortonCodes.length < numberOfFreeCells)
+         freeMortonCodes = new long[Math.max(numberOfFreeCells, 2 * freeMortonCodes.length)];
+
+      for (int i = 0; i < numberOfOccupiedCells; i++)
+         occupiedMortonCodes[i] = OcTreeKeyTools.packedKeyToMortonCode(occupiedCellsToUpdate.get(i));
+      for (int i = 0; i < numberOfFreeCells; i++)
+         freeMortonCodes[i] = OcTreeKeyTools.packedKeyToMortonCode(freeCellsToUpdate.get(i));
+      Arrays.sort(occupiedMortonCodes, 0, numberOfOccupiedCells);
+      Arrays.sort(freeMortonCodes, 0, numberOfFreeCells);
+
+      allocatePathNodes();
+      boolean createdRoot = createRootIfNecessary();
+      pathNodes[0] = root;
+      int pathDepth = 0;
+
+      float hitLogOdds = occupancyParameters.getUpdateLogOdds(true);
+      float missLogOdds = occupancyParameters.getUpdateLogOdds(false);
+      int occupiedIndex = 0;
+      int freeIndex = 0;
+      long previousMortonCode = 0L;
+
+      // Merge the two sorted lists. A cell can be both free and occupied when inserting several scans at once, the hit is then
+      // applied before the miss as when updating all the occupied cells before the free cells.
+      while (occupiedIndex < numberOfOccupiedCells || freeIndex < numberOfFreeCells)
+      {
+         boolean occupied = freeIndex == numberOfFreeCells
+               || (occupiedIndex < numberOfOccupiedCells && occupiedMortonCodes[occupiedIndex] <= freeMortonCodes[freeIndex]);
+         long mortonCode = occupied ? occupiedMortonCodes[occupiedIndex++] : freeMortonCodes[freeIndex++];
+
+         if (occupiedIndex + freeIndex > 1)
+         { // The subtrees below the common ancestor with the previous cell are done.
+            int commonDepth = OcTreeKeyTools.computeMortonCommonDepth(previousMortonCode, mortonCode, treeDepth);
+            pathDepth = updatePathInnerNodes(pathDepth, commonDepth);
+         }
+
+         previousMortonCode = mortonCode;
+         OcTreeKeyTools.mortonCodeToKey(mortonCode, cellKey);
+         updateOccupancyRule.setUpdateLogOdds(occupied ? hitLogOdds : missLogOdds);
+         pathDepth = updateCellFromPath(mortonCode, pathDepth, createdRoot && occupiedIndex + freeIndex == 1);
+      }
+
+      updatePathInnerNodes(pathDepth, -1);
+   }
+
+   private void allocatePathNodes()
+   {
+      if (pathNodes == null)
+      {
+         @SuppressWarnings("unchecked")
+         NODE[] newPathNodes = (NODE[]) Array.newInstance(getNodeClass(), treeDepth + 1);
+         pathNodes = newPathNodes;
+         isPathNodeDirty = new boolean[treeDepth + 1];
+      }
+   }
+
+   /**
+    * Descends from the node at {@code pathDepth} in {@link #pathNodes} to the cell, creating or
+    * expanding nodes as needed, and updates it. Performs the same early abort as
+    * {@link #updateNodeInternal(OcTreeKeyReadOnly, us.ihmc.jOctoMap.rules.interfaces.UpdateRule, us.ihmc.jOctoMap.rules.interfaces.EarlyAbortRule)}.
+    *
+    * @return the depth of the last node of the path.
+    */
+   private int updateCellFromPath(long mortonCode, int pathDepth, boolean rootJustCreated)
+   {
+      int depth = pathDepth;
+      NODE node = pathNodes[depth];
+      boolean nodeJustCreated = rootJustCreated;
+
+      while (true)
+      {
+         // A node without children is either a leaf or a pruned node, that's the node search(key) would return.
+         if (!nodeJustCreated && !node.hasAtLeastOneChild() && updateOccupancyRule.shouldAbortFullDepthUpdate(node))
+            return depth;
+
+         if (depth == treeDepth)
+            break;
+
+         int childIndex = OcTreeKeyTools.computeMortonChildIndex(mortonCode, depth, treeDepth);
+         boolean createdChild = false;
+
+         if (!OcTreeNodeTools.nodeChildExists(node, childIndex))
+         {
+            if (!node.hasAtLeastOneChild() && !nodeJustCreated)
+            { // expand pruned node
+               expandNode(node, depth);
+            }
+            else
+            { // not a pruned node, create requested child
+               createNodeChild(node, childIndex, depth + 1);
+               createdChild = true;
+            }
+         }
+
+         if (!createdChild && isSnapshotsEnabled())
+         { // Same early abort as above, evaluated before the child gets copied for the snapshots.
+            NODE child = node.getChild(childIndex);
+            if (!child.hasAtLeastOneChild() && updateOccupancyRule.shouldAbortFullDepthUpdate(child))
+               return depth;
+         }
+
+         node = getMutableChild(node, childIndex);
+         nodeJustCreated = createdChild;
+         pathNodes[++depth] = node;
+      }
+
+      updateOccupancyRule.updateLeaf(node, cellKey, nodeJustCreated);
+
+      for (int ancestorDepth = depth - 1; ancestorDepth >= 0 && !isPathNodeDirty[ancestorDepth]; ancestorDepth--)
+         isPathNodeDirty[ancestorDepth] = true;
+
+      return depth;
+   }
+
+   /**
+    * Updates and prunes, bottom-up, the modified inner nodes of the path deeper than the given depth.
+    *
+    * @return the new depth of the last node of the path.
+    */
+   private int updatePathInnerNodes(int pathDepth, int commonDepth)
+   {
+      for (int depth = pathDepth; depth > commonDepth; depth--)
+      {
+         if (isPathNodeDirty[depth])
+         {
+            isPathNodeDirty[depth] = false;
+            updateOccupancyRule.updateInnerNode(pathNodes[depth]);
+            pruneNode(pathNodes[depth]);
+         }
+      }
+
+      return Math.min(pathDepth, commonDepth);
    }
 
    /**
@@ -316,8 +990,9 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
    public NODE setNodeValue(OcTreeKeyReadOnly key, float logOddsValue)
    {
       // clamp log odds within range:
-      setOccupancyRule.setNewLogOdds(OccupancyTools.clipLogOddsToMinMax(occupancyParameters, logOddsValue));
-      return updateNodeInternal(key, setOccupancyRule, null);
+      SetOccupancyRule<NODE> rule = getSetOccupancyRule();
+      rule.setNewLogOdds(OccupancyTools.clipLogOddsToMinMax(occupancyParameters, logOddsValue));
+      return updateNodeInternal(key, rule, null);
    }
 
    /**
@@ -346,8 +1021,9 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
    public NODE setNodeValue(double x, double y, double z, float logOddsValue)
    {
       // clamp log odds within range:
-      setOccupancyRule.setNewLogOdds(OccupancyTools.clipLogOddsToMinMax(occupancyParameters, logOddsValue));
-      return updateNodeInternal(x, y, z, setOccupancyRule, null);
+      SetOccupancyRule<NODE> rule = getSetOccupancyRule();
+      rule.setNewLogOdds(OccupancyTools.clipLogOddsToMinMax(occupancyParameters, logOddsValue));
+      return updateNodeInternal(x, y, z, rule, null);
    }
 
    /**
@@ -360,8 +1036,9 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
     */
    public NODE updateNode(OcTreeKeyReadOnly key, float logOddsUpdate)
    {
-      updateOccupancyRule.setUpdateLogOdds(logOddsUpdate);
-      return updateNodeInternal(key, updateOccupancyRule, updateOccupancyRule);
+      UpdateOccupancyRule<NODE> rule = getUpdateOccupancyRule();
+      rule.setUpdateLogOdds(logOddsUpdate);
+      return updateNodeInternal(key, rule, rule);
    }
 
    /**
@@ -374,8 +1051,9 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
     */
    public NODE updateNode(Point3DReadOnly coordinate, float logOddsUpdate)
    {
-      updateOccupancyRule.setUpdateLogOdds(logOddsUpdate);
-      return updateNodeInternal(coordinate, updateOccupancyRule, updateOccupancyRule);
+      UpdateOccupancyRule<NODE> rule = getUpdateOccupancyRule();
+      rule.setUpdateLogOdds(logOddsUpdate);
+      return updateNodeInternal(coordinate, rule, rule);
    }
 
    /**
@@ -390,8 +1068,9 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
     */
    public NODE updateNode(double x, double y, double z, float logOddsUpdate)
    {
-      updateOccupancyRule.setUpdateLogOdds(logOddsUpdate);
-      return updateNodeInternal(x, y, z, updateOccupancyRule, updateOccupancyRule);
+      UpdateOccupancyRule<NODE> rule = getUpdateOccupancyRule();
+      rule.setUpdateLogOdds(logOddsUpdate);
+      return updateNodeInternal(x, y, z, rule, rule);
    }
 
    /**
@@ -444,17 +1123,10 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
     */
    public void toMaxLikelihood()
    {
-      if (root == null)
-         return;
-
-      // convert bottom up
-      for (int depth = treeDepth; depth > 0; depth--)
-      {
-         toMaxLikelihoodRecurs(root, 0, depth);
-      }
+      detachFromSnapshots();
 
-      // convert root
-      OccupancyTools.nodeToMaxLikelihood(occupancyParameters, root);
+      if (root != null)
+         toMaxLikelihoodRecurs(root);
    }
 
    /**
@@ -529,6 +1201,56 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
       return OcTreeRayTools.castRay(root, origin, direction, endToPack, ignoreUnknownCells, maxRange, collidableRule, resolution, treeDepth);
    }
 
+   /**
+    * Same as {@link #castRay(Point3DReadOnly, Vector3DReadOnly, Point3DBasics, boolean, double)}
+    * skipping in one step the pruned free nodes and, when unknown cells are ignored, the inner nodes
+    * which children are all free. Much faster for long rays through free space.
+    */
+   public boolean castRayHierarchical(Point3DReadOnly origin, Vector3DReadOnly direction, Point3DBasics endToPack, boolean ignoreUnknownCells, double maxRange)
+   {
+      return OcTreeRayTools.castRayHierarchical(root, origin, direction, endToPack, ignoreUnknownCells, maxRange, collidableRule, resolution, treeDepth);
+   }
+
+   /**
+    * Casts a batch of rays in parallel using the common {@link ForkJoinPool}, see
+    * {@link #castRays(double[], double[], int, boolean, double, double[], boolean[], double[], ForkJoinPool)}.
+    */
+   public void castRays(double[] origins, double[] directions, int numberOfRays, boolean ignoreUnknownCells, double maxRange, double[] endsToPack,
+                        boolean[] hitsToPack, double[] distancesToPack)
+   {
+      castRays(origins, directions, numberOfRays, ignoreUnknownCells, maxRange, endsToPack, hitsToPack, distancesToPack, ForkJoinPool.commonPool());
+   }
+
+   /**
+    * Casts a batch of rays with {@link #castRayHierarchical(Point3DReadOnly, Vector3DReadOnly, Point3DBasics, boolean, double)}.
+    * The rays and results are stored in primitive arrays, 3 values per ray for the origins, directions
+    * and ends. The tree must not be modified while casting.
+    *
+    * @param endsToPack      the center of the last cell of each ray, {@code NaN} if it could not be
+    *                        computed.
+    * @param hitsToPack      whether each ray hit an occupied cell.
+    * @param distancesToPack the distance from the origin to the end of each ray. Can be {@code null}.
+    * @param pool            the pool used to cast the rays, {@code null} to cast them on the calling
+    *                        thread.
+    */
+   public void castRays(double[] origins, double[] directions, int numberOfRays, boolean ignoreUnknownCells, double maxRange, double[] endsToPack,
+                        boolean[] hitsToPack, double[] distancesToPack, ForkJoinPool pool)
+   {
+      OcTreeRayTools.castRays(root,
+                              origins,
+                              directions,
+                              numberOfRays,
+                              ignoreUnknownCells,
+                              maxRange,
+                              collidableRule,
+                              resolution,
+                              treeDepth,
+                              endsToPack,
+                              hitsToPack,
+                              distancesToPack,
+                              pool);
+   }
+
    public boolean getRayIntersection(Point3DReadOnly origin, Vector3DReadOnly direction, Point3DReadOnly center, Point3DBasics intersection)
    {
       return getRayIntersection(origin, direction, center, intersection, 0.0);
@@ -555,6 +1277,17 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
       return OcTreeRayTools.getRayIntersection(origin, direction, center, intersectionToPack, delta, resolution);
    }
 
+   /**
+    * Creates an immutable copy of this tree using a pointerless breadth-first layout, faster and
+    * denser for read-only consumers.
+    *
+    * @return the frozen copy of this tree.
+    */
+   public FrozenOccupancyOcTree freeze()
+   {
+      return new FrozenOccupancyOcTree(this);
+   }
+
    public void disableBoundingBox()
    {
       boundingBox = null;
@@ -591,8 +1324,134 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
       return boundingBox == null || boundingBox.isInBoundingBox(candidate);
    }
 
+   /**
+    * Changes how {@link #insertPointCloud(PointCloud, Point3DReadOnly)} and
+    * {@link #insertSweepCollection(ScanCollection)} trace the rays, either in parallel using the common
+    * {@link ForkJoinPool} or sequential (default). Only the ray tracing is parallelized, the tree is
+    * still updated by the calling thread.
+    *
+    * @param enable whether to trace the rays in parallel or sequential.
+    */
+   public void enableParallelRayTracing(boolean enable)
+   {
+      enableParallelRayTracing(enable ? ForkJoinPool.commonPool() : null);
+   }
+
+   /**
+    * Same as {@link #enableParallelRayTracing(boolean)} using the given pool, {@code null} disabling
+    * the parallel ray tracing.
+    */
+   public void enableParallelRayTracing(ForkJoinPool pool)
+   {
+      rayTracingPool = pool;
+   }
+
+   public boolean isParallelRayTracingEnabled()
+   {
+      return rayTracingPool != null;
+   }
+
+   /**
+    * Enables the concurrent updates with one stripe per octant of the root, see
+    * {@link #enableConcurrentUpdates(int)}.
+    */
+   public void enableConcurrentUpdates()
+   {
+      enableConcurrentUpdates(1);
+   }
+
+   /**
+    * Enables the concurrent updates, e.g. for several sensors inserting into the same tree: the
+    * {@code updateNode} and {@code setNodeValue} methods, {@link #insertPointCloud(PointCloud, Point3DReadOnly)},
+    * {@link #insertSweepCollection(ScanCollection)}, {@link #insertDepthImage(DepthImage)} and
+    * {@link #insertCells(PackedOcTreeKeySet, PackedOcTreeKeySet)} can then be called from several
+    * threads. The updates of different subtrees at {@code stripeDepth} run in parallel, see
+    * {@link AbstractOcTreeBase#enableConcurrentUpdates(int)}.
+    * <p>
+    * In this mode, the scans are inserted one cell at a time: the multi-resolution misses, the
+    * parallel ray tracing, and the Morton-ordered, coalesced and lazy batch updates do not apply. Change
+    * detection is not supported. The other methods must not be called while updates are running.
+    * </p>
+    *
+    * @param stripeDepth the depth of the subtrees which can be updated in parallel, in [0,
+    *                    {@link AbstractOcTreeBase#MAX_STRIPE_DEPTH}].
+    */
+   @Override
+   public void enableConcurrentUpdates(int stripeDepth)
+   {
+      if (useChangeDetection)
+         throw new RuntimeException("The concurrent updates are not supported with change detection.");
+
+      super.enableConcurrentUpdates(stripeDepth);
+      concurrentUpdateWorkspace = ThreadLocal.withInitial(ConcurrentUpdateWorkspace::new);
+   }
+
+   @Override
+   public void disableConcurrentUpdates()
+   {
+      super.disableConcurrentUpdates();
+      concurrentUpdateWorkspace = null;
+   }
+
+   private UpdateOccupancyRule<NODE> getUpdateOccupancyRule()
+   {
+      return concurrentUpdateWorkspace == null ? updateOccupancyRule : concurrentUpdateWorkspace.get().updateOccupancyRule;
+   }
+
+   private SetOccupancyRule<NODE> getSetOccupancyRule()
+   {
+      return concurrentUpdateWorkspace == null ? setOccupancyRule : concurrentUpdateWorkspace.get().setOccupancyRule;
+   }
+
+   /**
+    * Sets whether {@link #insertPointCloud(PointCloud, Point3DReadOnly)} and
+    * {@link #insertSweepCollection(ScanCollection)} apply the updates in a single pass over the cells
+    * sorted in Z-order, or one cell at a time from the root (default).
+    */
+   public void enableMortonOrderedUpdates(boolean enable)
+   {
+      useMortonOrderedUpdates = enable;
+   }
+
+   public boolean isMortonOrderedUpdatesEnabled()
+   {
+      return useMortonOrderedUpdates;
+   }
+
+   /**
+    * Sets whether the cells inserted by {@link #insertPointCloud(PointCloud, Point3DReadOnly)},
+    * {@link #insertSweepCollection(ScanCollection)} and {@link #insertDepthImage(DepthImage)} are
+    * updated without updating their ancestors, which are then updated and pruned once at the end of
+    * the insertion (default: false). Only the subtrees containing the cells are visited, except for a
+    * tree deeper than {@link OcTreeKeyTools#MAX_PACKED_KEY_TREE_DEPTH} for which the whole tree is
+    * updated.
+    * <p>
+    * For the other trees, this only applies when the Morton ordered updates are disabled, these already update each inner
+    * node once per insertion, see {@link #enableMortonOrderedUpdates(boolean)}.
+    * </p>
+    */
+   public void enableLazyBatchUpdates(boolean enable)
+   {
+      useLazyBatchUpdates = enable;
+   }
+
+   public boolean isLazyBatchUpdatesEnabled()
+   {
+      return useLazyBatchUpdates;
+   }
+
+
+   /**
+    * Enables the tracking of the leaves which occupancy changed. Change detection is only available
+    * for trees which keys can be packed, see {@link OcTreeKeyTools#canPackKeys(int)}.
+    */
    public void enableChangeDetection(boolean enable)
    {
+      if (enable && !OcTreeKeyTools.canPackKeys(treeDepth))
+         throw new RuntimeException("Change detection is not supported for a tree depth greater than: " + OcTreeKeyTools.MAX_PACKED_KEY_TREE_DEPTH);
+      if (enable && isConcurrentUpdatesEnabled())
+         throw new RuntimeException("Change detection is not supported with the concurrent updates.");
+
       useChangeDetection = enable;
       if (useChangeDetection)
          updateOccupancyRule.attachChangedKeys(changedKeys);
@@ -615,7 +1474,21 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
       return changedKeys.size();
    }
 
+   /**
+    * Gets a copy of the changed keys, see {@link #getPackedChangedKeys()} for garbage-free access.
+    *
+    * @return a new map from the changed keys to whether the node was created.
+    */
    public Map<OcTreeKeyReadOnly, Boolean> getChangedKeys()
+   {
+      return changedKeys.toMap();
+   }
+
+   /**
+    * @return the changed keys packed into longs mapped to whether the node was created, the map should
+    *         not be modified.
+    */
+   public PackedOcTreeKeyBooleanMap getPackedChangedKeys()
    {
       return changedKeys;
    }
@@ -627,10 +1500,29 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
     **/
    public void updateInnerOccupancy()
    {
+      detachFromSnapshots();
+
       if (root != null)
          updateInnerOccupancyRecurs(root, 0);
    }
 
+   /**
+    * Same as {@link #updateInnerOccupancy()} with the subtrees below the parallel split depth updated
+    * in parallel, see {@link #setParallelSplitDepth(int)}.
+    *
+    * @param pool the pool used to update the tree, {@code null} to update it sequentially.
+    */
+   public void updateInnerOccupancy(ForkJoinPool pool)
+   {
+      detachFromSnapshots();
+      applyInParallel(pool, null, (node, depth) ->
+      {
+         if (node.hasAtLeastOneChild())
+            node.updateOccupancyChildren();
+         return 0;
+      });
+   }
+
    /**
     * Integrate a "hit" measurement according to the tree's sensor model
     *
@@ -701,23 +1593,42 @@ public abstract class AbstractOccupancyOcTree<NODE extends AbstractOccupancyOcTr
       }
    }
 
-   protected void toMaxLikelihoodRecurs(NODE node, int depth, int max_depth)
+   /** Converts the node and all its descendants in a single post-order pass. */
+   protected void toMaxLikelihoodRecurs(NODE node)
    {
-      if (node == null)
-         throw new RuntimeException("The given node is null.");
-
-      if (depth < max_depth)
+      if (node.hasAtLeastOneChild())
       {
          for (int i = 0; i < 8; i++)
          {
             NODE childNode = node.getChild(i);
             if (childNode != null)
-               toMaxLikelihoodRecurs(childNode, depth + 1, max_depth);
+               toMaxLikelihoodRecurs(childNode);
          }
       }
-      else
-      { // max level reached
-         OccupancyTools.nodeToMaxLikelihood(occupancyParameters, node);
-      }
+
+      OccupancyTools.nodeToMaxLikelihood(occupancyParameters, node);
+   }
+
+   /**
+    * @deprecated the node and all its descendants are now converted in a single pass, the depths are
+    *             ignored. Use {@link #toMaxLikelihoodRecurs(AbstractOccupancyOcTreeNode)} instead.
+    */
+   @Deprecated
+   protected void toMaxLikelihoodRecurs(NODE node, int depth, int max_depth)
+   {
+      if (node == null)
+         throw new RuntimeException("The given node is null.");
+
+      toMaxLikelihoodRecurs(node);
+   }
+
+   /** The rules and cells used by a thread performing concurrent updates. */
+   private class ConcurrentUpdateWorkspace
+   {
+      private final UpdateOccupancyRule<NODE> updateOccupancyRule = new UpdateOccupancyRule<>(occupancyParameters);
+      private final SetOccupancyRule<NODE> setOccupancyRule = new SetOccupancyRule<>();
+      private final PackedOcTreeKeySet freeCells = new PackedOcTreeKeySet(1024);
+      private final PackedOcTreeKeySet occupiedCells = new PackedOcTreeKeySet(1024);
+      private final OcTreeKey cellKey = new OcTreeKey();
    }
 }
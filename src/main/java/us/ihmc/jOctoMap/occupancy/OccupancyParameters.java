@@ -40,6 +40,15 @@ public class OccupancyParameters implements OccupancyParametersReadOnly
       occupancyThresholdLogOdds = other.occupancyThresholdLogOdds;
    }
 
+   public void set(OccupancyParametersReadOnly other)
+   {
+      minOccupancyLogOdds = other.getMinLogOdds();
+      maxOccupancyLogOdds = other.getMaxLogOdds();
+      hitUpdateLogOdds = other.getHitProbabilityLogOdds();
+      missUpdateLogOdds = other.getMissProbabilityLogOdds();
+      occupancyThresholdLogOdds = other.getOccupancyThresholdLogOdds();
+   }
+
    public void setDefaultParameters()
    {
       // some sane default values:
@@ -0,0 +1,194 @@
+package us.ihmc.jOctoMap.pointCloud;
+
+import java.util.Arrays;
+
+import us.ihmc.euclid.transform.RigidBodyTransform;
+import us.ihmc.euclid.transform.interfaces.RigidBodyTransformReadOnly;
+import us.ihmc.euclid.tuple3D.Point3D;
+import us.ihmc.euclid.tuple3D.interfaces.Point3DBasics;
+import us.ihmc.euclid.tuple3D.interfaces.Point3DReadOnly;
+
+/**
+ * Organized point cloud as measured by a depth camera: one depth per pixel, the pinhole intrinsics
+ * of the camera and its pose in world.
+ * <p>
+ * The camera frame follows the usual optical convention: z forward along the optical axis, x towards
+ * increasing u (right), y towards increasing v (down), the pixel centers being at integer (u, v).
+ * The depths are measured along z, a depth that is not strictly positive or not finite denotes a
+ * pixel without measurement.
+ * </p>
+ */
+public class DepthImage
+{
+   private final int width;
+   private final int height;
+   private final float[] depths;
+
+   private double focalLengthX = Double.NaN;
+   private double focalLengthY = Double.NaN;
+   private double principalPointX = Double.NaN;
+   private double principalPointY = Double.NaN;
+
+   /** Transform from the camera frame to world. */
+   private final RigidBodyTransform sensorPose = new RigidBodyTransform();
+   private final Point3D sensorOrigin = new Point3D();
+   private long timestamp = PointCloud.UNDEFINED_TIMESTAMP;
+
+   public DepthImage(int width, int height)
+   {
+      if (width <= 0 || height <= 0)
+         throw new RuntimeException("Invalid image size: " + width + "x" + height);
+
+      this.width = width;
+      this.height = height;
+      depths = new float[width * height];
+   }
+
+   public DepthImage(DepthImage other)
+   {
+      this(other.width, other.height);
+      System.arraycopy(other.depths, 0, depths, 0, depths.length);
+      setIntrinsics(other.focalLengthX, other.focalLengthY, other.principalPointX, other.principalPointY);
+      setSensorPose(other.sensorPose);
+      timestamp = other.timestamp;
+   }
+
+   public void setIntrinsics(double focalLengthX, double focalLengthY, double principalPointX, double principalPointY)
+   {
+      this.focalLengthX = focalLengthX;
+      this.focalLengthY = focalLengthY;
+      this.principalPointX = principalPointX;
+      this.principalPointY = principalPointY;
+   }
+
+   public void setSensorPose(RigidBodyTransformReadOnly sensorPose)
+   {
+      this.sensorPose.set(sensorPose);
+      sensorOrigin.set(sensorPose.getTranslation());
+   }
+
+   public void setTimestamp(long timestamp)
+   {
+      this.timestamp = timestamp;
+   }
+
+   public void setDepth(int u, int v, double depth)
+   {
+      depths[v * width + u] = (float) depth;
+   }
+
+   /**
+    * Sets the depths of all the pixels, row after row.
+    */
+   public void setDepths(float[] depths)
+   {
+      if (depths.length != this.depths.length)
+         throw new RuntimeException("Unexpected number of depths: " + depths.length + ", expected: " + this.depths.length);
+      System.arraycopy(depths, 0, this.depths, 0, depths.length);
+   }
+
+   public void clearDepths()
+   {
+      Arrays.fill(depths, Float.NaN);
+   }
+
+   public int getWidth()
+   {
+      return width;
+   }
+
+   public int getHeight()
+   {
+      return height;
+   }
+
+   public double getDepth(int u, int v)
+   {
+      return depths[v * width + u];
+   }
+
+   public double getDepth(int pixelIndex)
+   {
+      return depths[pixelIndex];
+   }
+
+   public static boolean isDepthValid(double depth)
+   {
+      return depth > 0.0 && depth < Double.POSITIVE_INFINITY;
+   }
+
+   public double getFocalLengthX()
+   {
+      return focalLengthX;
+   }
+
+   public double getFocalLengthY()
+   {
+      return focalLengthY;
+   }
+
+   public double getPrincipalPointX()
+   {
+      return principalPointX;
+   }
+
+   public double getPrincipalPointY()
+   {
+      return principalPointY;
+   }
+
+   public long getTimestamp()
+   {
+      return timestamp;
+   }
+
+   public RigidBodyTransformReadOnly getSensorPose()
+   {
+      return sensorPose;
+   }
+
+   public Point3DReadOnly getSensorOrigin()
+   {
+      return sensorOrigin;
+   }
+
+   /**
+    * Back-projects the pixel (u, v) at its measured depth.
+    *
+    * @param pointToPack the measured point in world. Not modified if the pixel has no measurement.
+    * @return whether the pixel has a measurement.
+    */
+   public boolean getPoint(int u, int v, Point3DBasics pointToPack)
+   {
+      double depth = getDepth(u, v);
+      if (!isDepthValid(depth))
+         return false;
+
+      pointToPack.setX((u - principalPointX) * depth / focalLengthX);
+      pointToPack.setY((v - principalPointY) * depth / focalLengthY);
+      pointToPack.setZ(depth);
+      sensorPose.transform(pointToPack);
+      return true;
+   }
+
+   /**
+    * Back-projects all the pixels with a measurement into a scan in world.
+    */
+   public Scan toScan()
+   {
+      PointCloud pointCloud = new PointCloud();
+      pointCloud.setTimestamp(timestamp);
+      Point3D point = new Point3D();
+
+      for (int v = 0; v < height; v++)
+      {
+         for (int u = 0; u < width; u++)
+         {
+            if (getPoint(u, v, point))
+               pointCloud.add(point);
+         }
+      }
+
+      return new Scan(sensorOrigin, pointCloud);
+   }
+}
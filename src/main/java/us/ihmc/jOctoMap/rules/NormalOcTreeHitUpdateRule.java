@@ -23,6 +23,7 @@ public class NormalOcTreeHitUpdateRule implements UpdateRule<NormalOcTreeNode>
 
    private float updateLogOdds = Float.NaN;
    private final OccupancyParametersReadOnly parameters;
+   private boolean performLazyUpdate = false;
 
    public NormalOcTreeHitUpdateRule(OccupancyParametersReadOnly occupancyParameters)
    {
@@ -34,6 +35,18 @@ public class NormalOcTreeHitUpdateRule implements UpdateRule<NormalOcTreeNode>
       this.updateLogOdds = updateLogOdds;
    }
 
+   /** Whether the inner nodes are left to be updated once the batch of updates is done, see {@link #performLazyUpdate()}. */
+   public void setPerformLazyUpdate(boolean performLazyUpdate)
+   {
+      this.performLazyUpdate = performLazyUpdate;
+   }
+
+   @Override
+   public boolean performLazyUpdate()
+   {
+      return performLazyUpdate;
+   }
+
    public void setHitLocation(Tuple3DReadOnly sensorLocation, Tuple3DReadOnly hitLocation)
    {
       this.sensorLocation.set(sensorLocation);
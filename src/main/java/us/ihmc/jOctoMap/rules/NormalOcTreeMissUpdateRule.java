@@ -15,6 +15,7 @@ public class NormalOcTreeMissUpdateRule implements UpdateRule<NormalOcTreeNode>,
    private float updateLogOdds = Float.NaN;
    private final OccupancyParametersReadOnly parameters;
    private Set<OcTreeKey> deletedLeaves = null;
+   private boolean performLazyUpdate = false;
 
    public NormalOcTreeMissUpdateRule(OccupancyParametersReadOnly occupancyParameters)
    {
@@ -31,6 +32,18 @@ public class NormalOcTreeMissUpdateRule implements UpdateRule<NormalOcTreeNode>,
       deletedLeaves = deletedLeavesToUpdate;
    }
 
+   /** Whether the inner nodes are left to be updated once the batch of updates is done, see {@link #performLazyUpdate()}. */
+   public void setPerformLazyUpdate(boolean performLazyUpdate)
+   {
+      this.performLazyUpdate = performLazyUpdate;
+   }
+
+   @Override
+   public boolean performLazyUpdate()
+   {
+      return performLazyUpdate;
+   }
+
    @Override
    public boolean shouldAbortFullDepthUpdate(NormalOcTreeNode nodeToUpdate)
    {
@@ -1,19 +1,22 @@
 package us.ihmc.jOctoMap.rules;
 
-import java.util.Map;
-
 import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeyBooleanMap;
 import us.ihmc.jOctoMap.node.baseImplementation.AbstractOccupancyOcTreeNode;
 import us.ihmc.jOctoMap.occupancy.OccupancyParametersReadOnly;
 import us.ihmc.jOctoMap.rules.interfaces.EarlyAbortRule;
 import us.ihmc.jOctoMap.rules.interfaces.UpdateRule;
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
 import us.ihmc.jOctoMap.tools.OccupancyTools;
 
 public class UpdateOccupancyRule<NODE extends AbstractOccupancyOcTreeNode<NODE>> implements UpdateRule<NODE>, EarlyAbortRule<NODE>
 {
    private float updateLogOdds = Float.NaN;
+   private float lowerBound = Float.NEGATIVE_INFINITY;
+   private float upperBound = Float.POSITIVE_INFINITY;
    private final OccupancyParametersReadOnly parameters;
-   private Map<OcTreeKeyReadOnly, Boolean> changedKeys;
+   private PackedOcTreeKeyBooleanMap changedKeys;
+   private boolean performLazyUpdate = false;
 
    public UpdateOccupancyRule(OccupancyParametersReadOnly occupancyParameters)
    {
@@ -21,8 +24,49 @@ public class UpdateOccupancyRule<NODE extends AbstractOccupancyOcTreeNode<NODE>>
    }
 
    public void setUpdateLogOdds(float updateLogOdds)
+   {
+      setUpdateLogOdds(updateLogOdds, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+   }
+
+   /**
+    * Sets an update which also bounds the updated log-odds, as results from the composition of
+    * several updates, see {@link us.ihmc.jOctoMap.key.MortonCodeLogOddsUpdateMap}.
+    */
+   public void setUpdateLogOdds(float updateLogOdds, float lowerBound, float upperBound)
    {
       this.updateLogOdds = updateLogOdds;
+      this.lowerBound = lowerBound;
+      this.upperBound = upperBound;
+   }
+
+   private boolean isBounded()
+   {
+      return lowerBound != Float.NEGATIVE_INFINITY || upperBound != Float.POSITIVE_INFINITY;
+   }
+
+   private float computeUpdatedLogOdds(float logOdds)
+   {
+      return Math.min(upperBound, Math.max(lowerBound, OccupancyTools.clipLogOddsToMinMax(parameters, logOdds + updateLogOdds)));
+   }
+
+   private void updateLogOdds(NODE leafToUpdate)
+   {
+      if (isBounded())
+         leafToUpdate.setLogOdds(computeUpdatedLogOdds(leafToUpdate.getLogOdds()));
+      else
+         OccupancyTools.updateNodeLogOdds(parameters, leafToUpdate, updateLogOdds);
+   }
+
+   /** Whether the inner nodes are left to be updated once the batch of updates is done, see {@link #performLazyUpdate()}. */
+   public void setPerformLazyUpdate(boolean performLazyUpdate)
+   {
+      this.performLazyUpdate = performLazyUpdate;
+   }
+
+   @Override
+   public boolean performLazyUpdate()
+   {
+      return performLazyUpdate;
    }
 
    public void detachChangedKeys()
@@ -30,7 +74,7 @@ public class UpdateOccupancyRule<NODE extends AbstractOccupancyOcTreeNode<NODE>>
       changedKeys = null;
    }
 
-   public void attachChangedKeys(Map<OcTreeKeyReadOnly, Boolean> changedKeys)
+   public void attachChangedKeys(PackedOcTreeKeyBooleanMap changedKeys)
    {
       this.changedKeys = changedKeys;
    }
@@ -41,24 +85,26 @@ public class UpdateOccupancyRule<NODE extends AbstractOccupancyOcTreeNode<NODE>>
       if (changedKeys != null)
       {
          boolean occupiedBefore = OccupancyTools.isNodeOccupied(parameters, leafToUpdate);
-         OccupancyTools.updateNodeLogOdds(parameters, leafToUpdate, updateLogOdds);
+         updateLogOdds(leafToUpdate);
+
+         long packedLeafKey = OcTreeKeyTools.packKey(leafKey);
 
          if (nodeJustCreated)
          { // new node
-            changedKeys.put(leafKey, true);
+            changedKeys.put(packedLeafKey, true);
          }
          else if (occupiedBefore != OccupancyTools.isNodeOccupied(parameters, leafToUpdate))
          { // occupancy changed, track it
-            Boolean changedKeyValue = changedKeys.get(leafKey);
-            if (changedKeyValue == null)
-               changedKeys.put(leafKey, false);
-            else if (changedKeyValue == false)
-               changedKeys.remove(leafKey);
+            int changedKeyIndex = changedKeys.indexOf(packedLeafKey);
+            if (changedKeyIndex == -1)
+               changedKeys.put(packedLeafKey, false);
+            else if (!changedKeys.getValue(changedKeyIndex))
+               changedKeys.remove(packedLeafKey);
          }
       }
       else
       {
-         OccupancyTools.updateNodeLogOdds(parameters, leafToUpdate, updateLogOdds);
+         updateLogOdds(leafToUpdate);
       }
    }
 
@@ -78,6 +124,9 @@ public class UpdateOccupancyRule<NODE extends AbstractOccupancyOcTreeNode<NODE>>
       // may cause an overhead in some configuration, but more often helps
       // no change: node already at threshold
       float nodeLogOdds = nodeToUpdate.getLogOdds();
+      if (isBounded())
+         return computeUpdatedLogOdds(nodeLogOdds) == nodeLogOdds;
+
       boolean reachedMaxThreshold = updateLogOdds >= 0.0f && nodeLogOdds >= parameters.getMaxLogOdds();
       boolean reachedMinThreshold = updateLogOdds <= 0.0f && nodeLogOdds <= parameters.getMinLogOdds();
       return reachedMaxThreshold || reachedMinThreshold;
@@ -0,0 +1,226 @@
+package us.ihmc.jOctoMap.tools;
+
+import us.ihmc.euclid.transform.interfaces.RigidBodyTransformReadOnly;
+import us.ihmc.euclid.tuple3D.Point3D;
+import us.ihmc.euclid.tuple3D.Vector3D;
+import us.ihmc.jOctoMap.boundingBox.OcTreeBoundingBoxInterface;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeySet;
+import us.ihmc.jOctoMap.pointCloud.DepthImage;
+
+public abstract class OcTreeDepthImageTools
+{
+   /**
+    * Helper for the insertion of a depth image. Computes all octree nodes affected by the depth image
+    * integration at once, the occupied nodes having the preference over free ones, as
+    * {@link OcTreeRayTools#computeUpdate(us.ihmc.euclid.tuple3D.interfaces.Point3DReadOnly, us.ihmc.jOctoMap.pointCloud.PointCloud, PackedOcTreeKeySet, PackedOcTreeKeySet, OcTreeBoundingBoxInterface, double, double, double, int)}
+    * does for a point cloud.
+    * <p>
+    * The occupied cells are given by the back-projected pixels. Instead of tracing one ray per pixel,
+    * the free cells are carved by projecting into the image the center of each cell of the frustum:
+    * a cell is free when it is in front of the depth measured at the pixel it projects onto. The cost
+    * scales with the number of cells in the frustum instead of the number of pixels times the length
+    * of the rays. The cells projecting onto a pixel without measurement are left untouched.
+    * </p>
+    *
+    * @param depthImage    the depth image to be integrated.
+    * @param freeCells     keys of nodes to be cleared.
+    * @param occupiedCells keys of nodes to be marked occupied.
+    * @param boundingBox   only the cells inside are updated (null: no bounding box).
+    * @param minRange      the pixels measured closer than this range are ignored (-1: unlimited).
+    * @param maxRange      the pixels measured further than this range are not occupied and only the
+    *                      cells within this range are carved (-1: unlimited).
+    */
+   public static void computeUpdate(DepthImage depthImage, PackedOcTreeKeySet freeCells, PackedOcTreeKeySet occupiedCells,
+                                    OcTreeBoundingBoxInterface boundingBox, double minRange, double maxRange, double resolution, int treeDepth)
+   {
+      OcTreeRayTools.checkTreeDepthForPackedKeys(treeDepth);
+
+      float[] carvingDepths = new float[depthImage.getWidth() * depthImage.getHeight()];
+      double maximumCarvingDepth = computeOccupiedCells(depthImage, occupiedCells, carvingDepths, boundingBox, minRange, maxRange, resolution, treeDepth);
+
+      if (maximumCarvingDepth <= 0.0)
+         return;
+
+      int firstNewFreeCellIndex = freeCells.size();
+      carveFreeCells(depthImage, carvingDepths, maximumCarvingDepth, freeCells, boundingBox, maxRange, resolution, treeDepth);
+      OcTreeRayTools.removeOccupiedCells(freeCells, firstNewFreeCellIndex, occupiedCells);
+   }
+
+   /**
+    * Adds the back-projected pixels to {@code occupiedCells} and computes for each pixel the depth up
+    * to which the cells projecting onto it are free, 0 for the pixels to ignore.
+    *
+    * @return the maximum carving depth.
+    */
+   private static double computeOccupiedCells(DepthImage depthImage, PackedOcTreeKeySet occupiedCells, float[] carvingDepthsToPack,
+                                              OcTreeBoundingBoxInterface boundingBox, double minRange, double maxRange, double resolution, int treeDepth)
+   {
+      int width = depthImage.getWidth();
+      int height = depthImage.getHeight();
+      double fx = depthImage.getFocalLengthX();
+      double fy = depthImage.getFocalLengthY();
+      double cx = depthImage.getPrincipalPointX();
+      double cy = depthImage.getPrincipalPointY();
+      RigidBodyTransformReadOnly sensorPose = depthImage.getSensorPose();
+      // A cell is free only if its center is at least half a cell in front of the measured surface.
+      double carvingMargin = 0.5 * resolution;
+      double maximumCarvingDepth = 0.0;
+      Point3D point = new Point3D();
+
+      for (int v = 0; v < height; v++)
+      {
+         for (int u = 0; u < width; u++)
+         {
+            int pixelIndex = v * width + u;
+            double depth = depthImage.getDepth(pixelIndex);
+            carvingDepthsToPack[pixelIndex] = 0.0f;
+
+            if (!DepthImage.isDepthValid(depth))
+               continue;
+
+            point.set((u - cx) * depth / fx, (v - cy) * depth / fy, depth);
+            double range = point.distanceFromOrigin();
+
+            if (minRange >= 0.0 && range < minRange)
+               continue;
+
+            carvingDepthsToPack[pixelIndex] = (float) (depth - carvingMargin);
+            maximumCarvingDepth = Math.max(maximumCarvingDepth, depth - carvingMargin);
+
+            if (maxRange >= 0.0 && range > maxRange)
+               continue;
+
+            sensorPose.transform(point);
+
+            if (boundingBox != null && !boundingBox.isInBoundingBox(point))
+               continue;
+
+            long key = OcTreeKeyConversionTools.coordinateToPackedKey(point, resolution, treeDepth);
+            if (key != OcTreeKeyTools.INVALID_PACKED_KEY)
+               occupiedCells.add(key);
+         }
+      }
+
+      return maximumCarvingDepth;
+   }
+
+   /**
+    * Iterates through the cells of the axis-aligned bounding box of the frustum and adds the cells
+    * that are in front of the carving depth of the pixel they project onto to {@code freeCells}.
+    */
+   private static void carveFreeCells(DepthImage depthImage, float[] carvingDepths, double maximumCarvingDepth, PackedOcTreeKeySet freeCells,
+                                      OcTreeBoundingBoxInterface boundingBox, double maxRange, double resolution, int treeDepth)
+   {
+      int width = depthImage.getWidth();
+      int height = depthImage.getHeight();
+      double fx = depthImage.getFocalLengthX();
+      double fy = depthImage.getFocalLengthY();
+      double cx = depthImage.getPrincipalPointX();
+      double cy = depthImage.getPrincipalPointY();
+      RigidBodyTransformReadOnly sensorPose = depthImage.getSensorPose();
+
+      if (maxRange >= 0.0)
+         maximumCarvingDepth = Math.min(maximumCarvingDepth, maxRange);
+
+      // Bounding box in world of the frustum: the sensor origin and the corners of the image at the maximum depth.
+      Point3D corner = new Point3D();
+      double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+      double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+      for (int cornerIndex = 0; cornerIndex < 5; cornerIndex++)
+      {
+         if (cornerIndex == 4)
+         {
+            corner.setToZero();
+         }
+         else
+         {
+            double u = (cornerIndex & 1) == 0 ? -0.5 : width - 0.5;
+            double v = (cornerIndex & 2) == 0 ? -0.5 : height - 0.5;
+            corner.set((u - cx) * maximumCarvingDepth / fx, (v - cy) * maximumCarvingDepth / fy, maximumCarvingDepth);
+         }
+         sensorPose.transform(corner);
+
+         for (int axis = 0; axis < 3; axis++)
+         {
+            min[axis] = Math.min(min[axis], corner.getElement(axis));
+            max[axis] = Math.max(max[axis], corner.getElement(axis));
+         }
+      }
+
+      double maxRangeSquared = maxRange >= 0.0 ? maxRange * maxRange : Double.POSITIVE_INFINITY;
+      int centerOffsetKey = OcTreeKeyTools.computeCenterOffsetKey(treeDepth);
+      int maximumKey = OcTreeKeyTools.computeMaximumKey(treeDepth);
+      int[] minKey = new int[3];
+      int[] maxKey = new int[3];
+      // Position in the sensor frame of the center of the cell at the minimum key and its increments per key along each axis.
+      double[] firstCenterInSensor = new double[3];
+      double[][] keyStepInSensor = new double[3][3];
+      Point3D sensorOrigin = new Point3D(sensorPose.getTranslation());
+      Vector3D keyStep = new Vector3D();
+
+      for (int axis = 0; axis < 3; axis++)
+      {
+         double lower = min[axis];
+         double upper = max[axis];
+
+         if (maxRange >= 0.0)
+         {
+            lower = Math.max(lower, sensorOrigin.getElement(axis) - maxRange);
+            upper = Math.min(upper, sensorOrigin.getElement(axis) + maxRange);
+         }
+
+         minKey[axis] = Math.max(0, (int) Math.floor(lower / resolution) + centerOffsetKey);
+         maxKey[axis] = Math.min(maximumKey, (int) Math.floor(upper / resolution) + centerOffsetKey);
+
+         if (minKey[axis] > maxKey[axis])
+            return;
+
+         keyStep.setToZero();
+         keyStep.setElement(axis, resolution);
+         sensorPose.inverseTransform(keyStep);
+         keyStep.get(keyStepInSensor[axis]);
+      }
+
+      corner.set(minKey[0], minKey[1], minKey[2]);
+      corner.sub(centerOffsetKey - 0.5, centerOffsetKey - 0.5, centerOffsetKey - 0.5);
+      corner.scale(resolution);
+      sensorPose.inverseTransform(corner);
+      corner.get(firstCenterInSensor);
+
+      for (int k0 = minKey[0]; k0 <= maxKey[0]; k0++)
+      {
+         int i0 = k0 - minKey[0];
+
+         for (int k1 = minKey[1]; k1 <= maxKey[1]; k1++)
+         {
+            int i1 = k1 - minKey[1];
+            double x = firstCenterInSensor[0] + i0 * keyStepInSensor[0][0] + i1 * keyStepInSensor[1][0];
+            double y = firstCenterInSensor[1] + i0 * keyStepInSensor[0][1] + i1 * keyStepInSensor[1][1];
+            double z = firstCenterInSensor[2] + i0 * keyStepInSensor[0][2] + i1 * keyStepInSensor[1][2];
+
+            for (int k2 = minKey[2]; k2 <= maxKey[2]; k2++, x += keyStepInSensor[2][0], y += keyStepInSensor[2][1], z += keyStepInSensor[2][2])
+            {
+               if (z <= 0.0 || z >= maximumCarvingDepth)
+                  continue;
+
+               int u = (int) Math.floor(fx * x / z + cx + 0.5);
+               if (u < 0 || u >= width)
+                  continue;
+               int v = (int) Math.floor(fy * y / z + cy + 0.5);
+               if (v < 0 || v >= height)
+                  continue;
+
+               if (z >= carvingDepths[v * width + u])
+                  continue;
+               if (x * x + y * y + z * z > maxRangeSquared)
+                  continue;
+               if (boundingBox != null && !boundingBox.isInBoundingBox(k0, k1, k2))
+                  continue;
+
+               freeCells.add(OcTreeKeyTools.packKey(k0, k1, k2));
+            }
+         }
+      }
+   }
+}
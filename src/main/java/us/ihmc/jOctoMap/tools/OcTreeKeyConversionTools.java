@@ -131,6 +131,32 @@ public abstract class OcTreeKeyConversionTools
          return null;
    }
 
+   /**
+    * Converts a 3D coordinate into a key at the lowest level packed into a {@code long}, with boundary
+    * checking. See {@link OcTreeKeyTools#packKey(int, int, int)}.
+    *
+    * @return the packed key if the coordinate is within the octree bounds (valid),
+    *         {@link OcTreeKeyTools#INVALID_PACKED_KEY} otherwise.
+    */
+   public static long coordinateToPackedKey(double x, double y, double z, double resolution, int treeDepth)
+   {
+      int k0 = coordinateToKey(x, treeDepth, resolution, treeDepth);
+      if (k0 == -1)
+         return OcTreeKeyTools.INVALID_PACKED_KEY;
+      int k1 = coordinateToKey(y, treeDepth, resolution, treeDepth);
+      if (k1 == -1)
+         return OcTreeKeyTools.INVALID_PACKED_KEY;
+      int k2 = coordinateToKey(z, treeDepth, resolution, treeDepth);
+      if (k2 == -1)
+         return OcTreeKeyTools.INVALID_PACKED_KEY;
+      return OcTreeKeyTools.packKey(k0, k1, k2);
+   }
+
+   public static long coordinateToPackedKey(Tuple3DReadOnly coord, double resolution, int treeDepth)
+   {
+      return coordinateToPackedKey(coord.getX(), coord.getY(), coord.getZ(), resolution, treeDepth);
+   }
+
    /**
     * converts from a discrete key at a given depth into a coordinate corresponding to the key's center
     */
@@ -205,6 +231,17 @@ public abstract class OcTreeKeyConversionTools
       coordinateToPack.setZ(keyToCoordinate(key.getKey(2), depth, resolution, treeDepth));
    }
 
+   /**
+    * converts from a packed key at the lowest tree level into a coordinate corresponding to the key's
+    * center
+    */
+   public static void packedKeyToCoordinate(long packedKey, Tuple3DBasics coordinateToPack, double resolution, int treeDepth)
+   {
+      coordinateToPack.setX(keyToCoordinate(OcTreeKeyTools.unpackKey0(packedKey), resolution, treeDepth));
+      coordinateToPack.setY(keyToCoordinate(OcTreeKeyTools.unpackKey1(packedKey), resolution, treeDepth));
+      coordinateToPack.setZ(keyToCoordinate(OcTreeKeyTools.unpackKey2(packedKey), resolution, treeDepth));
+   }
+
    public static double computeNodeSize(int depth, double resolution, int treeDepth)
    {
       JOctoMapTools.checkIfDepthValid(depth, treeDepth);
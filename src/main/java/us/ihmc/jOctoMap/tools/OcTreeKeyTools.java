@@ -17,6 +17,14 @@ import us.ihmc.jOctoMap.node.baseImplementation.AbstractOcTreeNode;
  */
 public abstract class OcTreeKeyTools
 {
+   /** Number of bits used per axis when packing a key into a {@code long}. */
+   public static final int PACKED_KEY_BITS_PER_AXIS = 21;
+   /** Maximum tree depth for which the keys can be packed into a {@code long}. */
+   public static final int MAX_PACKED_KEY_TREE_DEPTH = PACKED_KEY_BITS_PER_AXIS;
+   /** Value used to represent an invalid packed key, a valid packed key is never negative. */
+   public static final long INVALID_PACKED_KEY = -1L;
+   private static final long PACKED_KEY_AXIS_MASK = (1L << PACKED_KEY_BITS_PER_AXIS) - 1L;
+
    /**
     * Computes the
     *
@@ -380,6 +388,152 @@ public abstract class OcTreeKeyTools
          return (adjusted + maxValue) % maxValue;
    }
 
+   /**
+    * Packs a key into a single {@code long} using 21 bits per axis: {@code k0 | k1 << 21 | k2 << 42}.
+    * Only keys of a tree with a depth up to {@link #MAX_PACKED_KEY_TREE_DEPTH} can be packed.
+    */
+   public static long packKey(int k0, int k1, int k2)
+   {
+      return k0 | (long) k1 << PACKED_KEY_BITS_PER_AXIS | (long) k2 << 2 * PACKED_KEY_BITS_PER_AXIS;
+   }
+
+   public static long packKey(OcTreeKeyReadOnly key)
+   {
+      return packKey(key.getKey(0), key.getKey(1), key.getKey(2));
+   }
+
+   public static int unpackKey0(long packedKey)
+   {
+      return (int) (packedKey & PACKED_KEY_AXIS_MASK);
+   }
+
+   public static int unpackKey1(long packedKey)
+   {
+      return (int) (packedKey >>> PACKED_KEY_BITS_PER_AXIS & PACKED_KEY_AXIS_MASK);
+   }
+
+   public static int unpackKey2(long packedKey)
+   {
+      return (int) (packedKey >>> 2 * PACKED_KEY_BITS_PER_AXIS & PACKED_KEY_AXIS_MASK);
+   }
+
+   public static OcTreeKey unpackKey(long packedKey)
+   {
+      OcTreeKey key = new OcTreeKey();
+      unpackKey(packedKey, key);
+      return key;
+   }
+
+   public static void unpackKey(long packedKey, OcTreeKey keyToPack)
+   {
+      keyToPack.set(unpackKey0(packedKey), unpackKey1(packedKey), unpackKey2(packedKey));
+   }
+
+   public static boolean canPackKeys(int treeDepth)
+   {
+      return treeDepth <= MAX_PACKED_KEY_TREE_DEPTH;
+   }
+
+   /**
+    * Computes the Morton code, or Z-order, of a key by interleaving the bits of its 3 components:
+    * {@code ... k2[1] k1[1] k0[1] k2[0] k1[0] k0[0]}. Sorting keys by Morton code groups them by
+    * subtree at every level of the tree. The same limit as for the packed keys applies, i.e. only the 21
+    * least significant bits of each component are used.
+    */
+   public static long computeMortonCode(int k0, int k1, int k2)
+   {
+      return spreadBits(k0) | spreadBits(k1) << 1 | spreadBits(k2) << 2;
+   }
+
+   public static long computeMortonCode(OcTreeKeyReadOnly key)
+   {
+      return computeMortonCode(key.getKey(0), key.getKey(1), key.getKey(2));
+   }
+
+   public static long packedKeyToMortonCode(long packedKey)
+   {
+      return computeMortonCode(unpackKey0(packedKey), unpackKey1(packedKey), unpackKey2(packedKey));
+   }
+
+   public static long mortonCodeToPackedKey(long mortonCode)
+   {
+      return packKey(mortonCodeToKey0(mortonCode), mortonCodeToKey1(mortonCode), mortonCodeToKey2(mortonCode));
+   }
+
+   public static int mortonCodeToKey0(long mortonCode)
+   {
+      return compactBits(mortonCode);
+   }
+
+   public static int mortonCodeToKey1(long mortonCode)
+   {
+      return compactBits(mortonCode >>> 1);
+   }
+
+   public static int mortonCodeToKey2(long mortonCode)
+   {
+      return compactBits(mortonCode >>> 2);
+   }
+
+   public static OcTreeKey mortonCodeToKey(long mortonCode)
+   {
+      OcTreeKey key = new OcTreeKey();
+      mortonCodeToKey(mortonCode, key);
+      return key;
+   }
+
+   public static void mortonCodeToKey(long mortonCode, OcTreeKey keyToPack)
+   {
+      keyToPack.set(mortonCodeToKey0(mortonCode), mortonCodeToKey1(mortonCode), mortonCodeToKey2(mortonCode));
+   }
+
+   /**
+    * Same as {@link #computeChildIndex(OcTreeKeyReadOnly, int, int)} using the Morton code of the key.
+    */
+   public static int computeMortonChildIndex(long mortonCode, int depth, int treeDepth)
+   {
+      return (int) (mortonCode >>> 3 * (treeDepth - depth - 1) & 7);
+   }
+
+   /**
+    * Computes the depth of the deepest node that is an ancestor of both keys, i.e. the depth at which
+    * their paths from the root diverge.
+    *
+    * @return the depth of the deepest common ancestor, {@code treeDepth} if the codes are equal.
+    */
+   public static int computeMortonCommonDepth(long mortonCode1, long mortonCode2, int treeDepth)
+   {
+      long difference = mortonCode1 ^ mortonCode2;
+      if (difference == 0L)
+         return treeDepth;
+      int firstDifferentLevel = (63 - Long.numberOfLeadingZeros(difference)) / 3;
+      return treeDepth - firstDifferentLevel - 1;
+   }
+
+   /** Spreads the 21 least significant bits such that there are 2 zeros between each bit. */
+   private static long spreadBits(int value)
+   {
+      long bits = value & 0x1FFFFFL;
+      bits = (bits | bits << 32) & 0x1F00000000FFFFL;
+      bits = (bits | bits << 16) & 0x1F0000FF0000FFL;
+      bits = (bits | bits << 8) & 0x100F00F00F00F00FL;
+      bits = (bits | bits << 4) & 0x10C30C30C30C30C3L;
+      bits = (bits | bits << 2) & 0x1249249249249249L;
+      return bits;
+   }
+
+   /** Inverse of {@link #spreadBits(int)}, gathers every third bit. */
+   private static int compactBits(long bits)
+   {
+      bits &= 0x1249249249249249L;
+      bits = (bits ^ bits >>> 2) & 0x10C30C30C30C30C3L;
+      bits = (bits ^ bits >>> 4) & 0x100F00F00F00F00FL;
+      bits = (bits ^ bits >>> 8) & 0x1F0000FF0000FFL;
+      bits = (bits ^ bits >>> 16) & 0x1F00000000FFFFL;
+      bits = (bits ^ bits >>> 32) & 0x1FFFFFL;
+      return (int) bits;
+   }
+
    public static void main(String[] args)
    {
       int blop = 0;
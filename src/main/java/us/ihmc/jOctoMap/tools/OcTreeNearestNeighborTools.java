@@ -89,7 +89,7 @@ public abstract class OcTreeNearestNeighborTools
       double zNode = node.getZ();
 
       // if search ball S(q,r) contains octant, simply add point indexes.
-      if (contains(node, x, y, z, radiusSquared))
+      if (contains(node, radiusSquared, x, y, z))
       {
          doActionOnLeavesRecursively(node, actionRule);
          return; // early pruning.
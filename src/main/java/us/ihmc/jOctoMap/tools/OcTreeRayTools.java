@@ -3,6 +3,12 @@ package us.ihmc.jOctoMap.tools;
 import static us.ihmc.jOctoMap.tools.OcTreeKeyConversionTools.coordinateToKey;
 import static us.ihmc.jOctoMap.tools.OcTreeKeyConversionTools.keyToCoordinate;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import us.ihmc.euclid.tools.EuclidCoreTools;
 import us.ihmc.euclid.tuple3D.Point3D;
 import us.ihmc.euclid.tuple3D.Vector3D;
 import us.ihmc.euclid.tuple3D.interfaces.Point3DBasics;
@@ -14,7 +20,9 @@ import us.ihmc.jOctoMap.key.KeyRay;
 import us.ihmc.jOctoMap.key.OcTreeKey;
 import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
 import us.ihmc.jOctoMap.key.OcTreeKeySet;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeySet;
 import us.ihmc.jOctoMap.node.baseImplementation.AbstractOcTreeNode;
+import us.ihmc.jOctoMap.node.baseImplementation.AbstractOccupancyOcTreeNode;
 import us.ihmc.jOctoMap.pointCloud.PointCloud;
 import us.ihmc.jOctoMap.rules.interfaces.CollidableRule;
 import us.ihmc.jOctoMap.rules.interfaces.RayActionRule;
@@ -24,6 +32,13 @@ public abstract class OcTreeRayTools
 {
    private static final boolean DEBUG = false;
    public static final int maxRaySize = 100000;
+   /** Below this number of points per worker, the rays are traced sequentially. */
+   private static final int MINIMUM_NUMBER_OF_POINTS_PER_CHUNK = 64;
+   /** Below this number of rays per task, the rays are cast sequentially. */
+   private static final int MINIMUM_NUMBER_OF_RAYS_PER_CHUNK = 32;
+   /** Default half-size in number of cells of the near field used by the ray fan update. */
+   public static final int DEFAULT_RAY_FAN_NEAR_FIELD_RADIUS = 32;
+   private static final int MAXIMUM_RAY_FAN_NEAR_FIELD_RADIUS = 512;
 
    /**
     * Helper for insertPointCloud(). Computes all octree nodes affected by the point cloud integration
@@ -89,10 +104,13 @@ public abstract class OcTreeRayTools
               // free cells
                KeyRay ray = computeRayKeys(origin, point, resolution, treeDepth);
                if (ray != null)
-                  unfilteredFreeCells.addAll(ray);
+               {
+                  for (int j = 0; j < ray.size(); j++)
+                     unfilteredFreeCells.add(ray.get(j));
+               }
                // occupied endpoint
                if (OcTreeKeyConversionTools.coordinateToKey(point, resolution, treeDepth, key))
-                  occupiedCells.add(key);
+                  occupiedCells.add(new OcTreeKey(key));
             }
             else
             { // user set a maxrange and length is above
@@ -100,7 +118,10 @@ public abstract class OcTreeRayTools
                newEnd.scaleAdd(maxRange / length, direction, origin);
                KeyRay ray = computeRayKeys(origin, newEnd, resolution, treeDepth);
                if (ray != null)
-                  unfilteredFreeCells.addAll(ray);
+               {
+                  for (int j = 0; j < ray.size(); j++)
+                     unfilteredFreeCells.add(ray.get(j));
+               }
             } // end if maxrange
          }
          else
@@ -110,7 +131,7 @@ public abstract class OcTreeRayTools
             {
                // occupied endpoint
                if (OcTreeKeyConversionTools.coordinateToKey(point, resolution, treeDepth, key))
-                  occupiedCells.add(key);
+                  occupiedCells.add(new OcTreeKey(key));
 
                // update freespace, break as soon as bbx limit is reached
                KeyRay ray = computeRayKeys(origin, point, resolution, treeDepth);
@@ -138,6 +159,549 @@ public abstract class OcTreeRayTools
       }
    }
 
+   /**
+    * Same as
+    * {@link #computeDiscreteUpdate(Point3DReadOnly, PointCloud, OcTreeKeySet, OcTreeKeySet, OcTreeBoundingBoxInterface, double, double, double, int)}
+    * using keys packed into {@code long}s, see {@link OcTreeKeyTools#packKey(int, int, int)}.
+    */
+   public static void computeDiscreteUpdate(Point3DReadOnly origin, PointCloud pointCloud, PackedOcTreeKeySet freeCells, PackedOcTreeKeySet occupiedCells,
+                                            OcTreeBoundingBoxInterface boundingBox, double minRange, double maxRange, double resolution, int treeDepth)
+   {
+      computeUpdate(origin, discretize(pointCloud, resolution, treeDepth), freeCells, occupiedCells, boundingBox, minRange, maxRange, resolution, treeDepth);
+   }
+
+   /** @return a new point cloud with one point at the center of each distinct cell of the given cloud. */
+   private static PointCloud discretize(PointCloud pointCloud, double resolution, int treeDepth)
+   {
+      PointCloud discretePC = new PointCloud();
+      PackedOcTreeKeySet endpoints = new PackedOcTreeKeySet(pointCloud.getNumberOfPoints());
+      Point3D keyCoordinate = new Point3D();
+
+      for (int i = 0; i < pointCloud.getNumberOfPoints(); ++i)
+      {
+         long key = OcTreeKeyConversionTools.coordinateToPackedKey(pointCloud.getPoint(i), resolution, treeDepth);
+
+         if (key != OcTreeKeyTools.INVALID_PACKED_KEY && endpoints.add(key)) // insertion took place => key was not in set
+         {
+            OcTreeKeyConversionTools.packedKeyToCoordinate(key, keyCoordinate, resolution, treeDepth);
+            discretePC.add(keyCoordinate);
+         }
+      }
+
+      return discretePC;
+   }
+
+   /**
+    * Same as
+    * {@link #computeUpdate(Point3DReadOnly, PointCloud, OcTreeKeySet, OcTreeKeySet, OcTreeBoundingBoxInterface, double, double, double, int)}
+    * using keys packed into {@code long}s, see {@link OcTreeKeyTools#packKey(int, int, int)}. The ray
+    * traversal does not create any object, the tree depth has to be at most
+    * {@link OcTreeKeyTools#MAX_PACKED_KEY_TREE_DEPTH}.
+    */
+   public static void computeUpdate(Point3DReadOnly origin, PointCloud pointCloud, PackedOcTreeKeySet freeCells, PackedOcTreeKeySet occupiedCells,
+                                    OcTreeBoundingBoxInterface boundingBox, double minRange, double maxRange, double resolution, int treeDepth)
+   {
+      checkTreeDepthForPackedKeys(treeDepth);
+
+      // The free cells added by this update start at this index, they are filtered at the end.
+      int firstNewFreeCellIndex = freeCells.size();
+      tracePackedRays(origin, pointCloud, 0, pointCloud.getNumberOfPoints(), freeCells, occupiedCells, null, boundingBox, minRange, maxRange, resolution,
+                      treeDepth);
+      removeOccupiedCells(freeCells, firstNewFreeCellIndex, occupiedCells);
+   }
+
+   /**
+    * Same as
+    * {@link #computeRayFanUpdate(Point3DReadOnly, PointCloud, PackedOcTreeKeySet, PackedOcTreeKeySet, OcTreeBoundingBoxInterface, double, double, double, int, int)}
+    * using a near field of {@link #DEFAULT_RAY_FAN_NEAR_FIELD_RADIUS} cells.
+    */
+   public static void computeRayFanUpdate(Point3DReadOnly origin, PointCloud pointCloud, PackedOcTreeKeySet freeCells, PackedOcTreeKeySet occupiedCells,
+                                          OcTreeBoundingBoxInterface boundingBox, double minRange, double maxRange, double resolution, int treeDepth)
+   {
+      computeRayFanUpdate(origin, pointCloud, freeCells, occupiedCells, boundingBox, minRange, maxRange, resolution, treeDepth, DEFAULT_RAY_FAN_NEAR_FIELD_RADIUS);
+   }
+
+   /**
+    * Same as
+    * {@link #computeUpdate(Point3DReadOnly, PointCloud, PackedOcTreeKeySet, PackedOcTreeKeySet, OcTreeBoundingBoxInterface, double, double, double, int)}
+    * exploiting that all the rays start from the same origin: near the sensor, the rays of a dense
+    * scan go through the same few cells over and over. The cells within {@code nearFieldRadius} cells
+    * of the origin cell are first checked against a bitmap such that each of them is added to
+    * {@code freeCells} at most once, the hash set only receiving the cells further away. The result
+    * is the same as with {@code computeUpdate}.
+    *
+    * @param nearFieldRadius half-size in number of cells of the cube centered at the origin cell
+    *                        covered by the bitmap, which uses {@code (2 * nearFieldRadius + 1)^3}
+    *                        bits.
+    */
+   public static void computeRayFanUpdate(Point3DReadOnly origin, PointCloud pointCloud, PackedOcTreeKeySet freeCells, PackedOcTreeKeySet occupiedCells,
+                                          OcTreeBoundingBoxInterface boundingBox, double minRange, double maxRange, double resolution, int treeDepth,
+                                          int nearFieldRadius)
+   {
+      checkTreeDepthForPackedKeys(treeDepth);
+      if (nearFieldRadius < 0 || nearFieldRadius > MAXIMUM_RAY_FAN_NEAR_FIELD_RADIUS)
+         throw new RuntimeException("The near field radius should be in [0, " + MAXIMUM_RAY_FAN_NEAR_FIELD_RADIUS + "], was: " + nearFieldRadius);
+
+      RayFanNearField nearField = null;
+      int originKey0 = coordinateToKey(origin.getX(), resolution, treeDepth);
+      int originKey1 = coordinateToKey(origin.getY(), resolution, treeDepth);
+      int originKey2 = coordinateToKey(origin.getZ(), resolution, treeDepth);
+      if (originKey0 != -1 && originKey1 != -1 && originKey2 != -1)
+         nearField = new RayFanNearField(originKey0, originKey1, originKey2, nearFieldRadius);
+
+      int firstNewFreeCellIndex = freeCells.size();
+      tracePackedRays(origin, pointCloud, 0, pointCloud.getNumberOfPoints(), freeCells, occupiedCells, nearField, boundingBox, minRange, maxRange, resolution,
+                      treeDepth);
+      removeOccupiedCells(freeCells, firstNewFreeCellIndex, occupiedCells);
+   }
+
+   /**
+    * Bitmap of the cells in a cube centered at the origin cell of a ray fan, used to add these cells
+    * only once to the free cells.
+    */
+   private static class RayFanNearField
+   {
+      private final int minKey0, minKey1, minKey2;
+      private final int size;
+      private final long[] bits;
+
+      public RayFanNearField(int originKey0, int originKey1, int originKey2, int radius)
+      {
+         minKey0 = originKey0 - radius;
+         minKey1 = originKey1 - radius;
+         minKey2 = originKey2 - radius;
+         size = 2 * radius + 1;
+         bits = new long[(int) (((long) size * size * size + 63) / 64)];
+      }
+
+      /**
+       * @return {@code false} if the cell is in the near field and has already been marked,
+       *         {@code true} otherwise.
+       */
+      public boolean mark(int k0, int k1, int k2)
+      {
+         int i0 = k0 - minKey0;
+         int i1 = k1 - minKey1;
+         int i2 = k2 - minKey2;
+         if (i0 < 0 || i0 >= size || i1 < 0 || i1 >= size || i2 < 0 || i2 >= size)
+            return true;
+
+         int bitIndex = (i0 * size + i1) * size + i2;
+         long mask = 1L << bitIndex; // only the 6 lowest bits of the shift are used
+         long word = bits[bitIndex >>> 6];
+         if ((word & mask) != 0L)
+            return false;
+         bits[bitIndex >>> 6] = word | mask;
+         return true;
+      }
+   }
+
+   /**
+    * Same as
+    * {@link #computeDiscreteUpdate(Point3DReadOnly, PointCloud, PackedOcTreeKeySet, PackedOcTreeKeySet, OcTreeBoundingBoxInterface, double, double, double, int)}
+    * tracing the rays in parallel, see
+    * {@link #computeUpdate(Point3DReadOnly, PointCloud, PackedOcTreeKeySet, PackedOcTreeKeySet, OcTreeBoundingBoxInterface, double, double, double, int, ForkJoinPool)}.
+    */
+   public static void computeDiscreteUpdate(Point3DReadOnly origin, PointCloud pointCloud, PackedOcTreeKeySet freeCells, PackedOcTreeKeySet occupiedCells,
+                                            OcTreeBoundingBoxInterface boundingBox, double minRange, double maxRange, double resolution, int treeDepth,
+                                            ForkJoinPool pool)
+   {
+      computeUpdate(origin, discretize(pointCloud, resolution, treeDepth), freeCells, occupiedCells, boundingBox, minRange, maxRange, resolution, treeDepth, pool);
+   }
+
+   /**
+    * Same as
+    * {@link #computeUpdate(Point3DReadOnly, PointCloud, PackedOcTreeKeySet, PackedOcTreeKeySet, OcTreeBoundingBoxInterface, double, double, double, int)}
+    * tracing the rays in parallel. The point cloud is split into one chunk per worker of the pool,
+    * each chunk is traced into its own key sets which are then merged, the occupied cells still having
+    * the preference over the free ones.
+    */
+   public static void computeUpdate(Point3DReadOnly origin, PointCloud pointCloud, PackedOcTreeKeySet freeCells, PackedOcTreeKeySet occupiedCells,
+                                    OcTreeBoundingBoxInterface boundingBox, double minRange, double maxRange, double resolution, int treeDepth,
+                                    ForkJoinPool pool)
+   {
+      checkTreeDepthForPackedKeys(treeDepth);
+
+      int numberOfPoints = pointCloud.getNumberOfPoints();
+      int numberOfChunks = Math.min(pool.getParallelism(), numberOfPoints / MINIMUM_NUMBER_OF_POINTS_PER_CHUNK);
+
+      if (numberOfChunks <= 1)
+      {
+         computeUpdate(origin, pointCloud, freeCells, occupiedCells, boundingBox, minRange, maxRange, resolution, treeDepth);
+         return;
+      }
+
+      PackedOcTreeKeySet[] chunkFreeCells = new PackedOcTreeKeySet[numberOfChunks];
+      PackedOcTreeKeySet[] chunkOccupiedCells = new PackedOcTreeKeySet[numberOfChunks];
+      List<ForkJoinTask<?>> tasks = new ArrayList<>(numberOfChunks);
+
+      for (int chunkIndex = 0; chunkIndex < numberOfChunks; chunkIndex++)
+      {
+         int startIndex = (int) ((long) chunkIndex * numberOfPoints / numberOfChunks);
+         int endIndex = (int) ((long) (chunkIndex + 1) * numberOfPoints / numberOfChunks);
+         PackedOcTreeKeySet chunkFree = new PackedOcTreeKeySet(16 * (endIndex - startIndex));
+         PackedOcTreeKeySet chunkOccupied = new PackedOcTreeKeySet(endIndex - startIndex);
+         chunkFreeCells[chunkIndex] = chunkFree;
+         chunkOccupiedCells[chunkIndex] = chunkOccupied;
+         tasks.add(pool.submit(() -> tracePackedRays(origin,
+                                                     pointCloud,
+                                                     startIndex,
+                                                     endIndex,
+                                                     chunkFree,
+                                                     chunkOccupied,
+                                                     null,
+                                                     boundingBox,
+                                                     minRange,
+                                                     maxRange,
+                                                     resolution,
+                                                     treeDepth)));
+      }
+
+      for (int chunkIndex = 0; chunkIndex < numberOfChunks; chunkIndex++)
+         tasks.get(chunkIndex).join();
+
+      int firstNewFreeCellIndex = freeCells.size();
+
+      for (int chunkIndex = 0; chunkIndex < numberOfChunks; chunkIndex++)
+         occupiedCells.addAll(chunkOccupiedCells[chunkIndex]);
+      for (int chunkIndex = 0; chunkIndex < numberOfChunks; chunkIndex++)
+         freeCells.addAll(chunkFreeCells[chunkIndex]);
+
+      removeOccupiedCells(freeCells, firstNewFreeCellIndex, occupiedCells);
+   }
+
+   /**
+    * Same as
+    * {@link #computeUpdate(Point3DReadOnly, PointCloud, PackedOcTreeKeySet, PackedOcTreeKeySet, OcTreeBoundingBoxInterface, double, double, double, int)}
+    * except that the free cells further than {@code coarseMissRange} from the origin are computed at
+    * coarser depths: far along a ray, the beam divergence exceeds the cell size and updating each leaf
+    * is wasted work. The depth decreases by one at {@code coarseMissRange} and then at each doubling
+    * of the range, up to {@code coarseFreeCells.length} levels above the leaves.
+    * <p>
+    * The keys of {@code coarseFreeCells[i]} are on the grid of the nodes at the depth
+    * {@code treeDepth - i - 1}, i.e. the leaf keys shifted right by {@code i + 1} bits. The coarse
+    * free cells containing an occupied cell are removed. When a bounding box is given, the coarse
+    * cells whose center is outside are removed. As the leaf at the maximum range for
+    * {@code computeUpdate}, the coarse cell at the maximum range is not added.
+    * </p>
+    *
+    * @param coarseFreeCells one set per coarse level to which the coarse free cells are added.
+    * @param coarseMissRange range from which the free cells are coarse, has to be positive.
+    */
+   public static void computeMultiResolutionUpdate(Point3DReadOnly origin, PointCloud pointCloud, PackedOcTreeKeySet freeCells,
+                                                   PackedOcTreeKeySet[] coarseFreeCells, PackedOcTreeKeySet occupiedCells,
+                                                   OcTreeBoundingBoxInterface boundingBox, double minRange, double maxRange, double coarseMissRange,
+                                                   double resolution, int treeDepth)
+   {
+      checkTreeDepthForPackedKeys(treeDepth);
+      if (coarseFreeCells.length >= treeDepth)
+         throw new RuntimeException("Too many coarse levels: " + coarseFreeCells.length + ", the tree depth is: " + treeDepth);
+      if (!(coarseMissRange > 0.0))
+         throw new RuntimeException("The coarse miss range has to be positive, was: " + coarseMissRange);
+
+      int firstNewFreeCellIndex = freeCells.size();
+      int[] firstNewCoarseFreeCellIndices = new int[coarseFreeCells.length];
+      for (int i = 0; i < coarseFreeCells.length; i++)
+         firstNewCoarseFreeCellIndices[i] = coarseFreeCells[i].size();
+
+      double originX = origin.getX();
+      double originY = origin.getY();
+      double originZ = origin.getZ();
+
+      for (int i = 0; i < pointCloud.getNumberOfPoints(); i++)
+      {
+         Point3DReadOnly point = pointCloud.getPoint(i);
+         double directionX = point.getX() - originX;
+         double directionY = point.getY() - originY;
+         double directionZ = point.getZ() - originZ;
+         double length = EuclidCoreTools.norm(directionX, directionY, directionZ);
+
+         if (minRange >= 0.0 && length < minRange)
+            continue;
+
+         boolean isMaxRange = maxRange >= 0.0 && length > maxRange;
+
+         // Same as computeUpdate, with a bounding box only the rays ending inside are used.
+         if (boundingBox != null && (isMaxRange || !boundingBox.isInBoundingBox(point)))
+            continue;
+
+         if (!isMaxRange)
+         {
+            long key = OcTreeKeyConversionTools.coordinateToPackedKey(point, resolution, treeDepth);
+            if (key != OcTreeKeyTools.INVALID_PACKED_KEY)
+               occupiedCells.add(key);
+         }
+
+         double freeLength = isMaxRange ? maxRange : length;
+         directionX /= length;
+         directionY /= length;
+         directionZ /= length;
+
+         double fineLength = Math.min(freeLength, coarseMissRange);
+         double endX = originX + fineLength * directionX;
+         double endY = originY + fineLength * directionY;
+         double endZ = originZ + fineLength * directionZ;
+
+         if (boundingBox == null)
+         {
+            traversePackedRayKeys(originX, originY, originZ, endX, endY, endZ, null, 0, freeCells, null, resolution, treeDepth);
+         }
+         else
+         {
+            int lastKeyOutside = traversePackedRayKeys(originX, originY, originZ, endX, endY, endZ, boundingBox, 0, null, null, resolution, treeDepth);
+            traversePackedRayKeys(originX, originY, originZ, endX, endY, endZ, null, lastKeyOutside + 1, freeCells, null, resolution, treeDepth);
+         }
+
+         double segmentStart = fineLength;
+
+         for (int level = 1; segmentStart < freeLength; level++)
+         {
+            double segmentEnd = level < coarseFreeCells.length ? Math.min(freeLength, 2.0 * segmentStart) : freeLength;
+            double startX = endX;
+            double startY = endY;
+            double startZ = endZ;
+            endX = originX + segmentEnd * directionX;
+            endY = originY + segmentEnd * directionY;
+            endZ = originZ + segmentEnd * directionZ;
+            // The grid of the nodes at the depth (treeDepth - level) is the grid of the leaves of a tree with a coarser resolution and a smaller depth.
+            double levelResolution = resolution * (1 << level);
+            int levelTreeDepth = treeDepth - level;
+            // The start cell contains the end cell of the previous segment, it is not added by the traversal when the segment does not leave it.
+            long startKey = OcTreeKeyConversionTools.coordinateToPackedKey(startX, startY, startZ, levelResolution, levelTreeDepth);
+            if (startKey != OcTreeKeyTools.INVALID_PACKED_KEY)
+               coarseFreeCells[level - 1].add(startKey);
+            traversePackedRayKeys(startX, startY, startZ, endX, endY, endZ, null, 0, coarseFreeCells[level - 1], null, levelResolution, levelTreeDepth);
+            segmentStart = segmentEnd;
+         }
+      }
+
+      removeOccupiedCells(freeCells, firstNewFreeCellIndex, occupiedCells);
+
+      for (int i = 0; i < coarseFreeCells.length; i++)
+      {
+         int level = i + 1;
+         PackedOcTreeKeySet levelFreeCells = coarseFreeCells[i];
+
+         if (boundingBox != null)
+         {
+            int halfNodeSize = 1 << (level - 1);
+            int index = firstNewCoarseFreeCellIndices[i];
+
+            while (index < levelFreeCells.size())
+            {
+               long coarseCell = levelFreeCells.get(index);
+               int k0 = (OcTreeKeyTools.unpackKey0(coarseCell) << level) + halfNodeSize;
+               int k1 = (OcTreeKeyTools.unpackKey1(coarseCell) << level) + halfNodeSize;
+               int k2 = (OcTreeKeyTools.unpackKey2(coarseCell) << level) + halfNodeSize;
+               if (boundingBox.isInBoundingBox(k0, k1, k2))
+                  index++;
+               else
+                  levelFreeCells.remove(coarseCell); // the last cell is moved to this index
+            }
+         }
+
+         for (int j = 0; j < occupiedCells.size() && levelFreeCells.size() > 0; j++)
+         {
+            long occupiedCell = occupiedCells.get(j);
+            levelFreeCells.remove(OcTreeKeyTools.packKey(OcTreeKeyTools.unpackKey0(occupiedCell) >> level,
+                                                         OcTreeKeyTools.unpackKey1(occupiedCell) >> level,
+                                                         OcTreeKeyTools.unpackKey2(occupiedCell) >> level));
+         }
+      }
+   }
+
+   static void checkTreeDepthForPackedKeys(int treeDepth)
+   {
+      if (!OcTreeKeyTools.canPackKeys(treeDepth))
+         throw new RuntimeException("Cannot pack the keys of a tree with a depth greater than: " + OcTreeKeyTools.MAX_PACKED_KEY_TREE_DEPTH);
+   }
+
+   /** Prefers the occupied cells over the free ones from the given index (and makes the sets disjunct). */
+   static void removeOccupiedCells(PackedOcTreeKeySet freeCells, int firstFreeCellIndex, PackedOcTreeKeySet occupiedCells)
+   {
+      int index = firstFreeCellIndex;
+      while (index < freeCells.size())
+      {
+         long freeCell = freeCells.get(index);
+         if (occupiedCells.contains(freeCell))
+            freeCells.remove(freeCell); // the last cell is moved to this index
+         else
+            index++;
+      }
+   }
+
+   /**
+    * Traces the rays of the points in [{@code startIndex}, {@code endIndex}[ adding the traversed
+    * cells to {@code freeCells} and the endpoints to {@code occupiedCells}, without filtering.
+    *
+    * @param nearField when not {@code null}, the free cells in the near field are added only once.
+    */
+   private static void tracePackedRays(Point3DReadOnly origin, PointCloud pointCloud, int startIndex, int endIndex, PackedOcTreeKeySet freeCells,
+                                       PackedOcTreeKeySet occupiedCells, RayFanNearField nearField, OcTreeBoundingBoxInterface boundingBox,
+                                       double minRange, double maxRange, double resolution, int treeDepth)
+   {
+      double originX = origin.getX();
+      double originY = origin.getY();
+      double originZ = origin.getZ();
+
+      for (int i = startIndex; i < endIndex; ++i)
+      {
+         Point3DReadOnly point = pointCloud.getPoint(i);
+         double pointX = point.getX();
+         double pointY = point.getY();
+         double pointZ = point.getZ();
+         double directionX = pointX - originX;
+         double directionY = pointY - originY;
+         double directionZ = pointZ - originZ;
+         double length = Math.sqrt(directionX * directionX + directionY * directionY + directionZ * directionZ);
+
+         if (minRange >= 0.0 && length < minRange)
+            continue;
+
+         if (boundingBox == null)
+         { // no BBX specified
+            if (maxRange < 0.0 || length <= maxRange)
+            { // is not maxrange meas.
+               // free cells
+               traversePackedRayKeys(originX, originY, originZ, pointX, pointY, pointZ, null, 0, freeCells, nearField, resolution, treeDepth);
+               // occupied endpoint
+               long key = OcTreeKeyConversionTools.coordinateToPackedKey(pointX, pointY, pointZ, resolution, treeDepth);
+               if (key != OcTreeKeyTools.INVALID_PACKED_KEY)
+                  occupiedCells.add(key);
+            }
+            else
+            { // user set a maxrange and length is above
+               double scale = maxRange / length;
+               double endX = scale * directionX + originX;
+               double endY = scale * directionY + originY;
+               double endZ = scale * directionZ + originZ;
+               traversePackedRayKeys(originX, originY, originZ, endX, endY, endZ, null, 0, freeCells, nearField, resolution, treeDepth);
+            } // end if maxrange
+         }
+         else
+         { // BBX was set
+           // endpoint in bbx and not maxrange?
+            if (boundingBox.isInBoundingBox(point) && (maxRange < 0.0 || length <= maxRange))
+            {
+               // occupied endpoint
+               long key = OcTreeKeyConversionTools.coordinateToPackedKey(pointX, pointY, pointZ, resolution, treeDepth);
+               if (key != OcTreeKeyTools.INVALID_PACKED_KEY)
+                  occupiedCells.add(key);
+
+               // update freespace, only the keys after the last one outside the bbx are kept
+               int lastKeyOutside = traversePackedRayKeys(originX, originY, originZ, pointX, pointY, pointZ, boundingBox, 0, null, null, resolution,
+                                                           treeDepth);
+               traversePackedRayKeys(originX, originY, originZ, pointX, pointY, pointZ, null, lastKeyOutside + 1, freeCells, nearField, resolution,
+                                     treeDepth);
+            } // end if in BBX and not maxrange
+         } // end bbx case
+      } // end for all points
+   }
+
+   /**
+    * Allocation-free traversal of the keys of the nodes traversed by a ray from origin to end
+    * (excluded), using the same algorithm as
+    * {@link #doActionOnRayKeys(Point3DReadOnly, Point3DReadOnly, OcTreeBoundingBoxInterface, RayActionRule, double, int)}.
+    *
+    * @param boundingBox       used to find the last key along the ray that is outside of it, can be
+    *                          {@code null}.
+    * @param firstKeyToAdd     index along the ray of the first key to add to the set.
+    * @param keySetToPack      set to which the keys are added, can be {@code null}.
+    * @param nearField         when not {@code null}, filters the keys of the near field already added.
+    * @return the index along the ray of the last key outside of the bounding box, -1 if none.
+    */
+   private static int traversePackedRayKeys(double originX, double originY, double originZ, double endX, double endY, double endZ,
+                                            OcTreeBoundingBoxInterface boundingBox, int firstKeyToAdd, PackedOcTreeKeySet keySetToPack,
+                                            RayFanNearField nearField, double resolution, int treeDepth)
+   {
+      double directionX = endX - originX;
+      double directionY = endY - originY;
+      double directionZ = endZ - originZ;
+      double length = Math.sqrt(directionX * directionX + directionY * directionY + directionZ * directionZ);
+      double lengthInverse = 1.0 / length;
+      directionX *= lengthInverse;
+      directionY *= lengthInverse;
+      directionZ *= lengthInverse;
+
+      int k0 = coordinateToKey(originX, treeDepth, resolution, treeDepth);
+      int k1 = coordinateToKey(originY, treeDepth, resolution, treeDepth);
+      int k2 = coordinateToKey(originZ, treeDepth, resolution, treeDepth);
+      int keyEnd0 = coordinateToKey(endX, treeDepth, resolution, treeDepth);
+      int keyEnd1 = coordinateToKey(endY, treeDepth, resolution, treeDepth);
+      int keyEnd2 = coordinateToKey(endZ, treeDepth, resolution, treeDepth);
+
+      if (k0 == -1 || k1 == -1 || k2 == -1 || keyEnd0 == -1 || keyEnd1 == -1 || keyEnd2 == -1)
+         return -1;
+      if (k0 == keyEnd0 && k1 == keyEnd1 && k2 == keyEnd2)
+         return -1; // same tree cell, we're done.
+
+      int keyIndex = 0;
+      int lastKeyOutside = -1;
+
+      // Initialization phase -------------------------------------------------------
+      if (boundingBox != null && !boundingBox.isInBoundingBox(k0, k1, k2))
+         lastKeyOutside = keyIndex;
+      if (keySetToPack != null && keyIndex >= firstKeyToAdd && (nearField == null || nearField.mark(k0, k1, k2)))
+         keySetToPack.add(OcTreeKeyTools.packKey(k0, k1, k2));
+      keyIndex++;
+
+      int step0 = directionX > 0.0 ? 1 : directionX < 0.0 ? -1 : 0;
+      int step1 = directionY > 0.0 ? 1 : directionY < 0.0 ? -1 : 0;
+      int step2 = directionZ > 0.0 ? 1 : directionZ < 0.0 ? -1 : 0;
+      // corner point of voxel (in direction of ray)
+      double tMax0 = step0 == 0 ? Double.POSITIVE_INFINITY : (keyToCoordinate(k0, resolution, treeDepth) + step0 * resolution * 0.5 - originX) / directionX;
+      double tMax1 = step1 == 0 ? Double.POSITIVE_INFINITY : (keyToCoordinate(k1, resolution, treeDepth) + step1 * resolution * 0.5 - originY) / directionY;
+      double tMax2 = step2 == 0 ? Double.POSITIVE_INFINITY : (keyToCoordinate(k2, resolution, treeDepth) + step2 * resolution * 0.5 - originZ) / directionZ;
+      double tDelta0 = step0 == 0 ? Double.POSITIVE_INFINITY : resolution / Math.abs(directionX);
+      double tDelta1 = step1 == 0 ? Double.POSITIVE_INFINITY : resolution / Math.abs(directionY);
+      double tDelta2 = step2 == 0 ? Double.POSITIVE_INFINITY : resolution / Math.abs(directionZ);
+
+      // Incremental phase  ---------------------------------------------------------
+      while (true)
+      {
+         // find minimum tMax and advance in that direction
+         if (tMax0 < tMax1 && tMax0 < tMax2)
+         {
+            k0 += step0;
+            tMax0 += tDelta0;
+         }
+         else if (!(tMax0 < tMax1) && tMax1 < tMax2)
+         {
+            k1 += step1;
+            tMax1 += tDelta1;
+         }
+         else
+         {
+            k2 += step2;
+            tMax2 += tDelta2;
+         }
+
+         // reached endpoint, key equv?
+         if (k0 == keyEnd0 && k1 == keyEnd1 && k2 == keyEnd2)
+            break;
+
+         // reached endpoint world coords?
+         double distanceFromOrigin;
+         if (tMax0 < tMax1)
+            distanceFromOrigin = tMax0 < tMax2 ? tMax0 : tMax2;
+         else
+            distanceFromOrigin = tMax1 < tMax2 ? tMax1 : tMax2;
+
+         // we did not hit the voxel containing the end point due to accumulating discretization errors
+         if (distanceFromOrigin > length)
+            break;
+
+         // continue to add freespace cells
+         if (boundingBox != null && !boundingBox.isInBoundingBox(k0, k1, k2))
+            lastKeyOutside = keyIndex;
+         if (keySetToPack != null && keyIndex >= firstKeyToAdd && (nearField == null || nearField.mark(k0, k1, k2)))
+            keySetToPack.add(OcTreeKeyTools.packKey(k0, k1, k2));
+         keyIndex++;
+      }
+
+      return lastKeyOutside;
+   }
+
    /**
     * Traces a ray from origin to end (excluding), returning an OcTreeKey of all nodes traversed by the
     * beam. You still need to check if a node at that coordinate exists (e.g. with search()).
@@ -561,6 +1125,402 @@ public abstract class OcTreeRayTools
       return true;
    }
 
+   /**
+    * Same as
+    * {@link #castRay(AbstractOcTreeNode, Point3DReadOnly, Vector3DReadOnly, Point3DBasics, boolean, double, CollidableRule, double, int)}
+    * using a hierarchical traversal: instead of searching the tree from the root at every cell, the
+    * path to the current cell is kept and the ray jumps in one step across the nodes that cannot
+    * contain a collidable cell, i.e. pruned free nodes and, when unknown cells are ignored, inner nodes
+    * that are not collidable themselves.
+    * <p>
+    * The collidable rule is expected to be conservative for inner nodes: an inner node has to be
+    * collidable whenever one of its descendants is. That is the case for the occupancy trees as the
+    * log-odds of an inner node is the maximum log-odds of its children, see
+    * {@link AbstractOccupancyOcTreeNode#getMaxChildLogOdds()}.
+    * </p>
+    */
+   public static <NODE extends AbstractOcTreeNode<NODE>> boolean castRayHierarchical(NODE root, Point3DReadOnly origin, Vector3DReadOnly direction,
+                                                                                     Point3DBasics endToPack, boolean ignoreUnknownCells, double maxRange,
+                                                                                     CollidableRule<NODE> collidableRule, double resolution, int treeDepth)
+   {
+      RayCastWorkspace workspace = new RayCastWorkspace();
+      boolean hit = castRayHierarchical(root,
+                                        origin.getX(),
+                                        origin.getY(),
+                                        origin.getZ(),
+                                        direction.getX(),
+                                        direction.getY(),
+                                        direction.getZ(),
+                                        ignoreUnknownCells,
+                                        maxRange,
+                                        collidableRule,
+                                        resolution,
+                                        treeDepth,
+                                        workspace);
+      if (workspace.endSet)
+         endToPack.set(workspace.end);
+      return hit;
+   }
+
+   /**
+    * Casts a batch of rays with
+    * {@link #castRayHierarchical(AbstractOcTreeNode, Point3DReadOnly, Vector3DReadOnly, Point3DBasics, boolean, double, CollidableRule, double, int)}.
+    * The rays are given as primitive arrays, the ray {@code i} starting at
+    * {@code (origins[3 * i], origins[3 * i + 1], origins[3 * i + 2])}, and the results are packed the
+    * same way. For a ray which end could not be computed, e.g. its origin is outside the tree, the end
+    * and distance are set to {@code NaN}.
+    *
+    * @param endsToPack      the center of the last cell of each ray, 3 values per ray.
+    * @param hitsToPack      whether each ray hit a collidable cell.
+    * @param distancesToPack the distance from the origin to the end of each ray. Can be {@code null}.
+    * @param pool            the pool used to cast the rays in parallel, {@code null} to cast them
+    *                        sequentially on the calling thread.
+    */
+   public static <NODE extends AbstractOcTreeNode<NODE>> void castRays(NODE root, double[] origins, double[] directions, int numberOfRays,
+                                                                       boolean ignoreUnknownCells, double maxRange, CollidableRule<NODE> collidableRule,
+                                                                       double resolution, int treeDepth, double[] endsToPack, boolean[] hitsToPack,
+                                                                       double[] distancesToPack, ForkJoinPool pool)
+   {
+      if (origins.length < 3 * numberOfRays || directions.length < 3 * numberOfRays || endsToPack.length < 3 * numberOfRays
+            || hitsToPack.length < numberOfRays || (distancesToPack != null && distancesToPack.length < numberOfRays))
+         throw new RuntimeException("The arrays are too small for the number of rays: " + numberOfRays);
+
+      int numberOfChunks = pool == null ? 1 : Math.min(4 * pool.getParallelism(), numberOfRays / MINIMUM_NUMBER_OF_RAYS_PER_CHUNK);
+
+      if (numberOfChunks <= 1)
+      {
+         castRays(root, origins, directions, 0, numberOfRays, ignoreUnknownCells, maxRange, collidableRule, resolution, treeDepth, endsToPack, hitsToPack,
+                  distancesToPack);
+         return;
+      }
+
+      List<ForkJoinTask<?>> tasks = new ArrayList<>(numberOfChunks);
+
+      for (int chunkIndex = 0; chunkIndex < numberOfChunks; chunkIndex++)
+      {
+         int startIndex = (int) ((long) chunkIndex * numberOfRays / numberOfChunks);
+         int endIndex = (int) ((long) (chunkIndex + 1) * numberOfRays / numberOfChunks);
+         tasks.add(pool.submit(() -> castRays(root,
+                                              origins,
+                                              directions,
+                                              startIndex,
+                                              endIndex,
+                                              ignoreUnknownCells,
+                                              maxRange,
+                                              collidableRule,
+                                              resolution,
+                                              treeDepth,
+                                              endsToPack,
+                                              hitsToPack,
+                                              distancesToPack)));
+      }
+
+      for (int chunkIndex = 0; chunkIndex < numberOfChunks; chunkIndex++)
+         tasks.get(chunkIndex).join();
+   }
+
+   private static <NODE extends AbstractOcTreeNode<NODE>> void castRays(NODE root, double[] origins, double[] directions, int startIndex, int endIndex,
+                                                                        boolean ignoreUnknownCells, double maxRange, CollidableRule<NODE> collidableRule,
+                                                                        double resolution, int treeDepth, double[] endsToPack, boolean[] hitsToPack,
+                                                                        double[] distancesToPack)
+   {
+      RayCastWorkspace workspace = RAY_CAST_WORKSPACE.get();
+
+      for (int rayIndex = startIndex; rayIndex < endIndex; rayIndex++)
+      {
+         int offset = 3 * rayIndex;
+         double originX = origins[offset];
+         double originY = origins[offset + 1];
+         double originZ = origins[offset + 2];
+
+         hitsToPack[rayIndex] = castRayHierarchical(root,
+                                                    originX,
+                                                    originY,
+                                                    originZ,
+                                                    directions[offset],
+                                                    directions[offset + 1],
+                                                    directions[offset + 2],
+                                                    ignoreUnknownCells,
+                                                    maxRange,
+                                                    collidableRule,
+                                                    resolution,
+                                                    treeDepth,
+                                                    workspace);
+
+         if (workspace.endSet)
+         {
+            endsToPack[offset] = workspace.end.getX();
+            endsToPack[offset + 1] = workspace.end.getY();
+            endsToPack[offset + 2] = workspace.end.getZ();
+         }
+         else
+         {
+            endsToPack[offset] = Double.NaN;
+            endsToPack[offset + 1] = Double.NaN;
+            endsToPack[offset + 2] = Double.NaN;
+         }
+
+         if (distancesToPack != null)
+            distancesToPack[rayIndex] = workspace.endSet ? EuclidCoreTools.norm(endsToPack[offset] - originX,
+                                                                                endsToPack[offset + 1] - originY,
+                                                                                endsToPack[offset + 2] - originZ)
+                                                         : Double.NaN;
+      }
+   }
+
+   /**
+    * Scratch state of the hierarchical ray casting, reused from one ray to the next to avoid
+    * allocating.
+    */
+   private static class RayCastWorkspace
+   {
+      private final int[] key = new int[3];
+      private final int[] step = new int[3];
+      private final double[] origin = new double[3];
+      private final double[] tMax = new double[3];
+      private final double[] tDelta = new double[3];
+      private final double[] tExit = new double[3];
+      private final int[] numberOfStepsToBound = new int[3];
+      /** path[depth] is the node at depth that holds the current cell, null for unknown space. */
+      private AbstractOcTreeNode<?>[] path = new AbstractOcTreeNode<?>[0];
+      private final Point3D end = new Point3D();
+      /** Whether {@link #end} has been set by the last ray. */
+      private boolean endSet;
+   }
+
+   private static final ThreadLocal<RayCastWorkspace> RAY_CAST_WORKSPACE = ThreadLocal.withInitial(RayCastWorkspace::new);
+
+   private static <NODE extends AbstractOcTreeNode<NODE>> boolean castRayHierarchical(NODE root, double originX, double originY, double originZ,
+                                                                                      double directionX, double directionY, double directionZ,
+                                                                                      boolean ignoreUnknownCells, double maxRange,
+                                                                                      CollidableRule<NODE> collidableRule, double resolution, int treeDepth,
+                                                                                      RayCastWorkspace workspace)
+   {
+      workspace.endSet = false;
+      int[] key = workspace.key;
+      int[] step = workspace.step;
+      double[] originArray = workspace.origin;
+      double[] tMax = workspace.tMax;
+      double[] tDelta = workspace.tDelta;
+      Point3D end = workspace.end;
+
+      originArray[0] = originX;
+      originArray[1] = originY;
+      originArray[2] = originZ;
+
+      for (int i = 0; i < 3; i++)
+      {
+         key[i] = OcTreeKeyConversionTools.coordinateToKey(originArray[i], resolution, treeDepth);
+
+         if (key[i] == -1)
+         {
+            if (DEBUG)
+               System.err.println(OcTreeRayTools.class.getSimpleName() + " (in castRayHierarchical): Coordinates out of bounds during ray casting");
+            return false;
+         }
+      }
+
+      double directionLength = EuclidCoreTools.norm(directionX, directionY, directionZ);
+
+      for (int i = 0; i < 3; ++i)
+      {
+         double directionComponent = (i == 0 ? directionX : i == 1 ? directionY : directionZ) / directionLength;
+         step[i] = directionComponent > 0.0 ? 1 : directionComponent < 0.0 ? -1 : 0;
+
+         if (step[i] != 0)
+         { // corner point of voxel (in direction of ray)
+            double voxelBorder = OcTreeKeyConversionTools.keyToCoordinate(key[i], resolution, treeDepth) + step[i] * resolution * 0.5;
+            tMax[i] = (voxelBorder - originArray[i]) / directionComponent;
+            tDelta[i] = resolution / Math.abs(directionComponent);
+         }
+         else
+         {
+            tMax[i] = Double.POSITIVE_INFINITY;
+            tDelta[i] = Double.POSITIVE_INFINITY;
+         }
+      }
+
+      int keyMaxValue = OcTreeKeyTools.computeMaximumKey(treeDepth);
+      boolean maxRangeSet = maxRange > 0.0;
+      double maxRangeSquared = maxRange * maxRange;
+
+      if (workspace.path.length < treeDepth + 1)
+         workspace.path = new AbstractOcTreeNode<?>[treeDepth + 1];
+      @SuppressWarnings("unchecked")
+      NODE[] path = (NODE[]) workspace.path;
+      path[0] = root;
+      int pathDepth = 0;
+      boolean isFirstCell = true;
+
+      while (true)
+      {
+         // Descend to the node holding the current cell, unless the subtree cannot contain a collidable cell.
+         NODE node = path[pathDepth];
+         int depth = pathDepth;
+
+         while (node != null && depth < treeDepth && node.hasAtLeastOneChild())
+         {
+            if (ignoreUnknownCells && !collidableRule.isCollidable(node))
+               break;
+            node = node.getChild(OcTreeKeyTools.computeChildIndex(key[0], key[1], key[2], depth, treeDepth));
+            path[++depth] = node;
+         }
+
+         pathDepth = depth;
+
+         if (node == null)
+         { // no node found, this usually means we are in "unknown" areas
+            if (!ignoreUnknownCells)
+            {
+               packCellCenter(key, workspace, resolution, treeDepth);
+               return false;
+            }
+         }
+         else if (!node.hasAtLeastOneChild() && collidableRule.isCollidable(node))
+         {
+            packCellCenter(key, workspace, resolution, treeDepth);
+            return true;
+         }
+
+         if (isFirstCell)
+         {
+            isFirstCell = false;
+
+            if (step[0] == 0 && step[1] == 0 && step[2] == 0)
+            {
+               if (DEBUG)
+                  System.err.println(OcTreeRayTools.class.getSimpleName() + " (in castRayHierarchical): Raycasting in direction (0,0,0) is not possible!");
+               return false;
+            }
+         }
+
+         int previousKey0 = key[0];
+         int previousKey1 = key[1];
+         int previousKey2 = key[2];
+
+         // The cube of the node at depth does not contain any cell to stop at, go directly to its last cell along the ray.
+         int cubeLevel = treeDepth - depth;
+         if (cubeLevel > 0 && (!maxRangeSet || computeCubeFarthestDistanceSquared(key, cubeLevel, originArray, resolution, treeDepth) <= maxRangeSquared))
+            jumpToLastCellInCube(cubeLevel, workspace);
+
+         int dim = findNextStepDimension(tMax);
+
+         // check for overflow:
+         if (step[dim] < 0 && key[dim] == 0 || step[dim] > 0 && key[dim] == keyMaxValue)
+         {
+            if (DEBUG)
+               System.err.println(OcTreeRayTools.class.getSimpleName() + " (in castRayHierarchical): Coordinate hit bounds in dim " + dim + ", aborting raycast");
+            // return border point nevertheless:
+            packCellCenter(key, workspace, resolution, treeDepth);
+            return false;
+         }
+
+         // advance in direction "dim"
+         key[dim] += step[dim];
+         tMax[dim] += tDelta[dim];
+         packCellCenter(key, workspace, resolution, treeDepth);
+
+         if (maxRangeSet && EuclidCoreTools.normSquared(end.getX() - originX, end.getY() - originY, end.getZ() - originZ) > maxRangeSquared)
+            return false;
+
+         // Only the nodes that hold both the previous and the current cell remain valid.
+         int difference = (previousKey0 ^ key[0]) | (previousKey1 ^ key[1]) | (previousKey2 ^ key[2]);
+         int commonDepth = treeDepth - (32 - Integer.numberOfLeadingZeros(difference));
+         pathDepth = Math.min(pathDepth, commonDepth);
+      }
+   }
+
+   /**
+    * Advances the ray to the last cell it traverses in the cube of size {@code 1 << cubeLevel} cells
+    * that holds the current cell, the state is updated as if the ray was traversed cell by cell.
+    */
+   private static void jumpToLastCellInCube(int cubeLevel, RayCastWorkspace workspace)
+   {
+      int[] key = workspace.key;
+      int[] step = workspace.step;
+      double[] tMax = workspace.tMax;
+      double[] tDelta = workspace.tDelta;
+      double[] tExit = workspace.tExit;
+      int[] numberOfStepsToBound = workspace.numberOfStepsToBound;
+      int cubeMask = -1 << cubeLevel;
+
+      for (int i = 0; i < 3; i++)
+      {
+         if (step[i] == 0)
+         {
+            numberOfStepsToBound[i] = 0;
+            tExit[i] = Double.POSITIVE_INFINITY;
+            continue;
+         }
+
+         int cubeMinKey = key[i] & cubeMask;
+         int boundKey = step[i] > 0 ? cubeMinKey + (1 << cubeLevel) - 1 : cubeMinKey;
+         numberOfStepsToBound[i] = Math.abs(boundKey - key[i]);
+         tExit[i] = tMax[i] + numberOfStepsToBound[i] * tDelta[i];
+      }
+
+      // The ray leaves the cube through this dimension, the others step as long as they come first.
+      int exitDim = findNextStepDimension(tExit);
+      double tCubeExit = tExit[exitDim];
+
+      for (int i = 0; i < 3; i++)
+      {
+         int numberOfSteps;
+
+         if (i == exitDim)
+         {
+            numberOfSteps = numberOfStepsToBound[i];
+         }
+         else if (step[i] == 0)
+         {
+            numberOfSteps = 0;
+         }
+         else
+         { // On a tie, the greater dimension steps first.
+            double stepsBeforeExit = (tCubeExit - tMax[i]) / tDelta[i];
+            numberOfSteps = (int) (i > exitDim ? Math.floor(stepsBeforeExit) + 1.0 : Math.ceil(stepsBeforeExit));
+            numberOfSteps = Math.max(0, Math.min(numberOfSteps, numberOfStepsToBound[i]));
+         }
+
+         key[i] += step[i] * numberOfSteps;
+         tMax[i] += numberOfSteps * tDelta[i];
+      }
+   }
+
+   /** Same selection as the incremental phase of the ray traversal, ties go to the greater dimension. */
+   private static int findNextStepDimension(double[] tMax)
+   {
+      if (tMax[0] < tMax[1])
+         return tMax[0] < tMax[2] ? 0 : 2;
+      else
+         return tMax[1] < tMax[2] ? 1 : 2;
+   }
+
+   private static double computeCubeFarthestDistanceSquared(int[] key, int cubeLevel, double[] originArray, double resolution, int treeDepth)
+   {
+      int cubeMask = -1 << cubeLevel;
+      int centerOffsetKey = OcTreeKeyTools.computeCenterOffsetKey(treeDepth);
+      double distanceSquared = 0.0;
+
+      for (int i = 0; i < 3; i++)
+      {
+         double cubeMin = ((key[i] & cubeMask) - centerOffsetKey) * resolution;
+         double cubeMax = cubeMin + (1 << cubeLevel) * resolution;
+         double farthest = Math.max(Math.abs(cubeMin - originArray[i]), Math.abs(cubeMax - originArray[i]));
+         distanceSquared += farthest * farthest;
+      }
+
+      return distanceSquared;
+   }
+
+   private static void packCellCenter(int[] key, RayCastWorkspace workspace, double resolution, int treeDepth)
+   {
+      workspace.end.set(OcTreeKeyConversionTools.keyToCoordinate(key[0], resolution, treeDepth),
+                        OcTreeKeyConversionTools.keyToCoordinate(key[1], resolution, treeDepth),
+                        OcTreeKeyConversionTools.keyToCoordinate(key[2], resolution, treeDepth));
+      workspace.endSet = true;
+   }
+
    /**
     * Retrieves the entry point of a ray into a voxel. This is the closest intersection point of the
     * ray originating from origin and a plane of the axis aligned cube.
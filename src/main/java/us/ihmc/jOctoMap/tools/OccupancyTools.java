@@ -27,7 +27,19 @@ public abstract class OccupancyTools
     */
    public static <NODE extends AbstractOccupancyOcTreeNode<NODE>> boolean isNodeOccupied(OccupancyParametersReadOnly parameters, NODE occupancyNode)
    {
-      return occupancyNode.getLogOdds() >= parameters.getOccupancyThreshold();
+      return isLogOddsOccupied(parameters, occupancyNode.getLogOdds());
+   }
+
+   /**
+    * Queries whether a log-odds value is considered occupied according to the tree's parameter for
+    * "occupancyThreshold"
+    *
+    * @param logOdds
+    * @return
+    */
+   public static boolean isLogOddsOccupied(OccupancyParametersReadOnly parameters, float logOdds)
+   {
+      return logOdds >= parameters.getOccupancyThreshold();
    }
 
    /**
@@ -0,0 +1,259 @@
+package us.ihmc.jOctoMap.ingestion;
+
+import static us.ihmc.robotics.Assert.assertEquals;
+import static us.ihmc.robotics.Assert.assertFalse;
+import static us.ihmc.robotics.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import us.ihmc.euclid.tuple3D.Point3D;
+import us.ihmc.jOctoMap.ingestion.ScanIngestionPipeline.OverflowPolicy;
+import us.ihmc.jOctoMap.ingestion.ScanIngestionPipeline.Stage;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeySet;
+import us.ihmc.jOctoMap.ocTree.OccupancyOcTree;
+import us.ihmc.jOctoMap.pointCloud.PointCloud;
+import us.ihmc.jOctoMap.pointCloud.Scan;
+import us.ihmc.jOctoMap.pointCloud.ScanCollection;
+import us.ihmc.jOctoMap.tools.JOctoMapRandomTools;
+
+public class OcTreeScanProcessorTest
+{
+   @Test
+   public void testStreamingIntoOccupancyOcTree() throws InterruptedException
+   {
+      for (boolean delayDemand : new boolean[] {false, true})
+      {
+         Random random = new Random(6743L);
+         int queueCapacity = 3;
+         int numberOfScans = 20;
+
+         OccupancyOcTree expectedOcTree = new OccupancyOcTree(0.05);
+         OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+         PackedOcTreeKeySet expectedChangedKeys = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet freeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet occupiedCells = new PackedOcTreeKeySet();
+
+         List<Scan> scans = new ArrayList<>();
+
+         for (int i = 0; i < numberOfScans; i++)
+         {
+            // The scans are kept apart such that the resulting tree does not depend on how they are coalesced.
+            Point3D sensorOrigin = new Point3D(10.0 * i, 0.0, 0.0);
+            PointCloud pointCloud = new PointCloud();
+            for (int j = 0; j < 200; j++)
+            {
+               Point3D point = JOctoMapRandomTools.generateRandomPoint3D(random, 3.0, 3.0, 3.0);
+               point.add(sensorOrigin);
+               pointCloud.add(point);
+            }
+            Scan scan = new Scan(sensorOrigin, pointCloud);
+            scans.add(scan);
+
+            expectedOcTree.insertPointCloud(pointCloud, sensorOrigin);
+            expectedOcTree.computeCellsToUpdate(new ScanCollection(pointCloud, sensorOrigin), freeCells, occupiedCells);
+            expectedChangedKeys.addAll(freeCells);
+            expectedChangedKeys.addAll(occupiedCells);
+         }
+
+         OcTreeScanProcessor processor = new OcTreeScanProcessor(new OccupancyOcTreeIngestionPipeline(ocTree, queueCapacity, OverflowPolicy.DROP_NEWEST));
+         ChangeSetCollector collector = new ChangeSetCollector(delayDemand);
+         processor.subscribe(collector);
+
+         ScanPublisher publisher = new ScanPublisher(scans);
+         publisher.subscribe(processor);
+
+         if (delayDemand)
+         {
+            while (processor.getPipeline().isRunning())
+               Thread.sleep(1);
+            collector.subscription.request(1);
+         }
+
+         assertTrue(collector.completed.await(10, TimeUnit.SECONDS));
+
+         assertTrue(publisher.maximumOutstandingDemand <= queueCapacity);
+         assertEquals(0, processor.getPipeline().getNumberOfDroppedBatches());
+         assertTrue(expectedOcTree.epsilonEquals(ocTree, 1.0e-7));
+
+         int numberOfUpdates = 0;
+         PackedOcTreeKeySet changedKeys = new PackedOcTreeKeySet();
+
+         for (OcTreeChangeSet changeSet : collector.changeSets)
+         {
+            numberOfUpdates += changeSet.getNumberOfUpdates();
+            changedKeys.addAll(changeSet.getUpdatedKeys());
+            assertTrue(changeSet.getDeletedKeys().isEmpty());
+         }
+
+         if (delayDemand)
+            assertEquals(1, collector.changeSets.size());
+         assertEquals(processor.getPipeline().getStageStatistics(Stage.TREE_UPDATE).getNumberOfRuns(), numberOfUpdates);
+         assertEquals(expectedChangedKeys.size(), changedKeys.size());
+         for (int i = 0; i < expectedChangedKeys.size(); i++)
+            assertTrue(changedKeys.contains(expectedChangedKeys.get(i)));
+      }
+   }
+
+   @Test
+   public void testCancelStopsPipeline() throws InterruptedException
+   {
+      Random random = new Random(9214L);
+      List<Scan> scans = new ArrayList<>();
+
+      for (int i = 0; i < 50; i++)
+      {
+         Point3D sensorOrigin = new Point3D(10.0 * i, 0.0, 0.0);
+         PointCloud pointCloud = new PointCloud();
+         for (int j = 0; j < 200; j++)
+         {
+            Point3D point = JOctoMapRandomTools.generateRandomPoint3D(random, 3.0, 3.0, 3.0);
+            point.add(sensorOrigin);
+            pointCloud.add(point);
+         }
+         scans.add(new Scan(sensorOrigin, pointCloud));
+      }
+
+      OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+      OcTreeScanProcessor processor = new OcTreeScanProcessor(new OccupancyOcTreeIngestionPipeline(ocTree, 3, OverflowPolicy.DROP_NEWEST));
+      CountDownLatch cancelled = new CountDownLatch(1);
+
+      processor.subscribe(new OcTreeFlow.Subscriber<OcTreeChangeSet>()
+      {
+         private OcTreeFlow.Subscription subscription;
+
+         @Override
+         public void onSubscribe(OcTreeFlow.Subscription subscription)
+         {
+            this.subscription = subscription;
+            subscription.request(1);
+         }
+
+         @Override
+         public void onNext(OcTreeChangeSet changeSet)
+         {
+            subscription.cancel();
+            cancelled.countDown();
+         }
+
+         @Override
+         public void onError(Throwable throwable)
+         {
+         }
+
+         @Override
+         public void onComplete()
+         {
+         }
+      });
+
+      ScanPublisher publisher = new ScanPublisher(scans);
+      publisher.subscribe(processor);
+      List<Thread> pipelineThreads = new ArrayList<>();
+      for (Thread thread : Thread.getAllStackTraces().keySet())
+      {
+         if (thread.getName().startsWith("ScanIngestion"))
+            pipelineThreads.add(thread);
+      }
+
+      assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+      assertTrue(publisher.cancelled);
+
+      for (Thread thread : pipelineThreads)
+      {
+         thread.join(10000);
+         assertFalse(thread.isAlive());
+      }
+      assertFalse(processor.getPipeline().isRunning());
+   }
+
+   /** Publishes the scans on the thread requesting them. */
+   private static class ScanPublisher implements OcTreeFlow.Publisher<Scan>
+   {
+      private final List<Scan> scans;
+      private int nextScanIndex = 0;
+      private long outstandingDemand = 0;
+      private long maximumOutstandingDemand = 0;
+      private volatile boolean cancelled = false;
+
+      public ScanPublisher(List<Scan> scans)
+      {
+         this.scans = scans;
+      }
+
+      @Override
+      public void subscribe(OcTreeFlow.Subscriber<? super Scan> subscriber)
+      {
+         subscriber.onSubscribe(new OcTreeFlow.Subscription()
+         {
+            @Override
+            public synchronized void request(long n)
+            {
+               outstandingDemand += n;
+               maximumOutstandingDemand = Math.max(maximumOutstandingDemand, outstandingDemand);
+
+               while (!cancelled && outstandingDemand > 0 && nextScanIndex < scans.size())
+               {
+                  outstandingDemand--;
+                  subscriber.onNext(scans.get(nextScanIndex++));
+               }
+
+               if (!cancelled && nextScanIndex == scans.size())
+               {
+                  nextScanIndex++;
+                  subscriber.onComplete();
+               }
+            }
+
+            @Override
+            public void cancel()
+            {
+               cancelled = true;
+            }
+         });
+      }
+   }
+
+   private static class ChangeSetCollector implements OcTreeFlow.Subscriber<OcTreeChangeSet>
+   {
+      private final boolean delayDemand;
+      private final List<OcTreeChangeSet> changeSets = new ArrayList<>();
+      private final CountDownLatch completed = new CountDownLatch(1);
+      private OcTreeFlow.Subscription subscription;
+
+      public ChangeSetCollector(boolean delayDemand)
+      {
+         this.delayDemand = delayDemand;
+      }
+
+      @Override
+      public void onSubscribe(OcTreeFlow.Subscription subscription)
+      {
+         this.subscription = subscription;
+         if (!delayDemand)
+            subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(OcTreeChangeSet changeSet)
+      {
+         changeSets.add(changeSet);
+      }
+
+      @Override
+      public void onError(Throwable throwable)
+      {
+      }
+
+      @Override
+      public void onComplete()
+      {
+         completed.countDown();
+      }
+   }
+}
@@ -0,0 +1,262 @@
+package us.ihmc.jOctoMap.ingestion;
+
+import static us.ihmc.robotics.Assert.assertEquals;
+import static us.ihmc.robotics.Assert.assertFalse;
+import static us.ihmc.robotics.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import us.ihmc.euclid.tuple3D.Point3D;
+import us.ihmc.jOctoMap.ingestion.ScanIngestionPipeline.OverflowPolicy;
+import us.ihmc.jOctoMap.ingestion.ScanIngestionPipeline.Stage;
+import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeySet;
+import us.ihmc.jOctoMap.node.NormalOcTreeNode;
+import us.ihmc.jOctoMap.node.OccupancyOcTreeNode;
+import us.ihmc.jOctoMap.ocTree.NormalOcTree;
+import us.ihmc.jOctoMap.ocTree.OccupancyOcTree;
+import us.ihmc.jOctoMap.pointCloud.ScanCollection;
+import us.ihmc.jOctoMap.tools.JOctoMapRandomTools;
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
+
+public class ScanIngestionPipelineTest
+{
+   @Test
+   public void testOccupancyOcTreeIngestion() throws InterruptedException
+   {
+      Random random = new Random(4576L);
+      Point3D sensorOrigin = new Point3D(0.1, 0.2, 0.3);
+
+      OccupancyOcTree expectedOcTree = new OccupancyOcTree(0.05);
+      OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+      ocTree.enableSnapshots(true);
+
+      int numberOfBatches = 10;
+      OccupancyOcTreeIngestionPipeline pipeline = new OccupancyOcTreeIngestionPipeline(ocTree, numberOfBatches, OverflowPolicy.DROP_NEWEST);
+      pipeline.start();
+
+      for (int i = 0; i < numberOfBatches; i++)
+      {
+         ScanCollection scanCollection = JOctoMapRandomTools.generateRandomSweepCollection(random, 5.0f, 5.0f, 5.0f, sensorOrigin, 2, 300);
+         assertTrue(pipeline.submit(scanCollection));
+         expectedOcTree.insertSweepCollection(scanCollection);
+      }
+
+      pipeline.waitUntilIdle();
+      pipeline.stop();
+      assertFalse(pipeline.isRunning());
+
+      assertTrue(expectedOcTree.epsilonEquals(ocTree, 1.0e-7));
+      assertEquals(numberOfBatches, pipeline.getNumberOfSubmittedBatches());
+      assertEquals(0, pipeline.getNumberOfDroppedBatches());
+      assertEquals(0, pipeline.getNumberOfFailedBatches());
+      assertEquals(0, pipeline.getQueueDepth());
+
+      for (Stage stage : Stage.values())
+      {
+         assertEquals(numberOfBatches, pipeline.getStageStatistics(stage).getNumberOfRuns());
+         assertTrue(pipeline.getStageStatistics(stage).getMaximumLatency() >= pipeline.getStageStatistics(stage).getAverageLatency());
+      }
+
+      assertEquals(numberOfBatches, ocTree.getLatestSnapshot().getVersion());
+      assertEquals(ocTree.size(), ocTree.getLatestSnapshot().size());
+   }
+
+   @Test
+   public void testOccupancyOcTreeChangeSets() throws InterruptedException
+   {
+      Random random = new Random(87231L);
+      Point3D sensorOrigin = new Point3D(0.1, 0.2, 0.3);
+
+      OccupancyOcTree expectedOcTree = new OccupancyOcTree(0.05);
+      OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+      expectedOcTree.enableChangeDetection(true);
+      ocTree.enableChangeDetection(true);
+
+      int numberOfBatches = 10;
+      List<OcTreeChangeSet> changeSets = new ArrayList<>();
+      OccupancyOcTreeIngestionPipeline pipeline = new OccupancyOcTreeIngestionPipeline(ocTree, numberOfBatches, OverflowPolicy.DROP_NEWEST);
+      pipeline.setListener(new ScanIngestionPipeline.Listener()
+      {
+         @Override
+         public void batchesDequeued(int numberOfBatches)
+         {
+         }
+
+         @Override
+         public void updateCompleted(OcTreeChangeSet changeSet)
+         {
+            synchronized (changeSets)
+            {
+               changeSets.add(changeSet);
+            }
+         }
+
+         @Override
+         public void idle()
+         {
+         }
+      });
+      pipeline.start();
+
+      List<Set<Long>> expectedUpdatedKeys = new ArrayList<>();
+      List<Set<Long>> expectedDeletedKeys = new ArrayList<>();
+      int numberOfTouchedCells = 0;
+
+      for (int i = 0; i < numberOfBatches; i++)
+      {
+         ScanCollection scanCollection = JOctoMapRandomTools.generateRandomSweepCollection(random, 5.0f, 5.0f, 5.0f, sensorOrigin, 2, 300);
+         assertTrue(pipeline.submit(scanCollection));
+
+         PackedOcTreeKeySet freeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet occupiedCells = new PackedOcTreeKeySet();
+         expectedOcTree.computeCellsToUpdate(scanCollection, freeCells, occupiedCells);
+         numberOfTouchedCells += freeCells.size() + occupiedCells.size();
+
+         expectedOcTree.resetChangeDetection();
+         expectedOcTree.insertSweepCollection(scanCollection);
+         Set<Long> updatedKeys = new HashSet<>();
+         Set<Long> deletedKeys = new HashSet<>();
+
+         for (OcTreeKeyReadOnly changedKey : expectedOcTree.getChangedKeys().keySet())
+         {
+            // The leaves pruned into a coarser node are still known, only the keys no longer in the tree are deleted.
+            OccupancyOcTreeNode node = expectedOcTree.search(changedKey);
+            if (node != null)
+               updatedKeys.add(OcTreeKeyTools.packKey(changedKey));
+            else
+               deletedKeys.add(OcTreeKeyTools.packKey(changedKey));
+         }
+
+         expectedUpdatedKeys.add(updatedKeys);
+         expectedDeletedKeys.add(deletedKeys);
+      }
+
+      pipeline.waitUntilIdle();
+      pipeline.stop();
+
+      assertTrue(expectedOcTree.epsilonEquals(ocTree, 1.0e-7));
+      assertEquals(numberOfBatches, changeSets.size());
+      int numberOfChangedKeys = 0;
+
+      for (int i = 0; i < numberOfBatches; i++)
+      {
+         assertEquals(expectedUpdatedKeys.get(i), toSet(changeSets.get(i).getUpdatedKeys()));
+         assertEquals(expectedDeletedKeys.get(i), toSet(changeSets.get(i).getDeletedKeys()));
+         numberOfChangedKeys += changeSets.get(i).getUpdatedKeys().size() + changeSets.get(i).getDeletedKeys().size();
+      }
+
+      assertTrue(numberOfChangedKeys > 0);
+      assertTrue(numberOfChangedKeys < numberOfTouchedCells);
+      // The change detection of the tree only holds the changes of the last batch.
+      assertEquals(expectedOcTree.getChangedKeys(), ocTree.getChangedKeys());
+   }
+
+   @Test
+   public void testOverflowPolicies() throws InterruptedException
+   {
+      Random random = new Random(2343L);
+      Point3D sensorOrigin = new Point3D(0.1, 0.2, 0.3);
+      int queueCapacity = 4;
+      int numberOfOverflowingBatches = 3;
+
+      for (OverflowPolicy overflowPolicy : OverflowPolicy.values())
+      {
+         OccupancyOcTree expectedOcTree = new OccupancyOcTree(0.05);
+         OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+         OccupancyOcTreeIngestionPipeline pipeline = new OccupancyOcTreeIngestionPipeline(ocTree, queueCapacity, overflowPolicy);
+
+         List<ScanCollection> batches = new ArrayList<>();
+         for (int i = 0; i < queueCapacity + numberOfOverflowingBatches; i++)
+            batches.add(JOctoMapRandomTools.generateRandomSweepCollection(random, 5.0f, 5.0f, 5.0f, sensorOrigin, 1, 200));
+
+         // The pipeline is not started yet, the queue fills up.
+         for (int i = 0; i < batches.size(); i++)
+         {
+            boolean accepted = pipeline.submit(batches.get(i));
+            assertEquals(i < queueCapacity || overflowPolicy != OverflowPolicy.DROP_NEWEST, accepted);
+         }
+
+         assertEquals(queueCapacity, pipeline.getQueueDepth());
+         assertEquals(queueCapacity, pipeline.getMaximumQueueDepth());
+         assertEquals(batches.size(), pipeline.getNumberOfSubmittedBatches());
+
+         switch (overflowPolicy)
+         {
+         case DROP_NEWEST:
+            assertEquals(numberOfOverflowingBatches, pipeline.getNumberOfDroppedBatches());
+            for (int i = 0; i < queueCapacity; i++)
+               expectedOcTree.insertSweepCollection(batches.get(i));
+            break;
+         case DROP_OLDEST:
+            assertEquals(numberOfOverflowingBatches, pipeline.getNumberOfDroppedBatches());
+            for (int i = numberOfOverflowingBatches; i < batches.size(); i++)
+               expectedOcTree.insertSweepCollection(batches.get(i));
+            break;
+         case MERGE:
+            assertEquals(0, pipeline.getNumberOfDroppedBatches());
+            assertEquals(numberOfOverflowingBatches, pipeline.getNumberOfMergedBatches());
+            for (int i = 0; i < queueCapacity - 1; i++)
+               expectedOcTree.insertSweepCollection(batches.get(i));
+            ScanCollection mergedBatch = new ScanCollection();
+            for (int i = queueCapacity - 1; i < batches.size(); i++)
+               mergedBatch.addSweepCollection(batches.get(i));
+            expectedOcTree.insertSweepCollection(mergedBatch);
+            break;
+         default:
+            throw new RuntimeException("Unexpected overflow policy: " + overflowPolicy);
+         }
+
+         pipeline.start();
+         pipeline.waitUntilIdle();
+         pipeline.stop();
+
+         assertTrue(expectedOcTree.epsilonEquals(ocTree, 1.0e-7));
+      }
+   }
+
+   @Test
+   public void testNormalOcTreeIngestion() throws InterruptedException
+   {
+      Random random = new Random(9823L);
+      Point3D sensorOrigin = new Point3D(0.1, 0.2, 0.3);
+
+      NormalOcTree expectedOcTree = new NormalOcTree(0.05);
+      NormalOcTree ocTree = new NormalOcTree(0.05);
+
+      int numberOfBatches = 5;
+      NormalOcTreeIngestionPipeline pipeline = new NormalOcTreeIngestionPipeline(ocTree, numberOfBatches, OverflowPolicy.DROP_NEWEST);
+      pipeline.start();
+
+      for (int i = 0; i < numberOfBatches; i++)
+      {
+         ScanCollection scanCollection = JOctoMapRandomTools.generateRandomSweepCollection(random, 5.0f, 5.0f, 5.0f, sensorOrigin, 2, 300);
+
+         assertTrue(pipeline.submit(scanCollection));
+
+         Set<NormalOcTreeNode> updatedLeaves = new HashSet<>();
+         expectedOcTree.insertScanCollection(scanCollection, updatedLeaves, null);
+         expectedOcTree.updateNodesNormals(updatedLeaves);
+      }
+
+      pipeline.waitUntilIdle();
+      pipeline.stop();
+
+      assertEquals(0, pipeline.getNumberOfFailedBatches());
+      assertTrue(expectedOcTree.epsilonEquals(ocTree, 1.0e-7));
+   }
+
+   private static Set<Long> toSet(PackedOcTreeKeySet packedKeys)
+   {
+      Set<Long> set = new HashSet<>();
+      for (int i = 0; i < packedKeys.size(); i++)
+         set.add(packedKeys.get(i));
+      return set;
+   }
+}
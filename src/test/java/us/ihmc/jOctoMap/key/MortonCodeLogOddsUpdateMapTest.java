@@ -0,0 +1,55 @@
+package us.ihmc.jOctoMap.key;
+
+import static us.ihmc.robotics.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class MortonCodeLogOddsUpdateMapTest
+{
+   @Test
+   public void testLogOddsUpdateMapAgainstSequentialUpdates()
+   {
+      Random random = new Random(5981L);
+      float minLogOdds = -2.0f;
+      float maxLogOdds = 3.5f;
+      int numberOfKeys = 64;
+
+      MortonCodeLogOddsUpdateMap updateMap = new MortonCodeLogOddsUpdateMap(4);
+      float[] initialLogOdds = new float[numberOfKeys];
+      float[] expectedLogOdds = new float[numberOfKeys];
+      for (int i = 0; i < numberOfKeys; i++)
+      {
+         initialLogOdds[i] = minLogOdds + (maxLogOdds - minLogOdds) * random.nextFloat();
+         expectedLogOdds[i] = initialLogOdds[i];
+      }
+
+      for (int i = 0; i < 200; i++)
+      { // Each update applies to a random subset of the keys, the Morton codes being the indices of the keys.
+         float updateLogOdds = random.nextBoolean() ? 0.85f : -0.4f;
+         long[] mortonCodes = new long[numberOfKeys];
+         int numberOfUpdatedKeys = 0;
+
+         for (int key = 0; key < numberOfKeys; key++)
+         {
+            if (random.nextInt(4) == 0)
+            {
+               mortonCodes[numberOfUpdatedKeys++] = key;
+               expectedLogOdds[key] = Math.min(maxLogOdds, Math.max(minLogOdds, expectedLogOdds[key] + updateLogOdds));
+            }
+         }
+
+         updateMap.integrate(mortonCodes, numberOfUpdatedKeys, updateLogOdds, minLogOdds, maxLogOdds);
+      }
+
+      assertEquals(numberOfKeys, updateMap.size());
+
+      for (int index = 0; index < updateMap.size(); index++)
+      {
+         int key = (int) updateMap.getMortonCode(index);
+         assertEquals(index, key);
+         assertEquals(expectedLogOdds[key], updateMap.apply(index, initialLogOdds[key]), 1.0e-5);
+      }
+   }
+}
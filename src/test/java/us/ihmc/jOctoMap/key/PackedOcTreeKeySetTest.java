@@ -0,0 +1,106 @@
+package us.ihmc.jOctoMap.key;
+
+import static us.ihmc.robotics.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
+
+public class PackedOcTreeKeySetTest
+{
+   @Test
+   public void testPackUnpackKey()
+   {
+      Random random = new Random(3456L);
+
+      for (int i = 0; i < 10000; i++)
+      {
+         OcTreeKey key = new OcTreeKey(random, OcTreeKeyTools.MAX_PACKED_KEY_TREE_DEPTH);
+         long packedKey = OcTreeKeyTools.packKey(key);
+         assertEquals(key, OcTreeKeyTools.unpackKey(packedKey));
+         assertEquals(packedKey, OcTreeKeyTools.packKey(key.getKey(0), key.getKey(1), key.getKey(2)));
+      }
+   }
+
+   @Test
+   public void testAgainstHashSet()
+   {
+      Random random = new Random(9873L);
+      PackedOcTreeKeySet packedSet = new PackedOcTreeKeySet(4);
+      Set<Long> expectedSet = new HashSet<>();
+
+      for (int i = 0; i < 100000; i++)
+      {
+         // Small range of keys to get plenty of collisions.
+         long key = OcTreeKeyTools.packKey(random.nextInt(16), random.nextInt(16), random.nextInt(16));
+
+         switch (random.nextInt(10))
+         {
+         case 0:
+         case 1:
+         case 2:
+         case 3:
+            assertEquals(expectedSet.add(key), packedSet.add(key));
+            break;
+         case 4:
+         case 5:
+            assertEquals(expectedSet.remove(key), packedSet.remove(key));
+            break;
+         case 9:
+            if (random.nextInt(100) == 0)
+            {
+               expectedSet.clear();
+               packedSet.clear();
+            }
+            break;
+         default:
+            assertEquals(expectedSet.contains(key), packedSet.contains(key));
+            break;
+         }
+
+         assertEquals(expectedSet.size(), packedSet.size());
+      }
+
+      Set<Long> actualSet = new HashSet<>();
+      for (int index = 0; index < packedSet.size(); index++)
+      {
+         assertEquals(index, packedSet.indexOf(packedSet.get(index)));
+         actualSet.add(packedSet.get(index));
+      }
+      assertEquals(expectedSet, actualSet);
+   }
+
+   @Test
+   public void testBooleanMapAgainstHashMap()
+   {
+      Random random = new Random(2398L);
+      PackedOcTreeKeyBooleanMap packedMap = new PackedOcTreeKeyBooleanMap(4);
+      Map<OcTreeKeyReadOnly, Boolean> expectedMap = new HashMap<>();
+
+      for (int i = 0; i < 20000; i++)
+      {
+         OcTreeKey key = new OcTreeKey(random.nextInt(8), random.nextInt(8), random.nextInt(8));
+         long packedKey = OcTreeKeyTools.packKey(key);
+
+         if (random.nextBoolean())
+         {
+            boolean value = random.nextBoolean();
+            expectedMap.put(key, value);
+            packedMap.put(packedKey, value);
+         }
+         else
+         {
+            expectedMap.remove(key);
+            packedMap.remove(packedKey);
+         }
+      }
+
+      assertEquals(expectedMap, packedMap.toMap());
+   }
+}
@@ -0,0 +1,112 @@
+package us.ihmc.jOctoMap.node.pool;
+
+import static us.ihmc.robotics.Assert.assertEquals;
+import static us.ihmc.robotics.Assert.assertFalse;
+import static us.ihmc.robotics.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+
+public class OcTreeNodeStorageTest
+{
+   @Test
+   public void testHeapStorage()
+   {
+      testStorage(() -> new HeapOcTreeNodeStorage(4));
+   }
+
+   @Test
+   public void testDirectStorage()
+   {
+      // Using small chunks to exercise the arenas
+      testStorage(() -> new DirectOcTreeNodeStorage(4));
+   }
+
+   private static void testStorage(Supplier<OcTreeNodeStorage> storageSupplier)
+   {
+      Random random = new Random(23478L);
+      OcTreeNodeStorage storage = storageSupplier.get();
+
+      // Builds random parent-children links and checks them against the expected values.
+      List<Integer> nodes = new ArrayList<>();
+      List<Float> expectedLogOdds = new ArrayList<>();
+
+      for (int i = 0; i < 500; i++)
+      {
+         int node = storage.createNode();
+         assertFalse(storage.hasArrayForChildren(node));
+         assertFalse(storage.hasAtLeastOneChild(node));
+         assertEquals(0.0f, storage.getLogOdds(node), 0.0);
+
+         float logOdds = (float) random.nextGaussian();
+         storage.setLogOdds(node, logOdds);
+         nodes.add(node);
+         expectedLogOdds.add(logOdds);
+      }
+
+      assertEquals(nodes.size(), new HashSet<>(nodes).size());
+      assertEquals(nodes.size(), storage.getNumberOfNodes());
+
+      int parent = nodes.get(0);
+      storage.allocateChildren(parent);
+      assertTrue(storage.hasArrayForChildren(parent));
+      assertFalse(storage.hasAtLeastOneChild(parent));
+
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+      {
+         assertEquals(OcTreeNodeStorage.NULL_HANDLE, storage.getChild(parent, childIndex));
+         storage.setChild(parent, childIndex, nodes.get(childIndex + 1));
+      }
+
+      assertTrue(storage.hasAtLeastOneChild(parent));
+
+      for (int i = 0; i < nodes.size(); i++)
+         assertEquals(expectedLogOdds.get(i), storage.getLogOdds(nodes.get(i)), 0.0);
+      for (int childIndex = 0; childIndex < 8; childIndex++)
+         assertEquals(nodes.get(childIndex + 1).intValue(), storage.getChild(parent, childIndex));
+
+      storage.copyData(nodes.get(1), nodes.get(2));
+      assertEquals(expectedLogOdds.get(1), storage.getLogOdds(nodes.get(2)), 0.0);
+
+      storage.removeChildren(parent);
+      assertFalse(storage.hasArrayForChildren(parent));
+
+      // The released nodes and blocks are recycled, the first round grows the free lists.
+      long memoryFootprint = -1;
+
+      for (int update = 0; update < 100; update++)
+      {
+         Set<Integer> released = new HashSet<>();
+         for (int i = 0; i < 50; i++)
+         {
+            int node = nodes.remove(random.nextInt(nodes.size()));
+            storage.deleteNode(node);
+            released.add(node);
+         }
+
+         for (int i = 0; i < 50; i++)
+         {
+            int node = storage.createNode();
+            assertTrue(released.remove(node));
+            storage.allocateChildren(node);
+            storage.removeChildren(node);
+            nodes.add(node);
+         }
+
+         if (update == 0)
+            memoryFootprint = storage.getMemoryFootprint();
+      }
+
+      assertEquals(nodes.size(), storage.getNumberOfNodes());
+      assertEquals(memoryFootprint, storage.getMemoryFootprint());
+
+      storage.clear();
+      assertEquals(0, storage.getNumberOfNodes());
+   }
+}
@@ -0,0 +1,146 @@
+package us.ihmc.jOctoMap.ocTree;
+
+import static us.ihmc.robotics.Assert.assertEquals;
+import static us.ihmc.robotics.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import us.ihmc.euclid.tuple3D.Point3D;
+import us.ihmc.euclid.tuple3D.Vector3D;
+import us.ihmc.jOctoMap.key.OcTreeKey;
+import us.ihmc.jOctoMap.key.OcTreeKeyReadOnly;
+import us.ihmc.jOctoMap.node.OccupancyOcTreeNode;
+import us.ihmc.jOctoMap.node.pool.OcTreeNodeCursor;
+import us.ihmc.jOctoMap.node.pool.OcTreeNodeStorage;
+import us.ihmc.jOctoMap.pointCloud.PointCloud;
+import us.ihmc.jOctoMap.tools.JOctoMapRandomTools;
+import us.ihmc.jOctoMap.tools.OcTreeNearestNeighborTools;
+
+public class FrozenOccupancyOcTreeTest
+{
+   @Test
+   public void testAgainstOccupancyOcTree()
+   {
+      Random random = new Random(4576L);
+
+      for (int attempt = 0; attempt < 5; attempt++)
+      {
+         OccupancyOcTree ocTree = createRandomOcTree(random);
+         FrozenOccupancyOcTree frozenOcTree = ocTree.freeze();
+
+         assertEquals(ocTree.getNumberOfNodes(), frozenOcTree.getNumberOfNodes());
+         assertEquals(ocTree.getNumberOfLeafNodes(), frozenOcTree.getNumberOfLeafNodes());
+
+         // Search
+         OcTreeNodeCursor cursor = new OcTreeNodeCursor();
+
+         for (int i = 0; i < 2000; i++)
+         {
+            OcTreeKey key = new OcTreeKey(random, ocTree.getTreeDepth());
+            int depth = random.nextInt(ocTree.getTreeDepth() + 1);
+            OccupancyOcTreeNode expectedNode = ocTree.search(key, depth);
+            int frozenNode = frozenOcTree.search(key, depth);
+            assertEquals(expectedNode == null, frozenNode == OcTreeNodeStorage.NULL_HANDLE);
+            assertEquals(expectedNode != null, frozenOcTree.search(key, depth, cursor));
+
+            if (expectedNode != null)
+            {
+               assertEquals(expectedNode.getLogOdds(), frozenOcTree.getLogOdds(frozenNode), 0.0);
+               assertEquals(expectedNode.getDepth(), cursor.getDepth());
+               assertEquals(expectedNode.getKeyCopy(), cursor.getKey());
+            }
+         }
+
+         // Iteration
+         Set<OcTreeKeyReadOnly> expectedLeafKeys = new HashSet<>();
+         for (OccupancyOcTreeNode node : ocTree)
+            expectedLeafKeys.add(node.getKeyCopy());
+         Set<OcTreeKeyReadOnly> frozenLeafKeys = new HashSet<>();
+         frozenOcTree.forEachLeaf(leaf ->
+         {
+            frozenLeafKeys.add(new OcTreeKey(leaf.getKey()));
+            assertEquals(ocTree.search(leaf.getKey(), leaf.getDepth()).getLogOdds(), leaf.getLogOdds(), 0.0);
+         });
+         assertEquals(expectedLeafKeys, frozenLeafKeys);
+
+         // Ray casting
+         for (int i = 0; i < 500; i++)
+         {
+            Point3D origin = JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0);
+            Vector3D direction = new Vector3D(JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0));
+            boolean ignoreUnknownCells = random.nextBoolean();
+
+            Point3D expectedEnd = new Point3D();
+            Point3D frozenEnd = new Point3D();
+            boolean expectedHit = ocTree.castRay(origin, direction, expectedEnd, ignoreUnknownCells, -1.0);
+            boolean frozenHit = frozenOcTree.castRay(origin, direction, frozenEnd, ignoreUnknownCells, -1.0);
+            assertEquals(expectedHit, frozenHit);
+            assertTrue(expectedEnd.epsilonEquals(frozenEnd, 1.0e-12));
+         }
+
+         // Radius neighbors
+         for (int i = 0; i < 50; i++)
+         {
+            Point3D query = JOctoMapRandomTools.generateRandomPoint3D(random, 3.0, 3.0, 3.0);
+            double radius = random.nextDouble();
+
+            Set<OcTreeKeyReadOnly> expectedNeighbors = new HashSet<>();
+            OcTreeNearestNeighborTools.findRadiusNeighbors(ocTree.getRoot(), query, radius, node -> expectedNeighbors.add(node.getKeyCopy()));
+            Set<OcTreeKeyReadOnly> frozenNeighbors = new HashSet<>();
+            frozenOcTree.findRadiusNeighbors(query, radius, neighbor -> frozenNeighbors.add(new OcTreeKey(neighbor.getKey())));
+
+            // The regular nodes store their coordinates as float, only the neighbors on the sphere can differ.
+            Set<OcTreeKeyReadOnly> differences = new HashSet<>(expectedNeighbors);
+            differences.addAll(frozenNeighbors);
+            Set<OcTreeKeyReadOnly> commonNeighbors = new HashSet<>(expectedNeighbors);
+            commonNeighbors.retainAll(frozenNeighbors);
+            differences.removeAll(commonNeighbors);
+
+            for (OcTreeKeyReadOnly difference : differences)
+            {
+               frozenOcTree.search(difference, 0, cursor);
+               double distance = Math.sqrt(square(cursor.getX() - query.getX()) + square(cursor.getY() - query.getY()) + square(cursor.getZ() - query.getZ()));
+               assertEquals(radius, distance, 1.0e-5);
+            }
+         }
+
+         assertTrue(frozenOcTree.getMemoryFootprint() < 8L * frozenOcTree.getNumberOfNodes());
+      }
+   }
+
+   @Test
+   public void testEmptyTree()
+   {
+      FrozenOccupancyOcTree frozenOcTree = new OccupancyOcTree(0.1).freeze();
+      assertEquals(0, frozenOcTree.getNumberOfNodes());
+      assertEquals(OcTreeNodeStorage.NULL_HANDLE, frozenOcTree.getRoot());
+      assertEquals(OcTreeNodeStorage.NULL_HANDLE, frozenOcTree.search(new OcTreeKey(1, 2, 3)));
+      frozenOcTree.forEachLeaf(leaf -> assertTrue(false));
+   }
+
+   private static double square(double value)
+   {
+      return value * value;
+   }
+
+   private static OccupancyOcTree createRandomOcTree(Random random)
+   {
+      double resolution = 0.05 + 0.1 * random.nextDouble();
+      OccupancyOcTree ocTree = new OccupancyOcTree(resolution);
+
+      for (int scanIndex = 0; scanIndex < 5; scanIndex++)
+      {
+         Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+         PointCloud pointCloud = new PointCloud();
+         for (int i = 0; i < 200; i++)
+            pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 3.0, 3.0, 3.0));
+         ocTree.insertPointCloud(pointCloud, sensorOrigin);
+      }
+
+      return ocTree;
+   }
+}
@@ -4,14 +4,40 @@ import static us.ihmc.robotics.Assert.assertEquals;
 import static us.ihmc.robotics.Assert.assertFalse;
 import static us.ihmc.robotics.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 
 import org.junit.jupiter.api.Test;
 
+import us.ihmc.euclid.transform.RigidBodyTransform;
 import us.ihmc.euclid.tuple3D.Point3D;
+import us.ihmc.euclid.tuple3D.Vector3D;
+import us.ihmc.euclid.tuple3D.interfaces.Point3DReadOnly;
+import us.ihmc.euclid.tuple3D.interfaces.Vector3DReadOnly;
+import us.ihmc.jOctoMap.iterators.OcTreeIteratorFactory;
+import us.ihmc.jOctoMap.key.OcTreeKey;
+import us.ihmc.jOctoMap.node.NodeBuilder;
+import us.ihmc.jOctoMap.node.NodeRecycler;
+import us.ihmc.jOctoMap.node.NormalOcTreeNode;
 import us.ihmc.jOctoMap.node.OccupancyOcTreeNode;
+import us.ihmc.jOctoMap.occupancy.OccupancyParameters;
+import us.ihmc.jOctoMap.occupancy.OccupancyParametersReadOnly;
+import us.ihmc.jOctoMap.pointCloud.DepthImage;
+import us.ihmc.jOctoMap.pointCloud.PointCloud;
+import us.ihmc.jOctoMap.pointCloud.Scan;
+import us.ihmc.jOctoMap.pointCloud.ScanCollection;
 import us.ihmc.jOctoMap.tools.JOctoMapRandomTools;
+import us.ihmc.jOctoMap.tools.OcTreeKeyConversionTools;
+import us.ihmc.jOctoMap.tools.OcTreeKeyTools;
 
 public class OcTreeTest
 {
@@ -86,4 +112,987 @@ public class OcTreeTest
          assertEquals(numberOfLeafs, 1);
       }
    }
+
+   @Test
+   public void testNodeRecycling()
+   {
+      Random random = new Random(23786L);
+      double resolution = 0.05;
+      OccupancyOcTree ocTree = new OccupancyOcTree(resolution);
+      OccupancyOcTree recyclingOcTree = new OccupancyOcTree(resolution);
+      NodeRecycler<OccupancyOcTreeNode> nodeRecycler = recyclingOcTree.getNodeRecycler();
+      nodeRecycler.setMaximumPoolSizes(100000, 100000 / 8);
+      nodeRecycler.prewarm(1000, 1000 / 8);
+      assertEquals(1000, nodeRecycler.getNumberOfPooledNodes());
+
+      for (int scanIndex = 0; scanIndex < 5; scanIndex++)
+      {
+         Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+         PointCloud pointCloud = new PointCloud();
+         for (int i = 0; i < 100; i++)
+            pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 2.0, 2.0, 2.0));
+
+         // Sliding window: the map is rebuilt from scratch for every scan.
+         ocTree.clear();
+         recyclingOcTree.clear();
+         ocTree.insertPointCloud(pointCloud, sensorOrigin);
+         recyclingOcTree.insertPointCloud(pointCloud, sensorOrigin);
+         assertTrue(ocTree.epsilonEquals(recyclingOcTree, 1.0e-7));
+
+         for (int i = 0; i < 20; i++)
+         {
+            OcTreeKey key = new OcTreeKey(random, ocTree.getTreeDepth());
+            int depth = ocTree.getTreeDepth() - random.nextInt(5);
+            assertEquals(ocTree.deleteNode(key, depth), recyclingOcTree.deleteNode(key, depth));
+         }
+         assertTrue(ocTree.epsilonEquals(recyclingOcTree, 1.0e-7));
+      }
+
+      assertTrue(nodeRecycler.getNodeHits() > nodeRecycler.getNodeMisses());
+      assertTrue(nodeRecycler.getNodeArrayHits() > nodeRecycler.getNodeArrayMisses());
+      assertTrue(nodeRecycler.getNumberOfPooledNodes() <= 100000);
+
+      nodeRecycler.setMaximumPoolSizes(10, 10);
+      assertTrue(nodeRecycler.getNumberOfPooledNodes() <= 10);
+      assertTrue(nodeRecycler.getNumberOfPooledNodeArrays() <= 10);
+   }
+
+   @Test
+   public void testNodeCoordinates()
+   {
+      Random random = new Random(53427L);
+
+      for (int attempt = 0; attempt < 5; attempt++)
+      {
+         // Most of these resolutions cannot be represented exactly as a float.
+         OccupancyOcTree ocTree = new OccupancyOcTree(0.01 + 0.2 * random.nextDouble());
+         PointCloud pointCloud = new PointCloud();
+         for (int i = 0; i < 100; i++)
+            pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 50.0, 50.0, 50.0));
+         ocTree.insertPointCloud(pointCloud, JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0));
+
+         for (OccupancyOcTreeNode node : OcTreeIteratorFactory.createIterable(ocTree.getRoot()))
+         {
+            Point3D expectedCoordinate = ocTree.keyToCoordinate(node.getKeyCopy(), node.getDepth());
+            assertEquals(expectedCoordinate.getX(), node.getX(), 0.0);
+            assertEquals(expectedCoordinate.getY(), node.getY(), 0.0);
+            assertEquals(expectedCoordinate.getZ(), node.getZ(), 0.0);
+            assertEquals(OcTreeKeyConversionTools.computeNodeSize(node.getDepth(), ocTree.getResolution(), ocTree.getTreeDepth()), node.getSize(), 0.0);
+         }
+      }
+   }
+
+   @Test
+   public void testMortonOrderedUpdates()
+   {
+      Random random = new Random(98234L);
+      double resolution = 0.08;
+      OccupancyOcTree ocTree = new OccupancyOcTree(resolution);
+      OccupancyOcTree mortonOcTree = new OccupancyOcTree(resolution);
+      mortonOcTree.enableMortonOrderedUpdates(true);
+      ocTree.enableChangeDetection(true);
+      mortonOcTree.enableChangeDetection(true);
+
+      for (int scanIndex = 0; scanIndex < 20; scanIndex++)
+      {
+         Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+         PointCloud pointCloud = new PointCloud();
+         for (int i = 0; i < 100; i++)
+            pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 2.0, 2.0, 2.0));
+
+         ocTree.insertPointCloud(pointCloud, sensorOrigin);
+         mortonOcTree.insertPointCloud(pointCloud, sensorOrigin);
+         assertEquals(ocTree.getNumberOfNodes(), mortonOcTree.getNumberOfNodes());
+         assertTrue(ocTree.epsilonEquals(mortonOcTree, 1.0e-7));
+         assertEquals(ocTree.getChangedKeys(), mortonOcTree.getChangedKeys());
+
+         for (OccupancyOcTreeNode node : ocTree)
+            assertEquals(node.getLogOdds(), mortonOcTree.search(node.getKeyCopy(), node.getDepth()).getLogOdds(), 0.0);
+
+         ocTree.resetChangeDetection();
+         mortonOcTree.resetChangeDetection();
+      }
+   }
+
+   @Test
+   public void testMortonOrderedUpdatesWithCellBothFreeAndOccupied()
+   {
+      double resolution = 0.1;
+      OccupancyOcTree ocTree = new OccupancyOcTree(resolution);
+      OccupancyOcTree mortonOcTree = new OccupancyOcTree(resolution);
+      mortonOcTree.enableMortonOrderedUpdates(true);
+
+      Point3D sensorOrigin = new Point3D(0.05, 0.05, 0.05);
+      Point3D nearPoint = new Point3D(1.05, 0.05, 0.05);
+      Point3D farPoint = new Point3D(2.05, 0.05, 0.05);
+      PointCloud nearPointCloud = new PointCloud();
+      nearPointCloud.add(nearPoint);
+      PointCloud farPointCloud = new PointCloud();
+      farPointCloud.add(farPoint);
+
+      // Saturates the cell so the result depends on the order of the hit and the miss.
+      for (int i = 0; i < 10; i++)
+      {
+         ocTree.insertPointCloud(nearPointCloud, sensorOrigin);
+         mortonOcTree.insertPointCloud(nearPointCloud, sensorOrigin);
+      }
+
+      // The cell of the near point is free in the first scan and occupied in the second, the free cells of a scan are only
+      // filtered against the occupied cells known so far.
+      ScanCollection scanCollection = new ScanCollection(farPointCloud, sensorOrigin);
+      scanCollection.addScan(nearPointCloud, sensorOrigin);
+      ocTree.insertSweepCollection(scanCollection);
+      mortonOcTree.insertSweepCollection(scanCollection);
+
+      float expectedLogOdds = ocTree.getOccupancyParameters().getMaxLogOdds() + ocTree.getOccupancyParameters().getUpdateLogOdds(false);
+      assertEquals(expectedLogOdds, ocTree.search(nearPoint).getLogOdds(), 1.0e-5);
+      assertEquals(expectedLogOdds, mortonOcTree.search(nearPoint).getLogOdds(), 1.0e-5);
+      assertTrue(ocTree.epsilonEquals(mortonOcTree, 1.0e-7));
+   }
+
+   @Test
+   public void testCastRayHierarchical()
+   {
+      Random random = new Random(6234L);
+
+      for (int attempt = 0; attempt < 5; attempt++)
+      {
+         OccupancyOcTree ocTree = new OccupancyOcTree(0.05 + 0.1 * random.nextDouble());
+
+         for (int scanIndex = 0; scanIndex < 5; scanIndex++)
+         {
+            Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+            PointCloud pointCloud = new PointCloud();
+            for (int i = 0; i < 200; i++)
+               pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 3.0, 3.0, 3.0));
+            ocTree.insertPointCloud(pointCloud, sensorOrigin);
+         }
+
+         // Emulate pruned nodes by removing the children of random inner nodes.
+         for (int i = 0; i < 200; i++)
+         {
+            OccupancyOcTreeNode node = ocTree.search(new OcTreeKey(random, ocTree.getTreeDepth()), ocTree.getTreeDepth() - 1 - random.nextInt(4));
+            if (node != null && node.hasAtLeastOneChild())
+            {
+               for (int childIndex = 0; childIndex < 8; childIndex++)
+                  ocTree.deleteNodeChild(node, childIndex);
+            }
+         }
+
+         for (int i = 0; i < 1000; i++)
+         {
+            Point3D origin = JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0);
+            Vector3D direction = new Vector3D(JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0));
+            boolean ignoreUnknownCells = random.nextBoolean();
+
+            Point3D expectedEnd = new Point3D();
+            Point3D actualEnd = new Point3D();
+            boolean expectedHit = ocTree.castRay(origin, direction, expectedEnd, ignoreUnknownCells, -1.0);
+            boolean actualHit = ocTree.castRayHierarchical(origin, direction, actualEnd, ignoreUnknownCells, -1.0);
+            assertEquals(expectedHit, actualHit);
+            assertTrue(expectedEnd.epsilonEquals(actualEnd, 1.0e-12));
+
+            double maxRange = 2.0 * random.nextDouble();
+            boolean hitWithinRange = ocTree.castRayHierarchical(origin, direction, actualEnd, ignoreUnknownCells, maxRange);
+            if (hitWithinRange)
+               assertTrue(actualEnd.distance(origin) <= maxRange);
+            // The cells are tested against the range using their center, the farthest cell before the hit can be a bit farther.
+            if (expectedHit && expectedEnd.distance(origin) < maxRange - 2.0 * ocTree.getResolution())
+               assertTrue(hitWithinRange && expectedEnd.epsilonEquals(actualEnd, 1.0e-12));
+         }
+      }
+   }
+
+   @Test
+   public void testCastRays()
+   {
+      Random random = new Random(7345L);
+      OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+
+      for (int scanIndex = 0; scanIndex < 5; scanIndex++)
+      {
+         Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+         PointCloud pointCloud = new PointCloud();
+         for (int i = 0; i < 200; i++)
+            pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 3.0, 3.0, 3.0));
+         ocTree.insertPointCloud(pointCloud, sensorOrigin);
+      }
+
+      int numberOfRays = 2000;
+      double[] origins = new double[3 * numberOfRays];
+      double[] directions = new double[3 * numberOfRays];
+      for (int i = 0; i < 3 * numberOfRays; i++)
+      {
+         origins[i] = random.nextDouble() - 0.5;
+         directions[i] = random.nextDouble() - 0.5;
+      }
+      // Out of the tree bounds
+      origins[0] = 1.0e6;
+
+      for (boolean ignoreUnknownCells : new boolean[] {false, true})
+      {
+         double[] ends = new double[3 * numberOfRays];
+         boolean[] hits = new boolean[numberOfRays];
+         double[] distances = new double[numberOfRays];
+         ocTree.castRays(origins, directions, numberOfRays, ignoreUnknownCells, -1.0, ends, hits, distances);
+
+         assertFalse(hits[0]);
+         assertTrue(Double.isNaN(ends[0]) && Double.isNaN(distances[0]));
+
+         for (int i = 1; i < numberOfRays; i++)
+         {
+            Point3D origin = new Point3D(origins[3 * i], origins[3 * i + 1], origins[3 * i + 2]);
+            Vector3D direction = new Vector3D(directions[3 * i], directions[3 * i + 1], directions[3 * i + 2]);
+            Point3D expectedEnd = new Point3D();
+            assertEquals(ocTree.castRayHierarchical(origin, direction, expectedEnd, ignoreUnknownCells, -1.0), hits[i]);
+            Point3D end = new Point3D(ends[3 * i], ends[3 * i + 1], ends[3 * i + 2]);
+            assertTrue(expectedEnd.epsilonEquals(end, 0.0));
+            assertEquals(origin.distance(end), distances[i], 1.0e-12);
+         }
+      }
+   }
+
+   @Test
+   public void testMultiResolutionMisses()
+   {
+      Random random = new Random(5126L);
+      double resolution = 0.04;
+      OccupancyOcTree ocTree = new OccupancyOcTree(resolution);
+      OccupancyOcTree multiResolutionOcTree = new OccupancyOcTree(resolution);
+      double coarseMissRange = 1.0;
+      int maximumNumberOfLevels = 3;
+      multiResolutionOcTree.enableMultiResolutionMisses(coarseMissRange, maximumNumberOfLevels);
+      multiResolutionOcTree.enableChangeDetection(true);
+
+      Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+      PointCloud pointCloud = new PointCloud();
+      for (int i = 0; i < 500; i++)
+         pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 12.0, 12.0, 12.0));
+      ocTree.insertPointCloud(pointCloud, sensorOrigin);
+      multiResolutionOcTree.insertPointCloud(pointCloud, sensorOrigin);
+
+      assertTrue(multiResolutionOcTree.getNumberOfNodes() < ocTree.getNumberOfNodes());
+
+      // The coarse misses containing an endpoint are not integrated, these nodes are skipped below.
+      HashSet<Long> coarseEndpointKeys = new HashSet<>();
+      for (Point3DReadOnly point : pointCloud)
+      {
+         for (int level = 1; level <= maximumNumberOfLevels; level++)
+            coarseEndpointKeys.add(packCoarseKey(multiResolutionOcTree.coordinateToKey(point), level));
+      }
+
+      for (Point3DReadOnly point : pointCloud)
+      {
+         assertTrue(multiResolutionOcTree.isNodeOccupied(multiResolutionOcTree.search(point)));
+
+         // Away from the endpoint, the space along the ray is free at any range.
+         double length = point.distance(sensorOrigin);
+         for (double distance = 0.5 * coarseMissRange; distance < length - 1.0; distance += 0.1)
+         {
+            Point3D pointAlongRay = new Point3D();
+            pointAlongRay.interpolate(sensorOrigin, point, distance / length);
+            OccupancyOcTreeNode node = multiResolutionOcTree.search(pointAlongRay);
+            OcTreeKey keyAlongRay = multiResolutionOcTree.coordinateToKey(pointAlongRay);
+            boolean isNextToEndpoint = false;
+            for (int level = 1; level <= maximumNumberOfLevels; level++)
+               isNextToEndpoint |= coarseEndpointKeys.contains(packCoarseKey(keyAlongRay, level));
+            if (isNextToEndpoint)
+               continue;
+            assertTrue(node != null);
+            if (ocTree.isNodeOccupied(ocTree.search(pointAlongRay)))
+               continue; // Also crossed by another ray.
+            assertFalse(multiResolutionOcTree.isNodeOccupied(node));
+         }
+      }
+
+      // A coarse miss does not clear the occupied leaves.
+      multiResolutionOcTree.resetChangeDetection();
+      PointCloud farPointCloud = new PointCloud();
+      for (Point3DReadOnly point : pointCloud)
+      {
+         Point3D pointBehind = new Point3D();
+         pointBehind.interpolate(sensorOrigin, point, 1.5);
+         farPointCloud.add(pointBehind);
+      }
+      multiResolutionOcTree.insertPointCloud(farPointCloud, sensorOrigin);
+
+      for (Point3DReadOnly point : pointCloud)
+      {
+         if (point.distance(sensorOrigin) > coarseMissRange)
+            assertTrue(multiResolutionOcTree.isNodeOccupied(multiResolutionOcTree.search(point)));
+      }
+   }
+
+   @Test
+   public void testUpdateNodeEarlyAbort()
+   {
+      Random random = new Random(71623L);
+
+      for (int attempt = 0; attempt < 100; attempt++)
+      {
+         OccupancyOcTree ocTree = new OccupancyOcTree(0.05 + 0.1 * random.nextDouble());
+         Point3D coordinate = JOctoMapRandomTools.generateRandomPoint3D(random, 10.0, 10.0, 10.0);
+         float maxLogOdds = ocTree.getOccupancyParameters().getMaxLogOdds();
+
+         OccupancyOcTreeNode node = ocTree.updateNode(coordinate, true);
+         while (node.getLogOdds() < maxLogOdds)
+            assertTrue(node == ocTree.updateNode(coordinate, true));
+
+         // Saturated: the update is aborted and returns the leaf untouched.
+         int numberOfNodes = ocTree.getNumberOfNodes();
+         assertTrue(node == ocTree.updateNode(coordinate, true));
+         assertEquals(maxLogOdds, node.getLogOdds(), 1.0e-7);
+         assertEquals(numberOfNodes, ocTree.getNumberOfNodes());
+
+         // The update is not aborted in the other direction nor in the unknown space next to the leaf.
+         assertTrue(node == ocTree.updateNode(coordinate, false));
+         assertTrue(node.getLogOdds() < maxLogOdds);
+         Point3D neighbor = new Point3D(coordinate);
+         neighbor.addX(ocTree.getResolution());
+         assertTrue(ocTree.updateNode(neighbor, true) == ocTree.search(neighbor));
+         assertTrue(ocTree.getNumberOfNodes() > numberOfNodes);
+      }
+   }
+
+   @Test
+   public void testLazyBatchUpdates()
+   {
+      Random random = new Random(90341L);
+      Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0);
+
+      OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+      OccupancyOcTree lazyOcTree = new OccupancyOcTree(0.05);
+      ocTree.enableMortonOrderedUpdates(false);
+      lazyOcTree.enableMortonOrderedUpdates(false);
+      lazyOcTree.enableLazyBatchUpdates(true);
+
+      NormalOcTree normalOcTree = new NormalOcTree(0.05);
+      NormalOcTree lazyNormalOcTree = new NormalOcTree(0.05);
+      lazyNormalOcTree.enableLazyBatchUpdates(true);
+
+      for (int i = 0; i < 5; i++)
+      {
+         ScanCollection scanCollection = JOctoMapRandomTools.generateRandomSweepCollection(random, 5.0f, 5.0f, 5.0f, sensorOrigin, 3, 300);
+         ocTree.insertSweepCollection(scanCollection);
+         lazyOcTree.insertSweepCollection(scanCollection);
+         assertTrue(ocTree.epsilonEquals(lazyOcTree, 1.0e-7));
+
+         Set<OcTreeKey> deletedLeaves = new HashSet<>();
+         Set<OcTreeKey> lazyDeletedLeaves = new HashSet<>();
+         normalOcTree.insertScanCollection(scanCollection, null, deletedLeaves);
+         lazyNormalOcTree.insertScanCollection(scanCollection, null, lazyDeletedLeaves);
+         // The nodes are only comparable once their normals are computed.
+         normalOcTree.updateNormals();
+         lazyNormalOcTree.updateNormals();
+         assertTrue(normalOcTree.epsilonEquals(lazyNormalOcTree, 1.0e-7));
+         assertEquals(deletedLeaves, lazyDeletedLeaves);
+      }
+   }
+
+   @Test
+   public void testNormalOcTreeCellsToUpdate()
+   {
+      Random random = new Random(61283L);
+      Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0);
+      List<Consumer<NormalOcTree>> configurations = new ArrayList<>();
+      configurations.add(ocTree -> ocTree.setBoundsInsertRange(0.5, 3.0));
+      configurations.add(ocTree -> ocTree.enableLazyBatchUpdates(true));
+
+      for (int treeDepth : new int[] {16, OcTreeKeyTools.MAX_PACKED_KEY_TREE_DEPTH + 1})
+      {
+         for (Consumer<NormalOcTree> configuration : configurations)
+         {
+            NormalOcTree ocTree = new NormalOcTree(0.05, treeDepth);
+            NormalOcTree cellsOcTree = new NormalOcTree(0.05, treeDepth);
+            configuration.accept(ocTree);
+            configuration.accept(cellsOcTree);
+            NormalOcTree.CellsToUpdate cellsToUpdate = new NormalOcTree.CellsToUpdate();
+
+            for (int i = 0; i < 4; i++)
+            {
+               ScanCollection scanCollection = JOctoMapRandomTools.generateRandomSweepCollection(random, 5.0f, 5.0f, 5.0f, sensorOrigin, 3, 300);
+               boolean insertMiss = i != 2;
+
+               Set<NormalOcTreeNode> updatedLeaves = new HashSet<>();
+               Set<OcTreeKey> deletedLeaves = new HashSet<>();
+               ocTree.insertScanCollection(scanCollection, insertMiss, updatedLeaves, deletedLeaves);
+
+               Set<NormalOcTreeNode> cellsUpdatedLeaves = new HashSet<>();
+               Set<OcTreeKey> cellsDeletedLeaves = new HashSet<>();
+               cellsOcTree.computeCellsToUpdate(scanCollection, insertMiss, cellsToUpdate);
+               cellsOcTree.insertCells(cellsToUpdate, cellsUpdatedLeaves, cellsDeletedLeaves);
+
+               assertEquals(deletedLeaves, cellsDeletedLeaves);
+               assertEquals(updatedLeaves.size(), cellsUpdatedLeaves.size());
+               // The nodes are only comparable once their normals are computed.
+               ocTree.updateNormals();
+               cellsOcTree.updateNormals();
+               assertTrue(ocTree.epsilonEquals(cellsOcTree, 1.0e-7));
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testCustomRayMissProbabilityUpdater()
+   {
+      Random random = new Random(23451L);
+      Point3D sensorOrigin = new Point3D();
+
+      NormalOcTree ocTree = new NormalOcTree(0.05);
+      NormalOcTree parallelOcTree = new NormalOcTree(0.05);
+      parallelOcTree.enableParallelInsertionOfMisses(true);
+
+      Set<NormalOcTreeNode> visitedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+      ocTree.setCustomRayMissProbabilityUpdater(new NormalOcTree.RayMissProbabilityUpdater()
+      {
+         @Override
+         public double computeRayMissProbability(Point3DReadOnly rayOrigin, Point3DReadOnly rayEnd, Vector3DReadOnly rayDirection, NormalOcTreeNode node,
+                                                 OccupancyParameters parameters)
+         {
+            visitedNodes.add(node);
+            return 0.4;
+         }
+      });
+      parallelOcTree.setCustomRayMissProbabilityUpdater(new NormalOcTree.RayMissProbabilityUpdater()
+      {
+         @Override
+         public double computeRayMissProbability(Point3DReadOnly rayOrigin, Point3DReadOnly rayEnd, Vector3DReadOnly rayDirection, NormalOcTreeNode node,
+                                                 OccupancyParameters parameters)
+         {
+            return 0.4;
+         }
+      });
+
+      List<Point3D> directions = new ArrayList<>();
+      for (int i = 0; i < 300; i++)
+         directions.add(JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0));
+
+      for (int i = 0; i < 5; i++)
+      {
+         // The rays of each scan go through the hits of the previous ones.
+         PointCloud pointCloud = new PointCloud();
+         for (Point3D direction : directions)
+         {
+            Point3D point = new Point3D(direction);
+            point.scale(1.0 + 0.5 * i);
+            pointCloud.add(point);
+         }
+         ScanCollection scanCollection = new ScanCollection(pointCloud, sensorOrigin);
+
+         Set<NormalOcTreeNode> leaves = Collections.newSetFromMap(new IdentityHashMap<>());
+         ocTree.forEach(leaves::add);
+         visitedNodes.clear();
+
+         ocTree.insertScanCollection(scanCollection);
+         parallelOcTree.insertScanCollection(scanCollection);
+
+         // The updater is only given the leaves that existed before the insertion.
+         for (NormalOcTreeNode node : visitedNodes)
+            assertTrue(leaves.contains(node));
+         if (i > 0)
+            assertFalse(visitedNodes.isEmpty());
+
+         // The normals are estimated from randomly picked neighbors, only the occupancy is compared.
+         assertEquals(ocTree.size(), parallelOcTree.size());
+         Iterator<NormalOcTreeNode> parallelIterator = parallelOcTree.iterator();
+         for (NormalOcTreeNode node : ocTree)
+         {
+            NormalOcTreeNode parallelNode = parallelIterator.next();
+            assertEquals(node.getKeyCopy(), parallelNode.getKeyCopy());
+            assertEquals(node.getDepth(), parallelNode.getDepth());
+            assertEquals(node.getLogOdds(), parallelNode.getLogOdds(), 1.0e-7);
+         }
+         assertFalse(parallelIterator.hasNext());
+      }
+   }
+
+   @Test
+   public void testNormalOcTreeScanIsNotModified()
+   {
+      Random random = new Random(5123L);
+      Point3D sensorOrigin = new Point3D();
+      PointCloud pointCloud = new PointCloud();
+
+      for (int i = 0; i < 500; i++)
+      {
+         Point3D point = JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0);
+         pointCloud.add(point);
+         // Several endpoints in the same cell.
+         pointCloud.add(point);
+      }
+
+      PointCloud expectedPointCloud = new PointCloud(pointCloud);
+      NormalOcTree ocTree = new NormalOcTree(0.05);
+      ocTree.insertScanCollection(new ScanCollection(pointCloud, sensorOrigin));
+
+      assertEquals(expectedPointCloud.getNumberOfPoints(), pointCloud.getNumberOfPoints());
+      for (int i = 0; i < pointCloud.getNumberOfPoints(); i++)
+         assertTrue(expectedPointCloud.getPoint(i).equals(pointCloud.getPoint(i)));
+   }
+
+   @Test
+   public void testCoalescedScanUpdates()
+   {
+      Random random = new Random(23451L);
+
+      OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+      OccupancyOcTree coalescedOcTree = new OccupancyOcTree(0.05);
+      ocTree.enableChangeDetection(true);
+      coalescedOcTree.enableChangeDetection(true);
+
+      for (int i = 0; i < 5; i++)
+      {
+         // The scans overlap such that the cells get several hits and misses per collection.
+         Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+         ScanCollection scanCollection = JOctoMapRandomTools.generateRandomSweepCollection(random, 2.0f, 2.0f, 2.0f, sensorOrigin, 10, 300);
+
+         for (Scan scan : scanCollection)
+            ocTree.insertPointCloud(scan.getPointCloud(), scan.getSensorOrigin());
+         coalescedOcTree.insertScansCoalesced(scanCollection);
+
+         assertTrue(ocTree.epsilonEquals(coalescedOcTree, 1.0e-5));
+         for (OccupancyOcTreeNode node : ocTree)
+            assertEquals(node.getLogOdds(), coalescedOcTree.search(node.getKeyCopy(), node.getDepth()).getLogOdds(), 1.0e-5);
+      }
+
+      assertEquals(ocTree.getChangedKeys(), coalescedOcTree.getChangedKeys());
+   }
+
+   @Test
+   public void testToMaxLikelihood()
+   {
+      Random random = new Random(38731L);
+      OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+      Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0);
+      ScanCollection scanCollection = JOctoMapRandomTools.generateRandomSweepCollection(random, 3.0f, 3.0f, 3.0f, sensorOrigin, 3, 200);
+      ocTree.insertSweepCollection(scanCollection);
+
+      List<OccupancyOcTreeNode> nodes = new ArrayList<>();
+      List<Boolean> wereOccupied = new ArrayList<>();
+      for (OccupancyOcTreeNode node : OcTreeIteratorFactory.createIterable(ocTree.getRoot()))
+      {
+         nodes.add(node);
+         wereOccupied.add(ocTree.isNodeOccupied(node));
+      }
+      int numberOfNodes = ocTree.getNumberOfNodes();
+
+      ocTree.toMaxLikelihood();
+
+      // Every node, inner nodes included, is converted once.
+      OccupancyParametersReadOnly parameters = ocTree.getOccupancyParameters();
+      assertEquals(numberOfNodes, nodes.size());
+      for (int i = 0; i < nodes.size(); i++)
+      {
+         float expectedLogOdds = wereOccupied.get(i) ? parameters.getMaxLogOdds() : parameters.getMinLogOdds();
+         assertEquals(expectedLogOdds, nodes.get(i).getLogOdds(), 1.0e-5);
+      }
+   }
+
+   @Test
+   public void testParallelMaintenanceOperations()
+   {
+      Random random = new Random(61289L);
+      ForkJoinPool pool = new ForkJoinPool(4);
+      Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+      PointCloud pointCloud = new PointCloud();
+      for (int i = 0; i < 100; i++)
+         pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 6.0, 6.0, 6.0));
+
+      for (int parallelSplitDepth : new int[] {0, 1, 3, 16})
+      {
+         OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+         OccupancyOcTree parallelOcTree = new OccupancyOcTree(0.05);
+         parallelOcTree.setParallelSplitDepth(parallelSplitDepth);
+         if (parallelSplitDepth == 3)
+            parallelOcTree.getNodeRecycler().setMaximumPoolSizes(10000, 10000);
+
+         // The coarse misses give pruned leaves to expand.
+         ocTree.enableMultiResolutionMisses(1.0, 2);
+         parallelOcTree.enableMultiResolutionMisses(1.0, 2);
+         ocTree.insertPointCloud(pointCloud, sensorOrigin);
+         parallelOcTree.insertPointCloud(pointCloud, sensorOrigin);
+
+         assertEquals(ocTree.getNumberOfLeafNodes(), parallelOcTree.getNumberOfLeafNodes(pool));
+
+         Iterator<OccupancyOcTreeNode> iterator = ocTree.iterator();
+         Iterator<OccupancyOcTreeNode> parallelIterator = parallelOcTree.iterator();
+         while (iterator.hasNext())
+         {
+            float logOdds = (float) (4.0 * random.nextDouble() - 2.0);
+            iterator.next().setLogOdds(logOdds);
+            parallelIterator.next().setLogOdds(logOdds);
+         }
+         ocTree.updateInnerOccupancy();
+         parallelOcTree.updateInnerOccupancy(pool);
+         assertTrue(ocTree.epsilonEquals(parallelOcTree, 1.0e-7));
+
+         int sizeBeforeExpansion = ocTree.size();
+         ocTree.expand();
+         parallelOcTree.expand(pool);
+         assertTrue(ocTree.size() > sizeBeforeExpansion);
+         assertEquals(ocTree.getNumberOfNodes(), parallelOcTree.size());
+         assertTrue(ocTree.epsilonEquals(parallelOcTree, 1.0e-7));
+
+         ocTree.prune();
+         parallelOcTree.prune(pool);
+         assertEquals(ocTree.getNumberOfNodes(), parallelOcTree.size());
+         assertTrue(ocTree.epsilonEquals(parallelOcTree, 1.0e-7));
+      }
+
+      NormalOcTree normalOcTree = new NormalOcTree(0.05);
+      ScanCollection scanCollection = JOctoMapRandomTools.generateRandomSweepCollection(random, 3.0f, 3.0f, 3.0f, sensorOrigin, 3, 200);
+      normalOcTree.update(scanCollection);
+
+      for (int parallelSplitDepth : new int[] {0, 2, 16})
+      {
+         normalOcTree.setParallelSplitDepth(parallelSplitDepth);
+         NormalOcTree copy = new NormalOcTree(normalOcTree, pool);
+         assertEquals(normalOcTree.size(), copy.size());
+         assertTrue(normalOcTree.epsilonEquals(copy, 1.0e-7));
+
+         copy.clearNormals(pool);
+         for (NormalOcTreeNode node : copy)
+            assertFalse(node.isNormalSet());
+      }
+
+      pool.shutdown();
+   }
+
+   @Test
+   public void testConcurrentUpdates() throws Exception
+   {
+      Random random = new Random(74102L);
+      int numberOfSensors = 4;
+      List<PointCloud> pointClouds = new ArrayList<>();
+      List<Point3D> sensorOrigins = new ArrayList<>();
+      List<List<OcTreeKey>> keysToUpdate = new ArrayList<>();
+
+      // A miss brings a cell to the clamping threshold, the sensors are kept apart such that the updates of a cell do not depend on the thread ordering.
+      for (int sensorIndex = 0; sensorIndex < numberOfSensors; sensorIndex++)
+      {
+         Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0);
+         sensorOrigin.addX(10.0 * sensorIndex);
+         sensorOrigins.add(sensorOrigin);
+
+         PointCloud pointCloud = new PointCloud();
+         for (int i = 0; i < 200; i++)
+         {
+            Point3D point = JOctoMapRandomTools.generateRandomPoint3D(random, 4.0, 4.0, 4.0);
+            point.addX(10.0 * sensorIndex);
+            pointCloud.add(point);
+         }
+         pointClouds.add(pointCloud);
+
+         List<OcTreeKey> keys = new ArrayList<>();
+         for (int i = 0; i < 200; i++)
+            keys.add(new OcTreeKey(34768 + random.nextInt(100) - 50, 32768 + random.nextInt(100) - 50, 32768 + random.nextInt(100) - 50));
+         keysToUpdate.add(keys);
+      }
+
+      OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+      for (int sensorIndex = 0; sensorIndex < numberOfSensors; sensorIndex++)
+      {
+         ocTree.insertPointCloud(pointClouds.get(sensorIndex), sensorOrigins.get(sensorIndex));
+         for (OcTreeKey key : keysToUpdate.get(sensorIndex))
+            ocTree.updateNode(key, 0.1f);
+      }
+
+      for (int stripeDepth : new int[] {0, 1, 2})
+      {
+         OccupancyOcTree concurrentOcTree = new OccupancyOcTree(0.05);
+         concurrentOcTree.enableConcurrentUpdates(stripeDepth);
+
+         Thread[] threads = new Thread[numberOfSensors];
+         for (int sensorIndex = 0; sensorIndex < numberOfSensors; sensorIndex++)
+         {
+            int index = sensorIndex;
+            threads[sensorIndex] = new Thread(() ->
+            {
+               concurrentOcTree.insertPointCloud(pointClouds.get(index), sensorOrigins.get(index));
+               for (OcTreeKey key : keysToUpdate.get(index))
+                  concurrentOcTree.updateNode(key, 0.1f);
+            });
+            threads[sensorIndex].start();
+         }
+         for (Thread thread : threads)
+            thread.join();
+
+         assertEquals(ocTree.getNumberOfNodes(), concurrentOcTree.size());
+         assertTrue(ocTree.epsilonEquals(concurrentOcTree, 1.0e-5));
+
+         concurrentOcTree.disableConcurrentUpdates();
+         assertEquals(ocTree.getNumberOfNodes(), concurrentOcTree.size());
+      }
+   }
+
+   @Test
+   public void testConcurrentSweepAndDepthImageInsertion() throws Exception
+   {
+      Random random = new Random(43091L);
+      int numberOfSensors = 4;
+      List<Consumer<OccupancyOcTree>> sensorInsertions = new ArrayList<>();
+
+      // Depth cameras and LiDARs, kept apart such that the updates of a cell do not depend on the thread ordering.
+      for (int sensorIndex = 0; sensorIndex < numberOfSensors; sensorIndex++)
+      {
+         Point3D sensorOrigin = new Point3D(20.0 * sensorIndex, 0.0, 0.0);
+
+         if (sensorIndex % 2 == 0)
+         {
+            DepthImage depthImage = new DepthImage(40, 30);
+            depthImage.setIntrinsics(30.0, 30.0, 19.5, 14.5);
+            RigidBodyTransform sensorPose = new RigidBodyTransform();
+            sensorPose.getRotation().setYawPitchRoll(2.0 * Math.PI * random.nextDouble(), 0.0, 0.0);
+            sensorPose.getTranslation().set(sensorOrigin);
+            depthImage.setSensorPose(sensorPose);
+
+            for (int v = 0; v < depthImage.getHeight(); v++)
+            {
+               for (int u = 0; u < depthImage.getWidth(); u++)
+                  depthImage.setDepth(u, v, 2.0 + 0.5 * random.nextDouble());
+            }
+
+            sensorInsertions.add(ocTree -> ocTree.insertDepthImage(depthImage));
+         }
+         else
+         {
+            ScanCollection scanCollection = new ScanCollection();
+
+            for (int scanIndex = 0; scanIndex < 3; scanIndex++)
+            {
+               PointCloud pointCloud = new PointCloud();
+               for (int i = 0; i < 200; i++)
+               {
+                  Point3D point = JOctoMapRandomTools.generateRandomPoint3D(random, 4.0, 4.0, 4.0);
+                  point.add(sensorOrigin);
+                  pointCloud.add(point);
+               }
+               scanCollection.addScan(pointCloud, sensorOrigin);
+            }
+
+            sensorInsertions.add(ocTree -> ocTree.insertSweepCollection(scanCollection));
+         }
+      }
+
+      OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+      for (Consumer<OccupancyOcTree> sensorInsertion : sensorInsertions)
+         sensorInsertion.accept(ocTree);
+
+      for (int stripeDepth : new int[] {1, 3})
+      {
+         OccupancyOcTree concurrentOcTree = new OccupancyOcTree(0.05);
+         concurrentOcTree.enableConcurrentUpdates(stripeDepth);
+
+         Thread[] threads = new Thread[numberOfSensors];
+         for (int sensorIndex = 0; sensorIndex < numberOfSensors; sensorIndex++)
+         {
+            Consumer<OccupancyOcTree> sensorInsertion = sensorInsertions.get(sensorIndex);
+            threads[sensorIndex] = new Thread(() -> sensorInsertion.accept(concurrentOcTree));
+            threads[sensorIndex].start();
+         }
+         for (Thread thread : threads)
+            thread.join();
+
+         assertEquals(ocTree.getNumberOfNodes(), concurrentOcTree.size());
+         assertTrue(ocTree.epsilonEquals(concurrentOcTree, 1.0e-5));
+      }
+   }
+
+   @Test
+   public void testSnapshots()
+   {
+      Random random = new Random(40517L);
+      List<Consumer<OccupancyOcTree>> configurations = new ArrayList<>();
+      configurations.add(ocTree -> ocTree.enableMortonOrderedUpdates(true));
+      configurations.add(ocTree -> ocTree.enableMortonOrderedUpdates(false));
+      configurations.add(ocTree ->
+      {
+         ocTree.enableMortonOrderedUpdates(false);
+         ocTree.enableLazyBatchUpdates(true);
+      });
+      configurations.add(ocTree -> ocTree.enableMultiResolutionMisses(1.0, 3));
+
+      for (Consumer<OccupancyOcTree> configuration : configurations)
+      {
+         OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+         OccupancyOcTree snapshotOcTree = new OccupancyOcTree(0.05);
+         configuration.accept(ocTree);
+         configuration.accept(snapshotOcTree);
+         snapshotOcTree.enableSnapshots(true);
+         // The snapshots have to be preserved whether the released nodes are recycled or not.
+         snapshotOcTree.getNodeRecycler().setMaximumPoolSizes(10000, 10000);
+
+         List<OcTreeSnapshot<OccupancyOcTreeNode>> snapshots = new ArrayList<>();
+         List<List<OccupancyOcTreeNode>> expectedSnapshots = new ArrayList<>();
+
+         for (int scanIndex = 0; scanIndex < 6; scanIndex++)
+         {
+            Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+            PointCloud pointCloud = new PointCloud();
+            // The last scan only affects a small region of the tree.
+            int numberOfPoints = scanIndex < 5 ? 200 : 5;
+            for (int i = 0; i < numberOfPoints; i++)
+               pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 3.0, 3.0, 3.0));
+
+            ocTree.insertPointCloud(pointCloud, sensorOrigin);
+            snapshotOcTree.insertPointCloud(pointCloud, sensorOrigin);
+            assertTrue(ocTree.epsilonEquals(snapshotOcTree, 1.0e-7));
+
+            OcTreeSnapshot<OccupancyOcTreeNode> snapshot = snapshotOcTree.publishSnapshot();
+            assertTrue(snapshot == snapshotOcTree.getLatestSnapshot());
+            assertEquals(scanIndex + 1, snapshot.getVersion());
+            snapshots.add(snapshot);
+            expectedSnapshots.add(copyNodes(ocTree));
+         }
+
+         // Only the paths to the cells updated by the last scan have been copied.
+         Set<OccupancyOcTreeNode> previousNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+         snapshots.get(4).createIterable().forEach(previousNodes::add);
+         int numberOfCopiedNodes = 0;
+         for (OccupancyOcTreeNode node : snapshots.get(5).createIterable())
+         {
+            if (!previousNodes.contains(node))
+               numberOfCopiedNodes++;
+         }
+         assertTrue(numberOfCopiedNodes > 0);
+         assertTrue(numberOfCopiedNodes < snapshots.get(5).size() / 10);
+
+         OcTreeKey keyToDelete = snapshots.get(5).iterator().next().getKeyCopy();
+         ocTree.deleteNode(keyToDelete);
+         snapshotOcTree.deleteNode(keyToDelete);
+         ocTree.toMaxLikelihood();
+         snapshotOcTree.toMaxLikelihood();
+         ocTree.prune();
+         snapshotOcTree.prune();
+         assertTrue(ocTree.epsilonEquals(snapshotOcTree, 1.0e-7));
+         snapshotOcTree.clear();
+
+         for (int i = 0; i < snapshots.size(); i++)
+            assertSnapshotEquals(expectedSnapshots.get(i), snapshots.get(i));
+      }
+   }
+
+   @Test
+   public void testSnapshotEarlyAbortedUpdates()
+   {
+      OccupancyOcTree ocTree = new OccupancyOcTree(0.05);
+      OccupancyOcTree snapshotOcTree = new OccupancyOcTree(0.05);
+      snapshotOcTree.enableSnapshots(true);
+      Point3D point = new Point3D(0.51, -0.32, 0.27);
+      Point3D otherPoint = new Point3D(-0.72, 0.13, 0.45);
+
+      // Saturates the cell such that the next hit is aborted.
+      for (int i = 0; i < 10; i++)
+      {
+         ocTree.updateNode(point, true);
+         snapshotOcTree.updateNode(point, true);
+      }
+      ocTree.updateNode(otherPoint, true);
+      snapshotOcTree.updateNode(otherPoint, true);
+
+      OcTreeSnapshot<OccupancyOcTreeNode> snapshot = snapshotOcTree.publishSnapshot();
+      float snapshotLogOdds = snapshot.search(point).getLogOdds();
+
+      // The aborted update does not copy any node.
+      assertTrue(snapshotOcTree.updateNode(point, true) == snapshot.search(point));
+      assertTrue(snapshotOcTree.getRoot() == snapshot.getRoot());
+
+      ocTree.updateNode(point, false);
+      OccupancyOcTreeNode updatedNode = snapshotOcTree.updateNode(point, false);
+      assertTrue(updatedNode == snapshotOcTree.search(point));
+      assertFalse(updatedNode == snapshot.search(point));
+      assertTrue(snapshotOcTree.getRoot() != snapshot.getRoot());
+      assertTrue(snapshotOcTree.search(otherPoint) == snapshot.search(otherPoint));
+      assertEquals(snapshotLogOdds, snapshot.search(point).getLogOdds(), 0.0);
+      assertTrue(ocTree.epsilonEquals(snapshotOcTree, 1.0e-7));
+   }
+
+   @Test
+   public void testSnapshotNormalUpdates()
+   {
+      Random random = new Random(40518L);
+      NormalOcTree ocTree = new NormalOcTree(0.05);
+      ocTree.enableSnapshots(true);
+
+      PointCloud pointCloud = new PointCloud();
+      for (int i = 0; i < 3000; i++)
+         pointCloud.add(2.0 * random.nextDouble() - 1.0, 2.0 * random.nextDouble() - 1.0, 0.0);
+      ocTree.insertScanCollection(new ScanCollection(pointCloud, new Point3D(0.0, 0.0, 1.0)));
+
+      OcTreeSnapshot<NormalOcTreeNode> snapshot = ocTree.publishSnapshot();
+      Map<NormalOcTreeNode, Vector3D> snapshotNormals = new IdentityHashMap<>();
+      for (NormalOcTreeNode node : snapshot.createIterable())
+         snapshotNormals.put(node, node.getNormalCopy());
+
+      List<NormalOcTreeNode> nodesToUpdate = new ArrayList<>();
+      for (NormalOcTreeNode node : snapshot)
+      {
+         if (node.isHitLocationSet() && node.getX() < -0.7 && node.getY() < -0.7)
+            nodesToUpdate.add(node);
+      }
+      assertFalse(nodesToUpdate.isEmpty());
+
+      // The nodes collected from the snapshot are mapped to the nodes of the tree.
+      ocTree.updateNodesNormals(nodesToUpdate);
+
+      int numberOfNormalsSet = 0;
+      for (NormalOcTreeNode node : nodesToUpdate)
+      {
+         NormalOcTreeNode updatedNode = ocTree.search(node.getKeyCopy(), node.getDepth());
+         assertTrue(updatedNode != node);
+         assertEquals(0, node.getNormalConsensusSize());
+         if (updatedNode.getNormalConsensusSize() > 0)
+            numberOfNormalsSet++;
+      }
+      assertTrue(numberOfNormalsSet > 0);
+
+      for (NormalOcTreeNode node : snapshot.createIterable())
+      {
+         Vector3D expectedNormal = snapshotNormals.get(node);
+         assertEquals(expectedNormal.getX(), node.getNormalX(), 0.0);
+         assertEquals(expectedNormal.getY(), node.getNormalY(), 0.0);
+         assertEquals(expectedNormal.getZ(), node.getNormalZ(), 0.0);
+      }
+
+      // Only the paths to the updated nodes have been copied.
+      int numberOfCopiedNodes = 0;
+      for (NormalOcTreeNode node : OcTreeIteratorFactory.createIterable(ocTree.getRoot()))
+      {
+         if (!snapshotNormals.containsKey(node))
+            numberOfCopiedNodes++;
+      }
+      assertTrue(numberOfCopiedNodes > 0);
+      assertTrue(numberOfCopiedNodes < snapshot.size() / 10);
+   }
+
+   /** @return a copy of the nodes of the tree in iteration order. */
+   private static List<OccupancyOcTreeNode> copyNodes(OccupancyOcTree ocTree)
+   {
+      NodeBuilder<OccupancyOcTreeNode> nodeBuilder = new NodeBuilder<>(OccupancyOcTreeNode.class);
+      List<OccupancyOcTreeNode> nodes = new ArrayList<>();
+      for (OccupancyOcTreeNode node : OcTreeIteratorFactory.createIterable(ocTree.getRoot()))
+         nodes.add(node.cloneWithoutChildren(nodeBuilder));
+      return nodes;
+   }
+
+   private static void assertSnapshotEquals(List<OccupancyOcTreeNode> expectedNodes, OcTreeSnapshot<OccupancyOcTreeNode> snapshot)
+   {
+      assertEquals(expectedNodes.size(), snapshot.size());
+
+      Iterator<OccupancyOcTreeNode> snapshotIterator = snapshot.createIterable().iterator();
+
+      for (OccupancyOcTreeNode expectedNode : expectedNodes)
+      {
+         assertTrue(snapshotIterator.hasNext());
+         assertTrue(expectedNode.epsilonEquals(snapshotIterator.next(), 0.0));
+      }
+
+      assertFalse(snapshotIterator.hasNext());
+   }
+
+   private static long packCoarseKey(OcTreeKey key, int level)
+   {
+      return OcTreeKeyTools.packKey(key.getKey(0) >> level, key.getKey(1) >> level, key.getKey(2) >> level);
+   }
 }
@@ -0,0 +1,222 @@
+package us.ihmc.jOctoMap.ocTree;
+
+import static us.ihmc.robotics.Assert.assertEquals;
+import static us.ihmc.robotics.Assert.assertFalse;
+import static us.ihmc.robotics.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.mutable.MutableInt;
+import org.junit.jupiter.api.Test;
+
+import us.ihmc.euclid.tuple3D.Point3D;
+import us.ihmc.jOctoMap.node.OccupancyOcTreeNode;
+import us.ihmc.jOctoMap.node.pool.DirectOcTreeNodeStorage;
+import us.ihmc.jOctoMap.node.pool.HeapOcTreeNodeStorage;
+import us.ihmc.jOctoMap.node.pool.OcTreeNodeCursor;
+import us.ihmc.jOctoMap.node.pool.OcTreeNodeStorage;
+import us.ihmc.jOctoMap.pointCloud.PointCloud;
+import us.ihmc.jOctoMap.tools.JOctoMapRandomTools;
+
+public class OffHeapOccupancyOcTreeTest
+{
+   @Test
+   public void testInsertPointCloudAgainstOccupancyOcTree()
+   {
+      // Using small chunks to exercise the arenas
+      testInsertPointCloudAgainstOccupancyOcTree(() -> new DirectOcTreeNodeStorage(8));
+   }
+
+   @Test
+   public void testInsertPointCloudWithHeapStorageAgainstOccupancyOcTree()
+   {
+      testInsertPointCloudAgainstOccupancyOcTree(HeapOcTreeNodeStorage::new);
+   }
+
+   private static void testInsertPointCloudAgainstOccupancyOcTree(Supplier<OcTreeNodeStorage> storageSupplier)
+   {
+      Random random = new Random(34534L);
+
+      for (int attempt = 0; attempt < 5; attempt++)
+      {
+         double resolution = 0.05 + 0.1 * random.nextDouble();
+         OccupancyOcTree ocTree = new OccupancyOcTree(resolution);
+         OffHeapOccupancyOcTree offHeapOcTree = new OffHeapOccupancyOcTree(resolution, 16, storageSupplier.get());
+
+         for (int scanIndex = 0; scanIndex < 5; scanIndex++)
+         {
+            Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+            PointCloud pointCloud = new PointCloud();
+            for (int i = 0; i < 200; i++)
+               pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 3.0, 3.0, 3.0));
+
+            ocTree.insertPointCloud(pointCloud, sensorOrigin);
+            offHeapOcTree.insertPointCloud(pointCloud, sensorOrigin);
+         }
+
+         OcTreeNodeCursor cursor = new OcTreeNodeCursor();
+
+         for (OccupancyOcTreeNode node : ocTree)
+         {
+            assertTrue(offHeapOcTree.search(node.getKeyCopy(), cursor));
+            assertEquals(node.getLogOdds(), cursor.getLogOdds(), 1.0e-7);
+            assertEquals(ocTree.isNodeOccupied(node), offHeapOcTree.isNodeOccupied(cursor));
+         }
+
+         MutableInt numberOfLeaves = new MutableInt(0);
+         Point3D leafCoordinate = new Point3D();
+
+         offHeapOcTree.forEachLeaf(leaf ->
+         {
+            numberOfLeaves.increment();
+            leaf.getCoordinate(leafCoordinate);
+            OccupancyOcTreeNode node = ocTree.search(leaf.getKey(), leaf.getDepth());
+            assertTrue(node != null);
+            assertEquals(node.getLogOdds(), leaf.getLogOdds(), 1.0e-7);
+            assertEquals(node.getX(), leafCoordinate.getX(), 1.0e-5);
+            assertEquals(node.getY(), leafCoordinate.getY(), 1.0e-5);
+            assertEquals(node.getZ(), leafCoordinate.getZ(), 1.0e-5);
+            assertEquals(node.getSize(), leaf.getSize(), 1.0e-5);
+         });
+
+         assertEquals(offHeapOcTree.getNumberOfLeafNodes(), numberOfLeaves.intValue());
+         assertTrue(offHeapOcTree.getNumberOfLeafNodes() <= ocTree.getNumberOfLeafNodes());
+         assertEquals(offHeapOcTree.size(), offHeapOcTree.getStorage().getNumberOfNodes());
+      }
+   }
+
+   @Test
+   public void testDenseBricksAgainstRegularNodes()
+   {
+      Random random = new Random(6457L);
+
+      for (int attempt = 0; attempt < 5; attempt++)
+      {
+         double resolution = 0.05 + 0.05 * random.nextDouble();
+         OffHeapOccupancyOcTree offHeapOcTree = new OffHeapOccupancyOcTree(resolution);
+         OffHeapOccupancyOcTree brickOcTree = new OffHeapOccupancyOcTree(resolution);
+         brickOcTree.enableDenseBricks(true);
+         brickOcTree.setDenseBrickPromotionFillRatio(0.25);
+
+         // Dense cluttered scene: many points in a small volume.
+         for (int scanIndex = 0; scanIndex < 10; scanIndex++)
+         {
+            Point3D sensorOrigin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.2, 0.2, 0.2);
+            PointCloud pointCloud = new PointCloud();
+            for (int i = 0; i < 500; i++)
+               pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0));
+
+            offHeapOcTree.insertPointCloud(pointCloud, sensorOrigin);
+            brickOcTree.insertPointCloud(pointCloud, sensorOrigin);
+         }
+
+         assertTrue(brickOcTree.getDenseBrickStorage().getNumberOfBricks() > 0);
+         assertTrue(brickOcTree.size() < offHeapOcTree.size());
+
+         OcTreeNodeCursor cursor = new OcTreeNodeCursor();
+         OcTreeNodeCursor brickCursor = new OcTreeNodeCursor();
+         MutableInt numberOfKnownVoxels = new MutableInt(0);
+
+         offHeapOcTree.forEachLeaf(leaf ->
+         {
+            numberOfKnownVoxels.add(1 << 3 * (offHeapOcTree.getTreeDepth() - leaf.getDepth()));
+            assertTrue(brickOcTree.search(leaf.getKey(), brickCursor));
+            assertEquals(leaf.getLogOdds(), brickCursor.getLogOdds(), 1.0e-7);
+         });
+
+         MutableInt numberOfBrickKnownVoxels = new MutableInt(0);
+         brickOcTree.forEachLeaf(leaf ->
+         {
+            numberOfBrickKnownVoxels.add(1 << 3 * (brickOcTree.getTreeDepth() - leaf.getDepth()));
+            assertTrue(offHeapOcTree.search(leaf.getKey(), cursor));
+            assertEquals(cursor.getLogOdds(), leaf.getLogOdds(), 1.0e-7);
+         });
+         assertEquals(numberOfKnownVoxels.intValue(), numberOfBrickKnownVoxels.intValue());
+
+         // Converting the bricks back to nodes gives the same tree.
+         brickOcTree.enableDenseBricks(false);
+         assertEquals(0, brickOcTree.getDenseBrickStorage().getNumberOfBricks());
+         assertEquals(offHeapOcTree.size(), brickOcTree.size());
+         assertEquals(offHeapOcTree.getNumberOfLeafNodes(), brickOcTree.getNumberOfLeafNodes());
+         offHeapOcTree.forEachLeaf(leaf ->
+         {
+            assertTrue(brickOcTree.search(leaf.getKey(), leaf.getDepth(), brickCursor));
+            assertEquals(leaf.getDepth(), brickCursor.getDepth());
+            assertEquals(leaf.getLogOdds(), brickCursor.getLogOdds(), 1.0e-7);
+         });
+      }
+
+      // A saturated brick collapses into a single node.
+      OffHeapOccupancyOcTree brickOcTree = new OffHeapOccupancyOcTree(0.1);
+      brickOcTree.enableDenseBricks(true);
+      Point3D coordinate = new Point3D();
+
+      for (int update = 0; update < 20; update++)
+      {
+         for (int i = 0; i < 8; i++)
+         {
+            for (int j = 0; j < 8; j++)
+            {
+               for (int k = 0; k < 8; k++)
+               {
+                  coordinate.set((i + 0.5) * 0.1, (j + 0.5) * 0.1, (k + 0.5) * 0.1);
+                  brickOcTree.updateNode(coordinate, true);
+               }
+            }
+         }
+      }
+
+      assertEquals(0, brickOcTree.getDenseBrickStorage().getNumberOfBricks());
+      OcTreeNodeCursor cursor = new OcTreeNodeCursor();
+      assertTrue(brickOcTree.search(coordinate, cursor));
+      assertEquals(brickOcTree.getTreeDepth() - 3, cursor.getDepth());
+      assertTrue(brickOcTree.isNodeOccupied(cursor));
+   }
+
+   @Test
+   public void testPruningAndRecycling()
+   {
+      double resolution = 0.1;
+      OffHeapOccupancyOcTree offHeapOcTree = new OffHeapOccupancyOcTree(resolution);
+      Point3D coordinate = new Point3D();
+
+      // Saturating a 4x4x4 cube aligned on the tree should collapse it up to a single node.
+      for (int update = 0; update < 20; update++)
+      {
+         for (int i = 0; i < 4; i++)
+         {
+            for (int j = 0; j < 4; j++)
+            {
+               for (int k = 0; k < 4; k++)
+               {
+                  coordinate.set((i + 0.5) * resolution, (j + 0.5) * resolution, (k + 0.5) * resolution);
+                  offHeapOcTree.updateNode(coordinate, true);
+               }
+            }
+         }
+      }
+
+      OcTreeNodeCursor cursor = new OcTreeNodeCursor();
+      coordinate.set(0.05, 0.05, 0.05);
+      assertTrue(offHeapOcTree.search(coordinate, cursor));
+      assertEquals(offHeapOcTree.getTreeDepth() - 2, cursor.getDepth());
+      assertTrue(offHeapOcTree.isNodeOccupied(cursor));
+      assertEquals(offHeapOcTree.size(), offHeapOcTree.getStorage().getNumberOfNodes());
+
+      int sizeBeforeUpdate = offHeapOcTree.size();
+      offHeapOcTree.updateNode(coordinate, false);
+      assertFalse(sizeBeforeUpdate == offHeapOcTree.size());
+      long memoryFootprint = offHeapOcTree.getStorage().getMemoryFootprint();
+
+      // The nodes released by the pruning are reused.
+      for (int update = 0; update < 100; update++)
+         offHeapOcTree.updateNode(coordinate, update % 2 == 0);
+      assertEquals(memoryFootprint, offHeapOcTree.getStorage().getMemoryFootprint());
+
+      offHeapOcTree.clear();
+      assertEquals(0, offHeapOcTree.size());
+      assertFalse(offHeapOcTree.search(coordinate, cursor));
+      assertTrue(cursor.isNull());
+   }
+}
@@ -0,0 +1,164 @@
+package us.ihmc.jOctoMap.tools;
+
+import static us.ihmc.robotics.Assert.assertEquals;
+import static us.ihmc.robotics.Assert.assertFalse;
+import static us.ihmc.robotics.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import us.ihmc.euclid.transform.RigidBodyTransform;
+import us.ihmc.euclid.tuple3D.Point3D;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeySet;
+import us.ihmc.jOctoMap.node.OccupancyOcTreeNode;
+import us.ihmc.jOctoMap.ocTree.OccupancyOcTree;
+import us.ihmc.jOctoMap.pointCloud.DepthImage;
+import us.ihmc.jOctoMap.pointCloud.Scan;
+
+public class OcTreeDepthImageToolsTest
+{
+   @Test
+   public void testComputeUpdate()
+   {
+      Random random = new Random(8734L);
+      int treeDepth = 16;
+      double resolution = 0.05;
+
+      for (int attempt = 0; attempt < 10; attempt++)
+      {
+         DepthImage depthImage = nextDepthImage(random);
+         double minRange = random.nextBoolean() ? -1.0 : 1.5 * random.nextDouble();
+         double maxRange = random.nextBoolean() ? -1.0 : 1.0 + 1.5 * random.nextDouble();
+
+         PackedOcTreeKeySet freeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet occupiedCells = new PackedOcTreeKeySet();
+         OcTreeDepthImageTools.computeUpdate(depthImage, freeCells, occupiedCells, null, minRange, maxRange, resolution, treeDepth);
+
+         Set<Long> expectedOccupiedCells = new HashSet<>();
+         Point3D point = new Point3D();
+         for (int v = 0; v < depthImage.getHeight(); v++)
+         {
+            for (int u = 0; u < depthImage.getWidth(); u++)
+            {
+               if (!depthImage.getPoint(u, v, point))
+                  continue;
+               double range = point.distance(depthImage.getSensorOrigin());
+               if ((minRange < 0.0 || range >= minRange) && (maxRange < 0.0 || range <= maxRange))
+                  expectedOccupiedCells.add(OcTreeKeyConversionTools.coordinateToPackedKey(point, resolution, treeDepth));
+            }
+         }
+         assertEquals(expectedOccupiedCells, toSet(occupiedCells));
+
+         // The free cells are in front of the measured surface.
+         for (int i = 0; i < freeCells.size(); i++)
+         {
+            assertFalse(occupiedCells.contains(freeCells.get(i)));
+            OcTreeKeyConversionTools.packedKeyToCoordinate(freeCells.get(i), point, resolution, treeDepth);
+            depthImage.getSensorPose().inverseTransform(point);
+            int u = (int) Math.round(depthImage.getFocalLengthX() * point.getX() / point.getZ() + depthImage.getPrincipalPointX());
+            int v = (int) Math.round(depthImage.getFocalLengthY() * point.getY() / point.getZ() + depthImage.getPrincipalPointY());
+            assertTrue(point.getZ() < depthImage.getDepth(u, v));
+            assertTrue(maxRange < 0.0 || point.distanceFromOrigin() <= maxRange);
+         }
+
+         if (minRange >= 0.0)
+            continue;
+
+         // The cells well in front of the surface cleared by the ray tracing are carved too.
+         Scan scan = depthImage.toScan();
+         PackedOcTreeKeySet tracedFreeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet tracedOccupiedCells = new PackedOcTreeKeySet();
+         OcTreeRayTools.computeUpdate(scan.getSensorOrigin(), scan.getPointCloud(), tracedFreeCells, tracedOccupiedCells, null, -1.0, maxRange, resolution,
+                                      treeDepth);
+         int numberOfCellsChecked = 0;
+
+         for (int i = 0; i < tracedFreeCells.size(); i++)
+         {
+            OcTreeKeyConversionTools.packedKeyToCoordinate(tracedFreeCells.get(i), point, resolution, treeDepth);
+            depthImage.getSensorPose().inverseTransform(point);
+            int u = (int) Math.round(depthImage.getFocalLengthX() * point.getX() / point.getZ() + depthImage.getPrincipalPointX());
+            int v = (int) Math.round(depthImage.getFocalLengthY() * point.getY() / point.getZ() + depthImage.getPrincipalPointY());
+            if (u < 1 || u >= depthImage.getWidth() - 1 || v < 1 || v >= depthImage.getHeight() - 1)
+               continue;
+            if (!DepthImage.isDepthValid(depthImage.getDepth(u, v)) || point.getZ() > depthImage.getDepth(u, v) - 2.0 * resolution)
+               continue;
+            if (maxRange >= 0.0 && point.distanceFromOrigin() > maxRange - resolution)
+               continue;
+            assertTrue(freeCells.contains(tracedFreeCells.get(i)));
+            numberOfCellsChecked++;
+         }
+
+         assertTrue(numberOfCellsChecked > 100);
+      }
+   }
+
+   @Test
+   public void testInsertDepthImage()
+   {
+      Random random = new Random(2341L);
+      double resolution = 0.05;
+
+      for (int attempt = 0; attempt < 5; attempt++)
+      {
+         DepthImage depthImage = nextDepthImage(random);
+         OccupancyOcTree ocTree = new OccupancyOcTree(resolution);
+         ocTree.insertDepthImage(depthImage);
+
+         PackedOcTreeKeySet freeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet occupiedCells = new PackedOcTreeKeySet();
+         OcTreeDepthImageTools.computeUpdate(depthImage, freeCells, occupiedCells, null, -1.0, -1.0, resolution, ocTree.getTreeDepth());
+
+         for (int i = 0; i < occupiedCells.size(); i++)
+         {
+            OccupancyOcTreeNode node = ocTree.search(OcTreeKeyTools.unpackKey(occupiedCells.get(i)));
+            assertTrue(ocTree.isNodeOccupied(node));
+         }
+
+         for (int i = 0; i < freeCells.size(); i++)
+         {
+            OccupancyOcTreeNode node = ocTree.search(OcTreeKeyTools.unpackKey(freeCells.get(i)));
+            assertFalse(ocTree.isNodeOccupied(node));
+         }
+      }
+   }
+
+   /** Image of a wavy wall in front of a randomly placed camera, with a few pixels without measurement. */
+   private static DepthImage nextDepthImage(Random random)
+   {
+      int width = 80;
+      int height = 60;
+      DepthImage depthImage = new DepthImage(width, height);
+      depthImage.setIntrinsics(60.0, 60.0, 0.5 * (width - 1), 0.5 * (height - 1));
+      RigidBodyTransform sensorPose = new RigidBodyTransform();
+      sensorPose.getRotation().setYawPitchRoll(Math.PI * random.nextDouble(), 0.5 * random.nextDouble(), random.nextDouble());
+      sensorPose.getTranslation().set(JOctoMapRandomTools.generateRandomPoint3D(random, 1.0, 1.0, 1.0));
+      depthImage.setSensorPose(sensorPose);
+
+      double wallDepth = 1.5 + random.nextDouble();
+      double phase = 2.0 * Math.PI * random.nextDouble();
+
+      for (int v = 0; v < height; v++)
+      {
+         for (int u = 0; u < width; u++)
+         {
+            if (random.nextInt(50) == 0)
+               depthImage.setDepth(u, v, Double.NaN);
+            else
+               depthImage.setDepth(u, v, wallDepth + 0.2 * Math.sin(0.1 * u + phase) * Math.cos(0.1 * v));
+         }
+      }
+
+      return depthImage;
+   }
+
+   private static Set<Long> toSet(PackedOcTreeKeySet packedSet)
+   {
+      Set<Long> keys = new HashSet<>();
+      for (int index = 0; index < packedSet.size(); index++)
+         keys.add(packedSet.get(index));
+      return keys;
+   }
+}
@@ -126,4 +126,35 @@ public class OcTreeKeyToolsTest
          assertEquals(expectedKey, currentKey);
       }
    }
+
+   @Test
+   public void testMortonCode() throws Exception
+   {
+      Random random = new Random(8723L);
+      int treeDepth = OcTreeKeyTools.MAX_PACKED_KEY_TREE_DEPTH;
+
+      for (int i = 0; i < 100000; i++)
+      {
+         OcTreeKey key = new OcTreeKey(random, treeDepth);
+         long mortonCode = OcTreeKeyTools.computeMortonCode(key);
+         assertEquals(key, OcTreeKeyTools.mortonCodeToKey(mortonCode));
+         assertEquals(OcTreeKeyTools.packKey(key), OcTreeKeyTools.mortonCodeToPackedKey(mortonCode));
+         assertEquals(mortonCode, OcTreeKeyTools.packedKeyToMortonCode(OcTreeKeyTools.packKey(key)));
+
+         for (int depth = 0; depth < treeDepth; depth++)
+            assertEquals(OcTreeKeyTools.computeChildIndex(key, depth, treeDepth), OcTreeKeyTools.computeMortonChildIndex(mortonCode, depth, treeDepth));
+
+         OcTreeKey otherKey = new OcTreeKey(random, treeDepth);
+         long otherMortonCode = OcTreeKeyTools.computeMortonCode(otherKey);
+         int expectedCommonDepth = 0;
+         while (expectedCommonDepth < treeDepth && haveSameChildIndex(key, otherKey, expectedCommonDepth, treeDepth))
+            expectedCommonDepth++;
+         assertEquals(expectedCommonDepth, OcTreeKeyTools.computeMortonCommonDepth(mortonCode, otherMortonCode, treeDepth));
+      }
+   }
+
+   private static boolean haveSameChildIndex(OcTreeKey key1, OcTreeKey key2, int depth, int treeDepth)
+   {
+      return OcTreeKeyTools.computeChildIndex(key1, depth, treeDepth) == OcTreeKeyTools.computeChildIndex(key2, depth, treeDepth);
+   }
 }
@@ -0,0 +1,233 @@
+package us.ihmc.jOctoMap.tools;
+
+import static us.ihmc.robotics.Assert.assertEquals;
+import static us.ihmc.robotics.Assert.assertFalse;
+import static us.ihmc.robotics.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+import us.ihmc.euclid.tuple3D.Point3D;
+import us.ihmc.jOctoMap.boundingBox.OcTreeBoundingBoxInterface;
+import us.ihmc.jOctoMap.boundingBox.OcTreeSimpleBoundingBox;
+import us.ihmc.jOctoMap.key.OcTreeKey;
+import us.ihmc.jOctoMap.key.OcTreeKeySet;
+import us.ihmc.jOctoMap.key.PackedOcTreeKeySet;
+import us.ihmc.jOctoMap.pointCloud.PointCloud;
+
+public class OcTreeRayToolsTest
+{
+   @Test
+   public void testComputeUpdateAgainstOcTreeKeySet()
+   {
+      Random random = new Random(6547L);
+      int treeDepth = 16;
+
+      for (int attempt = 0; attempt < 100; attempt++)
+      {
+         double resolution = 0.02 + 0.1 * random.nextDouble();
+         Point3D origin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+         PointCloud pointCloud = new PointCloud();
+         for (int i = 0; i < 100; i++)
+            pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 3.0, 3.0, 3.0));
+
+         OcTreeBoundingBoxInterface boundingBox = null;
+         if (random.nextBoolean())
+         {
+            Point3D min = JOctoMapRandomTools.generateRandomPoint3D(random, 2.0, 2.0, 2.0);
+            Point3D max = new Point3D(min);
+            max.add(1.0 + random.nextDouble(), 1.0 + random.nextDouble(), 1.0 + random.nextDouble());
+            OcTreeSimpleBoundingBox simpleBoundingBox = new OcTreeSimpleBoundingBox(min, max);
+            simpleBoundingBox.update(resolution, treeDepth);
+            boundingBox = simpleBoundingBox;
+         }
+         double minRange = random.nextBoolean() ? -1.0 : 0.5 * random.nextDouble();
+         double maxRange = random.nextBoolean() ? -1.0 : 1.0 + 2.0 * random.nextDouble();
+         boolean discrete = random.nextBoolean();
+
+         OcTreeKeySet expectedFreeCells = new OcTreeKeySet();
+         OcTreeKeySet expectedOccupiedCells = new OcTreeKeySet();
+         PackedOcTreeKeySet packedFreeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet packedOccupiedCells = new PackedOcTreeKeySet();
+
+         if (discrete)
+         {
+            OcTreeRayTools.computeDiscreteUpdate(origin, pointCloud, expectedFreeCells, expectedOccupiedCells, boundingBox, minRange, maxRange, resolution,
+                                                 treeDepth);
+            OcTreeRayTools.computeDiscreteUpdate(origin, pointCloud, packedFreeCells, packedOccupiedCells, boundingBox, minRange, maxRange, resolution,
+                                                 treeDepth);
+         }
+         else
+         {
+            OcTreeRayTools.computeUpdate(origin, pointCloud, expectedFreeCells, expectedOccupiedCells, boundingBox, minRange, maxRange, resolution, treeDepth);
+            OcTreeRayTools.computeUpdate(origin, pointCloud, packedFreeCells, packedOccupiedCells, boundingBox, minRange, maxRange, resolution, treeDepth);
+         }
+
+         assertEquals(new HashSet<>(expectedFreeCells), unpack(packedFreeCells));
+         assertEquals(new HashSet<>(expectedOccupiedCells), unpack(packedOccupiedCells));
+      }
+   }
+
+   @Test
+   public void testParallelComputeUpdate()
+   {
+      Random random = new Random(23487L);
+      int treeDepth = 16;
+      ForkJoinPool pool = new ForkJoinPool(4);
+
+      for (int attempt = 0; attempt < 20; attempt++)
+      {
+         double resolution = 0.02 + 0.1 * random.nextDouble();
+         Point3D origin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+         PointCloud pointCloud = new PointCloud();
+         for (int i = 0; i < 1000; i++)
+            pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 3.0, 3.0, 3.0));
+         double maxRange = random.nextBoolean() ? -1.0 : 1.0 + 2.0 * random.nextDouble();
+
+         PackedOcTreeKeySet expectedFreeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet expectedOccupiedCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet parallelFreeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet parallelOccupiedCells = new PackedOcTreeKeySet();
+         OcTreeRayTools.computeUpdate(origin, pointCloud, expectedFreeCells, expectedOccupiedCells, null, -1.0, maxRange, resolution, treeDepth);
+         OcTreeRayTools.computeUpdate(origin, pointCloud, parallelFreeCells, parallelOccupiedCells, null, -1.0, maxRange, resolution, treeDepth, pool);
+
+         assertEquals(unpack(expectedFreeCells), unpack(parallelFreeCells));
+         assertEquals(unpack(expectedOccupiedCells), unpack(parallelOccupiedCells));
+      }
+
+      pool.shutdown();
+   }
+
+   @Test
+   public void testRayFanUpdate()
+   {
+      Random random = new Random(9123L);
+      int treeDepth = 16;
+
+      for (int attempt = 0; attempt < 50; attempt++)
+      {
+         double resolution = 0.02 + 0.1 * random.nextDouble();
+         Point3D origin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+         PointCloud pointCloud = new PointCloud();
+         for (int i = 0; i < 500; i++)
+            pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 3.0, 3.0, 3.0));
+
+         OcTreeBoundingBoxInterface boundingBox = null;
+         if (random.nextBoolean())
+         {
+            Point3D min = JOctoMapRandomTools.generateRandomPoint3D(random, 2.0, 2.0, 2.0);
+            Point3D max = new Point3D(min);
+            max.add(1.0 + random.nextDouble(), 1.0 + random.nextDouble(), 1.0 + random.nextDouble());
+            OcTreeSimpleBoundingBox simpleBoundingBox = new OcTreeSimpleBoundingBox(min, max);
+            simpleBoundingBox.update(resolution, treeDepth);
+            boundingBox = simpleBoundingBox;
+         }
+         double minRange = random.nextBoolean() ? -1.0 : 0.5 * random.nextDouble();
+         double maxRange = random.nextBoolean() ? -1.0 : 1.0 + 2.0 * random.nextDouble();
+         int nearFieldRadius = random.nextInt(40);
+
+         PackedOcTreeKeySet expectedFreeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet expectedOccupiedCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet fanFreeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet fanOccupiedCells = new PackedOcTreeKeySet();
+         OcTreeRayTools.computeUpdate(origin, pointCloud, expectedFreeCells, expectedOccupiedCells, boundingBox, minRange, maxRange, resolution, treeDepth);
+         OcTreeRayTools.computeRayFanUpdate(origin, pointCloud, fanFreeCells, fanOccupiedCells, boundingBox, minRange, maxRange, resolution, treeDepth,
+                                            nearFieldRadius);
+
+         assertEquals(unpack(expectedFreeCells), unpack(fanFreeCells));
+         assertEquals(unpack(expectedOccupiedCells), unpack(fanOccupiedCells));
+      }
+   }
+
+   @Test
+   public void testMultiResolutionUpdate()
+   {
+      Random random = new Random(4562L);
+      int treeDepth = 16;
+
+      for (int attempt = 0; attempt < 20; attempt++)
+      {
+         double resolution = 0.02 + 0.05 * random.nextDouble();
+         Point3D origin = JOctoMapRandomTools.generateRandomPoint3D(random, 0.5, 0.5, 0.5);
+         PointCloud pointCloud = new PointCloud();
+         for (int i = 0; i < 300; i++)
+            pointCloud.add(JOctoMapRandomTools.generateRandomPoint3D(random, 8.0, 8.0, 8.0));
+         double maxRange = random.nextBoolean() ? -1.0 : 3.0 + 3.0 * random.nextDouble();
+         double coarseMissRange = 0.5 + random.nextDouble();
+         PackedOcTreeKeySet[] coarseFreeCells = new PackedOcTreeKeySet[1 + random.nextInt(4)];
+         for (int i = 0; i < coarseFreeCells.length; i++)
+            coarseFreeCells[i] = new PackedOcTreeKeySet();
+
+         PackedOcTreeKeySet expectedFreeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet expectedOccupiedCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet freeCells = new PackedOcTreeKeySet();
+         PackedOcTreeKeySet occupiedCells = new PackedOcTreeKeySet();
+         OcTreeRayTools.computeUpdate(origin, pointCloud, expectedFreeCells, expectedOccupiedCells, null, -1.0, maxRange, resolution, treeDepth);
+         OcTreeRayTools.computeMultiResolutionUpdate(origin, pointCloud, freeCells, coarseFreeCells, occupiedCells, null, -1.0, maxRange, coarseMissRange,
+                                                     resolution, treeDepth);
+
+         assertEquals(unpack(expectedOccupiedCells), unpack(occupiedCells));
+
+         int numberOfCoarseCells = 0;
+         for (int i = 0; i < coarseFreeCells.length; i++)
+         {
+            numberOfCoarseCells += coarseFreeCells[i].size();
+            // The coarse cells do not contain any occupied cell.
+            for (int j = 0; j < occupiedCells.size(); j++)
+               assertFalse(coarseFreeCells[i].contains(shiftKey(occupiedCells.get(j), i + 1)));
+         }
+         assertTrue(numberOfCoarseCells + freeCells.size() < expectedFreeCells.size());
+
+         // The free cells at full depth are covered by the free cells at full or coarser depth, except in the coarse cells containing an occupied cell.
+         PackedOcTreeKeySet[] coarseOccupiedCells = new PackedOcTreeKeySet[coarseFreeCells.length];
+         for (int i = 0; i < coarseFreeCells.length; i++)
+         {
+            coarseOccupiedCells[i] = new PackedOcTreeKeySet();
+            for (int j = 0; j < occupiedCells.size(); j++)
+               coarseOccupiedCells[i].add(shiftKey(occupiedCells.get(j), i + 1));
+         }
+
+         int numberOfUncoveredCells = 0;
+         Point3D cellCenter = new Point3D();
+         for (int i = 0; i < expectedFreeCells.size(); i++)
+         {
+            long expectedFreeCell = expectedFreeCells.get(i);
+            boolean isCovered = freeCells.contains(expectedFreeCell);
+            for (int level = 1; level <= coarseFreeCells.length && !isCovered; level++)
+            {
+               long coarseCell = shiftKey(expectedFreeCell, level);
+               isCovered = coarseFreeCells[level - 1].contains(coarseCell) || coarseOccupiedCells[level - 1].contains(coarseCell);
+            }
+            // As the leaf at the maximum range, the coarse cell at the maximum range is not updated.
+            OcTreeKeyConversionTools.packedKeyToCoordinate(expectedFreeCell, cellCenter, resolution, treeDepth);
+            if (maxRange >= 0.0 && cellCenter.distance(origin) > maxRange - Math.sqrt(3.0) * resolution * (1 << coarseFreeCells.length))
+               isCovered = true;
+            if (!isCovered)
+               numberOfUncoveredCells++;
+         }
+         assertTrue(numberOfUncoveredCells < 0.01 * expectedFreeCells.size());
+
+         for (int i = 0; i < freeCells.size(); i++)
+            assertTrue(expectedFreeCells.contains(freeCells.get(i)));
+      }
+   }
+
+   private static Set<OcTreeKey> unpack(PackedOcTreeKeySet packedSet)
+   {
+      Set<OcTreeKey> keys = new HashSet<>();
+      for (int index = 0; index < packedSet.size(); index++)
+         keys.add(OcTreeKeyTools.unpackKey(packedSet.get(index)));
+      return keys;
+   }
+
+   private static long shiftKey(long packedKey, int level)
+   {
+      return OcTreeKeyTools.packKey(OcTreeKeyTools.unpackKey0(packedKey) >> level,
+                                    OcTreeKeyTools.unpackKey1(packedKey) >> level,
+                                    OcTreeKeyTools.unpackKey2(packedKey) >> level);
+   }
+}